@@ -33,11 +33,18 @@ export interface ValidationError {
     severity: 'error' | 'warning' | 'info';
 }
 
+export interface OptimizationInfo {
+    line: number;
+    kind: 'constant_folding' | 'dead_branch' | 'loop_invariant';
+    message: string;
+}
+
 export interface ValidationResult {
     valid: boolean;
     errors: ValidationError[];
     errorCount: number;
     warningCount: number;
+    optimizations?: OptimizationInfo[];
 }
 
 export interface CompletionItem {
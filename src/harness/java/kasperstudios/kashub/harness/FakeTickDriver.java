@@ -0,0 +1,88 @@
+package kasperstudios.kashub.harness;
+
+import kasperstudios.kashub.algorithm.ScriptInterpreter;
+import kasperstudios.kashub.runtime.CommandExecutor;
+import kasperstudios.kashub.runtime.ScriptTaskManager;
+import kasperstudios.kashub.runtime.TimerWheel;
+
+import java.util.Arrays;
+
+/**
+ * Drives the script runtime like the END_CLIENT_TICK handler of KashubClient,
+ * back to back on the calling thread, and records how long every tick took.
+ * Timers count ticks, so a 'wait 1000' finishes after 20 ticks however fast they run.
+ */
+public class FakeTickDriver {
+    private final MockClientFacade client;
+    private final long drainBudgetNanos;
+    private long[] tickNanos = new long[1024];
+    private int ticks;
+
+    public FakeTickDriver(MockClientFacade client, long drainBudgetNanos) {
+        this.client = client;
+        this.drainBudgetNanos = drainBudgetNanos;
+    }
+
+    /**
+     * One client tick, in the order of KashubClient
+     * @return nanoseconds the tick took
+     */
+    public long tick() {
+        long start = System.nanoTime();
+        TimerWheel.getInstance().tick();
+        ScriptInterpreter.getInstance().updateEnvironmentVariables();
+        ScriptTaskManager.getInstance().tick();
+        CommandExecutor.getInstance().drainGameThread(drainBudgetNanos);
+        client.runQueued();
+        long elapsed = System.nanoTime() - start;
+
+        if (ticks == tickNanos.length) {
+            tickNanos = Arrays.copyOf(tickNanos, ticks * 2);
+        }
+        tickNanos[ticks++] = elapsed;
+        return elapsed;
+    }
+
+    public void run(int count) {
+        for (int i = 0; i < count; i++) {
+            tick();
+        }
+    }
+
+    public int getTicks() {
+        return ticks;
+    }
+
+    /**
+     * Duration of the tick at the given percentile (0..100)
+     */
+    public long percentileNanos(double percentile) {
+        if (ticks == 0) {
+            return 0;
+        }
+        long[] sorted = Arrays.copyOf(tickNanos, ticks);
+        Arrays.sort(sorted);
+        int index = (int) Math.ceil(percentile / 100.0 * ticks) - 1;
+        return sorted[Math.max(0, Math.min(ticks - 1, index))];
+    }
+
+    /**
+     * Share of ticks longer than the limit, in percent
+     */
+    public double overrunPercent(long limitNanos) {
+        if (ticks == 0) {
+            return 0;
+        }
+        int over = 0;
+        for (int i = 0; i < ticks; i++) {
+            if (tickNanos[i] > limitNanos) {
+                over++;
+            }
+        }
+        return over * 100.0 / ticks;
+    }
+
+    public void reset() {
+        ticks = 0;
+    }
+}
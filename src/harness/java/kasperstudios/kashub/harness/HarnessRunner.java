@@ -0,0 +1,175 @@
+package kasperstudios.kashub.harness;
+
+import kasperstudios.kashub.algorithm.CommandRegistry;
+import kasperstudios.kashub.algorithm.commands.ChatCommand;
+import kasperstudios.kashub.algorithm.commands.LogCommand;
+import kasperstudios.kashub.algorithm.commands.PrintCommand;
+import kasperstudios.kashub.algorithm.commands.WaitCommand;
+import kasperstudios.kashub.client.ClientFacade;
+import kasperstudios.kashub.config.KashubConfig;
+import kasperstudios.kashub.runtime.CommandExecutor;
+import kasperstudios.kashub.runtime.ScriptState;
+import kasperstudios.kashub.runtime.ScriptTask;
+import kasperstudios.kashub.runtime.ScriptTaskManager;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Headless load test of the script runtime: starts many tasks against
+ * {@link MockClientFacade}, drives them with {@link FakeTickDriver} and reports
+ * commands per second, tick time percentiles, tick overruns and heap per task.
+ *
+ * Run with: ./gradlew scriptHarness --args="--tasks 500 --ticks 2400 --workload mixed"
+ */
+public class HarnessRunner {
+    private static final long TICK_NANOS = 50_000_000L;
+
+    private static final Map<String, String> WORKLOADS = new LinkedHashMap<>();
+
+    static {
+        // Chat-heavy script: messages and logs every tick
+        WORKLOADS.put("output",
+            "let i = 0\n" +
+            "loop {\n" +
+            "  print \"tick $i\"\n" +
+            "  chat \"hello $i\"\n" +
+            "  log info \"step $i\"\n" +
+            "  i = i + 1\n" +
+            "  wait 50\n" +
+            "}\n");
+        // Interpreter-heavy script: arithmetic and function calls, little I/O
+        WORKLOADS.put("compute",
+            "function sum(k) {\n" +
+            "  let s = 0\n" +
+            "  for (let j = 0; j < k; j++) {\n" +
+            "    s = s + j\n" +
+            "  }\n" +
+            "  return s\n" +
+            "}\n" +
+            "loop {\n" +
+            "  let n = 0\n" +
+            "  while (n < 200) {\n" +
+            "    n = n + 1\n" +
+            "  }\n" +
+            "  sum(50)\n" +
+            "  work 200\n" +
+            "  wait 100\n" +
+            "}\n");
+        // Bursts of cheap commands followed by a pause
+        WORKLOADS.put("burst",
+            "loop {\n" +
+            "  loop 50 {\n" +
+            "    print \"burst\"\n" +
+            "  }\n" +
+            "  wait 250\n" +
+            "}\n");
+    }
+
+    public static void main(String[] args) {
+        int taskCount = 200;
+        int ticks = 1200;
+        int warmupTicks = 200;
+        String workload = "mixed";
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            switch (args[i]) {
+                case "--tasks" -> taskCount = Integer.parseInt(args[i + 1]);
+                case "--ticks" -> ticks = Integer.parseInt(args[i + 1]);
+                case "--warmup" -> warmupTicks = Integer.parseInt(args[i + 1]);
+                case "--workload" -> workload = args[i + 1];
+                default -> throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        }
+        if (!workload.equals("mixed") && !WORKLOADS.containsKey(workload)) {
+            throw new IllegalArgumentException("Unknown workload " + workload + ", expected mixed or one of " + WORKLOADS.keySet());
+        }
+
+        PrintStream report = System.out;
+        // Commands and the logger print to stdout; keep the report readable
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+
+        KashubConfig config = KashubConfig.getInstance();
+        config.logToFile = false;
+        config.logToChat = false;
+        config.hotReload = false;
+
+        MockClientFacade client = new MockClientFacade();
+        ClientFacade.setInstance(client);
+        CommandRegistry.registerCommand(new PrintCommand());
+        CommandRegistry.registerCommand(new ChatCommand());
+        CommandRegistry.registerCommand(new LogCommand());
+        CommandRegistry.registerCommand(new WaitCommand());
+        CommandRegistry.registerCommand(new WorkCommand());
+
+        FakeTickDriver driver = new FakeTickDriver(client, config.tickBudgetMicros * 1000L);
+        List<String> names = new ArrayList<>(WORKLOADS.keySet());
+
+        long heapBefore = usedHeap();
+        List<ScriptTask> tasks = new ArrayList<>();
+        for (int i = 0; i < taskCount; i++) {
+            String name = workload.equals("mixed") ? names.get(i % names.size()) : workload;
+            ScriptTask task = ScriptTaskManager.getInstance().startScript("harness/" + name + "_" + i, WORKLOADS.get(name));
+            if (task != null) {
+                tasks.add(task);
+            }
+        }
+
+        driver.run(warmupTicks);
+        long heapPerTask = tasks.isEmpty() ? 0 : Math.max(0, usedHeap() - heapBefore) / tasks.size();
+        driver.reset();
+
+        long commandsBefore = executedCommands(tasks);
+        long start = System.nanoTime();
+        driver.run(ticks);
+        long elapsed = System.nanoTime() - start;
+        long commands = executedCommands(tasks) - commandsBefore;
+
+        int failed = 0;
+        for (ScriptTask task : tasks) {
+            if (task.getState() == ScriptState.ERROR) {
+                failed++;
+            }
+        }
+        ScriptTaskManager.getInstance().stopAll();
+        System.setOut(report);
+
+        long budgetNanos = config.tickBudgetMicros * 1000L;
+        report.printf("Workload %s: %d tasks (%d failed), %d ticks after %d warmup ticks%n",
+            workload, tasks.size(), failed, driver.getTicks(), warmupTicks);
+        report.printf("Commands:   %d executed, %.0f/s wall clock, %.1f per tick%n",
+            commands, commands / (elapsed / 1e9), (double) commands / Math.max(1, driver.getTicks()));
+        report.printf("Tick time:  p50 %.3f ms, p90 %.3f ms, p99 %.3f ms, max %.3f ms%n",
+            millis(driver.percentileNanos(50)), millis(driver.percentileNanos(90)),
+            millis(driver.percentileNanos(99)), millis(driver.percentileNanos(100)));
+        report.printf("Overruns:   %.2f%% over the %d us script budget, %.2f%% over a 50 ms tick%n",
+            driver.overrunPercent(budgetNanos), config.tickBudgetMicros, driver.overrunPercent(TICK_NANOS));
+        report.printf("Memory:     %.1f KiB heap per task%n", heapPerTask / 1024.0);
+        report.printf("Client:     %d messages shown, %d sent%n", client.getShownMessages(), client.getSentMessages());
+        report.println("Executor:   " + CommandExecutor.getInstance().getStats());
+        System.exit(failed == 0 ? 0 : 1);
+    }
+
+    private static long executedCommands(List<ScriptTask> tasks) {
+        long total = 0;
+        for (ScriptTask task : tasks) {
+            total += task.getExecutedCommands();
+        }
+        return total;
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private static double millis(long nanos) {
+        return nanos / 1e6;
+    }
+}
@@ -0,0 +1,74 @@
+package kasperstudios.kashub.harness;
+
+import kasperstudios.kashub.client.ClientFacade;
+import net.minecraft.client.network.ClientPlayerEntity;
+import net.minecraft.text.Text;
+import net.minecraft.world.World;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Client without a game: no player or world, messages are only counted.
+ * Work passed to {@link #execute} runs right away on the tick thread and is
+ * queued for the next {@link #runQueued} otherwise, like MinecraftClient.execute.
+ */
+public class MockClientFacade extends ClientFacade {
+    private final Queue<Runnable> queued = new ConcurrentLinkedQueue<>();
+    private final AtomicLong shownMessages = new AtomicLong();
+    private final AtomicLong sentMessages = new AtomicLong();
+    private volatile Thread tickThread;
+
+    @Override
+    public void execute(Runnable task) {
+        if (Thread.currentThread() == tickThread && queued.isEmpty()) {
+            task.run();
+        } else {
+            queued.add(task);
+        }
+    }
+
+    @Override
+    public void showMessage(Text message) {
+        shownMessages.incrementAndGet();
+    }
+
+    @Override
+    public void sendChatMessage(String message) {
+        sentMessages.incrementAndGet();
+    }
+
+    @Override
+    public ClientPlayerEntity getPlayer() {
+        return null;
+    }
+
+    @Override
+    public World getWorld() {
+        return null;
+    }
+
+    /**
+     * Run the work queued from other threads. Called by {@link FakeTickDriver} every tick
+     * @return number of tasks run
+     */
+    public int runQueued() {
+        tickThread = Thread.currentThread();
+        int ran = 0;
+        Runnable task;
+        while ((task = queued.poll()) != null) {
+            task.run();
+            ran++;
+        }
+        return ran;
+    }
+
+    public long getShownMessages() {
+        return shownMessages.get();
+    }
+
+    public long getSentMessages() {
+        return sentMessages.get();
+    }
+}
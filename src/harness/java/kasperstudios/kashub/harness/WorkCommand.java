@@ -0,0 +1,41 @@
+package kasperstudios.kashub.harness;
+
+import kasperstudios.kashub.algorithm.Command;
+
+/**
+ * Stand-in for scans and path searches: spins on the COMPUTE lane for the given time
+ */
+public class WorkCommand implements Command {
+    @Override
+    public String getName() {
+        return "work";
+    }
+
+    @Override
+    public String getDescription() {
+        return "Busy work on the compute lane (harness only)";
+    }
+
+    @Override
+    public String getParameters() {
+        return "<micros> - how long to work";
+    }
+
+    @Override
+    public int getMinArgs() {
+        return 1;
+    }
+
+    @Override
+    public Lane getLane() {
+        return Lane.COMPUTE;
+    }
+
+    @Override
+    public void execute(String[] args) {
+        long end = System.nanoTime() + Long.parseLong(args[0]) * 1000L;
+        while (System.nanoTime() < end) {
+            Thread.onSpinWait();
+        }
+    }
+}
@@ -0,0 +1,207 @@
+package kasperstudios.kashub.algorithm;
+
+import kasperstudios.kashub.algorithm.CompiledExpression.SlotBinder;
+import kasperstudios.kashub.algorithm.CompiledExpression.VariableSlot;
+import kasperstudios.kashub.algorithm.types.TypedValue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Command argument split once into literal text and $variable segments.
+ * Rendering is a single StringBuilder pass; variables are bound to slots
+ * with the same {@link SlotBinder} used for compiled expressions.
+ * Unresolved variables are kept as "$name" so a later pass can fill them in.
+ */
+public class ArgumentTemplate {
+    private final String source;
+    private final String[] segments;  // literal text, or variable name if variable[i]
+    private final boolean[] variable;
+    private final boolean quoted;     // argument was written in quotes, never re-split
+
+    private ArgumentTemplate(String source, String[] segments, boolean[] variable, boolean quoted) {
+        this.source = source;
+        this.segments = segments;
+        this.variable = variable;
+        this.quoted = quoted;
+    }
+
+    /**
+     * Split a command line into argument templates the way the runtime
+     * tokenizer does: by spaces outside of quotes, quotes removed
+     */
+    public static List<ArgumentTemplate> tokenize(String line) {
+        List<ArgumentTemplate> args = new ArrayList<>();
+        StringBuilder current = new StringBuilder();
+        boolean inQuotes = false;
+        boolean hadQuotes = false;
+
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (c == '"') {
+                inQuotes = !inQuotes;
+                hadQuotes = true;
+                continue;
+            }
+            if (c == ' ' && !inQuotes) {
+                if (current.length() > 0) {
+                    args.add(parse(current.toString(), hadQuotes));
+                    current.setLength(0);
+                }
+                hadQuotes = false;
+            } else {
+                current.append(c);
+            }
+        }
+        if (current.length() > 0) {
+            args.add(parse(current.toString(), hadQuotes));
+        }
+        return Collections.unmodifiableList(args);
+    }
+
+    /**
+     * Split text into literal and $variable segments
+     */
+    public static ArgumentTemplate parse(String text, boolean quoted) {
+        List<String> segments = new ArrayList<>();
+        List<Boolean> kinds = new ArrayList<>();
+        int literalStart = 0;
+        int i = 0;
+        while (i < text.length()) {
+            if (text.charAt(i) == '$') {
+                int end = i + 1;
+                while (end < text.length() && isNameChar(text.charAt(end))) {
+                    end++;
+                }
+                if (end > i + 1) {
+                    if (i > literalStart) {
+                        segments.add(text.substring(literalStart, i));
+                        kinds.add(false);
+                    }
+                    segments.add(text.substring(i + 1, end));
+                    kinds.add(true);
+                    literalStart = end;
+                    i = end;
+                    continue;
+                }
+            }
+            i++;
+        }
+        if (literalStart < text.length() || segments.isEmpty()) {
+            segments.add(text.substring(literalStart));
+            kinds.add(false);
+        }
+
+        boolean[] variable = new boolean[kinds.size()];
+        for (int k = 0; k < variable.length; k++) {
+            variable[k] = kinds.get(k);
+        }
+        return new ArgumentTemplate(text, segments.toArray(new String[0]), variable, quoted);
+    }
+
+    private static boolean isNameChar(char c) {
+        return c == '_' || Character.isLetterOrDigit(c);
+    }
+
+    public String getSource() {
+        return source;
+    }
+
+    public boolean isQuoted() {
+        return quoted;
+    }
+
+    /**
+     * True if the argument has no variables
+     */
+    public boolean isConstant() {
+        return segments.length == 1 && !variable[0];
+    }
+
+    /**
+     * Names of referenced variables, in order of appearance
+     */
+    public List<String> getVariableNames() {
+        List<String> names = new ArrayList<>();
+        for (int i = 0; i < segments.length; i++) {
+            if (variable[i]) names.add(segments[i]);
+        }
+        return names;
+    }
+
+    /**
+     * Bind every variable segment once
+     */
+    public Bound bind(SlotBinder binder) {
+        VariableSlot[] slots = new VariableSlot[segments.length];
+        for (int i = 0; i < segments.length; i++) {
+            if (variable[i]) {
+                slots[i] = binder.bind(segments[i]);
+            }
+        }
+        return new Bound(this, slots);
+    }
+
+    @Override
+    public String toString() {
+        return source;
+    }
+
+    /**
+     * Argument template with its variables bound to slots
+     */
+    public static class Bound {
+        private final ArgumentTemplate template;
+        private final VariableSlot[] slots;
+
+        Bound(ArgumentTemplate template, VariableSlot[] slots) {
+            this.template = template;
+            this.slots = slots;
+        }
+
+        public ArgumentTemplate getTemplate() {
+            return template;
+        }
+
+        public String render() {
+            if (template.isConstant()) {
+                return template.source;
+            }
+            StringBuilder sb = new StringBuilder(template.source.length() + 16);
+            String[] segments = template.segments;
+            for (int i = 0; i < segments.length; i++) {
+                if (!template.variable[i]) {
+                    sb.append(segments[i]);
+                    continue;
+                }
+                TypedValue value = slots[i].get();
+                if (value != null && value.hasValue()) {
+                    sb.append(value.asString());
+                } else {
+                    // Unresolved, keep as written
+                    sb.append('$').append(segments[i]);
+                }
+            }
+            return sb.toString();
+        }
+
+        /**
+         * Render and append to an argument list. An unquoted argument whose
+         * variables expanded to several words becomes several arguments,
+         * as if the values had been written in the script.
+         */
+        public void renderTo(List<String> out) {
+            String text = render();
+            if (template.quoted || template.isConstant() || text.indexOf(' ') < 0) {
+                out.add(text);
+                return;
+            }
+            for (String part : text.split(" ")) {
+                if (!part.isEmpty()) {
+                    out.add(part);
+                }
+            }
+        }
+    }
+}
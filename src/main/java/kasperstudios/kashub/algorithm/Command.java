@@ -1,5 +1,8 @@
 package kasperstudios.kashub.algorithm;
 
+import kasperstudios.kashub.algorithm.types.KHType;
+import kasperstudios.kashub.runtime.CommandExecutor;
+
 import java.util.concurrent.CompletableFuture;
 
 /**
@@ -35,16 +38,62 @@ public interface Command {
         return "Other";
     }
 
+    /**
+     * Minimum number of arguments, checked when the script is compiled
+     */
+    default int getMinArgs() {
+        return 0;
+    }
+
+    /**
+     * Maximum number of arguments, -1 if unlimited
+     */
+    default int getMaxArgs() {
+        return -1;
+    }
+
+    /**
+     * Expected types of the leading arguments for {@link kasperstudios.kashub.algorithm.types.TypeChecker},
+     * null if the command accepts anything
+     */
+    default KHType[] getArgumentTypes() {
+        return null;
+    }
+
     /**
      * Синхронное выполнение команды
      */
     void execute(String[] args) throws Exception;
 
+    /**
+     * Where {@link #executeAsync} runs the command by default
+     */
+    enum Lane {
+        GAME,    // client thread, drained once per tick - anything touching the world, player or screen
+        COMPUTE  // background pool - pure computation or blocking work
+    }
+
+    /**
+     * Lane of the default {@link #executeAsync}; commands touch the game unless they say otherwise
+     */
+    default Lane getLane() {
+        return Lane.GAME;
+    }
+
+    /**
+     * True for cheap GAME commands that finish inside {@link #execute} without blocking
+     * (messages, variables, hand-offs to client.execute). Script tasks in burst mode call
+     * them directly on the client thread instead of going through {@link #executeAsync}.
+     */
+    default boolean isInline() {
+        return false;
+    }
+
     /**
      * Асинхронное выполнение команды
      */
     default CompletableFuture<Void> executeAsync(String[] args) {
-        return CompletableFuture.runAsync(() -> {
+        return CommandExecutor.getInstance().submit(getLane(), () -> {
             try {
                 execute(args);
             } catch (Exception e) {
@@ -16,6 +16,7 @@ public class CommandRegistry {
     public static final String MOD_ID = "kashub";
     public static final Logger LOGGER = LogManager.getLogger(MOD_ID);
     private static boolean initialized = false;
+    private static volatile int version = 0; // растёт при каждой регистрации, по нему перепривязываются скрипты
 
     public static void initialize() {
         if (initialized) return;
@@ -77,6 +78,15 @@ public class CommandRegistry {
         String name = command.getName().toLowerCase();
         COMMANDS.put(name, command);
         COMMAND_LIST.add(command);
+        version++;
+    }
+
+    /**
+     * Версия реестра: меняется при каждой регистрации команды
+     */
+    public static int getVersion() {
+        if (!initialized) initialize();
+        return version;
     }
 
     /**
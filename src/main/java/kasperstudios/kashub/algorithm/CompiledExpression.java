@@ -0,0 +1,581 @@
+package kasperstudios.kashub.algorithm;
+
+import kasperstudios.kashub.algorithm.ExpressionParser.Value;
+import kasperstudios.kashub.algorithm.types.TypedValue;
+
+import java.math.BigDecimal;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+/**
+ * Expression compiled once by {@link ExpressionParser#compile(String)}.
+ * Holds an immutable node tree and the list of variables it references.
+ * Each distinct variable gets a slot index; {@link #bind(SlotBinder)} resolves
+ * those slots once so evaluation never looks variables up by name.
+ */
+public class CompiledExpression {
+    private final String source;
+    private final Node root;
+    private final String[] slotNames;
+    private final boolean complete;
+
+    CompiledExpression(String source, Node root, String[] slotNames, boolean complete) {
+        this.source = source;
+        this.root = root;
+        this.slotNames = slotNames;
+        this.complete = complete;
+    }
+
+    public String getSource() {
+        return source;
+    }
+
+    /**
+     * Names of referenced variables, indexed by slot
+     */
+    public List<String> getVariableNames() {
+        return Collections.unmodifiableList(Arrays.asList(slotNames));
+    }
+
+    /**
+     * True if the expression does not reference any variable
+     */
+    public boolean isConstant() {
+        return slotNames.length == 0;
+    }
+
+    /**
+     * False if the parser stopped before the end of the source,
+     * e.g. "5 apples" only compiles the leading number
+     */
+    public boolean isComplete() {
+        return complete;
+    }
+
+    /**
+     * Evaluate with a name based resolver (legacy API)
+     */
+    public Value evaluate(Function<String, String> variableResolver) {
+        return root.eval(slot -> {
+            String value = variableResolver.apply(slotNames[slot]);
+            return value != null ? new TypedValue(value) : null;
+        });
+    }
+
+    /**
+     * Bind every variable slot once. The returned expression reads
+     * the bound slots directly on every evaluation.
+     */
+    public BoundExpression bind(SlotBinder binder) {
+        VariableSlot[] slots = new VariableSlot[slotNames.length];
+        for (int i = 0; i < slotNames.length; i++) {
+            slots[i] = binder.bind(slotNames[i]);
+        }
+        return new BoundExpression(this, slots);
+    }
+
+    // ==================== Optimizer support ====================
+
+    /**
+     * Source with constant subexpressions folded and the given variables
+     * replaced by their known values. Incomplete expressions are returned
+     * unchanged, as is anything that would fold to NaN or infinity.
+     */
+    public String fold(Map<String, Value> constants) {
+        if (!complete) {
+            return source;
+        }
+        Node folded = fold(root, constants);
+        return folded == root ? source : render(folded);
+    }
+
+    /**
+     * Replace every arithmetic subexpression whose variables all pass
+     * {@code invariant} with a reference to the variable returned by
+     * {@code extract}, which receives the subexpression source.
+     * @return rewritten source, or null if nothing was hoisted
+     */
+    public String hoist(Predicate<String> invariant, Function<String, String> extract) {
+        if (!complete) {
+            return null;
+        }
+        Node hoisted = hoist(root, invariant, extract);
+        return hoisted == root ? null : render(hoisted);
+    }
+
+    private static Node fold(Node node, Map<String, Value> constants) {
+        if (node instanceof Variable variable) {
+            Value value = constants.get(variable.name);
+            return value != null ? new Literal(value) : node;
+        }
+        if (node instanceof Not not) {
+            Node operand = fold(not.operand, constants);
+            if (operand instanceof Literal literal) {
+                return new Literal(Value.ofBoolean(!literal.value.toBoolean()));
+            }
+            return operand == not.operand ? node : new Not(operand);
+        }
+        if (node instanceof Negate negate) {
+            Node operand = fold(negate.operand, constants);
+            Node result = operand == negate.operand ? node : new Negate(operand);
+            return operand instanceof Literal ? literalOf(result) : result;
+        }
+        if (node instanceof Ternary ternary) {
+            Node condition = fold(ternary.condition, constants);
+            if (condition instanceof Literal literal) {
+                return fold(literal.value.toBoolean() ? ternary.whenTrue : ternary.whenFalse, constants);
+            }
+            Node whenTrue = fold(ternary.whenTrue, constants);
+            Node whenFalse = fold(ternary.whenFalse, constants);
+            if (condition == ternary.condition && whenTrue == ternary.whenTrue && whenFalse == ternary.whenFalse) {
+                return node;
+            }
+            return new Ternary(condition, whenTrue, whenFalse);
+        }
+        if (node instanceof Or or) {
+            Node left = fold(or.left, constants);
+            Node right = fold(or.right, constants);
+            // Expressions have no side effects, so either constant side may decide
+            if (isLiteral(left, true) || isLiteral(right, true)) {
+                return new Literal(Value.ofBoolean(true));
+            }
+            if (left instanceof Literal && right instanceof Literal) {
+                return new Literal(Value.ofBoolean(false));
+            }
+            return left == or.left && right == or.right ? node : new Or(left, right);
+        }
+        if (node instanceof And and) {
+            Node left = fold(and.left, constants);
+            Node right = fold(and.right, constants);
+            if (isLiteral(left, false) || isLiteral(right, false)) {
+                return new Literal(Value.ofBoolean(false));
+            }
+            if (left instanceof Literal && right instanceof Literal) {
+                return new Literal(Value.ofBoolean(true));
+            }
+            return left == and.left && right == and.right ? node : new And(left, right);
+        }
+        if (node instanceof Binary binary) {
+            Node left = fold(binary.left, constants);
+            Node right = fold(binary.right, constants);
+            Node result = left == binary.left && right == binary.right ? node : new Binary(binary.op, left, right);
+            return left instanceof Literal && right instanceof Literal ? literalOf(result) : result;
+        }
+        return node;
+    }
+
+    private static boolean isLiteral(Node node, boolean truth) {
+        return node instanceof Literal literal && literal.value.toBoolean() == truth;
+    }
+
+    /**
+     * Evaluate a node without variables, keeping it as is if the
+     * result has no literal form (NaN, infinity)
+     */
+    private static Node literalOf(Node node) {
+        Value value = node.eval(slot -> null);
+        if (value.getType() == Value.Type.NUMBER && !Double.isFinite(value.asDouble())) {
+            return node;
+        }
+        return new Literal(value);
+    }
+
+    private static Node hoist(Node node, Predicate<String> invariant, Function<String, String> extract) {
+        if (node instanceof Binary binary && isNumeric(binary)
+                && hasVariable(binary) && allVariables(binary, invariant)) {
+            return new Variable(-1, extract.apply(render(binary)), false);
+        }
+        if (node instanceof Not not) {
+            Node operand = hoist(not.operand, invariant, extract);
+            return operand == not.operand ? node : new Not(operand);
+        }
+        if (node instanceof Negate negate) {
+            Node operand = hoist(negate.operand, invariant, extract);
+            return operand == negate.operand ? node : new Negate(operand);
+        }
+        if (node instanceof Ternary ternary) {
+            Node condition = hoist(ternary.condition, invariant, extract);
+            Node whenTrue = hoist(ternary.whenTrue, invariant, extract);
+            Node whenFalse = hoist(ternary.whenFalse, invariant, extract);
+            if (condition == ternary.condition && whenTrue == ternary.whenTrue && whenFalse == ternary.whenFalse) {
+                return node;
+            }
+            return new Ternary(condition, whenTrue, whenFalse);
+        }
+        if (node instanceof Or or) {
+            Node left = hoist(or.left, invariant, extract);
+            Node right = hoist(or.right, invariant, extract);
+            return left == or.left && right == or.right ? node : new Or(left, right);
+        }
+        if (node instanceof And and) {
+            Node left = hoist(and.left, invariant, extract);
+            Node right = hoist(and.right, invariant, extract);
+            return left == and.left && right == and.right ? node : new And(left, right);
+        }
+        if (node instanceof Binary binary) {
+            Node left = hoist(binary.left, invariant, extract);
+            Node right = hoist(binary.right, invariant, extract);
+            return left == binary.left && right == binary.right ? node : new Binary(binary.op, left, right);
+        }
+        return node;
+    }
+
+    private static boolean isArithmetic(String op) {
+        return switch (op) {
+            case "+", "-", "*", "/", "%" -> true;
+            default -> false;
+        };
+    }
+
+    /**
+     * True if the node always evaluates to a number, so storing the result
+     * in a variable and reading it back yields the same value.
+     * '+' concatenates strings, it counts only if both operands are numeric.
+     */
+    private static boolean isNumeric(Node node) {
+        if (node instanceof Literal literal) return literal.value.getType() == Value.Type.NUMBER;
+        if (node instanceof Negate) return true;
+        if (node instanceof Binary binary) {
+            return switch (binary.op) {
+                case "-", "*", "/", "%" -> true;
+                case "+" -> isNumeric(binary.left) && isNumeric(binary.right);
+                default -> false;
+            };
+        }
+        return false;
+    }
+
+    private static boolean hasVariable(Node node) {
+        if (node instanceof Variable) return true;
+        if (node instanceof Negate negate) return hasVariable(negate.operand);
+        if (node instanceof Binary binary) return hasVariable(binary.left) || hasVariable(binary.right);
+        return false;
+    }
+
+    /**
+     * True if the subtree is pure arithmetic over literals and variables passing the check
+     */
+    private static boolean allVariables(Node node, Predicate<String> invariant) {
+        if (node instanceof Literal) return true;
+        if (node instanceof Variable variable) return invariant.test(variable.name);
+        if (node instanceof Negate negate) return allVariables(negate.operand, invariant);
+        if (node instanceof Binary binary) {
+            return isArithmetic(binary.op) && allVariables(binary.left, invariant) && allVariables(binary.right, invariant);
+        }
+        return false;
+    }
+
+    /**
+     * Source text that compiles back to the same tree
+     */
+    private static String render(Node node) {
+        if (node instanceof Literal literal) {
+            return render(literal.value);
+        }
+        if (node instanceof Variable variable) {
+            return variable.bare ? variable.name : "$" + variable.name;
+        }
+        if (node instanceof Not not) {
+            return "!" + wrap(not.operand);
+        }
+        if (node instanceof Negate negate) {
+            return "-" + wrap(negate.operand);
+        }
+        if (node instanceof Ternary ternary) {
+            return wrap(ternary.condition) + " ? " + wrap(ternary.whenTrue) + " : " + wrap(ternary.whenFalse);
+        }
+        if (node instanceof Or or) {
+            return wrap(or.left) + " || " + wrap(or.right);
+        }
+        if (node instanceof And and) {
+            return wrap(and.left) + " && " + wrap(and.right);
+        }
+        Binary binary = (Binary) node;
+        return wrap(binary.left) + " " + binary.op + " " + wrap(binary.right);
+    }
+
+    private static String wrap(Node node) {
+        boolean negative = node instanceof Literal literal
+            && literal.value.getType() == Value.Type.NUMBER && literal.value.asDouble() < 0;
+        return (node instanceof Literal && !negative) || node instanceof Variable ? render(node) : "(" + render(node) + ")";
+    }
+
+    private static String render(Value value) {
+        switch (value.getType()) {
+            case NULL:
+            case BOOLEAN:
+                return value.toString();
+            case NUMBER: {
+                double number = value.asDouble();
+                return number == Math.rint(number) && Math.abs(number) < 1e15
+                    ? Long.toString((long) number)
+                    : BigDecimal.valueOf(number).toPlainString();
+            }
+            default: {
+                StringBuilder sb = new StringBuilder("\"");
+                for (char c : value.toString().toCharArray()) {
+                    switch (c) {
+                        case '"' -> sb.append("\\\"");
+                        case '\\' -> sb.append("\\\\");
+                        case '\n' -> sb.append("\\n");
+                        case '\t' -> sb.append("\\t");
+                        case '\r' -> sb.append("\\r");
+                        default -> sb.append(c);
+                    }
+                }
+                return sb.append('"').toString();
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return source;
+    }
+
+    /**
+     * A variable location an expression can be bound to
+     */
+    public interface VariableSlot {
+        /**
+         * Current value, or null if undefined
+         */
+        TypedValue get();
+    }
+
+    /**
+     * Resolves a variable name to its slot at bind time
+     */
+    public interface SlotBinder {
+        VariableSlot bind(String name);
+    }
+
+    /**
+     * Compiled expression with all variable slots resolved
+     */
+    public static class BoundExpression {
+        private final CompiledExpression expression;
+        private final VariableSlot[] slots;
+
+        BoundExpression(CompiledExpression expression, VariableSlot[] slots) {
+            this.expression = expression;
+            this.slots = slots;
+        }
+
+        public Value evaluate() {
+            return expression.root.eval(slot -> slots[slot].get());
+        }
+
+        public boolean evaluateCondition() {
+            return evaluate().toBoolean();
+        }
+
+        public CompiledExpression getExpression() {
+            return expression;
+        }
+    }
+
+    // ==================== Nodes ====================
+
+    /**
+     * Reads the current value of a slot during evaluation
+     */
+    interface SlotReader {
+        TypedValue read(int slot);
+    }
+
+    abstract static class Node {
+        abstract Value eval(SlotReader reader);
+    }
+
+    static class Literal extends Node {
+        final Value value;
+
+        Literal(Value value) {
+            this.value = value;
+        }
+
+        @Override
+        Value eval(SlotReader reader) {
+            return value;
+        }
+    }
+
+    /**
+     * $name or bare identifier reference
+     */
+    static class Variable extends Node {
+        final int slot;
+        final String name;
+        final boolean bare; // written without '$', falls back to its own name
+
+        Variable(int slot, String name, boolean bare) {
+            this.slot = slot;
+            this.name = name;
+            this.bare = bare;
+        }
+
+        @Override
+        Value eval(SlotReader reader) {
+            TypedValue value = reader.read(slot);
+            if (value == null || !value.hasValue()) {
+                return bare ? Value.ofString(name) : Value.ofString("");
+            }
+            return Value.of(value);
+        }
+    }
+
+    static class Not extends Node {
+        final Node operand;
+
+        Not(Node operand) {
+            this.operand = operand;
+        }
+
+        @Override
+        Value eval(SlotReader reader) {
+            return Value.ofBoolean(!operand.eval(reader).toBoolean());
+        }
+    }
+
+    static class Negate extends Node {
+        final Node operand;
+
+        Negate(Node operand) {
+            this.operand = operand;
+        }
+
+        @Override
+        Value eval(SlotReader reader) {
+            Value value = operand.eval(reader);
+            return value.isNumeric() ? Value.ofNumber(-value.asDouble()) : Value.ofNumber(Double.NaN);
+        }
+    }
+
+    static class Ternary extends Node {
+        final Node condition;
+        final Node whenTrue;
+        final Node whenFalse;
+
+        Ternary(Node condition, Node whenTrue, Node whenFalse) {
+            this.condition = condition;
+            this.whenTrue = whenTrue;
+            this.whenFalse = whenFalse;
+        }
+
+        @Override
+        Value eval(SlotReader reader) {
+            return condition.eval(reader).toBoolean() ? whenTrue.eval(reader) : whenFalse.eval(reader);
+        }
+    }
+
+    static class Or extends Node {
+        final Node left;
+        final Node right;
+
+        Or(Node left, Node right) {
+            this.left = left;
+            this.right = right;
+        }
+
+        @Override
+        Value eval(SlotReader reader) {
+            return Value.ofBoolean(left.eval(reader).toBoolean() || right.eval(reader).toBoolean());
+        }
+    }
+
+    static class And extends Node {
+        final Node left;
+        final Node right;
+
+        And(Node left, Node right) {
+            this.left = left;
+            this.right = right;
+        }
+
+        @Override
+        Value eval(SlotReader reader) {
+            return Value.ofBoolean(left.eval(reader).toBoolean() && right.eval(reader).toBoolean());
+        }
+    }
+
+    static class Binary extends Node {
+        final String op;
+        final Node left;
+        final Node right;
+
+        Binary(String op, Node left, Node right) {
+            this.op = op;
+            this.left = left;
+            this.right = right;
+        }
+
+        @Override
+        Value eval(SlotReader reader) {
+            return apply(op, left.eval(reader), right.eval(reader));
+        }
+
+        static Value apply(String op, Value left, Value right) {
+            switch (op) {
+                case "==":
+                    return Value.ofBoolean(left.equals(right));
+                case "!=":
+                    return Value.ofBoolean(!left.equals(right));
+                case "<":
+                case ">":
+                case "<=":
+                case ">=": {
+                    if (left.isNumeric() && right.isNumeric()) {
+                        double leftNum = left.asDouble();
+                        double rightNum = right.asDouble();
+                        return Value.ofBoolean(switch (op) {
+                            case "<" -> leftNum < rightNum;
+                            case ">" -> leftNum > rightNum;
+                            case "<=" -> leftNum <= rightNum;
+                            default -> leftNum >= rightNum;
+                        });
+                    }
+                    // String comparison
+                    int cmp = left.toString().compareToIgnoreCase(right.toString());
+                    return Value.ofBoolean(switch (op) {
+                        case "<" -> cmp < 0;
+                        case ">" -> cmp > 0;
+                        case "<=" -> cmp <= 0;
+                        default -> cmp >= 0;
+                    });
+                }
+                case "+":
+                case "-": {
+                    if (left.isNumeric() && right.isNumeric()) {
+                        double leftNum = left.asDouble();
+                        double rightNum = right.asDouble();
+                        return Value.ofNumber(op.equals("+") ? leftNum + rightNum : leftNum - rightNum);
+                    }
+                    if (op.equals("+")) {
+                        // String concatenation
+                        return Value.ofString(left.toString() + right.toString());
+                    }
+                    // Can't subtract strings
+                    return Value.ofNumber(Double.NaN);
+                }
+                default: {
+                    if (!left.isNumeric() || !right.isNumeric()) {
+                        return Value.ofNumber(Double.NaN);
+                    }
+                    double leftNum = left.asDouble();
+                    double rightNum = right.asDouble();
+                    return Value.ofNumber(switch (op) {
+                        case "*" -> leftNum * rightNum;
+                        case "/" -> rightNum != 0 ? leftNum / rightNum : Double.NaN;
+                        case "%" -> rightNum != 0 ? leftNum % rightNum : Double.NaN;
+                        default -> Double.NaN;
+                    });
+                }
+            }
+        }
+    }
+}
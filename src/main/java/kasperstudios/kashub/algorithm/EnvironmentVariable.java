@@ -1,14 +1,56 @@
 package kasperstudios.kashub.algorithm;
 
+import kasperstudios.kashub.algorithm.types.TypedValue;
+import kasperstudios.kashub.runtime.CommandExecutor;
+
+import java.util.function.Supplier;
+
+/**
+ * Built-in $VARIABLE. Dynamic variables are computed lazily on first read
+ * and memoized until the next snapshot (one per client tick), so any number
+ * of reads in a tick costs a single computation.
+ * Player and world state is only read on the client thread. Other threads
+ * (HTTP API, compute lane, virtual-thread tasks) get the last computed value;
+ * a variable they read is then computed eagerly at the start of the next ticks.
+ */
 public class EnvironmentVariable {
+    // Current snapshot, advanced once per client tick
+    private static volatile long snapshot = 0;
+    // Snapshots a variable read off the client thread keeps being computed eagerly, about a second of ticks
+    private static final int EAGER_SNAPSHOTS = 20;
+
     private final String name;
     private String value;
     private final String description;
+    private final Supplier<TypedValue> supplier; // null for static values
+
+    private TypedValue cached;
+    private long cachedSnapshot = -1;
+    private volatile long offThreadSnapshot = -EAGER_SNAPSHOTS - 1; // last snapshot read off the client thread
 
     public EnvironmentVariable(String name, String value, String description) {
         this.name = name;
         this.value = value;
         this.description = description;
+        this.supplier = null;
+    }
+
+    /**
+     * Dynamic variable. The supplier may return null when the value
+     * is unavailable (e.g. no world loaded), the last value is kept then.
+     */
+    public EnvironmentVariable(String name, String description, Supplier<TypedValue> supplier) {
+        this.name = name;
+        this.value = "";
+        this.description = description;
+        this.supplier = supplier;
+    }
+
+    /**
+     * Start a new snapshot; dynamic values are recomputed on their next read
+     */
+    public static void nextSnapshot() {
+        snapshot++;
     }
 
     public String getName() {
@@ -16,14 +58,53 @@ public class EnvironmentVariable {
     }
 
     public String getValue() {
-        return value;
+        return getTypedValue().asString();
+    }
+
+    public TypedValue getTypedValue() {
+        if (supplier != null && !CommandExecutor.getInstance().isGameThread()) {
+            offThreadSnapshot = snapshot;
+            synchronized (this) {
+                return cached != null ? cached : new TypedValue(value);
+            }
+        }
+        return compute();
+    }
+
+    /**
+     * Compute the value now if other threads have read it lately, so they see this tick's value.
+     * Client thread, right after {@link #nextSnapshot()}
+     */
+    public void refreshIfReadOffThread() {
+        if (supplier != null && snapshot - offThreadSnapshot <= EAGER_SNAPSHOTS) {
+            compute();
+        }
     }
 
-    public void setValue(String value) {
+    private synchronized TypedValue compute() {
+        long current = snapshot;
+        if (cached == null || (supplier != null && cachedSnapshot != current)) {
+            TypedValue computed = supplier != null ? supplier.get() : null;
+            if (computed != null) {
+                cached = computed;
+            } else if (cached == null) {
+                cached = new TypedValue(value);
+            }
+            cachedSnapshot = current;
+        }
+        return cached;
+    }
+
+    public synchronized void setValue(String value) {
         this.value = value;
+        this.cached = null;
     }
 
     public String getDescription() {
         return description;
     }
-} 
\ No newline at end of file
+
+    public boolean isDynamic() {
+        return supplier != null;
+    }
+}
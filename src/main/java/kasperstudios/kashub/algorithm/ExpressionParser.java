@@ -1,5 +1,7 @@
 package kasperstudios.kashub.algorithm;
 
+import kasperstudios.kashub.algorithm.types.TypedValue;
+
 import java.util.*;
 import java.util.function.Function;
 import java.util.regex.Matcher;
@@ -19,9 +21,23 @@ import java.util.regex.Pattern;
  * - Ternary: ? :
  */
 public class ExpressionParser {
+    private static final int CACHE_SIZE = 1024;
+
+    /**
+     * Compiled expressions keyed by source text (LRU)
+     */
+    private static final Map<String, CompiledExpression> CACHE = Collections.synchronizedMap(
+        new LinkedHashMap<>(64, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CompiledExpression> eldest) {
+                return size() > CACHE_SIZE;
+            }
+        });
+
     private final String input;
     private int pos;
     private final Function<String, String> variableResolver;
+    private final Map<String, Integer> slots = new LinkedHashMap<>();
     
     private static final Pattern NUMBER_PATTERN = Pattern.compile("-?\\d+(\\.\\d+)?");
     private static final Pattern IDENTIFIER_PATTERN = Pattern.compile("[a-zA-Z_][a-zA-Z0-9_]*");
@@ -36,33 +52,63 @@ public class ExpressionParser {
      * Parse and evaluate an expression, returning the result as a Value
      */
     public Value parse() {
-        skipWhitespace();
-        if (pos >= input.length()) {
-            return Value.ofString("");
-        }
-        Value result = parseTernary();
-        skipWhitespace();
-        return result;
+        return compileTree(input).evaluate(variableResolver);
+    }
+    
+    /**
+     * Compile an expression once; repeated calls with the same text
+     * return the cached tree
+     */
+    public static CompiledExpression compile(String expression) {
+        String key = expression == null ? "" : expression;
+        CompiledExpression compiled = CACHE.get(key);
+        if (compiled == null) {
+            compiled = compileTree(key);
+            CACHE.put(key, compiled);
+        }
+        return compiled;
+    }
+    
+    public static int getCacheSize() {
+        return CACHE.size();
+    }
+    
+    public static void clearCache() {
+        CACHE.clear();
+    }
+    
+    private static CompiledExpression compileTree(String expression) {
+        ExpressionParser parser = new ExpressionParser(expression, null);
+        parser.skipWhitespace();
+        CompiledExpression.Node root;
+        if (parser.pos >= parser.input.length()) {
+            root = new CompiledExpression.Literal(Value.ofString(""));
+        } else {
+            root = parser.parseTernary();
+            parser.skipWhitespace();
+        }
+        boolean complete = parser.pos >= parser.input.length();
+        return new CompiledExpression(parser.input, root, parser.slots.keySet().toArray(new String[0]), complete);
     }
     
     /**
      * Parse ternary operator: condition ? trueExpr : falseExpr
      */
-    private Value parseTernary() {
-        Value condition = parseOr();
+    private CompiledExpression.Node parseTernary() {
+        CompiledExpression.Node condition = parseOr();
         skipWhitespace();
         
         if (pos < input.length() && input.charAt(pos) == '?') {
             pos++; // consume '?'
             skipWhitespace();
-            Value trueValue = parseTernary();
+            CompiledExpression.Node trueValue = parseTernary();
             skipWhitespace();
             
             if (pos < input.length() && input.charAt(pos) == ':') {
                 pos++; // consume ':'
                 skipWhitespace();
-                Value falseValue = parseTernary();
-                return condition.toBoolean() ? trueValue : falseValue;
+                CompiledExpression.Node falseValue = parseTernary();
+                return new CompiledExpression.Ternary(condition, trueValue, falseValue);
             }
         }
         return condition;
@@ -71,15 +117,15 @@ public class ExpressionParser {
     /**
      * Parse logical OR: expr || expr
      */
-    private Value parseOr() {
-        Value left = parseAnd();
+    private CompiledExpression.Node parseOr() {
+        CompiledExpression.Node left = parseAnd();
         skipWhitespace();
         
         while (pos + 1 < input.length() && input.charAt(pos) == '|' && input.charAt(pos + 1) == '|') {
             pos += 2; // consume '||'
             skipWhitespace();
-            Value right = parseAnd();
-            left = Value.ofBoolean(left.toBoolean() || right.toBoolean());
+            CompiledExpression.Node right = parseAnd();
+            left = new CompiledExpression.Or(left, right);
             skipWhitespace();
         }
         return left;
@@ -88,15 +134,15 @@ public class ExpressionParser {
     /**
      * Parse logical AND: expr && expr
      */
-    private Value parseAnd() {
-        Value left = parseEquality();
+    private CompiledExpression.Node parseAnd() {
+        CompiledExpression.Node left = parseEquality();
         skipWhitespace();
         
         while (pos + 1 < input.length() && input.charAt(pos) == '&' && input.charAt(pos + 1) == '&') {
             pos += 2; // consume '&&'
             skipWhitespace();
-            Value right = parseEquality();
-            left = Value.ofBoolean(left.toBoolean() && right.toBoolean());
+            CompiledExpression.Node right = parseEquality();
+            left = new CompiledExpression.And(left, right);
             skipWhitespace();
         }
         return left;
@@ -105,21 +151,19 @@ public class ExpressionParser {
     /**
      * Parse equality: expr == expr, expr != expr
      */
-    private Value parseEquality() {
-        Value left = parseComparison();
+    private CompiledExpression.Node parseEquality() {
+        CompiledExpression.Node left = parseComparison();
         skipWhitespace();
         
         while (pos + 1 < input.length()) {
             if (input.charAt(pos) == '=' && input.charAt(pos + 1) == '=') {
                 pos += 2;
                 skipWhitespace();
-                Value right = parseComparison();
-                left = Value.ofBoolean(left.equals(right));
+                left = new CompiledExpression.Binary("==", left, parseComparison());
             } else if (input.charAt(pos) == '!' && input.charAt(pos + 1) == '=') {
                 pos += 2;
                 skipWhitespace();
-                Value right = parseComparison();
-                left = Value.ofBoolean(!left.equals(right));
+                left = new CompiledExpression.Binary("!=", left, parseComparison());
             } else {
                 break;
             }
@@ -131,8 +175,8 @@ public class ExpressionParser {
     /**
      * Parse comparison: expr < expr, expr > expr, expr <= expr, expr >= expr
      */
-    private Value parseComparison() {
-        Value left = parseAdditive();
+    private CompiledExpression.Node parseComparison() {
+        CompiledExpression.Node left = parseAdditive();
         skipWhitespace();
         
         while (pos < input.length()) {
@@ -142,32 +186,7 @@ public class ExpressionParser {
                 String op = hasEquals ? (c + "=") : String.valueOf(c);
                 pos += hasEquals ? 2 : 1;
                 skipWhitespace();
-                Value right = parseAdditive();
-                
-                Double leftNum = left.toNumber();
-                Double rightNum = right.toNumber();
-                
-                if (leftNum != null && rightNum != null) {
-                    boolean result = switch (op) {
-                        case "<" -> leftNum < rightNum;
-                        case ">" -> leftNum > rightNum;
-                        case "<=" -> leftNum <= rightNum;
-                        case ">=" -> leftNum >= rightNum;
-                        default -> false;
-                    };
-                    left = Value.ofBoolean(result);
-                } else {
-                    // String comparison
-                    int cmp = left.toString().compareToIgnoreCase(right.toString());
-                    boolean result = switch (op) {
-                        case "<" -> cmp < 0;
-                        case ">" -> cmp > 0;
-                        case "<=" -> cmp <= 0;
-                        case ">=" -> cmp >= 0;
-                        default -> false;
-                    };
-                    left = Value.ofBoolean(result);
-                }
+                left = new CompiledExpression.Binary(op, left, parseAdditive());
             } else {
                 break;
             }
@@ -179,8 +198,8 @@ public class ExpressionParser {
     /**
      * Parse additive: expr + expr, expr - expr
      */
-    private Value parseAdditive() {
-        Value left = parseMultiplicative();
+    private CompiledExpression.Node parseAdditive() {
+        CompiledExpression.Node left = parseMultiplicative();
         skipWhitespace();
         
         while (pos < input.length()) {
@@ -192,21 +211,7 @@ public class ExpressionParser {
                 }
                 pos++;
                 skipWhitespace();
-                Value right = parseMultiplicative();
-                
-                Double leftNum = left.toNumber();
-                Double rightNum = right.toNumber();
-                
-                if (leftNum != null && rightNum != null) {
-                    double result = c == '+' ? leftNum + rightNum : leftNum - rightNum;
-                    left = Value.ofNumber(result);
-                } else if (c == '+') {
-                    // String concatenation
-                    left = Value.ofString(left.toString() + right.toString());
-                } else {
-                    // Can't subtract strings
-                    left = Value.ofNumber(Double.NaN);
-                }
+                left = new CompiledExpression.Binary(String.valueOf(c), left, parseMultiplicative());
             } else {
                 break;
             }
@@ -218,8 +223,8 @@ public class ExpressionParser {
     /**
      * Parse multiplicative: expr * expr, expr / expr, expr % expr
      */
-    private Value parseMultiplicative() {
-        Value left = parseUnary();
+    private CompiledExpression.Node parseMultiplicative() {
+        CompiledExpression.Node left = parseUnary();
         skipWhitespace();
         
         while (pos < input.length()) {
@@ -227,22 +232,7 @@ public class ExpressionParser {
             if (c == '*' || c == '/' || c == '%') {
                 pos++;
                 skipWhitespace();
-                Value right = parseUnary();
-                
-                Double leftNum = left.toNumber();
-                Double rightNum = right.toNumber();
-                
-                if (leftNum != null && rightNum != null) {
-                    double result = switch (c) {
-                        case '*' -> leftNum * rightNum;
-                        case '/' -> rightNum != 0 ? leftNum / rightNum : Double.NaN;
-                        case '%' -> rightNum != 0 ? leftNum % rightNum : Double.NaN;
-                        default -> Double.NaN;
-                    };
-                    left = Value.ofNumber(result);
-                } else {
-                    left = Value.ofNumber(Double.NaN);
-                }
+                left = new CompiledExpression.Binary(String.valueOf(c), left, parseUnary());
             } else {
                 break;
             }
@@ -254,7 +244,7 @@ public class ExpressionParser {
     /**
      * Parse unary: !expr, -expr
      */
-    private Value parseUnary() {
+    private CompiledExpression.Node parseUnary() {
         skipWhitespace();
         
         if (pos < input.length()) {
@@ -262,16 +252,13 @@ public class ExpressionParser {
             if (c == '!') {
                 pos++;
                 skipWhitespace();
-                Value operand = parseUnary();
-                return Value.ofBoolean(!operand.toBoolean());
+                return new CompiledExpression.Not(parseUnary());
             } else if (c == '-') {
                 // Check if it's a negative number or unary minus
                 if (pos + 1 < input.length() && !Character.isDigit(input.charAt(pos + 1))) {
                     pos++;
                     skipWhitespace();
-                    Value operand = parseUnary();
-                    Double num = operand.toNumber();
-                    return num != null ? Value.ofNumber(-num) : Value.ofNumber(Double.NaN);
+                    return new CompiledExpression.Negate(parseUnary());
                 }
             }
         }
@@ -281,11 +268,11 @@ public class ExpressionParser {
     /**
      * Parse primary: numbers, strings, booleans, variables, parentheses
      */
-    private Value parsePrimary() {
+    private CompiledExpression.Node parsePrimary() {
         skipWhitespace();
         
         if (pos >= input.length()) {
-            return Value.ofString("");
+            return new CompiledExpression.Literal(Value.ofString(""));
         }
         
         char c = input.charAt(pos);
@@ -293,7 +280,7 @@ public class ExpressionParser {
         // Parentheses
         if (c == '(') {
             pos++; // consume '('
-            Value result = parseTernary();
+            CompiledExpression.Node result = parseTernary();
             skipWhitespace();
             if (pos < input.length() && input.charAt(pos) == ')') {
                 pos++; // consume ')'
@@ -303,12 +290,12 @@ public class ExpressionParser {
         
         // String literal
         if (c == '"' || c == '\'') {
-            return parseString(c);
+            return new CompiledExpression.Literal(parseString(c));
         }
         
         // Number (including negative)
         if (Character.isDigit(c) || (c == '-' && pos + 1 < input.length() && Character.isDigit(input.charAt(pos + 1)))) {
-            return parseNumber();
+            return new CompiledExpression.Literal(parseNumber());
         }
         
         // Variable ($name or $NAME)
@@ -322,7 +309,7 @@ public class ExpressionParser {
         }
         
         // Unknown - return as string
-        return Value.ofString(String.valueOf(c));
+        return new CompiledExpression.Literal(Value.ofString(String.valueOf(c)));
     }
     
     private Value parseString(char quote) {
@@ -368,26 +355,17 @@ public class ExpressionParser {
         }
     }
     
-    private Value parseVariable() {
+    private CompiledExpression.Node parseVariable() {
         pos++; // consume '$'
         int start = pos;
         while (pos < input.length() && (Character.isLetterOrDigit(input.charAt(pos)) || input.charAt(pos) == '_')) {
             pos++;
         }
         String varName = input.substring(start, pos);
-        String value = variableResolver.apply(varName);
-        if (value == null) {
-            return Value.ofString("");
-        }
-        // Try to parse as number
-        try {
-            return Value.ofNumber(Double.parseDouble(value.replace(',', '.')));
-        } catch (NumberFormatException e) {
-            return Value.ofString(value);
-        }
+        return new CompiledExpression.Variable(slotOf(varName), varName, false);
     }
     
-    private Value parseIdentifier() {
+    private CompiledExpression.Node parseIdentifier() {
         int start = pos;
         while (pos < input.length() && (Character.isLetterOrDigit(input.charAt(pos)) || input.charAt(pos) == '_')) {
             pos++;
@@ -396,26 +374,24 @@ public class ExpressionParser {
         
         // Check for boolean literals
         if (identifier.equalsIgnoreCase("true")) {
-            return Value.ofBoolean(true);
+            return new CompiledExpression.Literal(Value.ofBoolean(true));
         }
         if (identifier.equalsIgnoreCase("false")) {
-            return Value.ofBoolean(false);
+            return new CompiledExpression.Literal(Value.ofBoolean(false));
         }
         if (identifier.equalsIgnoreCase("null")) {
-            return Value.ofNull();
+            return new CompiledExpression.Literal(Value.ofNull());
         }
         
-        // Check if it's a variable without $
-        String value = variableResolver.apply(identifier);
-        if (value != null) {
-            try {
-                return Value.ofNumber(Double.parseDouble(value.replace(',', '.')));
-            } catch (NumberFormatException e) {
-                return Value.ofString(value);
-            }
-        }
-        
-        return Value.ofString(identifier);
+        // Variable without $, falls back to the identifier itself
+        return new CompiledExpression.Variable(slotOf(identifier), identifier, true);
+    }
+    
+    /**
+     * Slot index of a variable, allocated on first reference
+     */
+    private int slotOf(String name) {
+        return slots.computeIfAbsent(name, n -> slots.size());
     }
     
     private void skipWhitespace() {
@@ -425,90 +401,138 @@ public class ExpressionParser {
     }
     
     /**
-     * Value class representing a KHScript value (number, string, boolean, null)
+     * Value class representing a KHScript value (number, string, boolean, null).
+     * Numbers and booleans are stored unboxed.
      */
     public static class Value {
         public enum Type { NUMBER, STRING, BOOLEAN, NULL }
         
+        private static final Value NULL = new Value(Type.NULL, 0.0, false, null);
+        private static final Value TRUE = new Value(Type.BOOLEAN, 0.0, true, null);
+        private static final Value FALSE = new Value(Type.BOOLEAN, 0.0, false, null);
+        
         private final Type type;
-        private final Object value;
+        private final double number;
+        private final boolean bool;
+        private final String string;
+        private byte numberState; // strings: 0 - not parsed yet, 1 - numeric, 2 - not numeric
+        private double parsedNumber;
         
-        private Value(Type type, Object value) {
+        private Value(Type type, double number, boolean bool, String string) {
             this.type = type;
-            this.value = value;
+            this.number = number;
+            this.bool = bool;
+            this.string = string;
         }
         
         public static Value ofNumber(double num) {
-            return new Value(Type.NUMBER, num);
+            return new Value(Type.NUMBER, num, false, null);
         }
         
         public static Value ofString(String str) {
-            return new Value(Type.STRING, str);
+            return new Value(Type.STRING, 0.0, false, str);
         }
         
         public static Value ofBoolean(boolean bool) {
-            return new Value(Type.BOOLEAN, bool);
+            return bool ? TRUE : FALSE;
         }
         
         public static Value ofNull() {
-            return new Value(Type.NULL, null);
+            return NULL;
+        }
+        
+        /**
+         * Convert a stored variable value; numbers are taken without parsing
+         */
+        public static Value of(TypedValue value) {
+            if (value.isNumeric()) {
+                return ofNumber(value.asNumber());
+            }
+            return ofString(value.asString());
         }
         
         public Type getType() {
             return type;
         }
         
-        public Double toNumber() {
-            if (type == Type.NUMBER) {
-                return (Double) value;
-            }
-            if (type == Type.STRING) {
+        /**
+         * True if {@link #asDouble()} holds a number
+         */
+        public boolean isNumeric() {
+            return switch (type) {
+                case NUMBER, BOOLEAN -> true;
+                case STRING -> parseString();
+                default -> false;
+            };
+        }
+        
+        /**
+         * Numeric value without boxing; only meaningful if {@link #isNumeric()}
+         */
+        public double asDouble() {
+            return switch (type) {
+                case NUMBER -> number;
+                case BOOLEAN -> bool ? 1.0 : 0.0;
+                case STRING -> parseString() ? parsedNumber : Double.NaN;
+                default -> Double.NaN;
+            };
+        }
+        
+        private boolean parseString() {
+            if (numberState == 0) {
                 try {
-                    return Double.parseDouble(((String) value).replace(',', '.'));
+                    parsedNumber = Double.parseDouble(string.replace(',', '.'));
+                    numberState = 1;
                 } catch (NumberFormatException e) {
-                    return null;
+                    numberState = 2;
                 }
             }
-            if (type == Type.BOOLEAN) {
-                return (Boolean) value ? 1.0 : 0.0;
-            }
-            return null;
+            return numberState == 1;
+        }
+        
+        public Double toNumber() {
+            return isNumeric() ? asDouble() : null;
+        }
+        
+        /**
+         * Convert to a value that can be stored in a variable
+         */
+        public TypedValue toTyped() {
+            return switch (type) {
+                case NUMBER -> TypedValue.ofNumber(number);
+                case BOOLEAN -> TypedValue.ofBool(bool);
+                default -> TypedValue.ofString(toString());
+            };
         }
         
         public boolean toBoolean() {
-            if (type == Type.BOOLEAN) {
-                return (Boolean) value;
+            switch (type) {
+                case BOOLEAN:
+                    return bool;
+                case NUMBER:
+                    return number != 0 && !Double.isNaN(number);
+                case STRING:
+                    return !string.isEmpty() && !string.equals("0") && !string.equalsIgnoreCase("false") && !string.equalsIgnoreCase("null");
+                default:
+                    return false;
             }
-            if (type == Type.NULL) {
-                return false;
-            }
-            if (type == Type.NUMBER) {
-                double num = (Double) value;
-                return num != 0 && !Double.isNaN(num);
-            }
-            if (type == Type.STRING) {
-                String str = (String) value;
-                return !str.isEmpty() && !str.equals("0") && !str.equalsIgnoreCase("false") && !str.equalsIgnoreCase("null");
-            }
-            return false;
         }
         
         @Override
         public String toString() {
-            if (type == Type.NULL) {
-                return "null";
-            }
-            if (type == Type.NUMBER) {
-                double num = (Double) value;
-                if (num == Math.floor(num) && !Double.isInfinite(num)) {
-                    return String.valueOf((long) num);
-                }
-                return String.valueOf(num);
-            }
-            if (type == Type.BOOLEAN) {
-                return String.valueOf(value);
+            switch (type) {
+                case NULL:
+                    return "null";
+                case NUMBER:
+                    if (number == Math.floor(number) && !Double.isInfinite(number)) {
+                        return String.valueOf((long) number);
+                    }
+                    return String.valueOf(number);
+                case BOOLEAN:
+                    return String.valueOf(bool);
+                default:
+                    return string;
             }
-            return String.valueOf(value);
         }
         
         @Override
@@ -523,10 +547,8 @@ public class ExpressionParser {
             }
             
             // Try numeric comparison first
-            Double thisNum = this.toNumber();
-            Double otherNum = other.toNumber();
-            if (thisNum != null && otherNum != null) {
-                return Math.abs(thisNum - otherNum) < 0.0001;
+            if (this.isNumeric() && other.isNumeric()) {
+                return Math.abs(this.asDouble() - other.asDouble()) < 0.0001;
             }
             
             // String comparison (case-insensitive)
@@ -535,7 +557,11 @@ public class ExpressionParser {
         
         @Override
         public int hashCode() {
-            return Objects.hash(type, value);
+            return switch (type) {
+                case NUMBER -> Objects.hash(type, number);
+                case BOOLEAN -> Objects.hash(type, bool);
+                default -> Objects.hash(type, string);
+            };
         }
     }
     
@@ -543,7 +569,7 @@ public class ExpressionParser {
      * Convenience method to evaluate an expression string
      */
     public static Value evaluate(String expression, Function<String, String> variableResolver) {
-        return new ExpressionParser(expression, variableResolver).parse();
+        return compile(expression).evaluate(variableResolver);
     }
     
     /**
@@ -1,19 +1,25 @@
 package kasperstudios.kashub.algorithm;
 
+import kasperstudios.kashub.algorithm.ast.ScriptNode;
+
 import java.util.List;
 import java.util.ArrayList;
 
 public class Function {
     private final String name;
     private final List<String> parameters;
-    private final String body;
+    private final List<ScriptNode> body;
 
-    public Function(String name, List<String> parameters, String body) {
+    public Function(String name, List<String> parameters, List<ScriptNode> body) {
         this.name = name;
         this.parameters = new ArrayList<>(parameters);
         this.body = body;
     }
 
+    public Function(ScriptNode.FunctionDef definition) {
+        this(definition.name, definition.parameters, definition.body);
+    }
+
     public String getName() {
         return name;
     }
@@ -22,7 +28,7 @@ public class Function {
         return parameters;
     }
 
-    public String getBody() {
+    public List<ScriptNode> getBody() {
         return body;
     }
-} 
\ No newline at end of file
+}
@@ -2,21 +2,32 @@ package kasperstudios.kashub.algorithm;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
-import net.minecraft.client.MinecraftClient;
 import net.minecraft.client.network.ClientPlayerEntity;
-import net.minecraft.util.math.BlockPos;
-import net.minecraft.util.math.Vec3d;
 import net.minecraft.world.World;
+import kasperstudios.kashub.algorithm.ast.Diagnostic;
+import kasperstudios.kashub.algorithm.ast.ScriptAnalyzer;
+import kasperstudios.kashub.algorithm.ast.ScriptCache;
+import kasperstudios.kashub.algorithm.ast.ScriptNode;
+import kasperstudios.kashub.algorithm.ast.ScriptParser;
+import kasperstudios.kashub.algorithm.ast.ScriptProgram;
+import kasperstudios.kashub.algorithm.types.TypedValue;
+import kasperstudios.kashub.algorithm.types.TypedVariableMap;
+import kasperstudios.kashub.client.ClientFacade;
 import kasperstudios.kashub.gui.CodeCompletionManager;
 import kasperstudios.kashub.crashguard.CrashGuard;
+import kasperstudios.kashub.runtime.CommandExecutor;
 
+import java.util.AbstractMap;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Queue;
+import java.util.Set;
 import java.util.concurrent.CompletableFuture;
 import java.util.regex.Pattern;
 import java.util.regex.Matcher;
@@ -35,7 +46,7 @@ private static ScriptInterpreter instance;
     private boolean shouldStop = false;
     private final Queue<CommandEntry> commandQueue = new LinkedList<>();
     private final VariableStore variableStore = new VariableStore();
-    private final Map<String, String> variables = new HashMap<>(); // Legacy compatibility
+    private final TypedVariableMap variables = new TypedVariableMap(); // Legacy compatibility
     private final Map<String, Function> functions = new HashMap<>();
     private String currentScriptName = "unknown";
     private int currentLoopDepth = 0;
@@ -45,22 +56,14 @@ private static ScriptInterpreter instance;
     private String returnValue = null;
     private boolean hasReturned = false;
     
+    // break / continue inside immediate-mode loops
+    private boolean breakRequested = false;
+    private boolean continueRequested = false;
+    
     // Patterns for parsing - updated for Rust/JS style syntax
-    private static final Pattern LET_PATTERN = Pattern.compile("^\\s*let\\s+([a-zA-Z_][a-zA-Z0-9_]*)\\s*=\\s*(.+)$");
-    private static final Pattern CONST_PATTERN = Pattern.compile("^\\s*const\\s+([a-zA-Z_][a-zA-Z0-9_]*)\\s*=\\s*(.+)$");
-    private static final Pattern VARIABLE_PATTERN = Pattern.compile("^\\s*([a-zA-Z_][a-zA-Z0-9_]*)\\s*=\\s*(.+)$");
-    private static final Pattern IF_PATTERN = Pattern.compile("^\\s*if\\s+(.+?)\\s*\\{\\s*$|^\\s*if\\s*\\((.*)\\)\\s*\\{?\\s*$");
-    private static final Pattern WHILE_PATTERN = Pattern.compile("^\\s*while\\s+(.+?)\\s*\\{\\s*$|^\\s*while\\s*\\((.*)\\)\\s*\\{?\\s*$");
-    private static final Pattern FOR_PATTERN = Pattern.compile("^\\s*for\\s*\\((.*)\\)\\s*\\{?\\s*$");
-    private static final Pattern FUNCTION_PATTERN = Pattern.compile("^\\s*(?:fn|function)\\s+([a-zA-Z_][a-zA-Z0-9_]*)\\s*\\((.*?)\\)\\s*\\{?\\s*$");
     private static final Pattern FUNCTION_CALL_PATTERN = Pattern.compile("^\\s*([a-zA-Z_][a-zA-Z0-9_]*)\\s*\\((.*?)\\)\\s*$");
-    private static final Pattern RETURN_PATTERN = Pattern.compile("^\\s*return(?:\\s+(.*))?$");
     private static final Pattern ENV_VAR_PATTERN = Pattern.compile("\\$([A-Z_][A-Z0-9_]*)");
     private static final Pattern USER_VAR_PATTERN = Pattern.compile("\\$([a-z_][a-z0-9_]*)");
-    private static final Pattern ELSE_PATTERN = Pattern.compile("^\\s*\\}?\\s*else\\s*\\{?\\s*$");
-    private static final Pattern ELSE_IF_PATTERN = Pattern.compile("^\\s*\\}?\\s*else\\s+if\\s+(.+?)\\s*\\{\\s*$|^\\s*\\}?\\s*else\\s+if\\s*\\((.*)\\)\\s*\\{?\\s*$");
-    private static final Pattern LOOP_PATTERN = Pattern.compile("^\\s*loop(?:\\s+(\\d+))?\\s*\\{?\\s*$");
-    private static final Pattern VARIABLE_ASSIGN_WITH_FUNC = Pattern.compile("^\\s*(?:let\\s+)?([a-zA-Z_][a-zA-Z0-9_]*)\\s*=\\s*([a-zA-Z_][a-zA-Z0-9_]*)\\s*\\((.*)\\)\\s*$");
 
     // Private constructor for singleton
     private ScriptInterpreter() {
@@ -87,25 +90,29 @@ private static ScriptInterpreter instance;
 
     private void initializeEnvironmentVariables() {
         // Player variables
-        environmentVariables.put("PLAYER_NAME", new EnvironmentVariable("PLAYER_NAME", "", "Current player name"));
-        environmentVariables.put("PLAYER_X", new EnvironmentVariable("PLAYER_X", "", "Player X coordinate"));
-        environmentVariables.put("PLAYER_Y", new EnvironmentVariable("PLAYER_Y", "", "Player Y coordinate"));
-        environmentVariables.put("PLAYER_Z", new EnvironmentVariable("PLAYER_Z", "", "Player Z coordinate"));
-        environmentVariables.put("PLAYER_YAW", new EnvironmentVariable("PLAYER_YAW", "", "Player horizontal rotation"));
-        environmentVariables.put("PLAYER_PITCH", new EnvironmentVariable("PLAYER_PITCH", "", "Player vertical rotation"));
-        environmentVariables.put("PLAYER_HEALTH", new EnvironmentVariable("PLAYER_HEALTH", "", "Player health"));
-        environmentVariables.put("PLAYER_FOOD", new EnvironmentVariable("PLAYER_FOOD", "", "Player food level"));
-        environmentVariables.put("PLAYER_LEVEL", new EnvironmentVariable("PLAYER_LEVEL", "", "Player level"));
-        environmentVariables.put("PLAYER_SPEED", new EnvironmentVariable("PLAYER_SPEED", "", "Player speed"));
-        environmentVariables.put("PLAYER_XP", new EnvironmentVariable("PLAYER_XP", "", "Player experience level"));
-        environmentVariables.put("IS_SNEAKING", new EnvironmentVariable("IS_SNEAKING", "", "Is player sneaking"));
-        environmentVariables.put("IS_SPRINTING", new EnvironmentVariable("IS_SPRINTING", "", "Is player sprinting"));
+        registerPlayerVar("PLAYER_NAME", "Current player name", p -> TypedValue.ofString(p.getName().getString()));
+        registerPlayerVar("PLAYER_X", "Player X coordinate", p -> TypedValue.ofDouble(p.getX(), 2));
+        registerPlayerVar("PLAYER_Y", "Player Y coordinate", p -> TypedValue.ofDouble(p.getY(), 2));
+        registerPlayerVar("PLAYER_Z", "Player Z coordinate", p -> TypedValue.ofDouble(p.getZ(), 2));
+        registerPlayerVar("PLAYER_YAW", "Player horizontal rotation", p -> TypedValue.ofDouble(p.getYaw(), 2));
+        registerPlayerVar("PLAYER_PITCH", "Player vertical rotation", p -> TypedValue.ofDouble(p.getPitch(), 2));
+        registerPlayerVar("PLAYER_HEALTH", "Player health", p -> TypedValue.ofDouble(p.getHealth(), 1));
+        registerPlayerVar("PLAYER_FOOD", "Player food level", p -> TypedValue.ofLong(p.getHungerManager().getFoodLevel()));
+        registerPlayerVar("PLAYER_LEVEL", "Player level", p -> TypedValue.ofLong(p.experienceLevel));
+        registerPlayerVar("PLAYER_SPEED", "Player speed", p -> TypedValue.ofDouble(p.getMovementSpeed(), 2));
+        registerPlayerVar("PLAYER_XP", "Player experience level", p -> TypedValue.ofLong(p.experienceLevel));
+        registerPlayerVar("IS_SNEAKING", "Is player sneaking", p -> TypedValue.ofBool(p.isSneaking()));
+        registerPlayerVar("IS_SPRINTING", "Is player sprinting", p -> TypedValue.ofBool(p.isSprinting()));
+        registerPlayerVar("IS_RIDING", "Is player riding", p -> TypedValue.ofBool(p.isRiding()));
+        registerPlayerVar("IS_SWIMMING", "Is player swimming", p -> TypedValue.ofBool(p.isSwimming()));
+        registerPlayerVar("GAME_MODE", "Current game mode", p -> TypedValue.ofString(p.isCreative() ? "creative" : "survival"));
+        registerPlayerVar("DIMENSION", "Current dimension", p -> TypedValue.ofString(p.getWorld().getRegistryKey().getValue().toString()));
         
         // World variables
-        environmentVariables.put("WORLD_TIME", new EnvironmentVariable("WORLD_TIME", "", "Current world time"));
-        environmentVariables.put("WORLD_DAY", new EnvironmentVariable("WORLD_DAY", "", "Current world day"));
-        environmentVariables.put("WORLD_WEATHER", new EnvironmentVariable("WORLD_WEATHER", "", "Current weather"));
-        environmentVariables.put("WORLD_DIFFICULTY", new EnvironmentVariable("WORLD_DIFFICULTY", "", "World difficulty"));
+        registerWorldVar("WORLD_TIME", "Current world time", w -> TypedValue.ofLong(w.getTimeOfDay()));
+        registerWorldVar("WORLD_DAY", "Current world day", w -> TypedValue.ofLong(w.getTimeOfDay() / 24000L));
+        registerWorldVar("WORLD_WEATHER", "Current weather", w -> TypedValue.ofString(w.isRaining() ? (w.isThundering() ? "thunder" : "rain") : "clear"));
+        registerWorldVar("WORLD_DIFFICULTY", "World difficulty", w -> TypedValue.ofString(w.getDifficulty().getName()));
         
         // System variables
         environmentVariables.put("SCRIPT_NAME", new EnvironmentVariable("SCRIPT_NAME", "", "Current script name"));
@@ -113,350 +120,278 @@ private static ScriptInterpreter instance;
         environmentVariables.put("SCRIPT_DIR", new EnvironmentVariable("SCRIPT_DIR", "", "Current script directory"));
     }
     
-
-    public void updateEnvironmentVariables() {
-        MinecraftClient mc = MinecraftClient.getInstance();
-        if (mc.player != null && mc.world != null) {
-            updateEnvVar("PLAYER_NAME", mc.player.getName().getString());
-            updateEnvVar("PLAYER_X", String.format("%.2f", mc.player.getX()));
-            updateEnvVar("PLAYER_Y", String.format("%.2f", mc.player.getY()));
-            updateEnvVar("PLAYER_Z", String.format("%.2f", mc.player.getZ()));
-            updateEnvVar("PLAYER_YAW", String.format("%.2f", mc.player.getYaw()));
-            updateEnvVar("PLAYER_PITCH", String.format("%.2f", mc.player.getPitch()));
-            float health = mc.player.getHealth();
-            String healthStr = String.format("%.1f", health);
-            updateEnvVar("PLAYER_HEALTH", healthStr);
-            updateEnvVar("PLAYER_FOOD", String.valueOf(mc.player.getHungerManager().getFoodLevel()));
-            updateEnvVar("PLAYER_XP", String.valueOf(mc.player.experienceLevel));
-            updateEnvVar("PLAYER_LEVEL", String.valueOf(mc.player.experienceLevel));
-            updateEnvVar("PLAYER_SPEED", String.format("%.2f", mc.player.getMovementSpeed()));
-            updateEnvVar("WORLD_TIME", String.valueOf(mc.world.getTimeOfDay()));
-            updateEnvVar("WORLD_DAY", String.valueOf(mc.world.getTimeOfDay() / 24000L));
-            updateEnvVar("WORLD_WEATHER", mc.world.isRaining() ? (mc.world.isThundering() ? "thunder" : "rain") : "clear");
-            updateEnvVar("WORLD_DIFFICULTY", mc.world.getDifficulty().getName());
-            updateEnvVar("GAME_MODE", mc.player.isCreative() ? "creative" : "survival");
-            updateEnvVar("DIMENSION", mc.player.getWorld().getRegistryKey().getValue().toString());
-            updateEnvVar("IS_SNEAKING", String.valueOf(mc.player.isSneaking()));
-            updateEnvVar("IS_SPRINTING", String.valueOf(mc.player.isSprinting()));
-            updateEnvVar("IS_RIDING", String.valueOf(mc.player.isRiding()));
-            updateEnvVar("IS_SWIMMING", String.valueOf(mc.player.isSwimming()));
-            
-            // Update editor hints
-            CodeCompletionManager.updateEnvironmentVariables();
-        }
+    private void registerPlayerVar(String name, String description, java.util.function.Function<ClientPlayerEntity, TypedValue> getter) {
+        environmentVariables.put(name, new EnvironmentVariable(name, description, () -> {
+            ClientFacade client = ClientFacade.getInstance();
+            return client.isInWorld() ? getter.apply(client.getPlayer()) : null;
+        }));
+    }
+    
+    private void registerWorldVar(String name, String description, java.util.function.Function<World, TypedValue> getter) {
+        environmentVariables.put(name, new EnvironmentVariable(name, description, () -> {
+            ClientFacade client = ClientFacade.getInstance();
+            return client.isInWorld() ? getter.apply(client.getWorld()) : null;
+        }));
     }
 
-    private void updateEnvVar(String name, String value) {
-        EnvironmentVariable var = environmentVariables.get(name);
-        if (var != null) {
-            var.setValue(value);
-        } else {
-            environmentVariables.put(name, new EnvironmentVariable(name, value, ""));
+    /**
+     * Start a new environment snapshot. Values are not computed here:
+     * each variable is computed on its first read and reused until the
+     * next snapshot, except those other threads read lately, which are
+     * computed now on the client thread. Called once per client tick.
+     */
+    public void updateEnvironmentVariables() {
+        EnvironmentVariable.nextSnapshot();
+        if (CommandExecutor.getInstance().isGameThread()) {
+            for (EnvironmentVariable variable : environmentVariables.values()) {
+                variable.refreshIfReadOffThread();
+            }
         }
     }
 
     /**
      * Parse code and return list of commands to execute.
+     * The code is compiled by the shared front end ({@link ScriptCache}),
+     * so repeated calls with the same text (loops, events) are not re-parsed.
      *
      * @param code KHScript code string
      * @return List of recognized commands
      */
     public List<Command> parseCommands(String code) {
         List<Command> commands = new ArrayList<>();
-        String[] lines = code.split("\\r?\\n");
-        int i = 0;
-        while (i < lines.length) {
-            // Check for early return from function
-            if (hasReturned) {
-                break;
+        ScriptProgram program = ScriptCache.get(code);
+        for (Diagnostic diagnostic : program.getDiagnostics()) {
+            if (diagnostic.isError()) {
+                LOGGER.warn("Syntax error at {}", diagnostic);
             }
-            
-            String line = lines[i].trim();
-            if (!line.isEmpty() && !line.startsWith("//")) {
-                try {
-                    // Check for return statement FIRST
-                    Matcher returnMatcher = RETURN_PATTERN.matcher(line);
-                    if (returnMatcher.find()) {
-                        String returnExpr = returnMatcher.group(1);
-                        if (returnExpr != null && !returnExpr.trim().isEmpty()) {
-                            returnValue = evaluateExpression(returnExpr.trim());
-                        } else {
-                            returnValue = null;
-                        }
-                        hasReturned = true;
-                        break;
-                    }
-                    
-                    // Check for function definition
-                    Matcher funcMatcher = FUNCTION_PATTERN.matcher(line);
-                    if (funcMatcher.find()) {
-                        String funcName = funcMatcher.group(1);
-                        String paramsStr = funcMatcher.group(2);
-                        List<String> parameters = new ArrayList<>();
-                        if (!paramsStr.trim().isEmpty()) {
-                            parameters.addAll(Arrays.asList(paramsStr.split(",")));
-                            parameters.replaceAll(String::trim);
-                        }
-                        
-                        StringBuilder funcBody = new StringBuilder();
-                        int blockLevel = 1;
-                        i++;
-                        while (i < lines.length && blockLevel > 0) {
-                            String blockLine = lines[i].trim();
-                            if (blockLine.contains("{")) blockLevel++;
-                            if (blockLine.contains("}")) blockLevel--;
-                            if (blockLevel > 0) {
-                                funcBody.append(blockLine).append("\n");
-                            }
-                            i++;
-                        }
-                        
-                        functions.put(funcName, new Function(funcName, parameters, funcBody.toString()));
-                        continue;
-                    }
-
-                    // Check for variable assignment with function call: let x = func(args) or x = func(args)
-                    Matcher varFuncMatcher = VARIABLE_ASSIGN_WITH_FUNC.matcher(line);
-                    if (varFuncMatcher.find()) {
-                        String varName = varFuncMatcher.group(1);
-                        String funcName = varFuncMatcher.group(2);
-                        String argsStr = varFuncMatcher.group(3);
-                        
-                        // Check if it's a user-defined function
-                        Function func = functions.get(funcName);
-                        if (func != null) {
-                            String result = executeFunction(func, argsStr);
-                            try {
-                                variableStore.set(varName, result);
-                                variables.put(varName, result);
-                                CodeCompletionManager.addUserVariable(varName);
-                            } catch (IllegalStateException e) {
-                                LOGGER.error("Variable error at line {}: {}", i + 1, e.getMessage());
-                            }
-                            i++;
-                            continue;
-                        }
-                        // If not a function, fall through to normal variable assignment
-                    }
-
-                    // Check for const declaration (const MAX = 100)
-                    Matcher constMatcher = CONST_PATTERN.matcher(line);
-                    if (constMatcher.find()) {
-                        String varName = constMatcher.group(1);
-                        String varValue = evaluateExpression(constMatcher.group(2).trim());
-                        try {
-                            variableStore.declareConst(varName, varValue);
-                            variables.put(varName, varValue);
-                            CodeCompletionManager.addUserVariable(varName);
-                        } catch (IllegalStateException e) {
-                            LOGGER.error("Const error at line {}: {}", i + 1, e.getMessage());
-                        }
-                        i++;
-                        continue;
-                    }
-                    
-                    // Check for let declaration (let x = 5)
-                    Matcher letMatcher = LET_PATTERN.matcher(line);
-                    if (letMatcher.find()) {
-                        String varName = letMatcher.group(1);
-                        String varValue = evaluateExpression(letMatcher.group(2).trim());
-                        try {
-                            variableStore.declareLet(varName, varValue);
-                            variables.put(varName, varValue);
-                            CodeCompletionManager.addUserVariable(varName);
-                        } catch (IllegalStateException e) {
-                            LOGGER.error("Let error at line {}: {}", i + 1, e.getMessage());
-                        }
-                        i++;
-                        continue;
-                    }
-                    
-                    // Check for legacy variable assignment (x = 5)
-                    Matcher varMatcher = VARIABLE_PATTERN.matcher(line);
-                    if (varMatcher.find()) {
-                        String varName = varMatcher.group(1);
-                        String varValue = evaluateExpression(varMatcher.group(2).trim());
-                        try {
-                            variableStore.set(varName, varValue);
-                            variables.put(varName, varValue);
-                            CodeCompletionManager.addUserVariable(varName);
-                        } catch (IllegalStateException e) {
-                            LOGGER.error("Variable error at line {}: {}", i + 1, e.getMessage());
-                        }
-                        i++;
-                        continue;
-                    }
-
-                    // Check for conditional statements with else support
-                    Matcher ifMatcher = IF_PATTERN.matcher(line);
-                    if (ifMatcher.find()) {
-                        i = processIfElseBlock(lines, i, ifMatcher, commands);
-                        continue;
-                    }
-
-                    // Check for while loop with environment variable updates
-                    Matcher whileMatcher = WHILE_PATTERN.matcher(line);
-                    if (whileMatcher.find()) {
-                        String condition = whileMatcher.group(1) != null ? whileMatcher.group(1) : whileMatcher.group(2);
-                        StringBuilder whileBlock = new StringBuilder();
-                        int blockLevel = 1;
-                        i++;
-                        while (i < lines.length && blockLevel > 0) {
-                            String blockLine = lines[i].trim();
-                            if (blockLine.contains("{")) blockLevel++;
-                            if (blockLine.contains("}")) blockLevel--;
-                            if (blockLevel > 0) {
-                                whileBlock.append(blockLine).append("\n");
-                            }
-                            i++;
-                        }
-                        
-                        // Execute while loop with environment updates
-                        int maxIterations = 10000; // Safety limit
-                        int iterations = 0;
-                        while (iterations < maxIterations) {
-                            updateEnvironmentVariables(); // Update env vars before each check
-                            if (!evaluateCondition(condition)) {
-                                break;
-                            }
-                            parseCommands(whileBlock.toString());
-                            if (hasReturned) break; // Support return inside while
-                            iterations++;
-                        }
-                        if (iterations >= maxIterations) {
-                            LOGGER.warn("While loop exceeded max iterations at line {}", i);
-                        }
-                        continue;
-                    }
-
-                    // Check for loop (infinite or counted)
-                    Matcher loopMatcher = LOOP_PATTERN.matcher(line);
-                    if (loopMatcher.find()) {
-                        String countStr = loopMatcher.group(1);
-                        int loopCount = countStr != null ? Integer.parseInt(countStr) : Integer.MAX_VALUE;
-                        
-                        StringBuilder loopBlock = new StringBuilder();
-                        int blockLevel = 1;
-                        i++;
-                        while (i < lines.length && blockLevel > 0) {
-                            String blockLine = lines[i].trim();
-                            if (blockLine.contains("{")) blockLevel++;
-                            if (blockLine.contains("}")) blockLevel--;
-                            if (blockLevel > 0) {
-                                loopBlock.append(blockLine).append("\n");
-                            }
-                            i++;
-                        }
-                        
-                        for (int iter = 0; iter < loopCount && !shouldStop; iter++) {
-                            updateEnvironmentVariables();
-                            parseCommands(loopBlock.toString());
-                            if (hasReturned) break;
-                        }
-                        continue;
-                    }
-
-                    // Check for for loop
-                    Matcher forMatcher = FOR_PATTERN.matcher(line);
-                    if (forMatcher.find()) {
-                        String[] forParts = forMatcher.group(1).split(";");
-                        if (forParts.length == 3) {
-                            String init = forParts[0].trim();
-                            String condition = forParts[1].trim();
-                            String increment = forParts[2].trim();
-                            
-                            if (!init.isEmpty()) {
-                                parseCommands(init);
-                            }
-                            
-                            StringBuilder forBlock = new StringBuilder();
-                            int blockLevel = 1;
-                            i++;
-                            while (i < lines.length && blockLevel > 0) {
-                                String blockLine = lines[i].trim();
-                                if (blockLine.contains("{")) blockLevel++;
-                                if (blockLine.contains("}")) blockLevel--;
-                                if (blockLevel > 0) {
-                                    forBlock.append(blockLine).append("\n");
-                                }
-                                i++;
-                            }
-                            
-                            int maxIterations = 10000;
-                            int iterations = 0;
-                            while (iterations < maxIterations && evaluateCondition(condition)) {
-                                parseCommands(forBlock.toString());
-                                if (hasReturned) break;
-                                if (!increment.isEmpty()) {
-                                    parseCommands(increment);
-                                }
-                                iterations++;
-                            }
-                        }
-                        continue;
-                    }
-
-                    // IMPORTANT: Check for commands BEFORE function calls!
-                    // This prevents commands like print("hello") from being treated as functions
-                    String processedLine = processVariables(line);
-                    List<String> parts = parseArguments(processedLine);
-                    if (parts.isEmpty()) {
-                        i++;
-                        continue;
-                    }
-
-                    String commandName = parts.get(0).toLowerCase();
-                    
-                    // First check if it's a registered command
-                    Command command = CommandRegistry.getCommand(commandName);
-                    if (command != null) {
-                        String[] args = parts.subList(1, parts.size()).toArray(new String[0]);
-                        LOGGER.debug("Executing command: {} with args: {}", commandName, String.join(", ", args));
-                        commands.add(command);
-                        queueCommand(command, args);
-                        i++;
-                        continue;
-                    }
-                    
-                    // Then check for function call (only if not a command)
-                    Matcher funcCallMatcher = FUNCTION_CALL_PATTERN.matcher(line);
-                    if (funcCallMatcher.find()) {
-                        String funcName = funcCallMatcher.group(1);
-                        String argsStr = funcCallMatcher.group(2);
-                        
-                        Function func = functions.get(funcName);
-                        if (func != null) {
-                            executeFunction(func, argsStr);
-                            i++;
-                            continue;
-                        } else {
-                            LOGGER.warn("Unknown function or command at line {}: {}", i + 1, funcName);
-                        }
-                    } else {
-                        LOGGER.warn("Unknown command at line {}: {}", i + 1, commandName);
-                    }
-                } catch (Exception e) {
-                    LOGGER.error("Error parsing line {}: {}", i + 1, line, e);
+        }
+        // Bind call sites to commands (only the first time this program is seen)
+        for (Diagnostic diagnostic : ScriptAnalyzer.link(program, CommandRegistry::getCommand, CommandRegistry.getVersion())) {
+            LOGGER.warn("{}", diagnostic);
+        }
+        
+        // Functions are hoisted so they can be called before their declaration
+        for (ScriptNode.FunctionDef def : program.getFunctions().values()) {
+            functions.put(def.name, new Function(def));
+        }
+        
+        executeNodes(program.getStatements(), commands);
+        // break / continue outside of a loop end the script
+        breakRequested = false;
+        continueRequested = false;
+        return commands;
+    }
+    
+    /**
+     * Run statements immediately, queuing commands as they are reached
+     */
+    private void executeNodes(List<ScriptNode> nodes, List<Command> commands) {
+        for (ScriptNode node : nodes) {
+            // Check for early return from function or loop control
+            if (hasReturned || breakRequested || continueRequested) {
+                return;
+            }
+            try {
+                executeNode(node, commands);
+            } catch (Exception e) {
+                LOGGER.error("Error executing line {}", node.getLine(), e);
+            }
+        }
+    }
+    
+    private void executeNode(ScriptNode node, List<Command> commands) {
+        if (node instanceof ScriptNode.FunctionDef) {
+            return; // Registered up front
+        }
+        
+        if (node instanceof ScriptNode.Return ret) {
+            returnValue = ret.expression != null ? evaluateExpression(ret.expression) : null;
+            hasReturned = true;
+            return;
+        }
+        
+        if (node instanceof ScriptNode.Break) {
+            breakRequested = true;
+            return;
+        }
+        
+        if (node instanceof ScriptNode.Continue) {
+            continueRequested = true;
+            return;
+        }
+        
+        if (node instanceof ScriptNode.Assignment assignment) {
+            executeAssignment(assignment);
+            return;
+        }
+        
+        if (node instanceof ScriptNode.Increment increment) {
+            String current = resolveVariable(increment.name);
+            TypedValue value = current != null ? new TypedValue(current) : TypedValue.ofLong(0);
+            TypedValue next = value.isIntegral()
+                ? TypedValue.ofLong(value.asLong() + increment.delta)
+                : TypedValue.ofNumber(value.asNumber() + increment.delta);
+            storeVariable(increment.name, next, ScriptNode.DeclarationKind.LEGACY, increment.getLine());
+            return;
+        }
+        
+        if (node instanceof ScriptNode.If ifNode) {
+            for (ScriptNode.Branch branch : ifNode.branches) {
+                if (branch.condition == null || evaluateCondition(branch.condition)) {
+                    executeNodes(branch.body, commands);
+                    break;
                 }
             }
-            i++;
+            return;
+        }
+        
+        if (node instanceof ScriptNode.While whileNode) {
+            executeInvariants(whileNode.invariants);
+            int maxIterations = 10000; // Safety limit
+            int iterations = 0;
+            while (iterations < maxIterations && !shouldStop && evaluateCondition(whileNode.condition)) {
+                if (runLoopBody(whileNode.body, commands)) break;
+                iterations++;
+            }
+            if (iterations >= maxIterations) {
+                LOGGER.warn("While loop exceeded max iterations at line {}", whileNode.getLine());
+            }
+            return;
+        }
+        
+        if (node instanceof ScriptNode.Loop loopNode) {
+            executeInvariants(loopNode.invariants);
+            int loopCount = loopNode.count >= 0 ? loopNode.count : Integer.MAX_VALUE;
+            for (int iter = 0; iter < loopCount && !shouldStop; iter++) {
+                if (runLoopBody(loopNode.body, commands)) break;
+            }
+            return;
+        }
+        
+        if (node instanceof ScriptNode.For forNode) {
+            if (forNode.init != null) {
+                executeNode(forNode.init, commands);
+            }
+            executeInvariants(forNode.invariants);
+            int maxIterations = 10000;
+            int iterations = 0;
+            while (iterations < maxIterations && !shouldStop && evaluateCondition(forNode.condition)) {
+                if (runLoopBody(forNode.body, commands)) break;
+                if (forNode.update != null) {
+                    executeNode(forNode.update, commands);
+                }
+                iterations++;
+            }
+            return;
+        }
+        
+        if (node instanceof ScriptNode.FunctionCall call) {
+            Function func = functions.get(call.name);
+            if (func != null) {
+                executeFunction(func, call.arguments);
+            } else {
+                LOGGER.warn("Unknown function at line {}: {}", call.getLine(), call.name);
+            }
+            return;
+        }
+        
+        if (node instanceof ScriptNode.CommandCall call) {
+            executeCommandCall(call, commands);
+        }
+    }
+    
+    /**
+     * Compute the loop invariants hoisted by the optimizer, once on loop entry
+     */
+    private void executeInvariants(List<ScriptNode.Assignment> invariants) {
+        for (ScriptNode.Assignment invariant : invariants) {
+            variableStore.set(invariant.name, ExpressionParser.evaluate(invariant.expression, this::resolveVariable).toTyped());
+        }
+    }
+    
+    /**
+     * Run one loop iteration.
+     * @return true if the loop must stop (break or return)
+     */
+    private boolean runLoopBody(List<ScriptNode> body, List<Command> commands) {
+        executeNodes(body, commands);
+        continueRequested = false;
+        if (breakRequested) {
+            breakRequested = false;
+            return true;
+        }
+        return hasReturned;
+    }
+    
+    private void executeAssignment(ScriptNode.Assignment assignment) {
+        String value;
+        // Assignment with function call: let x = func(args) or x = func(args)
+        Matcher callMatcher = FUNCTION_CALL_PATTERN.matcher(assignment.expression);
+        Function func = callMatcher.matches() ? functions.get(callMatcher.group(1)) : null;
+        if (func != null) {
+            value = executeFunction(func, ScriptParser.splitArguments(callMatcher.group(2)));
+        } else {
+            value = evaluateExpression(assignment.expression);
+        }
+        storeVariable(assignment.name, new TypedValue(value), assignment.kind, assignment.getLine());
+    }
+    
+    private void storeVariable(String name, TypedValue value, ScriptNode.DeclarationKind kind, int line) {
+        try {
+            switch (kind) {
+                case CONST -> variableStore.declareConst(name, value);
+                case LET -> variableStore.declareLet(name, value);
+                default -> variableStore.set(name, value);
+            }
+            variables.putTyped(name, value);
+            CodeCompletionManager.addUserVariable(name);
+        } catch (IllegalStateException e) {
+            LOGGER.error("Variable error at line {}: {}", line, e.getMessage());
+        }
+    }
+    
+    private void executeCommandCall(ScriptNode.CommandCall call, List<Command> commands) {
+        String processedLine = processVariables(call.source);
+        List<String> parts = parseArguments(processedLine);
+        if (parts.isEmpty()) {
+            return;
+        }
+
+        String commandName = parts.get(0).toLowerCase();
+        
+        // First check if it's a registered command (bound when the program was linked)
+        Command command = call.getCommand() != null ? call.getCommand() : CommandRegistry.getCommand(commandName);
+        if (command != null) {
+            String[] args = parts.subList(1, parts.size()).toArray(new String[0]);
+            LOGGER.debug("Executing command: {} with args: {}", commandName, String.join(", ", args));
+            commands.add(command);
+            queueCommand(command, args);
+            return;
+        }
+        
+        // Then check for a function declared by an earlier script
+        Matcher funcCallMatcher = FUNCTION_CALL_PATTERN.matcher(call.source);
+        if (funcCallMatcher.find()) {
+            String funcName = funcCallMatcher.group(1);
+            Function func = functions.get(funcName);
+            if (func != null) {
+                executeFunction(func, ScriptParser.splitArguments(funcCallMatcher.group(2)));
+            } else {
+                LOGGER.warn("Unknown function or command at line {}: {}", call.getLine(), funcName);
+            }
+        } else {
+            LOGGER.warn("Unknown command at line {}: {}", call.getLine(), commandName);
         }
-        return commands;
     }
     
     /**
      * Execute a function with proper scope isolation and return value support.
      */
-    private String executeFunction(Function func, String argsStr) {
-        // Parse and evaluate arguments
+    private String executeFunction(Function func, List<String> rawArguments) {
+        // Evaluate arguments
         List<String> arguments = new ArrayList<>();
-        if (argsStr != null && !argsStr.trim().isEmpty()) {
-            // Split by comma but respect parentheses
-            arguments = splitFunctionArguments(argsStr);
-            // Evaluate each argument
-            for (int j = 0; j < arguments.size(); j++) {
-                arguments.set(j, evaluateExpression(arguments.get(j).trim()));
-            }
+        for (String argument : rawArguments) {
+            arguments.add(evaluateExpression(argument.trim()));
         }
         
         // Save current state for scope isolation
@@ -477,7 +412,9 @@ private static ScriptInterpreter instance;
         }
         
         // Execute function body
-        parseCommands(func.getBody());
+        executeNodes(func.getBody(), new ArrayList<>());
+        breakRequested = false;
+        continueRequested = false;
         
         // Capture return value
         String result = returnValue != null ? returnValue : "";
@@ -490,142 +427,6 @@ private static ScriptInterpreter instance;
         
         return result;
     }
-    
-    /**
-     * Split function arguments respecting nested parentheses.
-     */
-    private List<String> splitFunctionArguments(String argsStr) {
-        List<String> args = new ArrayList<>();
-        StringBuilder current = new StringBuilder();
-        int parenDepth = 0;
-        boolean inString = false;
-        
-        for (char c : argsStr.toCharArray()) {
-            if (c == '"' && (current.length() == 0 || current.charAt(current.length() - 1) != '\\')) {
-                inString = !inString;
-            }
-            
-            if (!inString) {
-                if (c == '(') parenDepth++;
-                else if (c == ')') parenDepth--;
-                else if (c == ',' && parenDepth == 0) {
-                    args.add(current.toString().trim());
-                    current.setLength(0);
-                    continue;
-                }
-            }
-            current.append(c);
-        }
-        
-        if (current.length() > 0) {
-            args.add(current.toString().trim());
-        }
-        
-        return args;
-    }
-    
-    /**
-     * Process if/else/else-if blocks properly.
-     */
-    private int processIfElseBlock(String[] lines, int startIndex, Matcher ifMatcher, List<Command> commands) {
-        String condition = ifMatcher.group(1) != null ? ifMatcher.group(1) : ifMatcher.group(2);
-        
-        // Collect if block
-        StringBuilder ifBlock = new StringBuilder();
-        int blockLevel = 1;
-        int i = startIndex + 1;
-        
-        while (i < lines.length && blockLevel > 0) {
-            String blockLine = lines[i].trim();
-            
-            // Check for else at the end of block
-            if (blockLevel == 1 && (ELSE_PATTERN.matcher(blockLine).find() || ELSE_IF_PATTERN.matcher(blockLine).find())) {
-                break;
-            }
-            
-            if (blockLine.contains("{")) blockLevel++;
-            if (blockLine.contains("}")) blockLevel--;
-            
-            if (blockLevel > 0) {
-                ifBlock.append(blockLine).append("\n");
-            }
-            i++;
-        }
-        
-        boolean conditionResult = evaluateCondition(condition);
-        boolean executed = false;
-        
-        if (conditionResult) {
-            parseCommands(ifBlock.toString());
-            executed = true;
-        }
-        
-        // Check for else or else-if
-        while (i < lines.length) {
-            String currentLine = lines[i].trim();
-            
-            // Check for else-if
-            Matcher elseIfMatcher = ELSE_IF_PATTERN.matcher(currentLine);
-            if (elseIfMatcher.find()) {
-                String elseIfCondition = elseIfMatcher.group(1) != null ? elseIfMatcher.group(1) : elseIfMatcher.group(2);
-                
-                StringBuilder elseIfBlock = new StringBuilder();
-                blockLevel = 1;
-                i++;
-                
-                while (i < lines.length && blockLevel > 0) {
-                    String blockLine = lines[i].trim();
-                    
-                    if (blockLevel == 1 && (ELSE_PATTERN.matcher(blockLine).find() || ELSE_IF_PATTERN.matcher(blockLine).find())) {
-                        break;
-                    }
-                    
-                    if (blockLine.contains("{")) blockLevel++;
-                    if (blockLine.contains("}")) blockLevel--;
-                    
-                    if (blockLevel > 0) {
-                        elseIfBlock.append(blockLine).append("\n");
-                    }
-                    i++;
-                }
-                
-                if (!executed && evaluateCondition(elseIfCondition)) {
-                    parseCommands(elseIfBlock.toString());
-                    executed = true;
-                }
-                continue;
-            }
-            
-            // Check for else
-            Matcher elseMatcher = ELSE_PATTERN.matcher(currentLine);
-            if (elseMatcher.find()) {
-                StringBuilder elseBlock = new StringBuilder();
-                blockLevel = 1;
-                i++;
-                
-                while (i < lines.length && blockLevel > 0) {
-                    String blockLine = lines[i].trim();
-                    if (blockLine.contains("{")) blockLevel++;
-                    if (blockLine.contains("}")) blockLevel--;
-                    
-                    if (blockLevel > 0) {
-                        elseBlock.append(blockLine).append("\n");
-                    }
-                    i++;
-                }
-                
-                if (!executed) {
-                    parseCommands(elseBlock.toString());
-                }
-                break;
-            }
-            
-            // No more else/else-if, exit
-            break;
-        }
-        
-        return i;
-    }
 
     /**
      * Process variable assignment
@@ -822,6 +623,14 @@ String varName = parts[0].trim();
         CodeCompletionManager.addUserVariable(name);
     }
 
+    /**
+     * Set variable value without converting it to text
+     */
+    public void setVariable(String name, TypedValue value) {
+        variables.putTyped(name, value);
+        CodeCompletionManager.addUserVariable(name);
+    }
+
     /**
      * Check if variable exists
      */
@@ -872,7 +681,7 @@ String varName = parts[0].trim();
      * Resolves a variable name to its value.
      * Checks: variableStore -> variables map -> environment variables
      */
-    private String resolveVariable(String name) {
+    public String resolveVariable(String name) {
         // First check the new variable store
         String value = variableStore.get(name);
         if (value != null) {
@@ -894,6 +703,28 @@ String varName = parts[0].trim();
         return null;
     }
     
+    /**
+     * Typed variant of {@link #resolveVariable(String)}, numbers are not formatted
+     */
+    public TypedValue resolveTypedVariable(String name) {
+        TypedValue value = variableStore.getTyped(name);
+        if (value != null && value.hasValue()) {
+            return value;
+        }
+        
+        value = variables.getTyped(name);
+        if (value != null && value.hasValue()) {
+            return value;
+        }
+        
+        EnvironmentVariable envVar = environmentVariables.get(name.toUpperCase());
+        if (envVar != null) {
+            return envVar.getTypedValue();
+        }
+        
+        return null;
+    }
+    
     /**
      * Internal class for storing command and its arguments in queue.
      */
@@ -931,15 +762,41 @@ String varName = parts[0].trim();
         return environmentVariables.containsKey(name);
     }
 
+    /**
+     * Read-only view of user and environment variables (environment wins).
+     * The view is live and shared, nothing is copied per call.
+     */
     public Map<String, String> getContext() {
-        Map<String, String> context = new HashMap<>();
-        context.putAll(variables);
-        for (Map.Entry<String, EnvironmentVariable> entry : environmentVariables.entrySet()) {
-            context.put(entry.getKey(), entry.getValue().getValue());
-        }
         return context;
     }
 
+    private final Map<String, String> context = new AbstractMap<>() {
+        @Override
+        public String get(Object key) {
+            EnvironmentVariable envVar = environmentVariables.get(key);
+            return envVar != null ? envVar.getValue() : variables.get(key);
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            return environmentVariables.containsKey(key) || variables.containsKey(key);
+        }
+
+        @Override
+        public Set<Entry<String, String>> entrySet() {
+            Set<Entry<String, String>> entries = new LinkedHashSet<>();
+            for (Entry<String, String> entry : variables.entrySet()) {
+                if (!environmentVariables.containsKey(entry.getKey())) {
+                    entries.add(new SimpleImmutableEntry<>(entry));
+                }
+            }
+            for (Entry<String, EnvironmentVariable> entry : environmentVariables.entrySet()) {
+                entries.add(new SimpleImmutableEntry<>(entry.getKey(), entry.getValue().getValue()));
+            }
+            return Collections.unmodifiableSet(entries);
+        }
+    };
+
     public Map<String, EnvironmentVariable> getEnvironmentVariables() {
         return environmentVariables;
     }
@@ -0,0 +1,75 @@
+package kasperstudios.kashub.algorithm;
+
+import kasperstudios.kashub.algorithm.ast.FrameLayout;
+import kasperstudios.kashub.algorithm.types.TypedValue;
+
+import java.util.Arrays;
+
+/**
+ * Runtime variable frame for a compiled script scope.
+ * Values live in an array indexed by {@link FrameLayout} slots.
+ * Like {@link VariableStore}, a frame has a parent scope: an unset
+ * local slot reads through to the parent, writes always stay local.
+ */
+public class VariableFrame {
+    private final FrameLayout layout;
+    private final VariableFrame parent;
+    private final TypedValue[] values;
+
+    public VariableFrame(FrameLayout layout, VariableFrame parent) {
+        this.layout = layout;
+        this.parent = parent;
+        this.values = new TypedValue[layout.size()];
+    }
+
+    /**
+     * Get a value, reading through to the parent scope if the slot is unset
+     */
+    public TypedValue get(int slot) {
+        TypedValue value = values[slot];
+        if (value == null && parent != null) {
+            int parentSlot = layout.getParentSlot(slot);
+            if (parentSlot >= 0) {
+                return parent.get(parentSlot);
+            }
+        }
+        return value;
+    }
+
+    /**
+     * Get a value set in this frame only
+     */
+    public TypedValue getLocal(int slot) {
+        return values[slot];
+    }
+
+    public void set(int slot, TypedValue value) {
+        values[slot] = value;
+    }
+
+    /**
+     * Get a value by name, checking parent scopes
+     */
+    public TypedValue get(String name) {
+        int slot = layout.indexOf(name);
+        if (slot >= 0 && values[slot] != null) {
+            return values[slot];
+        }
+        return parent != null ? parent.get(name) : null;
+    }
+
+    /**
+     * Clear all variables in this frame
+     */
+    public void clear() {
+        Arrays.fill(values, null);
+    }
+
+    public FrameLayout getLayout() {
+        return layout;
+    }
+
+    public VariableFrame getParent() {
+        return parent;
+    }
+}
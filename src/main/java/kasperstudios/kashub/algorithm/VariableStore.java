@@ -1,5 +1,7 @@
 package kasperstudios.kashub.algorithm;
 
+import kasperstudios.kashub.algorithm.types.TypedValue;
+
 import java.util.*;
 
 /**
@@ -7,6 +9,7 @@ import java.util.*;
  * - let: mutable variables
  * - const: immutable constants
  * - Legacy variables (without keyword, treated as let)
+ * Values are kept as {@link TypedValue}, so numbers stay unboxed until read as text.
  */
 public class VariableStore {
     
@@ -18,11 +21,11 @@ public class VariableStore {
     
     private static class Variable {
         final String name;
-        String value;
+        TypedValue value;
         final VariableType type;
         final boolean isConst;
         
-        Variable(String name, String value, VariableType type) {
+        Variable(String name, TypedValue value, VariableType type) {
             this.name = name;
             this.value = value;
             this.type = type;
@@ -46,6 +49,10 @@ public class VariableStore {
      * @throws IllegalStateException if variable already exists in current scope
      */
     public void declareLet(String name, String value) {
+        declareLet(name, new TypedValue(value));
+    }
+    
+    public void declareLet(String name, TypedValue value) {
         if (variables.containsKey(name)) {
             Variable existing = variables.get(name);
             if (existing.isConst) {
@@ -60,6 +67,10 @@ public class VariableStore {
      * @throws IllegalStateException if variable already exists in current scope
      */
     public void declareConst(String name, String value) {
+        declareConst(name, new TypedValue(value));
+    }
+    
+    public void declareConst(String name, TypedValue value) {
         if (variables.containsKey(name)) {
             throw new IllegalStateException("Cannot redeclare variable '" + name + "' as const");
         }
@@ -72,6 +83,10 @@ public class VariableStore {
      * @throws IllegalStateException if trying to modify a const
      */
     public void set(String name, String value) {
+        set(name, new TypedValue(value));
+    }
+    
+    public void set(String name, TypedValue value) {
         // First check current scope
         if (variables.containsKey(name)) {
             Variable var = variables.get(name);
@@ -96,11 +111,20 @@ public class VariableStore {
      * Get variable value, checking parent scopes
      */
     public String get(String name) {
-        if (variables.containsKey(name)) {
-            return variables.get(name).value;
+        TypedValue value = getTyped(name);
+        return value != null ? value.asString() : null;
+    }
+    
+    /**
+     * Get typed variable value, checking parent scopes
+     */
+    public TypedValue getTyped(String name) {
+        Variable var = variables.get(name);
+        if (var != null) {
+            return var.value;
         }
         if (parent != null) {
-            return parent.get(name);
+            return parent.getTyped(name);
         }
         return null;
     }
@@ -168,7 +192,8 @@ public class VariableStore {
             map.putAll(parent.toMap());
         }
         for (Map.Entry<String, Variable> entry : variables.entrySet()) {
-            map.put(entry.getKey(), entry.getValue().value);
+            TypedValue value = entry.getValue().value;
+            map.put(entry.getKey(), value != null ? value.asString() : null);
         }
         return map;
     }
@@ -193,7 +218,7 @@ public class VariableStore {
     public void importFrom(Map<String, String> map) {
         for (Map.Entry<String, String> entry : map.entrySet()) {
             if (!variables.containsKey(entry.getKey())) {
-                variables.put(entry.getKey(), new Variable(entry.getKey(), entry.getValue(), VariableType.LEGACY));
+                variables.put(entry.getKey(), new Variable(entry.getKey(), new TypedValue(entry.getValue()), VariableType.LEGACY));
             }
         }
     }
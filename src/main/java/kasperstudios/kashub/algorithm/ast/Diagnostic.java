@@ -0,0 +1,64 @@
+package kasperstudios.kashub.algorithm.ast;
+
+/**
+ * Problem found while parsing or analysing a script.
+ * Shared by the runtime, /api/validate, the editor and autocomplete.
+ */
+public class Diagnostic {
+
+    public enum Severity {
+        ERROR, WARNING, INFO;
+
+        /**
+         * Lowercase name used by the web API ("error", "warning", "info")
+         */
+        public String id() {
+            return name().toLowerCase();
+        }
+    }
+
+    private final int line;   // 1-based
+    private final int column; // 0-based
+    private final String message;
+    private final Severity severity;
+
+    public Diagnostic(int line, int column, String message, Severity severity) {
+        this.line = line;
+        this.column = column;
+        this.message = message;
+        this.severity = severity;
+    }
+
+    public static Diagnostic error(int line, int column, String message) {
+        return new Diagnostic(line, column, message, Severity.ERROR);
+    }
+
+    public static Diagnostic warning(int line, int column, String message) {
+        return new Diagnostic(line, column, message, Severity.WARNING);
+    }
+
+    public int getLine() {
+        return line;
+    }
+
+    public int getColumn() {
+        return column;
+    }
+
+    public String getMessage() {
+        return message;
+    }
+
+    public Severity getSeverity() {
+        return severity;
+    }
+
+    public boolean isError() {
+        return severity == Severity.ERROR;
+    }
+
+    @Override
+    public String toString() {
+        return "line " + line + ": " + message;
+    }
+}
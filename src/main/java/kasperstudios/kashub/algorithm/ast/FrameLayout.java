@@ -0,0 +1,96 @@
+package kasperstudios.kashub.algorithm.ast;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compile-time layout of a variable scope.
+ * Every variable written in the scope (assignment, increment, parameter)
+ * gets a fixed slot index, so the runtime frame is a plain array.
+ * Function scopes have the script's global scope as parent.
+ */
+public class FrameLayout {
+    private final FrameLayout parent;
+    private final Map<String, Integer> slots = new HashMap<>();
+    private final List<String> names = new ArrayList<>();
+    private final BitSet temporaries = new BitSet();
+    private int[] parentSlots = new int[0];
+
+    public FrameLayout(FrameLayout parent) {
+        this.parent = parent;
+    }
+
+    /**
+     * Slot of a variable in this scope, allocated on first declaration
+     */
+    int declare(String name) {
+        Integer slot = slots.get(name);
+        if (slot == null) {
+            slot = names.size();
+            slots.put(name, slot);
+            names.add(name);
+        }
+        return slot;
+    }
+
+    /**
+     * Slot for a value introduced by the optimizer, hidden from completion
+     */
+    int declareTemporary(String name) {
+        int slot = declare(name);
+        temporaries.set(slot);
+        return slot;
+    }
+
+    /**
+     * Resolve local slots to the parent scope once parsing is finished,
+     * the parent may still gain variables after this scope was parsed
+     */
+    void link() {
+        parentSlots = new int[names.size()];
+        Arrays.fill(parentSlots, -1);
+        if (parent != null) {
+            for (int i = 0; i < names.size(); i++) {
+                parentSlots[i] = parent.indexOf(names.get(i));
+            }
+        }
+    }
+
+    /**
+     * Slot of a variable in this scope, or -1
+     */
+    public int indexOf(String name) {
+        Integer slot = slots.get(name);
+        return slot != null ? slot : -1;
+    }
+
+    /**
+     * Slot of the same variable in the parent scope, or -1
+     */
+    public int getParentSlot(int slot) {
+        return slot < parentSlots.length ? parentSlots[slot] : -1;
+    }
+
+    /**
+     * True for optimizer temporaries, which are not user variables
+     */
+    public boolean isTemporary(int slot) {
+        return temporaries.get(slot);
+    }
+
+    public String getName(int slot) {
+        return names.get(slot);
+    }
+
+    public int size() {
+        return names.size();
+    }
+
+    public FrameLayout getParent() {
+        return parent;
+    }
+}
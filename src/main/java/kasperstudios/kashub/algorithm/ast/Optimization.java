@@ -0,0 +1,45 @@
+package kasperstudios.kashub.algorithm.ast;
+
+/**
+ * Rewrite applied by {@link ScriptOptimizer}, reported by /api/validate
+ */
+public class Optimization {
+
+    public enum Kind {
+        CONSTANT_FOLDING, DEAD_BRANCH, LOOP_INVARIANT;
+
+        /**
+         * Lowercase name used by the web API ("constant_folding", ...)
+         */
+        public String id() {
+            return name().toLowerCase();
+        }
+    }
+
+    private final int line; // 1-based
+    private final Kind kind;
+    private final String message;
+
+    public Optimization(int line, Kind kind, String message) {
+        this.line = line;
+        this.kind = kind;
+        this.message = message;
+    }
+
+    public int getLine() {
+        return line;
+    }
+
+    public Kind getKind() {
+        return kind;
+    }
+
+    public String getMessage() {
+        return message;
+    }
+
+    @Override
+    public String toString() {
+        return "line " + line + ": " + message;
+    }
+}
@@ -0,0 +1,182 @@
+package kasperstudios.kashub.algorithm.ast;
+
+import kasperstudios.kashub.algorithm.ArgumentTemplate;
+import kasperstudios.kashub.algorithm.Command;
+import kasperstudios.kashub.algorithm.types.KHType;
+import kasperstudios.kashub.algorithm.types.TypeChecker;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+/**
+ * Checks that need more than the source text: every command call is
+ * looked up in the command registry passed in by the caller.
+ * Cheap compared to parsing, so it runs on every request while the
+ * parsed program itself comes from {@link ScriptCache}.
+ * {@link #link} also binds each call site to its {@link Command}, so the
+ * runtime never looks a command up by name while the script runs.
+ * Binding is the only write to a shared {@link ScriptProgram}; it happens
+ * under the program's lock, once per registry version.
+ */
+public final class ScriptAnalyzer {
+
+    private ScriptAnalyzer() {}
+
+    /**
+     * Syntax diagnostics of the program plus unknown command/function checks, sorted by line
+     */
+    public static List<Diagnostic> analyze(ScriptProgram program, Predicate<String> isCommand) {
+        List<Diagnostic> result = new ArrayList<>(program.getDiagnostics());
+        checkBlock(program.getStatements(), (call, out) -> {
+            // Name is only known at runtime
+            if (!call.isDynamic() && !isCommand.test(call.name)) {
+                reportUnknown(call, out);
+            }
+        }, result);
+        result.sort(Comparator.comparingInt(Diagnostic::getLine));
+        return result;
+    }
+
+    /**
+     * Bind every command call with a constant name to its command and check
+     * the argument count, then, in strict type mode, the types of constant arguments.
+     * Binding and the count check depend only on the registry, so they run under the
+     * program's lock and are kept with it until the registry version changes, e.g. a
+     * command registered later. The type check depends on the current {@link TypeChecker}
+     * mode and runs again on every call.
+     * @param registryVersion version of the registry behind {@code commands}
+     * @return problems found at call sites (not the syntax diagnostics), in source order
+     */
+    public static List<Diagnostic> link(ScriptProgram program, Function<String, Command> commands, int registryVersion) {
+        List<Diagnostic> linked;
+        synchronized (program) {
+            linked = program.getLinkDiagnostics(registryVersion);
+            if (linked == null) {
+                List<Diagnostic> result = new ArrayList<>();
+                checkBlock(program.getStatements(), (call, out) -> {
+                    if (call.isDynamic()) {
+                        return;
+                    }
+                    Command command = commands.apply(call.name);
+                    if (command == null) {
+                        reportUnknown(call, out);
+                        return;
+                    }
+                    call.bind(command);
+                    String problem = checkArity(call, command);
+                    if (problem != null) {
+                        out.add(Diagnostic.error(call.getLine(), call.getColumn(), problem));
+                    }
+                }, result);
+                program.setLinkDiagnostics(result, registryVersion);
+                linked = program.getLinkDiagnostics(registryVersion);
+            }
+        }
+        if (TypeChecker.getInstance().getMode() != TypeChecker.Mode.STRICT) {
+            return linked;
+        }
+        List<Diagnostic> typed = new ArrayList<>(linked);
+        checkBlock(program.getStatements(), (call, out) -> {
+            Command command = call.getCommand();
+            if (command != null && checkArity(call, command) == null) {
+                checkTypes(call, command, out);
+            }
+        }, typed);
+        typed.sort(Comparator.comparingInt(Diagnostic::getLine));
+        return typed;
+    }
+
+    private static void checkBlock(List<ScriptNode> nodes, BiConsumer<ScriptNode.CommandCall, List<Diagnostic>> check, List<Diagnostic> out) {
+        for (ScriptNode node : nodes) {
+            if (node instanceof ScriptNode.CommandCall call) {
+                check.accept(call, out);
+            } else if (node instanceof ScriptNode.If ifNode) {
+                for (ScriptNode.Branch branch : ifNode.branches) {
+                    checkBlock(branch.body, check, out);
+                }
+            } else if (node instanceof ScriptNode.For forNode) {
+                checkBlock(forNode.body, check, out);
+            } else if (node instanceof ScriptNode.While whileNode) {
+                checkBlock(whileNode.body, check, out);
+            } else if (node instanceof ScriptNode.Loop loopNode) {
+                checkBlock(loopNode.body, check, out);
+            } else if (node instanceof ScriptNode.FunctionDef def) {
+                checkBlock(def.body, check, out);
+            }
+        }
+    }
+
+    /**
+     * Arity check of one call site. A quoted or constant argument is always
+     * one word; an unquoted one with variables may expand to several, so after
+     * it only a lower bound of the count is known.
+     * @return the problem, null if the count fits
+     */
+    private static String checkArity(ScriptNode.CommandCall call, Command command) {
+        int count = call.arguments.size();
+        int min = command.getMinArgs();
+        int max = command.getMaxArgs();
+        if (count < min && knownArguments(call) == count) {
+            return call.name + " expects at least " + min + " argument" + (min == 1 ? "" : "s") + ", got " + count;
+        }
+        if (max >= 0 && count > max) {
+            return call.name + " expects at most " + max + " argument" + (max == 1 ? "" : "s") + ", got " + count;
+        }
+        return null;
+    }
+
+    /**
+     * Type check of the constant leading arguments of one call site
+     */
+    private static void checkTypes(ScriptNode.CommandCall call, Command command, List<Diagnostic> out) {
+        KHType[] expected = command.getArgumentTypes();
+        int known = knownArguments(call);
+        if (expected == null || known == 0) {
+            return;
+        }
+        // Only constant values can be checked now, the rest are typed at runtime
+        String[] args = new String[known];
+        KHType[] types = Arrays.copyOf(expected, Math.min(expected.length, known));
+        for (int i = 0; i < known; i++) {
+            ArgumentTemplate argument = call.arguments.get(i);
+            args[i] = argument.getSource();
+            if (!argument.isConstant() && i < types.length) {
+                types[i] = KHType.ANY;
+            }
+        }
+        TypeChecker.TypeIssue issue = TypeChecker.getInstance().findArgumentMismatch(call.name, args, types, call.getLine());
+        if (issue != null) {
+            out.add(Diagnostic.error(call.getLine(), call.getColumn(), call.name + ": " + issue.getMessage()));
+        }
+    }
+
+    /**
+     * Number of leading arguments whose position is fixed
+     */
+    private static int knownArguments(ScriptNode.CommandCall call) {
+        int known = 0;
+        for (ArgumentTemplate argument : call.arguments) {
+            if (!argument.isConstant() && !argument.isQuoted()) {
+                break;
+            }
+            known++;
+        }
+        return known;
+    }
+
+    private static void reportUnknown(ScriptNode.CommandCall call, List<Diagnostic> out) {
+        String source = call.source;
+        int paren = source.indexOf('(');
+        if (paren > 0 && source.endsWith(")") && ScriptParser.isIdentifier(source.substring(0, paren).trim())) {
+            // Functions of other scripts may be registered at runtime
+            out.add(Diagnostic.warning(call.getLine(), call.getColumn(), "Unknown function: " + source.substring(0, paren).trim()));
+        } else {
+            out.add(Diagnostic.error(call.getLine(), call.getColumn(), "Unknown command: " + call.name));
+        }
+    }
+}
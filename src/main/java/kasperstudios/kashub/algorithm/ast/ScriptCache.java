@@ -0,0 +1,47 @@
+package kasperstudios.kashub.algorithm.ast;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Parsed programs keyed by source text (LRU).
+ * The runtime, /api/validate, /api/autocomplete and the editor all go
+ * through here, so the same text is lexed and parsed only once per edit.
+ * {@link ScriptProgram} is immutable apart from its one-time, locked command
+ * binding, so sharing it between threads is safe.
+ */
+public final class ScriptCache {
+    private static final int CACHE_SIZE = 64;
+
+    private static final Map<String, ScriptProgram> CACHE = Collections.synchronizedMap(
+        new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, ScriptProgram> eldest) {
+                return size() > CACHE_SIZE;
+            }
+        });
+
+    private ScriptCache() {}
+
+    /**
+     * Get the parsed program for the source, parsing it on first use
+     */
+    public static ScriptProgram get(String source) {
+        String key = source == null ? "" : source;
+        ScriptProgram program = CACHE.get(key);
+        if (program == null) {
+            program = ScriptParser.parse(key);
+            CACHE.put(key, program);
+        }
+        return program;
+    }
+
+    public static int getCacheSize() {
+        return CACHE.size();
+    }
+
+    public static void clearCache() {
+        CACHE.clear();
+    }
+}
@@ -0,0 +1,153 @@
+package kasperstudios.kashub.algorithm.ast;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Splits KHScript source into logical lines.
+ * Drops blank lines, line comments and block comments and remembers
+ * the original line number and indentation of everything that is kept.
+ * One-line blocks such as "if x { jump }" are split into header, body and
+ * closing brace so the parser only ever sees one statement per line.
+ * Lexical problems (an unclosed block comment) are reported as {@link Diagnostic}s.
+ */
+public class ScriptLexer {
+
+    // Statements that may be followed by an inline { ... } body
+    private static final String[] BLOCK_KEYWORDS = {"if", "else", "while", "for", "fn", "function"};
+
+    /**
+     * A non-empty, non-comment source line
+     */
+    public static class SourceLine {
+        public final int number;  // 1-based
+        public final int column;  // 0-based column of the first non-whitespace char
+        public final String text; // trimmed text
+
+        public SourceLine(int number, int column, String text) {
+            this.number = number;
+            this.column = column;
+            this.text = text;
+        }
+
+        @Override
+        public String toString() {
+            return number + ": " + text;
+        }
+    }
+
+    private ScriptLexer() {}
+
+    public static List<SourceLine> tokenize(String source) {
+        return tokenize(source, new ArrayList<>());
+    }
+
+    public static List<SourceLine> tokenize(String source, List<Diagnostic> diagnostics) {
+        List<SourceLine> result = new ArrayList<>();
+        if (source == null || source.isEmpty()) {
+            return result;
+        }
+
+        boolean inBlockComment = false;
+        int commentLine = 0;
+        int commentColumn = 0;
+        int lineNumber = 1;
+        int start = 0;
+        int length = source.length();
+
+        while (start <= length) {
+            int end = source.indexOf('\n', start);
+            if (end < 0) end = length;
+            int lineEnd = end;
+            if (lineEnd > start && source.charAt(lineEnd - 1) == '\r') {
+                lineEnd--;
+            }
+
+            String raw = source.substring(start, lineEnd);
+            if (inBlockComment) {
+                int close = raw.indexOf("*/");
+                if (close >= 0) {
+                    inBlockComment = false;
+                    raw = raw.substring(close + 2);
+                } else {
+                    raw = "";
+                }
+            }
+
+            String trimmed = raw.trim();
+            if (trimmed.startsWith("/*")) {
+                int close = trimmed.indexOf("*/", 2);
+                if (close < 0) {
+                    inBlockComment = true;
+                    commentLine = lineNumber;
+                    commentColumn = indentOf(raw);
+                    trimmed = "";
+                } else {
+                    trimmed = trimmed.substring(close + 2).trim();
+                }
+            }
+
+            if (!trimmed.isEmpty() && !trimmed.startsWith("//")) {
+                addLine(result, lineNumber, indentOf(raw), trimmed);
+            }
+
+            lineNumber++;
+            start = end + 1;
+        }
+
+        if (inBlockComment) {
+            diagnostics.add(Diagnostic.error(commentLine, commentColumn, "Unclosed block comment"));
+        }
+        return result;
+    }
+
+    private static void addLine(List<SourceLine> out, int number, int column, String text) {
+        int open = inlineBlockStart(text);
+        if (open < 0) {
+            out.add(new SourceLine(number, column, text));
+            return;
+        }
+        out.add(new SourceLine(number, column, text.substring(0, open + 1).trim()));
+        String body = text.substring(open + 1, text.length() - 1);
+        String inner = body.trim();
+        if (!inner.isEmpty()) {
+            addLine(out, number, column + open + 1 + indentOf(body), inner);
+        }
+        out.add(new SourceLine(number, column + text.length() - 1, "}"));
+    }
+
+    /**
+     * Index of the '{' opening a one-line block body, or -1
+     */
+    private static int inlineBlockStart(String text) {
+        if (!text.endsWith("}") || text.length() < 2) {
+            return -1;
+        }
+        String header = text.startsWith("}") ? text.substring(1).trim() : text;
+        boolean keyword = false;
+        for (String k : BLOCK_KEYWORDS) {
+            if (ScriptParser.afterKeyword(header, k) != null) {
+                keyword = true;
+                break;
+            }
+        }
+        if (!keyword) {
+            return -1;
+        }
+        boolean inString = false;
+        for (int i = text.startsWith("}") ? 1 : 0; i < text.length() - 1; i++) {
+            char c = text.charAt(i);
+            if (c == '"') inString = !inString;
+            else if (c == '{' && !inString) return i;
+        }
+        return -1;
+    }
+
+    private static int indentOf(String raw) {
+        int i = 0;
+        while (i < raw.length() && Character.isWhitespace(raw.charAt(i))) {
+            i++;
+        }
+        return i;
+    }
+}
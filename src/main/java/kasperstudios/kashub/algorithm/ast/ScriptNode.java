@@ -0,0 +1,283 @@
+package kasperstudios.kashub.algorithm.ast;
+
+import kasperstudios.kashub.algorithm.ArgumentTemplate;
+import kasperstudios.kashub.algorithm.Command;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Immutable syntax tree node for KHScript.
+ * Produced once by {@link ScriptParser} and walked by the runtime,
+ * so no statement is ever re-lexed while a script runs.
+ */
+public abstract class ScriptNode {
+    private final int line;
+    int column; // set once by the parser
+
+    protected ScriptNode(int line) {
+        this.line = line;
+    }
+
+    /**
+     * 1-based source line this node starts on
+     */
+    public int getLine() {
+        return line;
+    }
+
+    /**
+     * 0-based column of the statement on its line
+     */
+    public int getColumn() {
+        return column;
+    }
+
+    /**
+     * Declaration keyword used for an assignment
+     */
+    public enum DeclarationKind {
+        LET,    // let x = 5
+        CONST,  // const MAX = 100
+        LEGACY  // x = 5
+    }
+
+    /**
+     * Variable assignment: [let|const] name = expression
+     */
+    public static class Assignment extends ScriptNode {
+        public final String name;
+        public final int slot; // slot in the enclosing FrameLayout
+        public final String expression;
+        public final DeclarationKind kind;
+
+        public Assignment(int line, String name, int slot, String expression, DeclarationKind kind) {
+            super(line);
+            this.name = name;
+            this.slot = slot;
+            this.expression = expression;
+            this.kind = kind;
+        }
+    }
+
+    /**
+     * Increment statement: name++ / name--
+     */
+    public static class Increment extends ScriptNode {
+        public final String name;
+        public final int slot; // slot in the enclosing FrameLayout
+        public final int delta;
+
+        public Increment(int line, String name, int slot, int delta) {
+            super(line);
+            this.name = name;
+            this.slot = slot;
+            this.delta = delta;
+        }
+    }
+
+    /**
+     * One branch of an if / else if / else chain
+     */
+    public static class Branch {
+        public final int line;
+        public final int column;
+        public final String condition; // null for else
+        public final List<ScriptNode> body;
+
+        public Branch(int line, int column, String condition, List<ScriptNode> body) {
+            this.line = line;
+            this.column = column;
+            this.condition = condition;
+            this.body = Collections.unmodifiableList(body);
+        }
+    }
+
+    /**
+     * if / else if / else chain
+     */
+    public static class If extends ScriptNode {
+        public final List<Branch> branches;
+
+        public If(int line, List<Branch> branches) {
+            super(line);
+            this.branches = Collections.unmodifiableList(branches);
+        }
+    }
+
+    /**
+     * for (init; condition; update) { body }
+     */
+    public static class For extends ScriptNode {
+        public final ScriptNode init;   // may be null
+        public final String condition;
+        public final ScriptNode update; // may be null
+        public final List<ScriptNode> body;
+        public final List<Assignment> invariants; // hoisted by ScriptOptimizer, run once on loop entry
+
+        public For(int line, ScriptNode init, String condition, ScriptNode update, List<ScriptNode> body) {
+            this(line, init, condition, update, body, Collections.emptyList());
+        }
+
+        public For(int line, ScriptNode init, String condition, ScriptNode update, List<ScriptNode> body,
+                   List<Assignment> invariants) {
+            super(line);
+            this.init = init;
+            this.condition = condition;
+            this.update = update;
+            this.body = Collections.unmodifiableList(body);
+            this.invariants = Collections.unmodifiableList(invariants);
+        }
+    }
+
+    /**
+     * while condition { body }
+     */
+    public static class While extends ScriptNode {
+        public final String condition;
+        public final boolean infinite; // while true
+        public final List<ScriptNode> body;
+        public final List<Assignment> invariants; // hoisted by ScriptOptimizer, run once on loop entry
+
+        public While(int line, String condition, boolean infinite, List<ScriptNode> body) {
+            this(line, condition, infinite, body, Collections.emptyList());
+        }
+
+        public While(int line, String condition, boolean infinite, List<ScriptNode> body, List<Assignment> invariants) {
+            super(line);
+            this.condition = condition;
+            this.infinite = infinite;
+            this.body = Collections.unmodifiableList(body);
+            this.invariants = Collections.unmodifiableList(invariants);
+        }
+    }
+
+    /**
+     * loop [count] { body }, count is -1 for an infinite loop
+     */
+    public static class Loop extends ScriptNode {
+        public final int count;
+        public final List<ScriptNode> body;
+        public final List<Assignment> invariants; // hoisted by ScriptOptimizer, run once on loop entry
+
+        public Loop(int line, int count, List<ScriptNode> body) {
+            this(line, count, body, Collections.emptyList());
+        }
+
+        public Loop(int line, int count, List<ScriptNode> body, List<Assignment> invariants) {
+            super(line);
+            this.count = count;
+            this.body = Collections.unmodifiableList(body);
+            this.invariants = Collections.unmodifiableList(invariants);
+        }
+
+        public boolean isInfinite() {
+            return count < 0;
+        }
+    }
+
+    /**
+     * function name(params) { body }
+     */
+    public static class FunctionDef extends ScriptNode {
+        public final String name;
+        public final List<String> parameters;
+        private final int[] parameterSlots;
+        public final List<ScriptNode> body;
+        public final FrameLayout layout;
+
+        public FunctionDef(int line, String name, List<String> parameters, int[] parameterSlots,
+                           List<ScriptNode> body, FrameLayout layout) {
+            super(line);
+            this.name = name;
+            this.parameters = Collections.unmodifiableList(parameters);
+            this.parameterSlots = parameterSlots;
+            this.body = Collections.unmodifiableList(body);
+            this.layout = layout;
+        }
+
+        /**
+         * Slot of the i-th parameter in the function layout
+         */
+        public int getParameterSlot(int index) {
+            return parameterSlots[index];
+        }
+    }
+
+    /**
+     * Call of a function declared in the same script: name(args)
+     */
+    public static class FunctionCall extends ScriptNode {
+        public final String name;
+        public final List<String> arguments;
+
+        public FunctionCall(int line, String name, List<String> arguments) {
+            super(line);
+            this.name = name;
+            this.arguments = Collections.unmodifiableList(arguments);
+        }
+    }
+
+    /**
+     * Registered command invocation. Arguments are split into templates
+     * at parse time, variables are substituted at execution time.
+     */
+    public static class CommandCall extends ScriptNode {
+        public final String name;                        // lowercase, as looked up in CommandRegistry
+        public final String source;                      // full trimmed line
+        public final ArgumentTemplate nameTemplate;      // first token, rendered if the name is dynamic
+        public final List<ArgumentTemplate> arguments;   // tokens after the command name
+        private volatile Command command;                // bound by ScriptAnalyzer.link
+
+        public CommandCall(int line, String name, String source, ArgumentTemplate nameTemplate, List<ArgumentTemplate> arguments) {
+            super(line);
+            this.name = name;
+            this.source = source;
+            this.nameTemplate = nameTemplate;
+            this.arguments = Collections.unmodifiableList(arguments);
+        }
+
+        /**
+         * Command this call site was bound to, null if the program was not linked
+         * or the name is dynamic
+         */
+        public Command getCommand() {
+            return command;
+        }
+
+        void bind(Command command) {
+            this.command = command;
+        }
+
+        /**
+         * True if the command name itself contains a variable
+         */
+        public boolean isDynamic() {
+            return !nameTemplate.isConstant();
+        }
+    }
+
+    public static class Break extends ScriptNode {
+        public Break(int line) {
+            super(line);
+        }
+    }
+
+    public static class Continue extends ScriptNode {
+        public Continue(int line) {
+            super(line);
+        }
+    }
+
+    /**
+     * return [expression]
+     */
+    public static class Return extends ScriptNode {
+        public final String expression; // may be null
+
+        public Return(int line, String expression) {
+            super(line);
+            this.expression = expression;
+        }
+    }
+}
@@ -0,0 +1,435 @@
+package kasperstudios.kashub.algorithm.ast;
+
+import kasperstudios.kashub.algorithm.CompiledExpression;
+import kasperstudios.kashub.algorithm.ExpressionParser;
+import kasperstudios.kashub.algorithm.ExpressionParser.Value;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Rewrites a freshly parsed program before it is cached and run:
+ * - constant folding, including top-level const values that are never reassigned
+ * - dead branch elimination for conditions known at load time
+ * - loop-invariant arithmetic moved into temporaries that the runtime
+ *   computes once when the loop is entered ({@code invariants} of the loop node)
+ * Every rewrite is recorded as an {@link Optimization}.
+ */
+final class ScriptOptimizer {
+    private static final String TEMP_PREFIX = "__inv";
+
+    private final List<Optimization> optimizations = new ArrayList<>();
+    private final Map<String, Integer> writes = new HashMap<>();
+    private final Map<ScriptNode.FunctionDef, ScriptNode.FunctionDef> rewritten = new IdentityHashMap<>();
+    private int temporaries;
+
+    private ScriptOptimizer() {}
+
+    /**
+     * Optimize the top-level statements. Definitions in {@code functions} are
+     * replaced by their optimized versions, applied rewrites are added to {@code out}.
+     */
+    static List<ScriptNode> optimize(List<ScriptNode> statements, Map<String, ScriptNode.FunctionDef> functions,
+                                     FrameLayout globalLayout, List<Optimization> out) {
+        ScriptOptimizer optimizer = new ScriptOptimizer();
+        optimizer.countWrites(statements);
+        List<ScriptNode> result = optimizer.optimizeBlock(statements,
+            new Scope(globalLayout, new HashMap<>(), new HashSet<>(), true));
+        functions.replaceAll((name, def) -> optimizer.rewritten.getOrDefault(def, def));
+        optimizer.optimizations.sort(Comparator.comparingInt(Optimization::getLine));
+        out.addAll(optimizer.optimizations);
+        return result;
+    }
+
+    /**
+     * Variables visible while optimizing a block
+     */
+    private static class Scope {
+        final FrameLayout layout;
+        final Map<String, Value> constants; // known values of top-level consts
+        final Set<String> assigned;         // definitely assigned before the current statement
+        final boolean topLevel;
+
+        Scope(FrameLayout layout, Map<String, Value> constants, Set<String> assigned, boolean topLevel) {
+            this.layout = layout;
+            this.constants = constants;
+            this.assigned = assigned;
+            this.topLevel = topLevel;
+        }
+
+        Scope nested() {
+            return new Scope(layout, constants, new HashSet<>(assigned), false);
+        }
+    }
+
+    private List<ScriptNode> optimizeBlock(List<ScriptNode> body, Scope scope) {
+        List<ScriptNode> result = new ArrayList<>(body.size());
+        for (ScriptNode node : body) {
+            ScriptNode optimized = optimizeNode(node, scope);
+            if (optimized != null) {
+                result.add(optimized);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return the rewritten node, or null if it never does anything
+     */
+    private ScriptNode optimizeNode(ScriptNode node, Scope scope) {
+        if (node instanceof ScriptNode.Assignment assignment) {
+            return optimizeAssignment(assignment, scope);
+        }
+        if (node instanceof ScriptNode.If ifNode) {
+            return optimizeIf(ifNode, scope);
+        }
+        if (node instanceof ScriptNode.While whileNode) {
+            return optimizeWhile(whileNode, scope);
+        }
+        if (node instanceof ScriptNode.For forNode) {
+            return optimizeFor(forNode, scope);
+        }
+        if (node instanceof ScriptNode.Loop loopNode) {
+            return optimizeLoop(loopNode, scope);
+        }
+        if (node instanceof ScriptNode.FunctionDef def) {
+            return optimizeFunction(def);
+        }
+        return node;
+    }
+
+    // ==================== Statements ====================
+
+    private ScriptNode.Assignment optimizeAssignment(ScriptNode.Assignment assignment, Scope scope) {
+        ScriptNode.Assignment result = assignment;
+        String source = assignment.expression;
+        // Quoted text is stored as is by the runtime, never evaluated
+        boolean quoted = source.startsWith("\"") && source.endsWith("\"") && source.length() >= 2;
+        String folded = quoted ? source : ExpressionParser.compile(source).fold(scope.constants);
+        Value value = constantValue(folded);
+        // Only numbers are stored as the evaluated result, anything else keeps its text
+        if (value != null && value.getType() == Value.Type.NUMBER) {
+            if (!folded.equals(source)) {
+                result = at(new ScriptNode.Assignment(assignment.getLine(), assignment.name, assignment.slot,
+                    folded, assignment.kind), assignment);
+                record(assignment.getLine(), Optimization.Kind.CONSTANT_FOLDING,
+                    "Folded `" + source + "` to " + folded);
+            }
+        } else {
+            value = literalText(source);
+        }
+
+        if (scope.topLevel && assignment.kind == ScriptNode.DeclarationKind.CONST
+                && value != null && writes.getOrDefault(assignment.name, 0) == 1) {
+            scope.constants.put(assignment.name, value);
+        }
+        scope.assigned.add(assignment.name);
+        return result;
+    }
+
+    private ScriptNode optimizeIf(ScriptNode.If ifNode, Scope scope) {
+        List<ScriptNode.Branch> branches = new ArrayList<>(ifNode.branches.size());
+        for (int i = 0; i < ifNode.branches.size(); i++) {
+            ScriptNode.Branch branch = ifNode.branches.get(i);
+            String condition = branch.condition;
+            if (condition != null) {
+                condition = foldCondition(condition, branch.line, scope);
+                Value constant = constantValue(condition);
+                if (constant != null && !constant.toBoolean()) {
+                    record(branch.line, Optimization.Kind.DEAD_BRANCH,
+                        "Removed branch, `" + branch.condition + "` is always false");
+                    continue;
+                }
+                if (constant != null) {
+                    record(branch.line, Optimization.Kind.DEAD_BRANCH,
+                        "Removed check, `" + branch.condition + "` is always true");
+                    condition = null;
+                }
+            }
+            branches.add(new ScriptNode.Branch(branch.line, branch.column, condition,
+                optimizeBlock(branch.body, scope.nested())));
+            if (condition == null) {
+                for (int j = i + 1; j < ifNode.branches.size(); j++) {
+                    record(ifNode.branches.get(j).line, Optimization.Kind.DEAD_BRANCH, "Removed unreachable branch");
+                }
+                break;
+            }
+        }
+        if (branches.isEmpty()) {
+            return null;
+        }
+        return at(new ScriptNode.If(ifNode.getLine(), branches), ifNode);
+    }
+
+    private ScriptNode optimizeWhile(ScriptNode.While whileNode, Scope scope) {
+        String condition = whileNode.condition;
+        if (!whileNode.infinite) {
+            condition = foldCondition(condition, whileNode.getLine(), scope);
+            Value constant = constantValue(condition);
+            if (constant != null && !constant.toBoolean()) {
+                record(whileNode.getLine(), Optimization.Kind.DEAD_BRANCH,
+                    "Removed loop, `" + whileNode.condition + "` is always false");
+                return null;
+            }
+        }
+        List<ScriptNode> body = optimizeBlock(whileNode.body, scope.nested());
+
+        Hoister hoister = hoister(scope, whileNode.getLine(), body);
+        if (hoister != null) {
+            if (!whileNode.infinite) {
+                condition = hoister.rewrite(condition);
+            }
+            body = hoister.rewriteBlock(body);
+        }
+        return at(new ScriptNode.While(whileNode.getLine(), condition, whileNode.infinite, body,
+            hoister != null ? hoister.invariants : List.of()), whileNode);
+    }
+
+    private ScriptNode optimizeFor(ScriptNode.For forNode, Scope scope) {
+        ScriptNode init = forNode.init instanceof ScriptNode.Assignment assignment
+            ? optimizeAssignment(assignment, scope.nested())
+            : forNode.init;
+        Scope loopScope = scope.nested();
+        if (init instanceof ScriptNode.Assignment assignment) {
+            loopScope.assigned.add(assignment.name);
+        }
+
+        String condition = foldCondition(forNode.condition, forNode.getLine(), loopScope);
+        Value constant = constantValue(condition);
+        if (constant != null && !constant.toBoolean()) {
+            record(forNode.getLine(), Optimization.Kind.DEAD_BRANCH,
+                "Removed loop body, `" + forNode.condition + "` is always false");
+            if (init instanceof ScriptNode.Assignment assignment) {
+                scope.assigned.add(assignment.name);
+            }
+            return init; // the init clause still runs once
+        }
+        List<ScriptNode> body = optimizeBlock(forNode.body, loopScope.nested());
+
+        Hoister hoister = hoister(loopScope, forNode.getLine(), body);
+        if (hoister != null) {
+            condition = hoister.rewrite(condition);
+            body = hoister.rewriteBlock(body);
+        }
+        return at(new ScriptNode.For(forNode.getLine(), init, condition, forNode.update, body,
+            hoister != null ? hoister.invariants : List.of()), forNode);
+    }
+
+    private ScriptNode optimizeLoop(ScriptNode.Loop loopNode, Scope scope) {
+        if (loopNode.count == 0) {
+            record(loopNode.getLine(), Optimization.Kind.DEAD_BRANCH, "Removed loop that runs 0 times");
+            return null;
+        }
+        List<ScriptNode> body = optimizeBlock(loopNode.body, scope.nested());
+
+        Hoister hoister = hoister(scope, loopNode.getLine(), body);
+        if (hoister != null) {
+            body = hoister.rewriteBlock(body);
+        }
+        return at(new ScriptNode.Loop(loopNode.getLine(), loopNode.count, body,
+            hoister != null ? hoister.invariants : List.of()), loopNode);
+    }
+
+    private ScriptNode optimizeFunction(ScriptNode.FunctionDef def) {
+        // Function bodies can run before the top-level consts are assigned
+        List<ScriptNode> body = optimizeBlock(def.body, new Scope(def.layout, new HashMap<>(), new HashSet<>(), false));
+        int[] parameterSlots = new int[def.parameters.size()];
+        for (int i = 0; i < parameterSlots.length; i++) {
+            parameterSlots[i] = def.getParameterSlot(i);
+        }
+        ScriptNode.FunctionDef result = at(new ScriptNode.FunctionDef(def.getLine(), def.name, def.parameters,
+            parameterSlots, body, def.layout), def);
+        rewritten.put(def, result);
+        return result;
+    }
+
+    // ==================== Expressions ====================
+
+    private String foldCondition(String condition, int line, Scope scope) {
+        String folded = ExpressionParser.compile(condition).fold(scope.constants);
+        if (!folded.equals(condition) && constantValue(folded) == null) {
+            record(line, Optimization.Kind.CONSTANT_FOLDING, "Folded `" + condition + "` to `" + folded + "`");
+        }
+        return folded;
+    }
+
+    /**
+     * Value of an expression without variables, or null
+     */
+    private static Value constantValue(String expression) {
+        CompiledExpression compiled = ExpressionParser.compile(expression);
+        if (!compiled.isComplete() || !compiled.isConstant()) {
+            return null;
+        }
+        return compiled.evaluate(name -> null);
+    }
+
+    /**
+     * Value stored for a plain literal that every runtime keeps as text:
+     * true / false or a double quoted string without escapes or variables
+     */
+    private static Value literalText(String source) {
+        if (source.equals("true") || source.equals("false")) {
+            return Value.ofString(source);
+        }
+        if (source.length() >= 2 && source.startsWith("\"") && source.endsWith("\"")) {
+            String text = source.substring(1, source.length() - 1);
+            if (text.indexOf('"') < 0 && text.indexOf('\\') < 0 && text.indexOf('$') < 0) {
+                return Value.ofString(text);
+            }
+        }
+        return null;
+    }
+
+    // ==================== Loop invariants ====================
+
+    /**
+     * Hoister for a loop, or null if its body calls functions,
+     * which may change variables in ways that cannot be seen statically
+     */
+    private Hoister hoister(Scope scope, int line, List<ScriptNode> body) {
+        return callsFunction(body) ? null : new Hoister(scope, line);
+    }
+
+    private static boolean callsFunction(List<ScriptNode> body) {
+        for (ScriptNode node : body) {
+            if (node instanceof ScriptNode.FunctionCall || node instanceof ScriptNode.FunctionDef) {
+                return true;
+            }
+            // x = func(args) is a call as well
+            if (node instanceof ScriptNode.Assignment assignment
+                    && !ExpressionParser.compile(assignment.expression).isComplete()) {
+                return true;
+            }
+            if (node instanceof ScriptNode.If ifNode) {
+                for (ScriptNode.Branch branch : ifNode.branches) {
+                    if (callsFunction(branch.body)) return true;
+                }
+            } else if (node instanceof ScriptNode.For forNode && callsFunction(forNode.body)) {
+                return true;
+            } else if (node instanceof ScriptNode.While whileNode && callsFunction(whileNode.body)) {
+                return true;
+            } else if (node instanceof ScriptNode.Loop loopNode && callsFunction(loopNode.body)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Moves arithmetic over invariant variables into temporaries declared in the loop's scope.
+     * A variable is invariant if it is assigned before the loop and written nowhere else
+     * in the script, so nothing can change it while the loop runs.
+     */
+    private class Hoister {
+        final Scope scope;
+        final int line;
+        final List<ScriptNode.Assignment> invariants = new ArrayList<>();
+        final Map<String, String> extracted = new HashMap<>(); // source -> temporary
+
+        Hoister(Scope scope, int line) {
+            this.scope = scope;
+            this.line = line;
+        }
+
+        String rewrite(String condition) {
+            String hoisted = ExpressionParser.compile(condition).hoist(this::isInvariant, this::extract);
+            return hoisted != null ? hoisted : condition;
+        }
+
+        /**
+         * Rewrite every condition in the loop body, including nested blocks
+         */
+        List<ScriptNode> rewriteBlock(List<ScriptNode> body) {
+            List<ScriptNode> result = new ArrayList<>(body.size());
+            for (ScriptNode node : body) {
+                result.add(rewriteNode(node));
+            }
+            return result;
+        }
+
+        private ScriptNode rewriteNode(ScriptNode node) {
+            if (node instanceof ScriptNode.If ifNode) {
+                List<ScriptNode.Branch> branches = new ArrayList<>(ifNode.branches.size());
+                for (ScriptNode.Branch branch : ifNode.branches) {
+                    branches.add(new ScriptNode.Branch(branch.line, branch.column,
+                        branch.condition != null ? rewrite(branch.condition) : null, rewriteBlock(branch.body)));
+                }
+                return at(new ScriptNode.If(ifNode.getLine(), branches), ifNode);
+            }
+            if (node instanceof ScriptNode.While whileNode) {
+                return at(new ScriptNode.While(whileNode.getLine(),
+                    whileNode.infinite ? whileNode.condition : rewrite(whileNode.condition),
+                    whileNode.infinite, rewriteBlock(whileNode.body), whileNode.invariants), whileNode);
+            }
+            if (node instanceof ScriptNode.For forNode) {
+                return at(new ScriptNode.For(forNode.getLine(), forNode.init, rewrite(forNode.condition),
+                    forNode.update, rewriteBlock(forNode.body), forNode.invariants), forNode);
+            }
+            if (node instanceof ScriptNode.Loop loopNode) {
+                return at(new ScriptNode.Loop(loopNode.getLine(), loopNode.count,
+                    rewriteBlock(loopNode.body), loopNode.invariants), loopNode);
+            }
+            return node;
+        }
+
+        private boolean isInvariant(String name) {
+            return scope.layout.indexOf(name) >= 0 && scope.assigned.contains(name)
+                && writes.getOrDefault(name, 0) == 1;
+        }
+
+        private String extract(String source) {
+            return extracted.computeIfAbsent(source, s -> {
+                String name = TEMP_PREFIX + (++temporaries);
+                int slot = scope.layout.declareTemporary(name);
+                invariants.add(new ScriptNode.Assignment(line, name, slot, s, ScriptNode.DeclarationKind.LET));
+                record(line, Optimization.Kind.LOOP_INVARIANT, "Hoisted `" + s + "` out of the loop");
+                return name;
+            });
+        }
+    }
+
+    // ==================== Helpers ====================
+
+    private void countWrites(List<ScriptNode> body) {
+        for (ScriptNode node : body) {
+            if (node instanceof ScriptNode.Assignment assignment) {
+                writes.merge(assignment.name, 1, Integer::sum);
+            } else if (node instanceof ScriptNode.Increment increment) {
+                writes.merge(increment.name, 1, Integer::sum);
+            } else if (node instanceof ScriptNode.If ifNode) {
+                for (ScriptNode.Branch branch : ifNode.branches) {
+                    countWrites(branch.body);
+                }
+            } else if (node instanceof ScriptNode.For forNode) {
+                if (forNode.init != null) countWrites(List.of(forNode.init));
+                if (forNode.update != null) countWrites(List.of(forNode.update));
+                countWrites(forNode.body);
+            } else if (node instanceof ScriptNode.While whileNode) {
+                countWrites(whileNode.body);
+            } else if (node instanceof ScriptNode.Loop loopNode) {
+                countWrites(loopNode.body);
+            } else if (node instanceof ScriptNode.FunctionDef def) {
+                for (String parameter : def.parameters) {
+                    writes.merge(parameter, 1, Integer::sum);
+                }
+                countWrites(def.body);
+            }
+        }
+    }
+
+    private void record(int line, Optimization.Kind kind, String message) {
+        optimizations.add(new Optimization(line, kind, message));
+    }
+
+    private static <T extends ScriptNode> T at(T node, ScriptNode original) {
+        node.column = original.column;
+        return node;
+    }
+}
@@ -0,0 +1,588 @@
+package kasperstudios.kashub.algorithm.ast;
+
+import kasperstudios.kashub.algorithm.ArgumentTemplate;
+import kasperstudios.kashub.algorithm.ast.ScriptLexer.SourceLine;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Recursive descent parser that turns KHScript source into a {@link ScriptProgram}.
+ * Accepts both syntaxes supported by the runtime:
+ * - Legacy: if (cond) { ... }, while (cond) ... end
+ * - Rust-style: if cond { ... }, let x = 5, const MAX = 100
+ *
+ * The parser is tolerant: unclosed blocks end at end of file and stray
+ * closing braces are ignored, matching how scripts were executed before.
+ * Such problems are still reported as {@link Diagnostic}s on the program,
+ * with the line and column of the offending statement.
+ */
+public class ScriptParser {
+
+    private enum Terminator { CLOSE, ELSE, EOF }
+
+    private final List<SourceLine> lines;
+    private final List<Diagnostic> diagnostics;
+    private final Set<String> functionNames = new HashSet<>();
+    private final Map<String, ScriptNode.FunctionDef> functions = new LinkedHashMap<>();
+    private final FrameLayout globalLayout = new FrameLayout(null);
+    private FrameLayout scope = globalLayout;
+    private final Map<FrameLayout, Map<String, ScriptNode.DeclarationKind>> declarations = new IdentityHashMap<>();
+    private SourceLine current;
+    private int loopDepth = 0;
+    private int pos = 0;
+    private Terminator terminator = Terminator.EOF;
+
+    private ScriptParser(List<SourceLine> lines, List<Diagnostic> diagnostics) {
+        this.lines = lines;
+        this.diagnostics = diagnostics;
+    }
+
+    /**
+     * Parse KHScript source into an immutable program
+     */
+    public static ScriptProgram parse(String source) {
+        List<Diagnostic> diagnostics = new ArrayList<>();
+        ScriptParser parser = new ScriptParser(ScriptLexer.tokenize(source, diagnostics), diagnostics);
+        parser.collectFunctionNames();
+        List<ScriptNode> statements = parser.parseBlock(false);
+        // Before linking: hoisted temporaries get slots in the layouts
+        List<Optimization> optimizations = new ArrayList<>();
+        statements = ScriptOptimizer.optimize(statements, parser.functions, parser.globalLayout, optimizations);
+        for (ScriptNode.FunctionDef def : parser.functions.values()) {
+            def.layout.link();
+        }
+        return new ScriptProgram(statements, parser.functions, parser.globalLayout, countLines(source),
+            diagnostics, optimizations);
+    }
+
+    /**
+     * First pass: function names, so calls can be told apart from commands
+     * even when the function is declared below the call site
+     */
+    private void collectFunctionNames() {
+        for (SourceLine line : lines) {
+            String rest = afterKeyword(line.text, "function");
+            if (rest == null) rest = afterKeyword(line.text, "fn");
+            if (rest == null) continue;
+            int paren = rest.indexOf('(');
+            if (paren > 0) {
+                String name = rest.substring(0, paren).trim();
+                if (isIdentifier(name)) {
+                    functionNames.add(name);
+                }
+            }
+        }
+    }
+
+    private List<ScriptNode> parseBlock(boolean nested) {
+        List<ScriptNode> body = new ArrayList<>();
+        while (pos < lines.size()) {
+            SourceLine line = lines.get(pos);
+            String text = line.text;
+
+            if (isBlockClose(text)) {
+                pos++;
+                if (nested) {
+                    terminator = Terminator.CLOSE;
+                    return body;
+                }
+                // Stray closer at top level, skipped at runtime
+                diagnostics.add(Diagnostic.warning(line.number, line.column,
+                    text.equals("end") ? "Unexpected 'end', ignored" : "Unexpected closing brace, ignored"));
+                continue;
+            }
+
+            if (startsWithElse(text)) {
+                if (nested) {
+                    terminator = Terminator.ELSE; // left for the enclosing if
+                    return body;
+                }
+                pos++; // stray else at top level
+                diagnostics.add(Diagnostic.error(line.number, line.column, "'else' without 'if'"));
+                continue;
+            }
+
+            ScriptNode node = parseStatement(line);
+            if (node != null) {
+                body.add(node);
+            }
+        }
+        terminator = Terminator.EOF;
+        return body;
+    }
+
+    /**
+     * Parses a block body after a header line, consuming an optional
+     * opening brace placed alone on the next line
+     */
+    private List<ScriptNode> parseBody() {
+        SourceLine header = lines.get(pos - 1);
+        if (pos < lines.size() && lines.get(pos).text.equals("{")) {
+            pos++;
+        }
+        List<ScriptNode> body = parseBlock(true);
+        if (terminator == Terminator.EOF) {
+            diagnostics.add(Diagnostic.error(header.number, header.column, "Unclosed block - missing '}'"));
+        }
+        return body;
+    }
+
+    /**
+     * Parses a loop body, break and continue are valid inside it
+     */
+    private List<ScriptNode> parseLoopBody() {
+        loopDepth++;
+        try {
+            return parseBody();
+        } finally {
+            loopDepth--;
+        }
+    }
+
+    private ScriptNode parseStatement(SourceLine line) {
+        ScriptNode node = parseLine(line);
+        if (node != null) {
+            node.column = line.column;
+        }
+        return node;
+    }
+
+    private ScriptNode parseLine(SourceLine line) {
+        String text = line.text;
+        int number = line.number;
+        current = line;
+        pos++;
+
+        // Function definition
+        String rest = afterKeyword(text, "function");
+        if (rest == null) rest = afterKeyword(text, "fn");
+        if (rest != null) {
+            ScriptNode.FunctionDef def = parseFunctionDef(number, rest);
+            if (def != null) {
+                return def;
+            }
+            error("Invalid function declaration, expected fn name(params) {");
+        }
+
+        // Call of a function declared in this script
+        ScriptNode.FunctionCall call = parseFunctionCall(number, text);
+        if (call != null) {
+            return call;
+        }
+
+        // Increments: i++ / i--
+        ScriptNode.Increment increment = parseIncrement(number, text);
+        if (increment != null) {
+            return increment;
+        }
+
+        // Assignments: let x = 1, const X = 1, x = 1, x += 1, x *= 2 ...
+        ScriptNode assignment = parseAssignment(number, text);
+        if (assignment != null) {
+            return assignment;
+        }
+
+        // if / else if / else
+        rest = afterKeyword(text, "if");
+        if (rest != null) {
+            return parseIf(number, rest);
+        }
+
+        // for (init; condition; update)
+        rest = afterKeyword(text, "for");
+        if (rest != null) {
+            return parseFor(number, rest);
+        }
+
+        // while condition
+        rest = afterKeyword(text, "while");
+        if (rest != null) {
+            String condition = headerCondition(rest);
+            boolean infinite = condition.toLowerCase().equals("true");
+            return new ScriptNode.While(number, condition, infinite, parseLoopBody());
+        }
+
+        // loop [N]
+        rest = afterKeyword(text, "loop");
+        if (rest != null || text.equals("loop")) {
+            int count = parseLoopCount(rest == null ? "" : rest);
+            if (count != Integer.MIN_VALUE) {
+                return new ScriptNode.Loop(number, count, parseLoopBody());
+            }
+            // "loop 5 { jump }" and similar one-liners are handled by the loop command
+        }
+
+        // Control keywords
+        String first = firstWord(text).toLowerCase();
+        if (first.equals("break") || first.equals("continue")) {
+            if (loopDepth == 0) {
+                warning("'" + first + "' outside of a loop");
+            }
+            return first.equals("break") ? new ScriptNode.Break(number) : new ScriptNode.Continue(number);
+        }
+        if (first.equals("return")) {
+            String expr = text.length() > 6 ? text.substring(6).trim() : "";
+            return new ScriptNode.Return(number, expr.isEmpty() ? null : expr);
+        }
+
+        // Regular command, arguments are split into templates once
+        List<ArgumentTemplate> tokens = ArgumentTemplate.tokenize(text);
+        if (tokens.isEmpty()) {
+            return null;
+        }
+        ArgumentTemplate nameToken = tokens.get(0);
+        return new ScriptNode.CommandCall(number, nameToken.getSource().toLowerCase(), text, nameToken, tokens.subList(1, tokens.size()));
+    }
+
+    private ScriptNode.FunctionDef parseFunctionDef(int number, String rest) {
+        int open = rest.indexOf('(');
+        int close = rest.lastIndexOf(')');
+        if (open <= 0 || close < open) {
+            return null;
+        }
+        String name = rest.substring(0, open).trim();
+        String tail = rest.substring(close + 1).trim();
+        if (!isIdentifier(name) || !(tail.isEmpty() || tail.equals("{"))) {
+            return null;
+        }
+        if (functions.containsKey(name)) {
+            error("Function '" + name + "' already declared");
+        }
+
+        // Functions get their own scope; parameters take the first slots
+        FrameLayout layout = new FrameLayout(globalLayout);
+        List<String> parameters = new ArrayList<>();
+        String paramsStr = rest.substring(open + 1, close).trim();
+        if (!paramsStr.isEmpty()) {
+            for (String param : paramsStr.split(",")) {
+                parameters.add(param.trim());
+            }
+        }
+        int[] parameterSlots = new int[parameters.size()];
+        for (int i = 0; i < parameterSlots.length; i++) {
+            parameterSlots[i] = layout.declare(parameters.get(i));
+        }
+
+        FrameLayout enclosing = scope;
+        int enclosingLoops = loopDepth;
+        scope = layout;
+        loopDepth = 0;
+        List<ScriptNode> body = parseBody();
+        scope = enclosing;
+        loopDepth = enclosingLoops;
+
+        ScriptNode.FunctionDef def = new ScriptNode.FunctionDef(number, name, parameters, parameterSlots, body, layout);
+        functions.put(name, def);
+        return def;
+    }
+
+    private ScriptNode.FunctionCall parseFunctionCall(int number, String text) {
+        if (!text.endsWith(")")) {
+            return null;
+        }
+        int open = text.indexOf('(');
+        if (open <= 0) {
+            return null;
+        }
+        String name = text.substring(0, open).trim();
+        if (!isIdentifier(name) || !functionNames.contains(name)) {
+            return null;
+        }
+        return new ScriptNode.FunctionCall(number, name, splitArguments(text.substring(open + 1, text.length() - 1)));
+    }
+
+    private ScriptNode.Increment parseIncrement(int number, String text) {
+        if (!text.endsWith("++") && !text.endsWith("--")) {
+            return null;
+        }
+        String name = text.substring(0, text.length() - 2).trim();
+        if (!isIdentifier(name)) {
+            return null;
+        }
+        checkDeclaration(name, ScriptNode.DeclarationKind.LEGACY);
+        return new ScriptNode.Increment(number, name, scope.declare(name), text.endsWith("++") ? 1 : -1);
+    }
+
+    private ScriptNode parseAssignment(int number, String text) {
+        ScriptNode.DeclarationKind kind = ScriptNode.DeclarationKind.LEGACY;
+        String body = text;
+        String rest = afterKeyword(text, "let");
+        if (rest != null) {
+            kind = ScriptNode.DeclarationKind.LET;
+            body = rest;
+        } else if ((rest = afterKeyword(text, "const")) != null) {
+            kind = ScriptNode.DeclarationKind.CONST;
+            body = rest;
+        }
+
+        int i = 0;
+        while (i < body.length() && isIdentifierChar(body.charAt(i), i == 0)) {
+            i++;
+        }
+        if (i == 0) {
+            return null;
+        }
+        String name = body.substring(0, i);
+        int j = skipSpaces(body, i);
+        if (j >= body.length()) {
+            return null;
+        }
+
+        char c = body.charAt(j);
+        if (c == '=' && (j + 1 >= body.length() || body.charAt(j + 1) != '=')) {
+            String expression = body.substring(j + 1).trim();
+            if (expression.isEmpty()) {
+                return null;
+            }
+            checkDeclaration(name, kind);
+            return new ScriptNode.Assignment(number, name, scope.declare(name), expression, kind);
+        }
+        if ("+-*/%".indexOf(c) >= 0 && j + 1 < body.length() && body.charAt(j + 1) == '='
+                && kind == ScriptNode.DeclarationKind.LEGACY) {
+            String operand = body.substring(j + 2).trim();
+            if (operand.isEmpty()) {
+                return null;
+            }
+            checkDeclaration(name, kind);
+            return new ScriptNode.Assignment(number, name, scope.declare(name), "$" + name + " " + c + " (" + operand + ")", kind);
+        }
+        return null;
+    }
+
+    private ScriptNode.If parseIf(int number, String rest) {
+        List<ScriptNode.Branch> branches = new ArrayList<>();
+        branches.add(new ScriptNode.Branch(number, current.column, headerCondition(rest), parseBody()));
+
+        while (pos < lines.size()) {
+            SourceLine next = lines.get(pos);
+            String text = next.text;
+            String elseText;
+            if (terminator == Terminator.ELSE) {
+                // Branch ended on "} else ..." or a bare "else"
+                elseText = text.startsWith("}") ? text.substring(1).trim() : text;
+            } else if (terminator == Terminator.CLOSE && text.startsWith("else")) {
+                // Branch closed by "}", else continues on the next line
+                elseText = text;
+            } else {
+                break;
+            }
+            if (!startsWithElse(elseText)) {
+                break;
+            }
+            pos++;
+            current = next;
+
+            String afterElse = elseText.substring(4).trim();
+            String elseIf = afterKeyword(afterElse, "if");
+            if (elseIf != null) {
+                branches.add(new ScriptNode.Branch(next.number, next.column, headerCondition(elseIf), parseBody()));
+            } else {
+                branches.add(new ScriptNode.Branch(next.number, next.column, null, parseBody()));
+                break;
+            }
+        }
+        return new ScriptNode.If(number, branches);
+    }
+
+    private ScriptNode parseFor(int number, String rest) {
+        int open = rest.indexOf('(');
+        int close = rest.lastIndexOf(')');
+        String[] parts = open < 0 || close < open ? null : rest.substring(open + 1, close).split(";", -1);
+        if (parts == null || parts.length != 3) {
+            error("Invalid for loop header, expected for (init; condition; update)");
+            parseBody(); // skip the body
+            return null;
+        }
+
+        String init = parts[0].trim();
+        String update = parts[2].trim();
+        ScriptNode initNode = init.isEmpty() ? null : parseAssignment(number, init);
+        ScriptNode updateNode = null;
+        if (!update.isEmpty()) {
+            updateNode = parseIncrement(number, update);
+            if (updateNode == null) {
+                updateNode = parseAssignment(number, update);
+            }
+        }
+        return new ScriptNode.For(number, initNode, parts[1].trim(), updateNode, parseLoopBody());
+    }
+
+    /**
+     * Returns the iteration count of a loop header, -1 for infinite,
+     * or Integer.MIN_VALUE if the text is not a loop header
+     */
+    private static int parseLoopCount(String rest) {
+        String s = rest.trim();
+        if (s.endsWith("{")) {
+            s = s.substring(0, s.length() - 1).trim();
+        }
+        if (s.isEmpty()) {
+            return -1;
+        }
+        for (int i = 0; i < s.length(); i++) {
+            if (!Character.isDigit(s.charAt(i))) {
+                return Integer.MIN_VALUE;
+            }
+        }
+        try {
+            return Integer.parseInt(s);
+        } catch (NumberFormatException e) {
+            return Integer.MIN_VALUE;
+        }
+    }
+
+    /**
+     * Report redeclared constants and variables in the current scope
+     */
+    private void checkDeclaration(String name, ScriptNode.DeclarationKind kind) {
+        Map<String, ScriptNode.DeclarationKind> declared = declarations.computeIfAbsent(scope, s -> new HashMap<>());
+        ScriptNode.DeclarationKind previous = declared.get(name);
+        if (previous == ScriptNode.DeclarationKind.CONST) {
+            error(kind == ScriptNode.DeclarationKind.CONST
+                ? "Constant '" + name + "' already declared"
+                : "Cannot reassign const '" + name + "'");
+            return;
+        }
+        if (kind == ScriptNode.DeclarationKind.CONST && previous != null) {
+            error("Cannot redeclare variable '" + name + "' as const");
+        } else if (kind == ScriptNode.DeclarationKind.LET && previous == ScriptNode.DeclarationKind.LET) {
+            warning("Variable '" + name + "' already declared");
+        }
+        if (previous == null || kind != ScriptNode.DeclarationKind.LEGACY) {
+            declared.put(name, kind);
+        }
+    }
+
+    private void error(String message) {
+        diagnostics.add(Diagnostic.error(current.number, current.column, message));
+    }
+
+    private void warning(String message) {
+        diagnostics.add(Diagnostic.warning(current.number, current.column, message));
+    }
+
+    // ==================== Helpers ====================
+
+    /**
+     * Returns the text after a leading keyword, or null if the line does not start with it.
+     * The keyword must be followed by whitespace, '(' or '{'.
+     */
+    static String afterKeyword(String text, String keyword) {
+        if (!text.startsWith(keyword) || text.length() == keyword.length()) {
+            return null;
+        }
+        char next = text.charAt(keyword.length());
+        if (Character.isWhitespace(next) || next == '(' || next == '{') {
+            return text.substring(keyword.length()).trim();
+        }
+        return null;
+    }
+
+    /**
+     * Extracts a condition from "cond {", "(cond) {" or "(cond)"
+     */
+    static String headerCondition(String rest) {
+        String s = rest.trim();
+        if (s.endsWith("{")) {
+            s = s.substring(0, s.length() - 1).trim();
+        }
+        while (s.length() >= 2 && s.charAt(0) == '(' && matchingParen(s, 0) == s.length() - 1) {
+            s = s.substring(1, s.length() - 1).trim();
+        }
+        return s;
+    }
+
+    private static int matchingParen(String s, int open) {
+        int depth = 0;
+        boolean inString = false;
+        for (int i = open; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '"') inString = !inString;
+            if (inString) continue;
+            if (c == '(') depth++;
+            else if (c == ')' && --depth == 0) return i;
+        }
+        return -1;
+    }
+
+    private static boolean isBlockClose(String text) {
+        return text.equals("}") || text.equals("end") || (text.startsWith("}") && text.substring(1).trim().startsWith("//"));
+    }
+
+    private static boolean startsWithElse(String text) {
+        String s = text.startsWith("}") ? text.substring(1).trim() : text;
+        return s.equals("else") || afterKeyword(s, "else") != null;
+    }
+
+    private static String firstWord(String text) {
+        int i = 0;
+        while (i < text.length() && !Character.isWhitespace(text.charAt(i))) {
+            i++;
+        }
+        return text.substring(0, i);
+    }
+
+    /**
+     * Split call arguments by commas, respecting quotes and nested parentheses
+     */
+    public static List<String> splitArguments(String argsStr) {
+        List<String> args = new ArrayList<>();
+        if (argsStr == null || argsStr.trim().isEmpty()) {
+            return args;
+        }
+        StringBuilder current = new StringBuilder();
+        int depth = 0;
+        boolean inString = false;
+        for (int i = 0; i < argsStr.length(); i++) {
+            char c = argsStr.charAt(i);
+            if (c == '"') {
+                inString = !inString;
+            } else if (!inString) {
+                if (c == '(') depth++;
+                else if (c == ')') depth--;
+                else if (c == ',' && depth == 0) {
+                    args.add(current.toString().trim());
+                    current.setLength(0);
+                    continue;
+                }
+            }
+            current.append(c);
+        }
+        args.add(current.toString().trim());
+        return args;
+    }
+
+    static boolean isIdentifier(String s) {
+        if (s.isEmpty()) return false;
+        for (int i = 0; i < s.length(); i++) {
+            if (!isIdentifierChar(s.charAt(i), i == 0)) return false;
+        }
+        return true;
+    }
+
+    private static boolean isIdentifierChar(char c, boolean first) {
+        if (c == '_' || (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z')) return true;
+        return !first && c >= '0' && c <= '9';
+    }
+
+    private static int skipSpaces(String s, int i) {
+        while (i < s.length() && Character.isWhitespace(s.charAt(i))) i++;
+        return i;
+    }
+
+    private static int countLines(String source) {
+        if (source == null || source.isEmpty()) return 0;
+        int count = 1;
+        for (int i = 0; i < source.length(); i++) {
+            if (source.charAt(i) == '\n') count++;
+        }
+        return count;
+    }
+}
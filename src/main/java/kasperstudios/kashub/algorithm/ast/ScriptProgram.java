@@ -0,0 +1,92 @@
+package kasperstudios.kashub.algorithm.ast;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Parsed KHScript program: top-level statements plus all declared functions.
+ * Instances can be shared between tasks: the only state set after parsing is the
+ * command binding of the call sites, written by {@link ScriptAnalyzer#link} while
+ * it holds the program's lock, once per command registry version.
+ * Syntax problems found while parsing are kept as {@link Diagnostic}s,
+ * rewrites of the optimizer as {@link Optimization}s.
+ */
+public class ScriptProgram {
+    private final List<ScriptNode> statements;
+    private final Map<String, ScriptNode.FunctionDef> functions;
+    private final FrameLayout globalLayout;
+    private final int lineCount;
+    private final List<Diagnostic> diagnostics;
+    private final List<Optimization> optimizations;
+    // Set by ScriptAnalyzer.link under the program's lock, again when the registry changed
+    private List<Diagnostic> linkDiagnostics;
+    private int linkVersion = -1;
+
+    public ScriptProgram(List<ScriptNode> statements, Map<String, ScriptNode.FunctionDef> functions,
+                         FrameLayout globalLayout, int lineCount, List<Diagnostic> diagnostics,
+                         List<Optimization> optimizations) {
+        this.statements = Collections.unmodifiableList(statements);
+        this.functions = Collections.unmodifiableMap(functions);
+        this.globalLayout = globalLayout;
+        this.lineCount = lineCount;
+        this.diagnostics = Collections.unmodifiableList(diagnostics);
+        this.optimizations = Collections.unmodifiableList(optimizations);
+    }
+
+    public List<ScriptNode> getStatements() {
+        return statements;
+    }
+
+    public Map<String, ScriptNode.FunctionDef> getFunctions() {
+        return functions;
+    }
+
+    public ScriptNode.FunctionDef getFunction(String name) {
+        return functions.get(name);
+    }
+
+    /**
+     * Variable layout of the top-level scope
+     */
+    public FrameLayout getGlobalLayout() {
+        return globalLayout;
+    }
+
+    public int getLineCount() {
+        return lineCount;
+    }
+
+    /**
+     * Syntax errors and warnings, in source order of discovery
+     */
+    public List<Diagnostic> getDiagnostics() {
+        return diagnostics;
+    }
+
+    /**
+     * Rewrites applied by the optimizer, sorted by line
+     */
+    public List<Optimization> getOptimizations() {
+        return optimizations;
+    }
+
+    /**
+     * Link results for the given registry version, null if not linked against it
+     */
+    List<Diagnostic> getLinkDiagnostics(int registryVersion) {
+        return linkVersion == registryVersion ? linkDiagnostics : null;
+    }
+
+    void setLinkDiagnostics(List<Diagnostic> linkDiagnostics, int registryVersion) {
+        this.linkDiagnostics = Collections.unmodifiableList(linkDiagnostics);
+        this.linkVersion = registryVersion;
+    }
+
+    public boolean hasErrors() {
+        for (Diagnostic diagnostic : diagnostics) {
+            if (diagnostic.isError()) return true;
+        }
+        return false;
+    }
+}
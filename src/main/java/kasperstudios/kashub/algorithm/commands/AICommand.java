@@ -1,6 +1,7 @@
 package kasperstudios.kashub.algorithm.commands;
 
 import kasperstudios.kashub.algorithm.Command;
+import kasperstudios.kashub.runtime.CommandExecutor;
 import kasperstudios.kashub.config.KashubConfig;
 import kasperstudios.kashub.services.KasHubAiClient;
 import kasperstudios.kashub.util.ScriptLogger;
@@ -150,7 +151,7 @@ public class AICommand implements Command {
             } catch (Exception e) {
                 LOGGER.error("Critical error in AI processing", e);
             }
-        });
+        }, CommandExecutor.getInstance().compute());
     }
 
     /**
@@ -171,7 +172,7 @@ public class AICommand implements Command {
                 LOGGER.error("Error testing AI connection", e);
                 sendMessage("§c[AI] Connection test error: " + e.getMessage());
             }
-        });
+        }, CommandExecutor.getInstance().compute());
     }
     
     /**
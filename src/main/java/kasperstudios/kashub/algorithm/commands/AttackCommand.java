@@ -1,6 +1,7 @@
 package kasperstudios.kashub.algorithm.commands;
 
 import kasperstudios.kashub.algorithm.Command;
+import kasperstudios.kashub.runtime.TimerWheel;
 import net.minecraft.client.MinecraftClient;
 import net.minecraft.client.network.ClientPlayerEntity;
 import net.minecraft.entity.Entity;
@@ -14,8 +15,6 @@ import net.minecraft.util.math.Box;
 import java.util.Comparator;
 import java.util.List;
 import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.stream.Collectors;
@@ -25,7 +24,7 @@ import java.util.stream.Collectors;
  * Syntax: attack [range] [type] [count]
  */
 public class AttackCommand implements Command {
-    private static final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+    private static final TimerWheel scheduler = TimerWheel.getInstance();
     private static final AtomicBoolean attacking = new AtomicBoolean(false);
     private static CompletableFuture<Void> currentTask = null;
 
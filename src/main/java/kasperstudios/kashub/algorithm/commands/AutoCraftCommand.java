@@ -1,6 +1,7 @@
 package kasperstudios.kashub.algorithm.commands;
 
 import kasperstudios.kashub.algorithm.Command;
+import kasperstudios.kashub.runtime.TimerWheel;
 import kasperstudios.kashub.algorithm.ScriptInterpreter;
 import net.minecraft.client.MinecraftClient;
 import net.minecraft.client.network.ClientPlayerEntity;
@@ -16,8 +17,6 @@ import net.minecraft.util.Identifier;
 
 import java.util.*;
 import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 
@@ -33,7 +32,7 @@ import java.util.concurrent.atomic.AtomicBoolean;
  */
 public class AutoCraftCommand implements Command {
     
-    private static final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+    private static final TimerWheel scheduler = TimerWheel.getInstance();
     private static final AtomicBoolean isCrafting = new AtomicBoolean(false);
     private static CompletableFuture<Void> currentTask = null;
     
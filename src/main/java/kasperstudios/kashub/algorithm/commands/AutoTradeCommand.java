@@ -1,6 +1,7 @@
 package kasperstudios.kashub.algorithm.commands;
 
 import kasperstudios.kashub.algorithm.Command;
+import kasperstudios.kashub.runtime.TimerWheel;
 import kasperstudios.kashub.algorithm.ScriptInterpreter;
 import net.minecraft.client.MinecraftClient;
 import net.minecraft.client.network.ClientPlayerEntity;
@@ -19,8 +20,6 @@ import net.minecraft.registry.Registries;
 
 import java.util.*;
 import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 
@@ -38,7 +37,7 @@ import java.util.concurrent.atomic.AtomicBoolean;
  */
 public class AutoTradeCommand implements Command {
     
-    private static final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+    private static final TimerWheel scheduler = TimerWheel.getInstance();
     private static final AtomicBoolean isTrading = new AtomicBoolean(false);
     private static CompletableFuture<Void> currentTask = null;
     
@@ -1,9 +1,7 @@
 package kasperstudios.kashub.algorithm.commands;
 
 import kasperstudios.kashub.algorithm.Command;
-import net.minecraft.client.MinecraftClient;
-import net.minecraft.client.network.ClientPlayerEntity;
-import net.minecraft.text.Text;
+import kasperstudios.kashub.client.ClientFacade;
 
 /**
  * Команда для отправки сообщения в чат
@@ -30,6 +28,16 @@ public class ChatCommand implements Command {
     public String getCategory() {
         return "Output";
     }
+
+    @Override
+    public boolean isInline() {
+        return true;
+    }
+
+    @Override
+    public int getMinArgs() {
+        return 1;
+    }
     
     @Override
     public String getDetailedHelp() {
@@ -58,12 +66,7 @@ public class ChatCommand implements Command {
 
         String message = String.join(" ", args);
         
-        MinecraftClient client = MinecraftClient.getInstance();
-        client.execute(() -> {
-            ClientPlayerEntity player = client.player;
-            if (player != null) {
-                player.networkHandler.sendChatMessage(message);
-            }
-        });
+        ClientFacade client = ClientFacade.getInstance();
+        client.execute(() -> client.sendChatMessage(message));
     }
 }
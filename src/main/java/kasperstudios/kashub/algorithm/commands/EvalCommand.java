@@ -85,6 +85,12 @@ public class EvalCommand implements Command {
     public String getCategory() {
         return "Other";
     }
+
+    @Override
+    public Lane getLane() {
+        // Compiling and waiting for the eval thread must not stall the client
+        return Lane.COMPUTE;
+    }
     
     @Override
     public String getDetailedHelp() {
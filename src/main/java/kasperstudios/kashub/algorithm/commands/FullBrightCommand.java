@@ -34,6 +34,11 @@ public class FullBrightCommand implements Command {
         return "Visual";
     }
 
+    @Override
+    public boolean isInline() {
+        return true;
+    }
+
     @Override
     public String getDetailedHelp() {
         return "Toggles fullbright mode (maximum gamma).\n\n" +
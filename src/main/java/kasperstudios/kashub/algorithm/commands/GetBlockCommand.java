@@ -32,6 +32,11 @@ public class GetBlockCommand implements Command {
     public String getCategory() {
         return "Vision";
     }
+
+    @Override
+    public boolean isInline() {
+        return true;
+    }
     
     @Override
     public String getDetailedHelp() {
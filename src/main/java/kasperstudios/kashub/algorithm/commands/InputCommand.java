@@ -1,11 +1,10 @@
 package kasperstudios.kashub.algorithm.commands;
 
 import kasperstudios.kashub.algorithm.Command;
+import kasperstudios.kashub.runtime.TimerWheel;
 import kasperstudios.kashub.api.InputAPI;
 
 import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -24,7 +23,7 @@ import java.util.concurrent.TimeUnit;
  *   input.stop - остановить всё
  */
 public class InputCommand implements Command {
-    private static final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+    private static final TimerWheel scheduler = TimerWheel.getInstance();
 
     @Override
     public String getName() {
@@ -1,16 +1,16 @@
 package kasperstudios.kashub.algorithm.commands;
 
 import kasperstudios.kashub.algorithm.Command;
+import kasperstudios.kashub.algorithm.types.KHType;
+import kasperstudios.kashub.runtime.TimerWheel;
 import net.minecraft.client.MinecraftClient;
 import net.minecraft.client.network.ClientPlayerEntity;
 
 import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 
 public class JumpCommand implements Command {
-    private static final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+    private static final TimerWheel scheduler = TimerWheel.getInstance();
 
     @Override
     public String getName() {
@@ -31,6 +31,16 @@ public class JumpCommand implements Command {
     public String getCategory() {
         return "Movement";
     }
+
+    @Override
+    public int getMaxArgs() {
+        return 1;
+    }
+
+    @Override
+    public KHType[] getArgumentTypes() {
+        return new KHType[] { KHType.NUMBER };
+    }
     
     @Override
     public String getDetailedHelp() {
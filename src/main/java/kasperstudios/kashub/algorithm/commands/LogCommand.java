@@ -31,6 +31,16 @@ public class LogCommand implements Command {
         return "Output";
     }
 
+    @Override
+    public boolean isInline() {
+        return true;
+    }
+
+    @Override
+    public int getMinArgs() {
+        return 1;
+    }
+
     @Override
     public String getDetailedHelp() {
         return "Writes message to script log file.\n\n" +
@@ -36,6 +36,21 @@ public class LookAtCommand implements Command {
     public String getCategory() {
         return "Movement";
     }
+
+    @Override
+    public boolean isInline() {
+        return true;
+    }
+
+    @Override
+    public int getMinArgs() {
+        return 1;
+    }
+
+    @Override
+    public int getMaxArgs() {
+        return 3;
+    }
     
     @Override
     public String getDetailedHelp() {
@@ -1,6 +1,7 @@
 package kasperstudios.kashub.algorithm.commands;
 
 import kasperstudios.kashub.algorithm.Command;
+import kasperstudios.kashub.runtime.CommandExecutor;
 import kasperstudios.kashub.algorithm.ScriptInterpreter;
 import net.minecraft.client.MinecraftClient;
 import net.minecraft.client.network.ClientPlayerEntity;
@@ -277,7 +278,7 @@ public class PathfindCommand implements Command {
         // Асинхронный поиск пути
         long startTime = System.currentTimeMillis();
         
-        CompletableFuture.supplyAsync(() -> findPath(world, start, target, maxIterations, options))
+        CompletableFuture.supplyAsync(() -> findPath(world, start, target, maxIterations, options), CommandExecutor.getInstance().compute())
             .thenAccept(path -> {
                 MinecraftClient.getInstance().execute(() -> {
                     long elapsed = System.currentTimeMillis() - startTime;
@@ -3,8 +3,8 @@ package kasperstudios.kashub.algorithm.commands;
 import kasperstudios.kashub.algorithm.Command;
 import kasperstudios.kashub.api.server.KashubAPIServer;
 import kasperstudios.kashub.api.server.events.ScriptOutputEvent;
+import kasperstudios.kashub.client.ClientFacade;
 import kasperstudios.kashub.util.ScriptLogger;
-import net.minecraft.client.MinecraftClient;
 import net.minecraft.text.Text;
 
 /**
@@ -31,6 +31,11 @@ public class PrintCommand implements Command {
     public String getCategory() {
         return "Output";
     }
+
+    @Override
+    public boolean isInline() {
+        return true;
+    }
     
     @Override
     public String getDetailedHelp() {
@@ -49,13 +54,9 @@ public class PrintCommand implements Command {
         String message = args.length > 0 ? String.join(" ", args) : "";
         
         // Safe execution on Minecraft main thread - send to player chat only
-        MinecraftClient client = MinecraftClient.getInstance();
-        client.execute(() -> {
-            if (client.player != null) {
-                // Send as local message with purple prefix (not to server chat)
-                client.player.sendMessage(Text.literal("§5[KH] §f" + message), false);
-            }
-        });
+        ClientFacade client = ClientFacade.getInstance();
+        // Send as local message with purple prefix (not to server chat)
+        client.execute(() -> client.showMessage(Text.literal("§5[KH] §f" + message)));
         
         // Broadcast to VSCode via WebSocket
         KashubAPIServer.broadcast(new ScriptOutputEvent(
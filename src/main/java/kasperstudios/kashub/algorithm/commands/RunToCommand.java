@@ -1,18 +1,17 @@
 package kasperstudios.kashub.algorithm.commands;
 
 import kasperstudios.kashub.algorithm.Command;
+import kasperstudios.kashub.runtime.TimerWheel;
 import net.minecraft.client.MinecraftClient;
 import net.minecraft.client.network.ClientPlayerEntity;
 import net.minecraft.util.math.Vec3d;
 
 import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 public class RunToCommand implements Command {
-  private static final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+  private static final TimerWheel scheduler = TimerWheel.getInstance();
   private static final AtomicBoolean running = new AtomicBoolean(false);
   private static Vec3d target;
   private static CompletableFuture<Void> currentTask = null;
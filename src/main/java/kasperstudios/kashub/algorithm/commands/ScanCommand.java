@@ -2,9 +2,14 @@ package kasperstudios.kashub.algorithm.commands;
 
 import kasperstudios.kashub.algorithm.Command;
 import kasperstudios.kashub.algorithm.ScriptInterpreter;
+import kasperstudios.kashub.algorithm.scan.BlockFilter;
+import kasperstudios.kashub.algorithm.scan.ScanJob;
+import kasperstudios.kashub.algorithm.scan.ScanRegion;
+import kasperstudios.kashub.algorithm.scan.ScanResults;
+import kasperstudios.kashub.client.ClientFacade;
 import kasperstudios.kashub.config.KashubConfig;
+import kasperstudios.kashub.runtime.CommandExecutor;
 import net.minecraft.block.BlockState;
-import net.minecraft.client.MinecraftClient;
 import net.minecraft.client.network.ClientPlayerEntity;
 import net.minecraft.registry.Registries;
 import net.minecraft.util.hit.BlockHitResult;
@@ -15,14 +20,22 @@ import net.minecraft.world.RaycastContext;
 import net.minecraft.world.World;
 
 import java.util.*;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.LongPredicate;
 
 /**
  * Command for scanning blocks in view/area
  * Syntax:
  *   scan blocks <filter> <radius> - Scan for specific blocks in radius
  *   scan view <filter> <distance> - Scan blocks in player's view direction
- *   scan area <x1> <y1> <z1> <x2> <y2> <z2> <filter> - Scan area for blocks
  *   scan nearest <filter> <radius> - Find nearest matching block
+ *   scan ores <radius> - Scan for valuable ores
+ *   scan count <filter> <radius> - Count matching blocks
+ *   scan stop - Cancel the running scan
+ * Options: limit=<n> keeps the nearest n matches, wait=false lets the script go on while the scan runs
+ * 
+ * Block scans run in the background (see ScanJob) and update the variables after every batch.
  * 
  * Filter examples: diamond_ore, *_ore, chest, spawner
  */
@@ -42,6 +55,14 @@ public class ScanCommand implements Command {
         "nether_quartz_ore"
     );
     
+    private static final BlockFilter ORE_FILTER = new BlockFilter(VALUABLE_ORES::contains, true);
+    
+    // Сколько результатов попадает в $scan_N_*
+    private static final int LISTED_RESULTS = 10;
+    
+    // Сканирование, которое сейчас пишет переменные scan_*; новое отменяет старое
+    private volatile ScanJob current;
+    
     @Override
     public String getName() {
         return "scan";
@@ -54,7 +75,7 @@ public class ScanCommand implements Command {
     
     @Override
     public String getParameters() {
-        return "<blocks|view|nearest|ores> <filter> <radius/distance>";
+        return "<blocks|view|nearest|ores|count|stop> <filter> <radius/distance> [limit=<n>] [wait=false]";
     }
 
     @Override
@@ -68,119 +89,298 @@ public class ScanCommand implements Command {
                "Usage:\n" +
                "  scan blocks <filter> <radius>\n" +
                "  scan ores <radius>\n" +
-               "  scan nearest <filter> <radius>\n\n" +
+               "  scan nearest <filter> <radius>\n" +
+               "  scan count <filter> <radius>\n" +
+               "  scan stop\n\n" +
+               "Options:\n" +
+               "  limit=<n>  - Keep the nearest n blocks, stop early\n" +
+               "  wait=false - Don't wait, read the variables as they fill\n\n" +
                "Filters:\n" +
                "  diamond_ore, iron_ore, gold_ore\n" +
                "  chest, barrel, spawner\n" +
                "  *_ore - Any ore (wildcard)\n\n" +
+               "Only loaded chunks are scanned, nearest first.\n\n" +
                "Variables set:\n" +
                "  $scan_found        - true/false\n" +
                "  $scan_count        - Number found\n" +
                "  $scan_nearest_x/y/z - Nearest position\n" +
                "  $scan_nearest_dist  - Distance\n" +
-               "  $scan_diamond_count - Diamond ore count";
+               "  $scan_diamond_count - Diamond ore count\n" +
+               "  $scan_done          - false while the scan runs\n" +
+               "  $scan_progress      - Percent of chunks scanned\n" +
+               "  $scan_scanned_chunks, $scan_total_chunks";
     }
     
+    /**
+     * Block scans start a ScanJob and complete with it; stopping the script cancels the
+     * returned future and with it the scan. With wait=false the future completes at once.
+     * There is one set of scan_* variables, so a new scan from any script cancels the
+     * running one, whose waiter then fails instead of reading the other scan's results
+     */
+    @Override
+    public CompletableFuture<Void> executeAsync(String[] args) {
+        if (args.length == 0 || args[0].equalsIgnoreCase("view") || args[0].equalsIgnoreCase("stop")) {
+            return Command.super.executeAsync(args);
+        }
+        boolean wait = !"false".equalsIgnoreCase(parseOptions(args).get("wait"));
+        CompletableFuture<Void> done = new CompletableFuture<>();
+        CommandExecutor.getInstance().submit(getLane(), () -> {
+            try {
+                ScanJob job = startScan(args);
+                if (job == null || !wait) {
+                    done.complete(null);
+                    return;
+                }
+                done.whenComplete((ignored, error) -> job.cancel());
+                job.getFuture().whenComplete((results, error) -> {
+                    if (error instanceof CancellationException) {
+                        // Not our own stop (that completes done first): another scan took over
+                        // the scan_* variables, so they do not hold this scan's results
+                        done.completeExceptionally(new IllegalStateException(
+                            "Scan cancelled by another scan command before it finished"));
+                    } else if (error != null) {
+                        done.completeExceptionally(error);
+                    } else {
+                        done.complete(null);
+                    }
+                });
+            } catch (Exception e) {
+                done.completeExceptionally(e);
+            }
+        });
+        return done;
+    }
+    
+    /**
+     * Called directly, a block scan does not block: it is started and fills the variables as it goes
+     */
     @Override
     public void execute(String[] args) throws Exception {
-        MinecraftClient client = MinecraftClient.getInstance();
-        ClientPlayerEntity player = client.player;
-        if (player == null) return;
-        
-        ScriptInterpreter interpreter = ScriptInterpreter.getInstance();
-        
         if (args.length == 0) {
             printHelp();
             return;
         }
         
-        String subcommand = args[0].toLowerCase();
-        
+        switch (args[0].toLowerCase()) {
+            case "view":
+                ClientPlayerEntity player = ClientFacade.getInstance().getPlayer();
+                if (player != null) {
+                    scanView(player, args, ScriptInterpreter.getInstance());
+                }
+                break;
+                
+            case "stop":
+                if (stopScan()) {
+                    ScriptInterpreter.getInstance().setVariable("scan_done", "true");
+                }
+                break;
+                
+            default:
+                startScan(args);
+        }
+    }
+    
+    /**
+     * Start a block scan on the client thread
+     * @return null if there is nothing to scan
+     */
+    private ScanJob startScan(String[] args) {
+        ClientPlayerEntity player = ClientFacade.getInstance().getPlayer();
+        if (player == null) return null;
+        
+        Map<String, String> options = parseOptions(args);
+        List<String> positional = new ArrayList<>();
+        for (String arg : args) {
+            if (!arg.contains("=")) {
+                positional.add(arg);
+            }
+        }
+        String subcommand = positional.get(0).toLowerCase();
+        int limit = options.containsKey("limit") ? Integer.parseInt(options.get("limit")) : 0;
+        
+        String filter;
+        int radius;
+        BlockFilter blockFilter;
+        LongPredicate keep = null;
+        ScanJob.Listener listener;
         switch (subcommand) {
             case "blocks":
             case "block":
-                scanBlocks(player, args, interpreter);
-                break;
-                
-            case "view":
-                scanView(player, args, interpreter);
+            case "count":
+                filter = positional.size() > 1 ? positional.get(1).toLowerCase() : "*";
+                radius = positional.size() > 2 ? Integer.parseInt(positional.get(2)) : 16;
+                blockFilter = createFilter(filter);
+                listener = subcommand.equals("count") ? this::publishCount : this::publishBlocks;
                 break;
                 
             case "nearest":
-                scanNearest(player, args, interpreter);
+                filter = positional.size() > 1 ? positional.get(1).toLowerCase() : "*";
+                radius = positional.size() > 2 ? Integer.parseInt(positional.get(2)) : 16;
+                blockFilter = createFilter(filter);
+                limit = 1;
+                listener = this::publishNearest;
                 break;
                 
             case "ores":
-                scanOres(player, args, interpreter);
-                break;
-                
-            case "count":
-                countBlocks(player, args, interpreter);
+                radius = positional.size() > 1 ? Integer.parseInt(positional.get(1)) : 8;
+                blockFilter = ORE_FILTER;
+                // If cheats disabled, only keep ores that are visible (not behind other blocks)
+                if (!KashubConfig.getInstance().allowCheats) {
+                    World world = player.getWorld();
+                    Vec3d playerEyes = player.getEyePos();
+                    keep = pos -> isBlockVisible(world, playerEyes, BlockPos.fromLong(pos));
+                }
+                listener = this::publishOres;
                 break;
                 
             default:
                 // Assume it's a filter for quick scan
-                String[] newArgs = new String[]{"blocks", subcommand, args.length > 1 ? args[1] : "16"};
-                scanBlocks(player, newArgs, interpreter);
+                filter = subcommand;
+                radius = positional.size() > 1 ? Integer.parseInt(positional.get(1)) : 16;
+                blockFilter = createFilter(filter);
+                listener = this::publishBlocks;
         }
+        
+        stopScan();
+        BlockPos playerPos = player.getBlockPos();
+        // Only loaded chunks can match, so a huge radius costs no more than the view distance
+        ScanRegion region = ScanRegion.cube(playerPos.getX(), playerPos.getY(), playerPos.getZ(), radius)
+            .clipToChunks(playerPos.getX() >> 4, playerPos.getZ() >> 4, ClientFacade.getInstance().getLoadedChunkRadius());
+        ScanJob job = ScanJob.start(region, blockFilter, playerPos.getX(), playerPos.getY(), playerPos.getZ(), limit, keep, listener);
+        current = job;
+        ScriptInterpreter.getInstance().setVariable("scan_done", "false");
+        return job;
     }
     
-    private void scanBlocks(ClientPlayerEntity player, String[] args, ScriptInterpreter interpreter) {
-        String filter = args.length > 1 ? args[1].toLowerCase() : "*";
-        int radius = args.length > 2 ? Integer.parseInt(args[2]) : 16;
-        radius = Math.min(radius, 32); // Limit for performance
+    /**
+     * @return true if a running scan was cancelled
+     */
+    private boolean stopScan() {
+        ScanJob job = current;
+        if (job == null || job.isDone()) {
+            return false;
+        }
+        job.cancel();
+        return true;
+    }
+    
+    private Map<String, String> parseOptions(String[] args) {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            if (eq > 0) {
+                options.put(arg.substring(0, eq).toLowerCase(), arg.substring(eq + 1));
+            }
+        }
+        return options;
+    }
+    
+    /**
+     * Variables every scan sets; false if the job was replaced and must not write anymore
+     */
+    private boolean publishProgress(ScanJob job, ScriptInterpreter interpreter) {
+        if (job != current) {
+            return false;
+        }
+        interpreter.setVariable("scan_progress", String.valueOf(job.getProgress()));
+        interpreter.setVariable("scan_scanned_chunks", String.valueOf(job.getScannedChunks()));
+        interpreter.setVariable("scan_total_chunks", String.valueOf(job.getTotalChunks()));
+        interpreter.setVariable("scan_done", job.isDone() ? "true" : "false");
+        return true;
+    }
+    
+    private void publishBlocks(ScanJob job) {
+        ScriptInterpreter interpreter = ScriptInterpreter.getInstance();
+        if (!publishProgress(job, interpreter)) return;
+        ScanResults found = job.getResults();
         
-        World world = player.getWorld();
-        BlockPos playerPos = player.getBlockPos();
+        interpreter.setVariable("scan_count", String.valueOf(found.size()));
+        interpreter.setVariable("scan_found", found.isEmpty() ? "false" : "true");
         
-        List<BlockPos> found = new ArrayList<>();
+        // Store the nearest results
+        for (int i = 0; i < Math.min(found.size(), LISTED_RESULTS); i++) {
+            interpreter.setVariable("scan_" + i + "_x", String.valueOf(found.getX(i)));
+            interpreter.setVariable("scan_" + i + "_y", String.valueOf(found.getY(i)));
+            interpreter.setVariable("scan_" + i + "_z", String.valueOf(found.getZ(i)));
+            interpreter.setVariable("scan_" + i + "_block", found.getBlockId(i));
+        }
         
-        for (int x = -radius; x <= radius; x++) {
-            for (int y = -radius; y <= radius; y++) {
-                for (int z = -radius; z <= radius; z++) {
-                    BlockPos pos = playerPos.add(x, y, z);
-                    BlockState state = world.getBlockState(pos);
-                    String blockId = Registries.BLOCK.getId(state.getBlock()).getPath();
-                    
-                    if (matchesFilter(blockId, filter)) {
-                        found.add(pos);
-                    }
-                }
-            }
+        if (!found.isEmpty()) {
+            setNearest(found, interpreter);
+        }
+    }
+    
+    private void publishNearest(ScanJob job) {
+        ScriptInterpreter interpreter = ScriptInterpreter.getInstance();
+        if (!publishProgress(job, interpreter)) return;
+        ScanResults found = job.getResults();
+        
+        if (!found.isEmpty()) {
+            interpreter.setVariable("scan_found", "true");
+            setNearest(found, interpreter);
+            interpreter.setVariable("scan_nearest_block", found.getBlockId(0));
+        } else {
+            interpreter.setVariable("scan_found", "false");
+        }
+    }
+    
+    private void publishCount(ScanJob job) {
+        ScriptInterpreter interpreter = ScriptInterpreter.getInstance();
+        if (!publishProgress(job, interpreter)) return;
+        interpreter.setVariable("scan_count", String.valueOf(job.getResults().size()));
+    }
+    
+    private void publishOres(ScanJob job) {
+        ScriptInterpreter interpreter = ScriptInterpreter.getInstance();
+        if (!publishProgress(job, interpreter)) return;
+        ScanResults found = job.getResults();
+        
+        Map<String, Integer> oresByType = new HashMap<>();
+        for (int i = 0; i < found.size(); i++) {
+            oresByType.merge(found.getBlockId(i), 1, Integer::sum);
         }
         
         // Set results
-        interpreter.setVariable("scan_count", String.valueOf(found.size()));
+        interpreter.setVariable("scan_ore_count", String.valueOf(found.size()));
         interpreter.setVariable("scan_found", found.isEmpty() ? "false" : "true");
         
-        // Store first 10 results
-        for (int i = 0; i < Math.min(found.size(), 10); i++) {
-            BlockPos pos = found.get(i);
-            BlockState state = world.getBlockState(pos);
-            String blockId = Registries.BLOCK.getId(state.getBlock()).getPath();
-            
-            interpreter.setVariable("scan_" + i + "_x", String.valueOf(pos.getX()));
-            interpreter.setVariable("scan_" + i + "_y", String.valueOf(pos.getY()));
-            interpreter.setVariable("scan_" + i + "_z", String.valueOf(pos.getZ()));
-            interpreter.setVariable("scan_" + i + "_block", blockId);
-        }
+        // Count by type
+        interpreter.setVariable("scan_diamond_count", String.valueOf(
+            oresByType.getOrDefault("diamond_ore", 0) +
+            oresByType.getOrDefault("deepslate_diamond_ore", 0)));
+        interpreter.setVariable("scan_emerald_count", String.valueOf(
+            oresByType.getOrDefault("emerald_ore", 0) +
+            oresByType.getOrDefault("deepslate_emerald_ore", 0)));
+        interpreter.setVariable("scan_gold_count", String.valueOf(
+            oresByType.getOrDefault("gold_ore", 0) +
+            oresByType.getOrDefault("deepslate_gold_ore", 0) +
+            oresByType.getOrDefault("nether_gold_ore", 0)));
+        interpreter.setVariable("scan_iron_count", String.valueOf(
+            oresByType.getOrDefault("iron_ore", 0) +
+            oresByType.getOrDefault("deepslate_iron_ore", 0)));
+        interpreter.setVariable("scan_ancient_debris_count", String.valueOf(
+            oresByType.getOrDefault("ancient_debris", 0)));
         
-        // Find nearest
+        // Results are sorted, the first one is the nearest ore
         if (!found.isEmpty()) {
-            BlockPos nearest = found.stream()
-                .min(Comparator.comparingDouble(pos -> pos.getSquaredDistance(playerPos)))
-                .orElse(null);
-            
-            if (nearest != null) {
-                interpreter.setVariable("scan_nearest_x", String.valueOf(nearest.getX()));
-                interpreter.setVariable("scan_nearest_y", String.valueOf(nearest.getY()));
-                interpreter.setVariable("scan_nearest_z", String.valueOf(nearest.getZ()));
-                interpreter.setVariable("scan_nearest_dist", String.valueOf(
-                    Math.sqrt(nearest.getSquaredDistance(playerPos))));
-            }
+            interpreter.setVariable("scan_valuable_found", "true");
+            interpreter.setVariable("scan_valuable_x", String.valueOf(found.getX(0)));
+            interpreter.setVariable("scan_valuable_y", String.valueOf(found.getY(0)));
+            interpreter.setVariable("scan_valuable_z", String.valueOf(found.getZ(0)));
+            interpreter.setVariable("scan_valuable_type", found.getBlockId(0));
+            interpreter.setVariable("scan_valuable_dist", String.valueOf(found.getDistance(0)));
+        } else {
+            interpreter.setVariable("scan_valuable_found", "false");
         }
     }
     
+    private void setNearest(ScanResults found, ScriptInterpreter interpreter) {
+        interpreter.setVariable("scan_nearest_x", String.valueOf(found.getX(0)));
+        interpreter.setVariable("scan_nearest_y", String.valueOf(found.getY(0)));
+        interpreter.setVariable("scan_nearest_z", String.valueOf(found.getZ(0)));
+        interpreter.setVariable("scan_nearest_dist", String.valueOf(found.getDistance(0)));
+    }
+    
     private void scanView(ClientPlayerEntity player, String[] args, ScriptInterpreter interpreter) {
         String filter = args.length > 1 ? args[1].toLowerCase() : "*";
         int distance = args.length > 2 ? Integer.parseInt(args[2]) : 64;
@@ -232,167 +432,8 @@ public class ScanCommand implements Command {
         }
     }
     
-    private void scanNearest(ClientPlayerEntity player, String[] args, ScriptInterpreter interpreter) {
-        String filter = args.length > 1 ? args[1].toLowerCase() : "*";
-        int radius = args.length > 2 ? Integer.parseInt(args[2]) : 16;
-        radius = Math.min(radius, 32);
-        
-        World world = player.getWorld();
-        BlockPos playerPos = player.getBlockPos();
-        
-        BlockPos nearest = null;
-        double nearestDist = Double.MAX_VALUE;
-        String nearestBlock = "";
-        
-        for (int x = -radius; x <= radius; x++) {
-            for (int y = -radius; y <= radius; y++) {
-                for (int z = -radius; z <= radius; z++) {
-                    BlockPos pos = playerPos.add(x, y, z);
-                    BlockState state = world.getBlockState(pos);
-                    String blockId = Registries.BLOCK.getId(state.getBlock()).getPath();
-                    
-                    if (matchesFilter(blockId, filter)) {
-                        double dist = pos.getSquaredDistance(playerPos);
-                        if (dist < nearestDist) {
-                            nearestDist = dist;
-                            nearest = pos;
-                            nearestBlock = blockId;
-                        }
-                    }
-                }
-            }
-        }
-        
-        if (nearest != null) {
-            interpreter.setVariable("scan_found", "true");
-            interpreter.setVariable("scan_nearest_x", String.valueOf(nearest.getX()));
-            interpreter.setVariable("scan_nearest_y", String.valueOf(nearest.getY()));
-            interpreter.setVariable("scan_nearest_z", String.valueOf(nearest.getZ()));
-            interpreter.setVariable("scan_nearest_block", nearestBlock);
-            interpreter.setVariable("scan_nearest_dist", String.valueOf(Math.sqrt(nearestDist)));
-        } else {
-            interpreter.setVariable("scan_found", "false");
-        }
-    }
-    
-    private void scanOres(ClientPlayerEntity player, String[] args, ScriptInterpreter interpreter) {
-        int radius = args.length > 1 ? Integer.parseInt(args[1]) : 8;
-        radius = Math.min(radius, 16); // Smaller radius for performance
-        
-        boolean allowCheats = KashubConfig.getInstance().allowCheats;
-        
-        World world = player.getWorld();
-        BlockPos playerPos = player.getBlockPos();
-        Vec3d playerEyes = player.getEyePos();
-        
-        Map<String, List<BlockPos>> oresByType = new HashMap<>();
-        
-        for (int x = -radius; x <= radius; x++) {
-            for (int y = -radius; y <= radius; y++) {
-                for (int z = -radius; z <= radius; z++) {
-                    BlockPos pos = playerPos.add(x, y, z);
-                    BlockState state = world.getBlockState(pos);
-                    String blockId = Registries.BLOCK.getId(state.getBlock()).getPath();
-                    
-                    if (VALUABLE_ORES.contains(blockId)) {
-                        // If cheats disabled, check if block is visible (not behind other blocks)
-                        if (!allowCheats) {
-                            boolean visible = isBlockVisible(world, playerEyes, pos);
-                            if (!visible) {
-                            continue;
-                            }
-                        }
-                        oresByType.computeIfAbsent(blockId, k -> new ArrayList<>()).add(pos);
-                    }
-                }
-            }
-        }
-        
-        // Set results
-        int totalOres = oresByType.values().stream().mapToInt(List::size).sum();
-        interpreter.setVariable("scan_ore_count", String.valueOf(totalOres));
-        interpreter.setVariable("scan_found", totalOres > 0 ? "true" : "false");
-        
-        // Count by type
-        interpreter.setVariable("scan_diamond_count", String.valueOf(
-            oresByType.getOrDefault("diamond_ore", List.of()).size() +
-            oresByType.getOrDefault("deepslate_diamond_ore", List.of()).size()));
-        interpreter.setVariable("scan_emerald_count", String.valueOf(
-            oresByType.getOrDefault("emerald_ore", List.of()).size() +
-            oresByType.getOrDefault("deepslate_emerald_ore", List.of()).size()));
-        interpreter.setVariable("scan_gold_count", String.valueOf(
-            oresByType.getOrDefault("gold_ore", List.of()).size() +
-            oresByType.getOrDefault("deepslate_gold_ore", List.of()).size() +
-            oresByType.getOrDefault("nether_gold_ore", List.of()).size()));
-        interpreter.setVariable("scan_iron_count", String.valueOf(
-            oresByType.getOrDefault("iron_ore", List.of()).size() +
-            oresByType.getOrDefault("deepslate_iron_ore", List.of()).size()));
-        interpreter.setVariable("scan_ancient_debris_count", String.valueOf(
-            oresByType.getOrDefault("ancient_debris", List.of()).size()));
-        
-        // Find nearest valuable ore (prioritize diamond > emerald > gold)
-        BlockPos nearestValuable = null;
-        String nearestType = "";
-        double nearestDist = Double.MAX_VALUE;
-        
-        String[] priority = {"diamond_ore", "deepslate_diamond_ore", "ancient_debris", 
-                            "emerald_ore", "deepslate_emerald_ore",
-                            "gold_ore", "deepslate_gold_ore", "nether_gold_ore",
-                            "iron_ore", "deepslate_iron_ore",
-                            "lapis_ore", "deepslate_lapis_ore",
-                            "redstone_ore", "deepslate_redstone_ore",
-                            "copper_ore", "deepslate_copper_ore",
-                            "coal_ore", "deepslate_coal_ore", "nether_quartz_ore"};
-        
-        for (String ore : priority) {
-            List<BlockPos> positions = oresByType.get(ore);
-            if (positions != null) {
-                for (BlockPos pos : positions) {
-                    double dist = pos.getSquaredDistance(playerPos);
-                    if (dist < nearestDist) {
-                        nearestDist = dist;
-                        nearestValuable = pos;
-                        nearestType = ore;
-                    }
-                }
-            }
-        }
-        
-        if (nearestValuable != null) {
-            interpreter.setVariable("scan_valuable_found", "true");
-            interpreter.setVariable("scan_valuable_x", String.valueOf(nearestValuable.getX()));
-            interpreter.setVariable("scan_valuable_y", String.valueOf(nearestValuable.getY()));
-            interpreter.setVariable("scan_valuable_z", String.valueOf(nearestValuable.getZ()));
-            interpreter.setVariable("scan_valuable_type", nearestType);
-            interpreter.setVariable("scan_valuable_dist", String.valueOf(Math.sqrt(nearestDist)));
-        } else {
-            interpreter.setVariable("scan_valuable_found", "false");
-        }
-    }
-    
-    private void countBlocks(ClientPlayerEntity player, String[] args, ScriptInterpreter interpreter) {
-        String filter = args.length > 1 ? args[1].toLowerCase() : "*";
-        int radius = args.length > 2 ? Integer.parseInt(args[2]) : 16;
-        
-        World world = player.getWorld();
-        BlockPos playerPos = player.getBlockPos();
-        
-        int count = 0;
-        for (int x = -radius; x <= radius; x++) {
-            for (int y = -radius; y <= radius; y++) {
-                for (int z = -radius; z <= radius; z++) {
-                    BlockPos pos = playerPos.add(x, y, z);
-                    BlockState state = world.getBlockState(pos);
-                    String blockId = Registries.BLOCK.getId(state.getBlock()).getPath();
-                    
-                    if (matchesFilter(blockId, filter)) {
-                        count++;
-                    }
-                }
-            }
-        }
-        
-        interpreter.setVariable("scan_count", String.valueOf(count));
+    private BlockFilter createFilter(String filter) {
+        return new BlockFilter(blockId -> matchesFilter(blockId, filter), false);
     }
     
     private boolean matchesFilter(String blockId, String filter) {
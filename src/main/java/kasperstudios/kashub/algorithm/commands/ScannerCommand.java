@@ -1,8 +1,14 @@
 package kasperstudios.kashub.algorithm.commands;
 
 import kasperstudios.kashub.algorithm.Command;
+import kasperstudios.kashub.runtime.CommandExecutor;
 import kasperstudios.kashub.algorithm.ScriptInterpreter;
-import net.minecraft.block.BlockState;
+import kasperstudios.kashub.algorithm.scan.BlockFilter;
+import kasperstudios.kashub.algorithm.scan.BlockIndex;
+import kasperstudios.kashub.algorithm.scan.BlockKdTree;
+import kasperstudios.kashub.algorithm.scan.ScanRegion;
+import kasperstudios.kashub.algorithm.scan.ScanResults;
+import kasperstudios.kashub.algorithm.scan.SnapshotScan;
 import net.minecraft.client.MinecraftClient;
 import net.minecraft.client.network.ClientPlayerEntity;
 import net.minecraft.entity.Entity;
@@ -13,13 +19,14 @@ import net.minecraft.entity.passive.PassiveEntity;
 import net.minecraft.registry.Registries;
 import net.minecraft.util.math.BlockPos;
 import net.minecraft.util.math.Box;
-import net.minecraft.util.math.ChunkPos;
+import net.minecraft.util.math.Direction;
+import net.minecraft.util.math.Vec3d;
 import net.minecraft.world.World;
-import net.minecraft.world.chunk.WorldChunk;
 
 import java.util.*;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.LongPredicate;
 
 /**
  * Enhanced Scanner command with async scanning and spatial indexing
@@ -28,6 +35,8 @@ import java.util.concurrent.ConcurrentHashMap;
  *   scanner blocks <types> [options] - Scan for blocks
  *   scanner entities <types> [options] - Scan for entities
  *   scanner cache clear - Clear scan cache
+ *   scanner index [rebuild] - Block index stats / rebuild
+ *   scanner query <nearest|box|sphere|ray|reachable|remove> ... - Spatial queries over the last block scan
  * 
  * Options:
  *   radius=N - Search radius (default 32)
@@ -42,6 +51,10 @@ public class ScannerCommand implements Command {
     private static final long CACHE_EXPIRY_MS = 5000; // 5 секунд
     private static final int CACHE_MAX_SIZE = 20;
     
+    // Результаты последнего сканирования блоков для scanner query
+    private static volatile BlockKdTree lastBlocks = null;
+    private static final int QUERY_LISTED_RESULTS = 20;
+    
     // Последнее сканирование для инкрементального обновления
     private static BlockPos lastPlayerPos = null;
     private static long lastScanTime = 0;
@@ -72,7 +85,9 @@ public class ScannerCommand implements Command {
                "Usage:\n" +
                "  scanner blocks <types> [options]\n" +
                "  scanner entities <types> [options]\n" +
-               "  scanner cache clear\n\n" +
+               "  scanner cache clear\n" +
+               "  scanner index [rebuild]\n" +
+               "  scanner query <kind> ...\n\n" +
                "Type Filters:\n" +
                "  diamond_ore,iron_ore - Specific blocks\n" +
                "  *_ore               - Wildcard pattern\n" +
@@ -93,19 +108,63 @@ public class ScannerCommand implements Command {
                "  scanner blocks *_ore yMin=-64 yMax=16\n" +
                "  scanner entities hostile radius=32\n" +
                "  scanner entities villager sortBy=distance\n" +
-               "  scanner cache clear\n\n" +
+               "  scanner cache clear\n" +
+               "  scanner index\n\n" +
+               "Queries over the last block scan:\n" +
+               "  scanner query nearest [x y z] [k=N]      - k nearest to a point\n" +
+               "  scanner query box <x1 y1 z1 x2 y2 z2>     - Inside a box\n" +
+               "  scanner query sphere [x y z] <radius>     - Inside a sphere\n" +
+               "  scanner query ray [x y z dx dy dz] [dist=N] - Along a ray (default: your view)\n" +
+               "  scanner query reachable [x y z] [reach=N] - Nearest still there with an open face\n" +
+               "  scanner query remove <x y z>              - Drop a mined block\n" +
+               "  Coordinates accept ~ (relative), box/sphere/ray take limit=N\n\n" +
                "Variables set:\n" +
                "  $scanner_count        - Total found\n" +
                "  $scanner_found        - true/false\n" +
                "  $scanner_nearest_x/y/z - Nearest position\n" +
                "  $scanner_nearest_dist  - Distance\n" +
-               "  $scanner_N_x/y/z/block - Result N details\n\n" +
+               "  $scanner_N_x/y/z/block - Result N details\n" +
+               "  $scanner_query_count, $scanner_query_found\n" +
+               "  $scanner_query_x/y/z/block/dist - First query result\n" +
+               "  $scanner_query_N_x/y/z/block/dist\n\n" +
                "Notes:\n" +
                "  - Results are cached for 5 seconds\n" +
+               "  - limit= cuts only $scanner_N_*, queries see every block found\n" +
                "  - Async scanning for large areas\n" +
+               "  - Ores, containers, spawners and crops come from the block index\n" +
                "  - Use 'scan' for simpler scanning";
     }
     
+    /**
+     * scanner blocks completes once its results are applied, so a query right after it sees them
+     */
+    @Override
+    public CompletableFuture<Void> executeAsync(String[] args) {
+        if (args.length == 0 || !args[0].equalsIgnoreCase("blocks")) {
+            return Command.super.executeAsync(args);
+        }
+        CompletableFuture<Void> done = new CompletableFuture<>();
+        CommandExecutor.getInstance().submit(getLane(), () -> {
+            ClientPlayerEntity player = MinecraftClient.getInstance().player;
+            if (player == null) {
+                done.complete(null);
+                return;
+            }
+            try {
+                scanBlocksAdvanced(player, args, ScriptInterpreter.getInstance()).whenComplete((ignored, error) -> {
+                    if (error != null) {
+                        done.completeExceptionally(error);
+                    } else {
+                        done.complete(null);
+                    }
+                });
+            } catch (Exception e) {
+                done.completeExceptionally(e);
+            }
+        });
+        return done;
+    }
+    
     @Override
     public void execute(String[] args) throws Exception {
         MinecraftClient client = MinecraftClient.getInstance();
@@ -131,12 +190,18 @@ public class ScannerCommand implements Command {
             case "cache":
                 handleCache(args, interpreter);
                 break;
+            case "index":
+                handleIndex(args, interpreter);
+                break;
+            case "query":
+                handleQuery(player, args, interpreter);
+                break;
             default:
                 printHelp();
         }
     }
     
-    private void scanBlocksAdvanced(ClientPlayerEntity player, String[] args, ScriptInterpreter interpreter) {
+    private CompletableFuture<Void> scanBlocksAdvanced(ClientPlayerEntity player, String[] args, ScriptInterpreter interpreter) {
         // Парсим опции
         ScanOptions options = parseOptions(args);
         Set<String> targetTypes = parseTypes(args.length > 1 ? args[1] : "*");
@@ -148,90 +213,58 @@ public class ScannerCommand implements Command {
         ScanCacheKey cacheKey = new ScanCacheKey("blocks", targetTypes, options, playerPos);
         ScanResult cached = scanCache.get(cacheKey);
         if (cached != null && !cached.isExpired()) {
+            lastBlocks = cached.blockTree;
             applyBlockResults(cached.blockResults, interpreter, options);
             System.out.println("Using cached scan results (" + cached.blockResults.size() + " blocks)");
-            return;
+            return CompletableFuture.completedFuture(null);
         }
         
-        // Асинхронное сканирование по чанкам
+        // Снимок нужных секций (или записи индекса) берётся здесь, на потоке клиента,
+        // а сканируется параллельно в пуле, не трогая живой мир
         long startTime = System.currentTimeMillis();
-        
-        CompletableFuture.supplyAsync(() -> {
-            List<BlockScanResult> results = new ArrayList<>();
+        BlockFilter filter = new BlockFilter(id -> matchesAnyType(id, targetTypes), options.excludeAir);
+        int yMin = options.yMin != null ? options.yMin : world.getBottomY();
+        int yMax = options.yMax != null ? options.yMax : world.getTopY() - 1;
+        ScanRegion region = ScanRegion.cylinder(playerPos.getX(), playerPos.getZ(), options.radius, yMin, yMax);
+        SnapshotScan scan = SnapshotScan.capture(world, region, filter, playerPos.getX(), playerPos.getY(), playerPos.getZ());
+        // Результаты идут от ближних к дальним, так что для списка хватает первых limit
+        int limit = "count".equals(options.sortBy) ? 0 : options.limit;
+        
+        // Дерево для scanner query строится там же, в фоне, из всех найденных блоков:
+        // limit обрезает только список $scanner_N_*, запросы видят всё
+        return CompletableFuture.supplyAsync(() -> {
+            ScanResults found = scan.run(0);
+            int listed = limit > 0 ? Math.min(limit, found.size()) : found.size();
+            List<BlockScanResult> results = new ArrayList<>(listed);
+            for (int i = 0; i < listed; i++) {
+                results.add(new BlockScanResult(new BlockPos(found.getX(i), found.getY(i), found.getZ(i)),
+                    found.getBlockId(i), found.getDistance(i)));
+            }
+            return new ScanResult(results, BlockKdTree.of(found), null);
+        }, CommandExecutor.getInstance().compute()).thenAcceptAsync(scanned -> {
+            long elapsed = System.currentTimeMillis() - startTime;
             
-            int chunkRadius = (options.radius / 16) + 1;
-            ChunkPos playerChunk = new ChunkPos(playerPos);
+            // Сортируем результаты
+            List<BlockScanResult> finalResults = new ArrayList<>(scanned.blockResults);
+            sortResults(finalResults, playerPos, options);
             
-            for (int cx = -chunkRadius; cx <= chunkRadius; cx++) {
-                for (int cz = -chunkRadius; cz <= chunkRadius; cz++) {
-                    ChunkPos chunkPos = new ChunkPos(playerChunk.x + cx, playerChunk.z + cz);
-                    
-                    // Сканируем чанк
-                    scanChunk(world, chunkPos, playerPos, targetTypes, options, results);
-                }
+            // Ограничиваем количество
+            if (options.limit > 0 && finalResults.size() > options.limit) {
+                finalResults = new ArrayList<>(finalResults.subList(0, options.limit));
             }
             
-            return results;
-        }).thenAccept(scanResults -> {
-            MinecraftClient.getInstance().execute(() -> {
-                long elapsed = System.currentTimeMillis() - startTime;
-                
-                // Сортируем результаты
-                List<BlockScanResult> finalResults = new ArrayList<>(scanResults);
-                sortResults(finalResults, playerPos, options);
-                
-                // Ограничиваем количество
-                if (options.limit > 0 && finalResults.size() > options.limit) {
-                    finalResults = new ArrayList<>(finalResults.subList(0, options.limit));
-                }
-                
-                // Кэшируем
-                if (scanCache.size() >= CACHE_MAX_SIZE) {
-                    cleanupCache();
-                }
-                scanCache.put(cacheKey, new ScanResult(finalResults, null));
-                
-                // Применяем результаты
-                applyBlockResults(finalResults, interpreter, options);
-                
-                System.out.println("Scan complete: " + finalResults.size() + " blocks found (" + elapsed + "ms)");
-            });
-        });
-    }
-    
-    private void scanChunk(World world, ChunkPos chunkPos, BlockPos playerPos, 
-                          Set<String> targetTypes, ScanOptions options, List<BlockScanResult> results) {
-        int startX = chunkPos.getStartX();
-        int startZ = chunkPos.getStartZ();
-        
-        int yMin = options.yMin != null ? options.yMin : world.getBottomY();
-        int yMax = options.yMax != null ? options.yMax : world.getTopY();
-        
-        for (int x = 0; x < 16; x++) {
-            for (int z = 0; z < 16; z++) {
-                int worldX = startX + x;
-                int worldZ = startZ + z;
-                
-                // Проверяем радиус
-                double distXZ = Math.sqrt(Math.pow(worldX - playerPos.getX(), 2) + 
-                                         Math.pow(worldZ - playerPos.getZ(), 2));
-                if (distXZ > options.radius) continue;
-                
-                for (int y = yMin; y <= yMax; y++) {
-                    BlockPos pos = new BlockPos(worldX, y, worldZ);
-                    BlockState state = world.getBlockState(pos);
-                    
-                    if (state.isAir() && options.excludeAir) continue;
-                    
-                    String blockId = Registries.BLOCK.getId(state.getBlock()).getPath();
-                    
-                    if (matchesAnyType(blockId, targetTypes)) {
-                        double dist = Math.sqrt(pos.getSquaredDistance(playerPos));
-                        results.add(new BlockScanResult(pos, blockId, dist));
-                    }
-                }
+            // Кэшируем
+            if (scanCache.size() >= CACHE_MAX_SIZE) {
+                cleanupCache();
             }
-        }
+            scanCache.put(cacheKey, new ScanResult(finalResults, scanned.blockTree, null));
+            
+            // Применяем результаты
+            lastBlocks = scanned.blockTree;
+            applyBlockResults(finalResults, interpreter, options);
+            
+            System.out.println("Scan complete: " + finalResults.size() + " blocks found (" + elapsed + "ms)");
+        }, MinecraftClient.getInstance()::execute);
     }
     
     private void scanEntitiesAdvanced(ClientPlayerEntity player, String[] args, ScriptInterpreter interpreter) {
@@ -298,7 +331,7 @@ public class ScannerCommand implements Command {
         }
         
         // Кэшируем
-        scanCache.put(cacheKey, new ScanResult(null, results));
+        scanCache.put(cacheKey, new ScanResult(null, null, results));
         
         // Применяем результаты
         applyEntityResults(results, interpreter, options);
@@ -478,6 +511,191 @@ public class ScannerCommand implements Command {
         interpreter.setVariable("scanner_cache_size", String.valueOf(scanCache.size()));
     }
     
+    private void handleIndex(String[] args, ScriptInterpreter interpreter) {
+        BlockIndex index = BlockIndex.getInstance();
+        if (args.length >= 2 && args[1].equalsIgnoreCase("rebuild")) {
+            index.rebuild();
+            scanCache.clear();
+            System.out.println("Block index rebuilding");
+        }
+        Map<String, Object> stats = index.getStats();
+        System.out.println("Block index: " + stats);
+        interpreter.setVariable("scanner_index_chunks", String.valueOf(stats.get("chunks")));
+        interpreter.setVariable("scanner_index_blocks", String.valueOf(stats.get("blocks")));
+    }
+    
+    private void handleQuery(ClientPlayerEntity player, String[] args, ScriptInterpreter interpreter) {
+        BlockKdTree tree = lastBlocks;
+        if (tree == null) {
+            System.out.println("Nothing to query, run 'scanner blocks' first");
+            applyQueryResults(null, interpreter);
+            return;
+        }
+        
+        String kind = args.length > 1 ? args[1].toLowerCase() : "";
+        List<String> positional = new ArrayList<>();
+        Map<String, String> options = new HashMap<>();
+        for (int i = 2; i < args.length; i++) {
+            int eq = args[i].indexOf('=');
+            if (eq > 0) {
+                options.put(args[i].substring(0, eq).toLowerCase(), args[i].substring(eq + 1));
+            } else {
+                positional.add(args[i]);
+            }
+        }
+        int limit = parseIntOption(options, "limit", 0);
+        World world = player.getWorld();
+        BlockPos playerPos = player.getBlockPos();
+        
+        ScanResults found;
+        switch (kind) {
+            case "nearest": {
+                BlockPos point = parsePoint(positional, 0, playerPos);
+                found = tree.nearest(point.getX(), point.getY(), point.getZ(), parseIntOption(options, "k", 1), null);
+                break;
+            }
+            case "box": {
+                if (positional.size() < 6) {
+                    System.out.println("Usage: scanner query box <x1> <y1> <z1> <x2> <y2> <z2>");
+                    return;
+                }
+                BlockPos a = parsePoint(positional, 0, playerPos);
+                BlockPos b = parsePoint(positional, 3, playerPos);
+                found = tree.withinBox(
+                    Math.min(a.getX(), b.getX()), Math.min(a.getY(), b.getY()), Math.min(a.getZ(), b.getZ()),
+                    Math.max(a.getX(), b.getX()), Math.max(a.getY(), b.getY()), Math.max(a.getZ(), b.getZ()),
+                    playerPos.getX(), playerPos.getY(), playerPos.getZ(), limit);
+                break;
+            }
+            case "sphere": {
+                // sphere <radius> вокруг игрока или sphere <x> <y> <z> <radius>
+                BlockPos center = positional.size() >= 4 ? parsePoint(positional, 0, playerPos) : playerPos;
+                String radiusArg = positional.size() >= 4 ? positional.get(3) : positional.isEmpty() ? "8" : positional.get(0);
+                found = tree.withinSphere(center.getX(), center.getY(), center.getZ(), Double.parseDouble(radiusArg), limit);
+                break;
+            }
+            case "ray": {
+                Vec3d origin = player.getEyePos();
+                Vec3d direction = player.getRotationVec(1.0f);
+                if (positional.size() >= 6) {
+                    origin = new Vec3d(parseCoordinate(positional.get(0), origin.x),
+                        parseCoordinate(positional.get(1), origin.y),
+                        parseCoordinate(positional.get(2), origin.z));
+                    direction = new Vec3d(Double.parseDouble(positional.get(3)),
+                        Double.parseDouble(positional.get(4)),
+                        Double.parseDouble(positional.get(5)));
+                }
+                double distance = options.containsKey("dist") ? Double.parseDouble(options.get("dist")) : 64;
+                found = tree.alongRay(origin.x, origin.y, origin.z, direction.x, direction.y, direction.z, distance, limit);
+                break;
+            }
+            case "reachable": {
+                BlockPos point = parsePoint(positional, 0, playerPos);
+                double reach = options.containsKey("reach") ? Double.parseDouble(options.get("reach")) : 0;
+                Vec3d eyes = player.getEyePos();
+                // Сломанные с момента сканирования блоки убираем из дерева
+                List<BlockPos> gone = new ArrayList<>();
+                LongPredicate reachable = packed -> {
+                    BlockPos pos = BlockPos.fromLong(packed);
+                    if (world.getBlockState(pos).isAir()) {
+                        gone.add(pos);
+                        return false;
+                    }
+                    if (reach > 0 && Vec3d.ofCenter(pos).squaredDistanceTo(eyes) > reach * reach) {
+                        return false;
+                    }
+                    return hasOpenFace(world, pos);
+                };
+                found = tree.nearest(point.getX(), point.getY(), point.getZ(), parseIntOption(options, "k", 1), reachable);
+                for (BlockPos pos : gone) {
+                    tree.remove(pos.getX(), pos.getY(), pos.getZ());
+                }
+                break;
+            }
+            case "remove": {
+                if (positional.size() < 3) {
+                    System.out.println("Usage: scanner query remove <x> <y> <z>");
+                    return;
+                }
+                BlockPos pos = parsePoint(positional, 0, playerPos);
+                interpreter.setVariable("scanner_query_removed", String.valueOf(tree.remove(pos.getX(), pos.getY(), pos.getZ())));
+                interpreter.setVariable("scanner_query_size", String.valueOf(tree.size()));
+                return;
+            }
+            default:
+                System.out.println("Scanner query: " + tree.size() + " blocks from the last scan");
+                System.out.println("  scanner query nearest|box|sphere|ray|reachable|remove ...");
+                interpreter.setVariable("scanner_query_size", String.valueOf(tree.size()));
+                return;
+        }
+        applyQueryResults(found, interpreter);
+        interpreter.setVariable("scanner_query_size", String.valueOf(tree.size()));
+    }
+    
+    private void applyQueryResults(ScanResults found, ScriptInterpreter interpreter) {
+        int count = found != null ? found.size() : 0;
+        interpreter.setVariable("scanner_query_count", String.valueOf(count));
+        interpreter.setVariable("scanner_query_found", count > 0 ? "true" : "false");
+        if (count == 0) {
+            return;
+        }
+        
+        interpreter.setVariable("scanner_query_x", String.valueOf(found.getX(0)));
+        interpreter.setVariable("scanner_query_y", String.valueOf(found.getY(0)));
+        interpreter.setVariable("scanner_query_z", String.valueOf(found.getZ(0)));
+        interpreter.setVariable("scanner_query_block", found.getBlockId(0));
+        interpreter.setVariable("scanner_query_dist", String.format("%.1f", found.getDistance(0)));
+        for (int i = 0; i < Math.min(count, QUERY_LISTED_RESULTS); i++) {
+            interpreter.setVariable("scanner_query_" + i + "_x", String.valueOf(found.getX(i)));
+            interpreter.setVariable("scanner_query_" + i + "_y", String.valueOf(found.getY(i)));
+            interpreter.setVariable("scanner_query_" + i + "_z", String.valueOf(found.getZ(i)));
+            interpreter.setVariable("scanner_query_" + i + "_block", found.getBlockId(i));
+            interpreter.setVariable("scanner_query_" + i + "_dist", String.format("%.1f", found.getDistance(i)));
+        }
+    }
+    
+    /**
+     * A block the player can mine without digging first: at least one neighbour is not a full solid block
+     */
+    private boolean hasOpenFace(World world, BlockPos pos) {
+        for (Direction direction : Direction.values()) {
+            BlockPos neighbour = pos.offset(direction);
+            if (!world.getBlockState(neighbour).isSolidBlock(world, neighbour)) {
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    /**
+     * Three coordinates starting at from, ~ relative to the player; the player position if absent
+     */
+    private BlockPos parsePoint(List<String> args, int from, BlockPos playerPos) {
+        if (args.size() < from + 3) {
+            return playerPos;
+        }
+        return BlockPos.ofFloored(
+            parseCoordinate(args.get(from), playerPos.getX()),
+            parseCoordinate(args.get(from + 1), playerPos.getY()),
+            parseCoordinate(args.get(from + 2), playerPos.getZ()));
+    }
+    
+    private double parseCoordinate(String arg, double current) {
+        if (arg.startsWith("~")) {
+            if (arg.length() == 1) return current;
+            return current + Double.parseDouble(arg.substring(1));
+        }
+        return Double.parseDouble(arg);
+    }
+    
+    private int parseIntOption(Map<String, String> options, String key, int defaultValue) {
+        try {
+            return options.containsKey(key) ? Integer.parseInt(options.get(key)) : defaultValue;
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+    
     private void cleanupCache() {
         long now = System.currentTimeMillis();
         scanCache.entrySet().removeIf(e -> e.getValue().isExpired());
@@ -491,6 +709,10 @@ public class ScannerCommand implements Command {
         System.out.println("    - Scan for entities (types: villager,zombie or hostile)");
         System.out.println("  scanner cache clear");
         System.out.println("    - Clear scan cache");
+        System.out.println("  scanner index [rebuild]");
+        System.out.println("    - Block index stats, or index loaded chunks again");
+        System.out.println("  scanner query nearest|box|sphere|ray|reachable|remove ...");
+        System.out.println("    - Spatial queries over the last block scan");
         System.out.println("");
         System.out.println("Options:");
         System.out.println("  radius=N - Search radius (max 64)");
@@ -543,11 +765,13 @@ public class ScannerCommand implements Command {
     
     private static class ScanResult {
         final List<BlockScanResult> blockResults;
+        final BlockKdTree blockTree;
         final List<EntityScanResult> entityResults;
         final long timestamp;
         
-        ScanResult(List<BlockScanResult> blockResults, List<EntityScanResult> entityResults) {
+        ScanResult(List<BlockScanResult> blockResults, BlockKdTree blockTree, List<EntityScanResult> entityResults) {
             this.blockResults = blockResults;
+            this.blockTree = blockTree;
             this.entityResults = entityResults;
             this.timestamp = System.currentTimeMillis();
         }
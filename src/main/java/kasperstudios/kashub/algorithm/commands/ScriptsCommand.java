@@ -1,6 +1,7 @@
 package kasperstudios.kashub.algorithm.commands;
 
 import kasperstudios.kashub.algorithm.Command;
+import kasperstudios.kashub.runtime.CommandExecutor;
 import kasperstudios.kashub.runtime.ScriptState;
 import kasperstudios.kashub.runtime.ScriptTask;
 import kasperstudios.kashub.runtime.ScriptTaskManager;
@@ -18,6 +19,7 @@ import java.util.Map;
  *   scripts.stopAll - остановить все
  *   scripts.stopByTag <tag> - остановить по тегу
  *   scripts.info <id> - информация о задаче
+ *   scripts.priority <id> <n> - доля времени задачи за тик
  */
 public class ScriptsCommand implements Command {
 
@@ -33,7 +35,7 @@ public class ScriptsCommand implements Command {
 
     @Override
     public String getParameters() {
-        return "<action> [args] - list/stop/pause/resume/stopAll/stopByTag/info";
+        return "<action> [args] - list/stop/pause/resume/priority/stopAll/stopByTag/info";
     }
 
     @Override
@@ -50,6 +52,7 @@ public class ScriptsCommand implements Command {
                "  scripts pause <id>        - Pause task\n" +
                "  scripts resume <id>       - Resume paused task\n" +
                "  scripts restart <id>      - Restart task\n" +
+               "  scripts priority <id> <n> - Set task priority (share of tick time)\n" +
                "  scripts stopAll           - Stop all tasks\n" +
                "  scripts pauseAll          - Pause all tasks\n" +
                "  scripts resumeAll         - Resume all tasks\n" +
@@ -150,6 +153,22 @@ public class ScriptsCommand implements Command {
                 break;
             }
 
+            case "priority": {
+                if (args.length < 3) {
+                    System.out.println("Usage: scripts priority <id> <priority>");
+                    return;
+                }
+                int id = Integer.parseInt(args[1]);
+                ScriptTask task = manager.getTask(id);
+                if (task == null) {
+                    System.out.println("Task not found: " + id);
+                    return;
+                }
+                task.setPriority(Integer.parseInt(args[2]));
+                System.out.println("Task " + id + " priority set to " + task.getPriority());
+                break;
+            }
+
             case "stopall": {
                 manager.stopAll();
                 System.out.println("Stopped all scripts");
@@ -194,7 +213,8 @@ public class ScriptsCommand implements Command {
                     System.out.println("  Type: " + task.getScriptType().getDisplayName());
                     System.out.println("  Uptime: " + task.getUptimeFormatted());
                     System.out.println("  Line: " + task.getCurrentLine());
-                    System.out.println("  Commands: " + task.getExecutedCommands() + " executed, " + 
+                    System.out.println("  Commands: " + task.getExecutedCommands() + " executed (" +
+                                       task.getInlineCommands() + " inline), " +
                                        task.getQueuedCommands() + " queued");
                     System.out.println("  Tags: " + String.join(", ", task.getTags()));
                     if (task.getLastError() != null) {
@@ -213,6 +233,12 @@ public class ScriptsCommand implements Command {
                 System.out.println("  Stopped: " + stats.get("stopped"));
                 System.out.println("  Errors: " + stats.get("error"));
                 System.out.println("  Enabled: " + stats.get("enabled"));
+                System.out.println("  Last tick: " + stats.get("tickMicros") + " us, " + stats.get("tickServed") + " served, " + stats.get("tickSkipped") + " skipped");
+                System.out.println("  Overruns: " + stats.get("overruns"));
+                Map<String, Object> lanes = CommandExecutor.getInstance().getStats();
+                for (Map.Entry<String, Object> lane : lanes.entrySet()) {
+                    System.out.println("  Lane " + lane.getKey() + ": " + lane.getValue());
+                }
                 break;
             }
 
@@ -31,6 +31,21 @@ public class SelectSlotCommand implements Command {
     public String getCategory() {
         return "Inventory";
     }
+
+    @Override
+    public boolean isInline() {
+        return true;
+    }
+
+    @Override
+    public int getMinArgs() {
+        return 1;
+    }
+
+    @Override
+    public int getMaxArgs() {
+        return 2;
+    }
     
     @Override
     public String getDetailedHelp() {
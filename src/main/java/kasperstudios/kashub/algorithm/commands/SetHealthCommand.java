@@ -1,6 +1,7 @@
 package kasperstudios.kashub.algorithm.commands;
 
 import kasperstudios.kashub.algorithm.Command;
+import kasperstudios.kashub.algorithm.types.KHType;
 import kasperstudios.kashub.util.ScriptLogger;
 import net.minecraft.client.MinecraftClient;
 import net.minecraft.client.network.ClientPlayerEntity;
@@ -35,6 +36,21 @@ public class SetHealthCommand implements Command {
     public String getCategory() {
         return "Player";
     }
+
+    @Override
+    public int getMinArgs() {
+        return 1;
+    }
+
+    @Override
+    public int getMaxArgs() {
+        return 1;
+    }
+
+    @Override
+    public KHType[] getArgumentTypes() {
+        return new KHType[] { KHType.NUMBER };
+    }
     
     @Override
     public String getDetailedHelp() {
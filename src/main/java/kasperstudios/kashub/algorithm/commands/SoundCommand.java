@@ -1,6 +1,7 @@
 package kasperstudios.kashub.algorithm.commands;
 
 import kasperstudios.kashub.algorithm.Command;
+import kasperstudios.kashub.runtime.TimerWheel;
 import net.minecraft.client.MinecraftClient;
 import net.minecraft.client.sound.PositionedSoundInstance;
 import net.minecraft.registry.Registries;
@@ -11,6 +12,7 @@ import net.minecraft.util.Identifier;
 
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Command for playing sounds
@@ -261,26 +263,17 @@ public class SoundCommand implements Command {
         String[] noteNames = notesStr.split(",");
         SoundEvent sound = SOUND_ALIASES.getOrDefault(instrument, SoundEvents.BLOCK_NOTE_BLOCK_HARP.value());
         
-        // Play in separate thread
-        new Thread(() -> {
-            for (String noteName : noteNames) {
-                if (state_stopped) break;
-                
-                float pitch = parseNoteToPitch(noteName.trim());
-                
-                final SoundEvent finalSound = sound;
-                final float finalPitch = pitch;
-                client.execute(() -> {
-                    client.getSoundManager().play(PositionedSoundInstance.master(finalSound, finalPitch, 1.0f));
-                });
-                
-                try {
-                    Thread.sleep(tempo);
-                } catch (InterruptedException e) {
-                    break;
-                }
-            }
-        }).start();
+        // Notes are spaced by the tick timer and played on the client thread
+        scheduleNote(client, noteNames, 0, sound, tempo);
+    }
+    
+    private void scheduleNote(MinecraftClient client, String[] noteNames, int index, SoundEvent sound, int tempo) {
+        if (index >= noteNames.length || state_stopped) {
+            return;
+        }
+        float pitch = parseNoteToPitch(noteNames[index].trim());
+        client.getSoundManager().play(PositionedSoundInstance.master(sound, pitch, 1.0f));
+        TimerWheel.getInstance().schedule(() -> scheduleNote(client, noteNames, index + 1, sound, tempo), tempo, TimeUnit.MILLISECONDS);
     }
     
     private static volatile boolean state_stopped = false;
@@ -30,6 +30,16 @@ public class TeleportCommand implements Command {
     public String getCategory() {
         return "Movement";
     }
+
+    @Override
+    public int getMinArgs() {
+        return 3;
+    }
+
+    @Override
+    public int getMaxArgs() {
+        return 3;
+    }
     
     @Override
     public String getDetailedHelp() {
@@ -1,13 +1,13 @@
 package kasperstudios.kashub.algorithm.commands;
 
 import kasperstudios.kashub.algorithm.Command;
+import kasperstudios.kashub.algorithm.types.KHType;
+import kasperstudios.kashub.runtime.TimerWheel;
 import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 
 public class WaitCommand implements Command {
-  private static final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+  private static final TimerWheel scheduler = TimerWheel.getInstance();
 
   @Override
   public String getName() {
@@ -28,6 +28,21 @@ public class WaitCommand implements Command {
   public String getCategory() {
     return "Timing";
   }
+
+  @Override
+  public int getMinArgs() {
+    return 1;
+  }
+
+  @Override
+  public int getMaxArgs() {
+    return 1;
+  }
+
+  @Override
+  public KHType[] getArgumentTypes() {
+    return new KHType[] { KHType.NUMBER };
+  }
   
   @Override
   public String getDetailedHelp() {
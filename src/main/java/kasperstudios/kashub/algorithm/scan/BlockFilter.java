@@ -0,0 +1,73 @@
+package kasperstudios.kashub.algorithm.scan;
+
+import net.minecraft.block.Block;
+import net.minecraft.block.BlockState;
+import net.minecraft.registry.Registries;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Predicate;
+
+/**
+ * Which blocks a scan is looking for. The id filter is evaluated once per block
+ * type and remembered, so scanning a section costs a map lookup per state change
+ * instead of a registry lookup and string matching per block.
+ */
+public class BlockFilter {
+    private static final String NO_MATCH = "";
+
+    private final Predicate<String> idFilter;
+    private final boolean excludeAir;
+    private final Map<Block, String> matches = new ConcurrentHashMap<>();
+    private final Map<String, Boolean> idMatches = new ConcurrentHashMap<>();
+    private final Predicate<BlockState> statePredicate = state -> match(state) != null;
+
+    /**
+     * @param idFilter   test on the block id path ("diamond_ore")
+     * @param excludeAir never match air, whatever the id filter says
+     */
+    public BlockFilter(Predicate<String> idFilter, boolean excludeAir) {
+        this.idFilter = idFilter;
+        this.excludeAir = excludeAir;
+    }
+
+    /**
+     * @return id path of the block if it matches, null otherwise
+     */
+    public String match(BlockState state) {
+        Block block = state.getBlock();
+        String id = matches.get(block);
+        if (id == null) {
+            id = NO_MATCH;
+            if (!(excludeAir && state.isAir())) {
+                String path = Registries.BLOCK.getId(block).getPath();
+                if (idFilter.test(path)) {
+                    id = path;
+                }
+            }
+            matches.put(block, id);
+        }
+        return id == NO_MATCH ? null : id;
+    }
+
+    /**
+     * Match by id path, for positions taken from {@link BlockIndex} (which never holds air)
+     */
+    public boolean matchesId(String id) {
+        return idMatches.computeIfAbsent(id, idFilter::test);
+    }
+
+    /**
+     * Predicate form of {@link #match}, for palette checks
+     */
+    public Predicate<BlockState> asPredicate() {
+        return statePredicate;
+    }
+
+    /**
+     * False if sections containing only air can be skipped
+     */
+    public boolean matchesAir() {
+        return !excludeAir && idFilter.test("air");
+    }
+}
@@ -0,0 +1,407 @@
+package kasperstudios.kashub.algorithm.scan;
+
+import kasperstudios.kashub.config.KashubConfig;
+import kasperstudios.kashub.runtime.CommandExecutor;
+import net.minecraft.block.Block;
+import net.minecraft.block.BlockState;
+import net.minecraft.registry.Registries;
+import net.minecraft.util.math.BlockPos;
+import net.minecraft.util.math.ChunkPos;
+import net.minecraft.world.World;
+import net.minecraft.world.chunk.WorldChunk;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Positions of interesting blocks (ores, containers, spawners, crops) per loaded chunk.
+ * When a chunk arrives its candidate sections are copied on the client thread and
+ * indexed on the compute lane; block updates from the server (single and chunk-delta,
+ * both go through ClientWorld.handleBlockUpdate) and rolled-back predictions keep it
+ * current. Updates arriving while the chunk is being indexed are held back and applied
+ * to the finished entry.
+ * Scans whose filter only matches indexed blocks read the index, so their cost grows
+ * with the number of matches instead of the volume.
+ */
+public class BlockIndex {
+    private static final BlockIndex INSTANCE = new BlockIndex();
+
+    private static final Set<String> DEFAULT_BLOCKS = Set.of(
+        "ancient_debris",
+        "chest", "trapped_chest", "barrel", "ender_chest",
+        "spawner", "trial_spawner", "vault",
+        "wheat", "carrots", "potatoes", "beetroots", "nether_wart",
+        "melon", "pumpkin", "sugar_cane", "cocoa", "sweet_berry_bush",
+        "torchflower_crop", "pitcher_crop"
+    );
+
+    private final Map<Long, Slot> chunks = new ConcurrentHashMap<>();
+    private final AtomicInteger nextVersion = new AtomicInteger();
+    private final AtomicLong indexedQueries = new AtomicLong();
+    private final AtomicLong scannedChunks = new AtomicLong();
+    private volatile BlockFilter indexFilter = createFilter();
+    // covers() per scan filter, against the current indexFilter; replaced after it in rebuild()
+    private volatile Map<BlockFilter, Boolean> coverage = newCoverage();
+    private volatile World world;
+
+    private BlockIndex() {}
+
+    public static BlockIndex getInstance() {
+        return INSTANCE;
+    }
+
+    private static Map<BlockFilter, Boolean> newCoverage() {
+        // Weak keys: most filters belong to a single scan
+        return Collections.synchronizedMap(new WeakHashMap<>());
+    }
+
+    /**
+     * Block ids the index records: ores, containers, spawners, crops and the
+     * configured indexedBlocks (ids or *_wildcards)
+     */
+    private static BlockFilter createFilter() {
+        List<String> extra = new ArrayList<>(KashubConfig.getInstance().indexedBlocks);
+        return new BlockFilter(id -> id.endsWith("_ore") || id.endsWith("shulker_box")
+            || DEFAULT_BLOCKS.contains(id) || extra.stream().anyMatch(pattern -> matchesPattern(id, pattern)), true);
+    }
+
+    private static boolean matchesPattern(String id, String pattern) {
+        if (pattern.startsWith("*") && pattern.endsWith("*") && pattern.length() > 1) {
+            return id.contains(pattern.substring(1, pattern.length() - 1));
+        }
+        if (pattern.startsWith("*")) {
+            return id.endsWith(pattern.substring(1));
+        }
+        if (pattern.endsWith("*")) {
+            return id.startsWith(pattern.substring(0, pattern.length() - 1));
+        }
+        return id.equals(pattern);
+    }
+
+    // ===== Events (client thread) =====
+
+    public void onChunkLoad(World world, WorldChunk chunk) {
+        if (!KashubConfig.getInstance().blockIndex) {
+            return;
+        }
+        if (world != this.world) {
+            clear();
+            this.world = world;
+        }
+        index(chunk);
+    }
+
+    public void onChunkUnload(World world, WorldChunk chunk) {
+        if (world == this.world) {
+            chunks.remove(chunk.getPos().toLong());
+        }
+    }
+
+    /**
+     * A block changed; state is the block now in the world
+     */
+    public void onBlockUpdate(World world, BlockPos pos, BlockState state) {
+        if (world != this.world) {
+            return;
+        }
+        String id = indexFilter.match(state);
+        long packed = pos.asLong();
+        chunks.computeIfPresent(ChunkPos.toLong(pos.getX() >> 4, pos.getZ() >> 4), (key, slot) -> {
+            slot.update(packed, id);
+            return slot;
+        });
+    }
+
+    /**
+     * Forget everything, e.g. when leaving the world
+     */
+    public void clear() {
+        chunks.clear();
+        world = null;
+    }
+
+    /**
+     * Re-read the configured block list and index all loaded chunks again. Client thread
+     */
+    public void rebuild() {
+        indexFilter = createFilter();
+        coverage = newCoverage();
+        World world = this.world;
+        if (world == null) {
+            return;
+        }
+        for (Long key : chunks.keySet()) {
+            WorldChunk chunk = world.getChunkManager().getWorldChunk(ChunkPos.getPackedX(key), ChunkPos.getPackedZ(key));
+            if (chunk != null) {
+                index(chunk);
+            } else {
+                chunks.remove(key);
+            }
+        }
+    }
+
+    // ===== Building =====
+
+    /**
+     * Copy the chunk now and index the copy on the compute lane
+     */
+    private void index(WorldChunk chunk) {
+        long key = chunk.getPos().toLong();
+        int startX = chunk.getPos().getStartX();
+        int startZ = chunk.getPos().getStartZ();
+        ScanRegion region = ScanRegion.box(startX, chunk.getBottomY(), startZ, startX + 15, chunk.getTopY() - 1, startZ + 15);
+        BlockFilter filter = indexFilter;
+        ChunkSnapshot snapshot = ChunkSnapshot.capture(chunk, region, filter);
+        if (snapshot == null) {
+            // Nothing interesting in the chunk
+            chunks.put(key, new Slot(nextVersion.incrementAndGet(), ChunkEntry.EMPTY));
+            return;
+        }
+        int version = nextVersion.incrementAndGet();
+        chunks.put(key, new Slot(version, null));
+        CommandExecutor.getInstance().compute().execute(() -> {
+            ChunkEntry entry = ChunkEntry.of(snapshot, region, filter);
+            chunks.computeIfPresent(key, (k, slot) -> {
+                // A newer load or rebuild of the chunk replaced this one
+                if (slot.version == version) {
+                    slot.publish(entry);
+                }
+                return slot;
+            });
+        });
+    }
+
+    // ===== Queries (any thread) =====
+
+    /**
+     * True if every block the filter matches is one the index records.
+     * Walks the block registry once per filter, later calls are a map lookup
+     */
+    public boolean covers(BlockFilter filter) {
+        // Read in the reverse order of rebuild(), so a fresh map never gets an answer for the old filter
+        Map<BlockFilter, Boolean> known = coverage;
+        BlockFilter index = indexFilter;
+        Boolean covered = known.get(filter);
+        if (covered == null) {
+            covered = walkRegistry(filter, index);
+            known.put(filter, covered);
+        }
+        return covered;
+    }
+
+    private static boolean walkRegistry(BlockFilter filter, BlockFilter index) {
+        for (Block block : Registries.BLOCK) {
+            BlockState state = block.getDefaultState();
+            if (filter.match(state) != null && index.match(state) == null) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * True if the index is on, holds this world and records every block the filter matches
+     */
+    public boolean canAnswer(World world, BlockFilter filter) {
+        return KashubConfig.getInstance().blockIndex && world == this.world && covers(filter);
+    }
+
+    /**
+     * Indexed blocks of a chunk, null if it is not indexed (yet)
+     */
+    ChunkEntry getEntry(int chunkX, int chunkZ) {
+        Slot slot = chunks.get(ChunkPos.toLong(chunkX, chunkZ));
+        return slot != null ? slot.entry : null;
+    }
+
+    /**
+     * Find the matching blocks of a region on the client thread: from the index
+     * where it can answer, by scanning chunk sections elsewhere
+     * @return true if the index was used
+     */
+    public boolean scan(World world, ScanRegion region, BlockFilter filter, ChunkSectionScanner.Hit hit) {
+        if (!canAnswer(world, filter)) {
+            ChunkSectionScanner.scan(world, region, filter, hit);
+            return false;
+        }
+        indexedQueries.incrementAndGet();
+        for (int chunkX = region.getMinChunkX(); chunkX <= region.getMaxChunkX(); chunkX++) {
+            for (int chunkZ = region.getMinChunkZ(); chunkZ <= region.getMaxChunkZ(); chunkZ++) {
+                ChunkEntry entry = getEntry(chunkX, chunkZ);
+                if (entry != null) {
+                    entry.scan(region, filter, hit);
+                    continue;
+                }
+                WorldChunk chunk = world.getChunkManager().getWorldChunk(chunkX, chunkZ);
+                if (chunk != null) {
+                    scannedChunks.incrementAndGet();
+                    ChunkSectionScanner.scanChunk(chunk, region, filter, hit);
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Count a chunk that had to be scanned because it was not indexed yet
+     */
+    void countScannedChunk() {
+        scannedChunks.incrementAndGet();
+    }
+
+    void countIndexedQuery() {
+        indexedQueries.incrementAndGet();
+    }
+
+    public Map<String, Object> getStats() {
+        int indexed = 0;
+        int blocks = 0;
+        for (Slot slot : chunks.values()) {
+            ChunkEntry entry = slot.entry;
+            if (entry != null) {
+                indexed++;
+                blocks += entry.positions.length;
+            }
+        }
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("chunks", indexed);
+        stats.put("pendingChunks", chunks.size() - indexed);
+        stats.put("blocks", blocks);
+        stats.put("indexedQueries", indexedQueries.get());
+        stats.put("scannedChunks", scannedChunks.get());
+        return stats;
+    }
+
+    /**
+     * Index state of one loaded chunk. Only changed inside chunks.compute*, so
+     * updates and the finished build of the same chunk never interleave
+     */
+    private static final class Slot {
+        final int version;
+        volatile ChunkEntry entry;   // null while the chunk is being indexed
+        List<Long> heldPositions;    // updates that arrived while indexing
+        List<String> heldIds;
+
+        Slot(int version, ChunkEntry entry) {
+            this.version = version;
+            this.entry = entry;
+        }
+
+        void update(long position, String id) {
+            if (entry != null) {
+                entry = entry.with(position, id);
+                return;
+            }
+            if (heldPositions == null) {
+                heldPositions = new ArrayList<>();
+                heldIds = new ArrayList<>();
+            }
+            heldPositions.add(position);
+            heldIds.add(id);
+        }
+
+        void publish(ChunkEntry built) {
+            ChunkEntry result = built;
+            if (heldPositions != null) {
+                for (int i = 0; i < heldPositions.size(); i++) {
+                    result = result.with(heldPositions.get(i), heldIds.get(i));
+                }
+                heldPositions = null;
+                heldIds = null;
+            }
+            entry = result;
+        }
+    }
+
+    /**
+     * Indexed blocks of one chunk. Immutable: updates replace the entry, so readers on
+     * other threads never see it half-changed.
+     */
+    static final class ChunkEntry implements ChunkSource {
+        private static final ChunkEntry EMPTY = new ChunkEntry(new long[0], new String[0]);
+
+        final long[] positions; // BlockPos.asLong
+        final String[] ids;
+
+        ChunkEntry(long[] positions, String[] ids) {
+            this.positions = positions;
+            this.ids = ids;
+        }
+
+        static ChunkEntry of(ChunkSource source, ScanRegion region, BlockFilter filter) {
+            List<Long> positions = new ArrayList<>();
+            List<String> ids = new ArrayList<>();
+            source.scan(region, filter, (x, y, z, id) -> {
+                positions.add(BlockPos.asLong(x, y, z));
+                ids.add(id);
+            });
+            if (positions.isEmpty()) {
+                return EMPTY;
+            }
+            long[] packed = new long[positions.size()];
+            for (int i = 0; i < packed.length; i++) {
+                packed[i] = positions.get(i);
+            }
+            return new ChunkEntry(packed, ids.toArray(new String[0]));
+        }
+
+        /**
+         * @param id indexed id now at the position, null if the block is no longer interesting
+         * @return this if nothing changed
+         */
+        ChunkEntry with(long position, String id) {
+            for (int i = 0; i < positions.length; i++) {
+                if (positions[i] != position) {
+                    continue;
+                }
+                if (id != null && id.equals(ids[i])) {
+                    return this;
+                }
+                if (id != null) {
+                    String[] newIds = ids.clone();
+                    newIds[i] = id;
+                    return new ChunkEntry(positions, newIds);
+                }
+                // Removed: move the last entry into the gap
+                int last = positions.length - 1;
+                long[] newPositions = Arrays.copyOf(positions, last);
+                String[] newIds = Arrays.copyOf(ids, last);
+                if (i < last) {
+                    newPositions[i] = positions[last];
+                    newIds[i] = ids[last];
+                }
+                return new ChunkEntry(newPositions, newIds);
+            }
+            if (id == null) {
+                return this;
+            }
+            long[] newPositions = Arrays.copyOf(positions, positions.length + 1);
+            String[] newIds = Arrays.copyOf(ids, ids.length + 1);
+            newPositions[positions.length] = position;
+            newIds[ids.length] = id;
+            return new ChunkEntry(newPositions, newIds);
+        }
+
+        @Override
+        public void scan(ScanRegion region, BlockFilter filter, ChunkSectionScanner.Hit hit) {
+            for (int i = 0; i < positions.length; i++) {
+                long position = positions[i];
+                int x = BlockPos.unpackLongX(position);
+                int y = BlockPos.unpackLongY(position);
+                int z = BlockPos.unpackLongZ(position);
+                if (region.contains(x, y, z) && filter.matchesId(ids[i])) {
+                    hit.accept(x, y, z, ids[i]);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,418 @@
+package kasperstudios.kashub.algorithm.scan;
+
+import net.minecraft.util.math.BlockPos;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.function.LongPredicate;
+
+/**
+ * Scan matches in a 3-d tree for queries by position: k nearest, box, sphere and ray.
+ * The tree is implicit: the arrays are reordered so that every range has its median
+ * (split on x, y, z in turn) in the middle, with smaller coordinates before it.
+ * A nearest query visits O(log n) nodes instead of walking every match.
+ * Matches can be removed (mined, picked up) without rebuilding; the tree is not
+ * thread safe once built, use it from one thread.
+ */
+public final class BlockKdTree {
+    private final long[] positions;
+    private final String[] ids;
+    private final int[][] coords; // coords[axis][node]
+    private final BitSet removed = new BitSet();
+    private int live;
+
+    private BlockKdTree(long[] positions, String[] ids) {
+        this.positions = positions;
+        this.ids = ids;
+        this.coords = new int[3][positions.length];
+        for (int i = 0; i < positions.length; i++) {
+            coords[0][i] = BlockPos.unpackLongX(positions[i]);
+            coords[1][i] = BlockPos.unpackLongY(positions[i]);
+            coords[2][i] = BlockPos.unpackLongZ(positions[i]);
+        }
+        this.live = positions.length;
+        build(0, positions.length, 0);
+    }
+
+    /**
+     * Build the tree over the matches of a scan. May run on any thread
+     */
+    public static BlockKdTree of(ScanResults results) {
+        long[] positions = new long[results.size()];
+        String[] ids = new String[results.size()];
+        for (int i = 0; i < positions.length; i++) {
+            positions[i] = results.getPosition(i);
+            ids[i] = results.getBlockId(i);
+        }
+        return new BlockKdTree(positions, ids);
+    }
+
+    /**
+     * Matches left in the tree
+     */
+    public int size() {
+        return live;
+    }
+
+    /**
+     * Take a block out of the tree
+     * @return false if it was not in it
+     */
+    public boolean remove(int x, int y, int z) {
+        int node = find(0, positions.length, 0, x, y, z);
+        if (node < 0) {
+            return false;
+        }
+        removed.set(node);
+        live--;
+        return true;
+    }
+
+    /**
+     * The k matches nearest to a point, nearest first
+     * @param accept test on the packed position of every candidate, null to accept all
+     */
+    public ScanResults nearest(int x, int y, int z, int k, LongPredicate accept) {
+        Heap heap = new Heap(Math.max(1, k));
+        nearest(0, positions.length, 0, x, y, z, heap, accept);
+        return heap.drain(this);
+    }
+
+    /**
+     * Matches inside a box, corners included, nearest to (x, y, z) first
+     * @param limit keep only the nearest, 0 for all
+     */
+    public ScanResults withinBox(int minX, int minY, int minZ, int maxX, int maxY, int maxZ,
+                                 int x, int y, int z, int limit) {
+        Collector found = new Collector(x, y, z);
+        box(0, positions.length, 0, new int[]{minX, minY, minZ}, new int[]{maxX, maxY, maxZ}, found, Long.MAX_VALUE);
+        return found.sorted(this, limit);
+    }
+
+    /**
+     * Matches at most radius blocks from the center, nearest first
+     * @param limit keep only the nearest, 0 for all
+     */
+    public ScanResults withinSphere(int x, int y, int z, double radius, int limit) {
+        int r = (int) Math.ceil(radius);
+        Collector found = new Collector(x, y, z);
+        box(0, positions.length, 0, new int[]{x - r, y - r, z - r}, new int[]{x + r, y + r, z + r},
+            found, (long) Math.floor(radius * radius));
+        return found.sorted(this, limit);
+    }
+
+    /**
+     * Matches whose block the ray passes through, in the order the ray meets them
+     * @param dirX direction, need not be normalized
+     * @param maxDistance length of the ray
+     */
+    public ScanResults alongRay(double originX, double originY, double originZ,
+                                double dirX, double dirY, double dirZ, double maxDistance, int limit) {
+        double length = Math.sqrt(dirX * dirX + dirY * dirY + dirZ * dirZ);
+        Collector found = new Collector((int) Math.floor(originX), (int) Math.floor(originY), (int) Math.floor(originZ));
+        if (length == 0) {
+            return found.sorted(this, limit);
+        }
+        Ray ray = new Ray(new double[]{originX, originY, originZ},
+            new double[]{dirX / length, dirY / length, dirZ / length}, maxDistance);
+        int[] lo = {Integer.MIN_VALUE / 2, Integer.MIN_VALUE / 2, Integer.MIN_VALUE / 2};
+        int[] hi = {Integer.MAX_VALUE / 2, Integer.MAX_VALUE / 2, Integer.MAX_VALUE / 2};
+        ray(0, positions.length, 0, lo, hi, ray, found);
+        return found.sorted(this, limit);
+    }
+
+    // Build: quickselect the median of every range on the axis of its depth
+
+    private void build(int from, int to, int depth) {
+        if (to - from < 2) {
+            return;
+        }
+        int axis = depth % 3;
+        int middle = (from + to) >>> 1;
+        select(from, to - 1, middle, coords[axis]);
+        build(from, middle, depth + 1);
+        build(middle + 1, to, depth + 1);
+    }
+
+    private void select(int left, int right, int k, int[] axisCoords) {
+        while (left < right) {
+            int pivot = axisCoords[(left + right) >>> 1];
+            int i = left;
+            int j = right;
+            while (i <= j) {
+                while (axisCoords[i] < pivot) i++;
+                while (axisCoords[j] > pivot) j--;
+                if (i <= j) {
+                    swap(i++, j--);
+                }
+            }
+            if (k <= j) {
+                right = j;
+            } else if (k >= i) {
+                left = i;
+            } else {
+                return;
+            }
+        }
+    }
+
+    private void swap(int a, int b) {
+        long position = positions[a];
+        positions[a] = positions[b];
+        positions[b] = position;
+        String id = ids[a];
+        ids[a] = ids[b];
+        ids[b] = id;
+        for (int[] axisCoords : coords) {
+            int c = axisCoords[a];
+            axisCoords[a] = axisCoords[b];
+            axisCoords[b] = c;
+        }
+    }
+
+    // Queries
+
+    private long distanceSq(int node, int x, int y, int z) {
+        long dx = coords[0][node] - x;
+        long dy = coords[1][node] - y;
+        long dz = coords[2][node] - z;
+        return dx * dx + dy * dy + dz * dz;
+    }
+
+    private int find(int from, int to, int depth, int x, int y, int z) {
+        if (from >= to) {
+            return -1;
+        }
+        int middle = (from + to) >>> 1;
+        if (coords[0][middle] == x && coords[1][middle] == y && coords[2][middle] == z && !removed.get(middle)) {
+            return middle;
+        }
+        int axis = depth % 3;
+        int c = axis == 0 ? x : axis == 1 ? y : z;
+        int split = coords[axis][middle];
+        // Equal coordinates can end up on either side of the median
+        int found = c <= split ? find(from, middle, depth + 1, x, y, z) : -1;
+        return found < 0 && c >= split ? find(middle + 1, to, depth + 1, x, y, z) : found;
+    }
+
+    private void nearest(int from, int to, int depth, int x, int y, int z, Heap heap, LongPredicate accept) {
+        if (from >= to) {
+            return;
+        }
+        int middle = (from + to) >>> 1;
+        int axis = depth % 3;
+        long diff = (long) (axis == 0 ? x : axis == 1 ? y : z) - coords[axis][middle];
+        boolean leftFirst = diff <= 0;
+
+        if (leftFirst) {
+            nearest(from, middle, depth + 1, x, y, z, heap, accept);
+        } else {
+            nearest(middle + 1, to, depth + 1, x, y, z, heap, accept);
+        }
+        long distanceSq = distanceSq(middle, x, y, z);
+        if (!removed.get(middle) && heap.wants(distanceSq) && (accept == null || accept.test(positions[middle]))) {
+            heap.offer(middle, distanceSq);
+        }
+        // The other side is only worth a look if the splitting plane is closer than the worst kept
+        if (heap.wants(diff * diff)) {
+            if (leftFirst) {
+                nearest(middle + 1, to, depth + 1, x, y, z, heap, accept);
+            } else {
+                nearest(from, middle, depth + 1, x, y, z, heap, accept);
+            }
+        }
+    }
+
+    private void box(int from, int to, int depth, int[] min, int[] max, Collector found, long maxDistanceSq) {
+        if (from >= to) {
+            return;
+        }
+        int middle = (from + to) >>> 1;
+        int axis = depth % 3;
+        int split = coords[axis][middle];
+        if (min[axis] <= split) {
+            box(from, middle, depth + 1, min, max, found, maxDistanceSq);
+        }
+        if (!removed.get(middle)
+                && coords[0][middle] >= min[0] && coords[0][middle] <= max[0]
+                && coords[1][middle] >= min[1] && coords[1][middle] <= max[1]
+                && coords[2][middle] >= min[2] && coords[2][middle] <= max[2]) {
+            long distanceSq = distanceSq(middle, found.x, found.y, found.z);
+            if (distanceSq <= maxDistanceSq) {
+                found.add(middle, distanceSq, distanceSq);
+            }
+        }
+        if (max[axis] >= split) {
+            box(middle + 1, to, depth + 1, min, max, found, maxDistanceSq);
+        }
+    }
+
+    private void ray(int from, int to, int depth, int[] lo, int[] hi, Ray ray, Collector found) {
+        if (from >= to || ray.enter(lo, hi) < 0) {
+            return;
+        }
+        int middle = (from + to) >>> 1;
+        int axis = depth % 3;
+        int split = coords[axis][middle];
+        if (!removed.get(middle)) {
+            int[] block = {coords[0][middle], coords[1][middle], coords[2][middle]};
+            double t = ray.enter(block, block);
+            if (t >= 0) {
+                // Sorted by the distance along the ray, in 1/1024 block steps
+                found.add(middle, (long) (t * 1024), distanceSq(middle, found.x, found.y, found.z));
+            }
+        }
+        int saved = hi[axis];
+        hi[axis] = split;
+        ray(from, middle, depth + 1, lo, hi, ray, found);
+        hi[axis] = saved;
+        saved = lo[axis];
+        lo[axis] = split;
+        ray(middle + 1, to, depth + 1, lo, hi, ray, found);
+        lo[axis] = saved;
+    }
+
+    /**
+     * Segment from an origin along a unit direction
+     */
+    private static final class Ray {
+        final double[] origin;
+        final double[] direction;
+        final double length;
+
+        Ray(double[] origin, double[] direction, double length) {
+            this.origin = origin;
+            this.direction = direction;
+            this.length = length;
+        }
+
+        /**
+         * Slab test against the blocks lo..hi (whole blocks, so hi + 1 is the far face)
+         * @return distance along the ray where it enters, -1 if it misses
+         */
+        double enter(int[] lo, int[] hi) {
+            double near = 0;
+            double far = length;
+            for (int axis = 0; axis < 3; axis++) {
+                double o = origin[axis];
+                double d = direction[axis];
+                double min = lo[axis];
+                double max = hi[axis] + 1.0;
+                if (d == 0) {
+                    if (o < min || o > max) {
+                        return -1;
+                    }
+                    continue;
+                }
+                double t1 = (min - o) / d;
+                double t2 = (max - o) / d;
+                near = Math.max(near, Math.min(t1, t2));
+                far = Math.min(far, Math.max(t1, t2));
+                if (near > far) {
+                    return -1;
+                }
+            }
+            return near;
+        }
+    }
+
+    /**
+     * Bounded max-heap of the k best nodes by squared distance
+     */
+    private static final class Heap {
+        final int[] nodes;
+        final long[] distancesSq;
+        int size;
+
+        Heap(int capacity) {
+            nodes = new int[capacity];
+            distancesSq = new long[capacity];
+        }
+
+        boolean wants(long distanceSq) {
+            return size < nodes.length || distanceSq < distancesSq[0];
+        }
+
+        void offer(int node, long distanceSq) {
+            int i;
+            if (size < nodes.length) {
+                i = size++;
+                while (i > 0 && distancesSq[(i - 1) / 2] < distanceSq) {
+                    nodes[i] = nodes[(i - 1) / 2];
+                    distancesSq[i] = distancesSq[(i - 1) / 2];
+                    i = (i - 1) / 2;
+                }
+            } else {
+                // Replace the root (worst) and sift down
+                i = 0;
+                while (true) {
+                    int child = 2 * i + 1;
+                    if (child >= size) break;
+                    if (child + 1 < size && distancesSq[child + 1] > distancesSq[child]) child++;
+                    if (distancesSq[child] <= distanceSq) break;
+                    nodes[i] = nodes[child];
+                    distancesSq[i] = distancesSq[child];
+                    i = child;
+                }
+            }
+            nodes[i] = node;
+            distancesSq[i] = distanceSq;
+        }
+
+        ScanResults drain(BlockKdTree tree) {
+            Collector sorted = new Collector(0, 0, 0);
+            for (int i = 0; i < size; i++) {
+                sorted.add(nodes[i], distancesSq[i], distancesSq[i]);
+            }
+            return sorted.sorted(tree, 0);
+        }
+    }
+
+    /**
+     * Nodes found by a query with their sort key and squared distance to (x, y, z)
+     */
+    private static final class Collector {
+        final int x, y, z;
+        int[] nodes = new int[16];
+        long[] keys = new long[16];
+        long[] distancesSq = new long[16];
+        int size;
+
+        Collector(int x, int y, int z) {
+            this.x = x;
+            this.y = y;
+            this.z = z;
+        }
+
+        void add(int node, long key, long distanceSq) {
+            if (size == nodes.length) {
+                nodes = Arrays.copyOf(nodes, size * 2);
+                keys = Arrays.copyOf(keys, size * 2);
+                distancesSq = Arrays.copyOf(distancesSq, size * 2);
+            }
+            nodes[size] = node;
+            keys[size] = key;
+            distancesSq[size] = distanceSq;
+            size++;
+        }
+
+        /**
+         * By key, ties in tree order; sorts packed (key, slot) longs instead of boxing
+         */
+        ScanResults sorted(BlockKdTree tree, int limit) {
+            long[] packed = new long[size];
+            for (int i = 0; i < size; i++) {
+                packed[i] = Math.min(keys[i], Integer.MAX_VALUE) << 32 | i;
+            }
+            Arrays.sort(packed);
+            int wanted = limit > 0 ? Math.min(limit, size) : size;
+            ScanResults results = new ScanResults(wanted);
+            for (int i = 0; i < wanted; i++) {
+                int slot = (int) packed[i];
+                int node = nodes[slot];
+                results.add(tree.positions[node], tree.ids[node], distancesSq[slot]);
+            }
+            return results;
+        }
+    }
+}
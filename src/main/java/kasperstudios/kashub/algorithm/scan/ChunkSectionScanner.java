@@ -0,0 +1,122 @@
+package kasperstudios.kashub.algorithm.scan;
+
+import net.minecraft.block.BlockState;
+import net.minecraft.world.World;
+import net.minecraft.world.chunk.ChunkSection;
+import net.minecraft.world.chunk.WorldChunk;
+
+/**
+ * Block scans that walk the 16x16x16 sections of loaded chunks instead of
+ * calling World.getBlockState per position. Sections that are all air, or
+ * whose palette holds no matching state, are skipped without reading a block;
+ * the others are read straight from the section without allocating positions.
+ */
+public final class ChunkSectionScanner {
+    private ChunkSectionScanner() {}
+
+    /**
+     * Receives every matching block of a scan
+     */
+    @FunctionalInterface
+    public interface Hit {
+        void accept(int x, int y, int z, String blockId);
+    }
+
+    /**
+     * Scan the loaded chunks of a region
+     * @return number of sections read block by block
+     */
+    public static int scan(World world, ScanRegion region, BlockFilter filter, Hit hit) {
+        int sections = 0;
+        for (int chunkX = region.getMinChunkX(); chunkX <= region.getMaxChunkX(); chunkX++) {
+            for (int chunkZ = region.getMinChunkZ(); chunkZ <= region.getMaxChunkZ(); chunkZ++) {
+                WorldChunk chunk = world.getChunkManager().getWorldChunk(chunkX, chunkZ);
+                if (chunk != null) {
+                    sections += scanChunk(chunk, region, filter, hit);
+                }
+            }
+        }
+        return sections;
+    }
+
+    /**
+     * Scan the part of one chunk inside the region
+     * @return number of sections read block by block
+     */
+    public static int scanChunk(WorldChunk chunk, ScanRegion region, BlockFilter filter, Hit hit) {
+        int startX = chunk.getPos().getStartX();
+        int startZ = chunk.getPos().getStartZ();
+        long[] columns = columnMask(startX, startZ, region);
+        if (columns == null) {
+            return 0;
+        }
+
+        ChunkSection[] sectionArray = chunk.getSectionArray();
+        int bottomSection = chunk.getBottomSectionCoord();
+        boolean skipEmpty = !filter.matchesAir();
+        int scanned = 0;
+        for (int i = 0; i < sectionArray.length; i++) {
+            ChunkSection section = sectionArray[i];
+            int baseY = (bottomSection + i) << 4;
+            if (section == null || baseY + 15 < region.getMinY() || baseY > region.getMaxY()) {
+                continue;
+            }
+            if (skipEmpty && section.isEmpty()) {
+                continue;
+            }
+            // Palette check: no matching state anywhere in the section
+            if (!section.hasAny(filter.asPredicate())) {
+                continue;
+            }
+            scanned++;
+
+            int fromY = Math.max(0, region.getMinY() - baseY);
+            int toY = Math.min(15, region.getMaxY() - baseY);
+            BlockState lastState = null;
+            String lastId = null;
+            for (int y = fromY; y <= toY; y++) {
+                for (int z = 0; z < 16; z++) {
+                    for (int x = 0; x < 16; x++) {
+                        if (!hasColumn(columns, x, z)) {
+                            continue;
+                        }
+                        BlockState state = section.getBlockState(x, y, z);
+                        // Runs of the same state (stone, deepslate) are the common case
+                        if (state != lastState) {
+                            lastState = state;
+                            lastId = filter.match(state);
+                        }
+                        if (lastId != null) {
+                            hit.accept(startX + x, baseY + y, startZ + z, lastId);
+                        }
+                    }
+                }
+            }
+        }
+        return scanned;
+    }
+
+    /**
+     * Columns of the chunk at (startX, startZ) inside the region, bit (z << 4 | x)
+     * @return null if there are none
+     */
+    static long[] columnMask(int startX, int startZ, ScanRegion region) {
+        long[] columns = new long[4];
+        boolean anyColumn = false;
+        for (int z = 0; z < 16; z++) {
+            for (int x = 0; x < 16; x++) {
+                if (region.containsColumn(startX + x, startZ + z)) {
+                    int column = z << 4 | x;
+                    columns[column >> 6] |= 1L << column;
+                    anyColumn = true;
+                }
+            }
+        }
+        return anyColumn ? columns : null;
+    }
+
+    static boolean hasColumn(long[] columns, int x, int z) {
+        int column = z << 4 | x;
+        return (columns[column >> 6] & 1L << column) != 0;
+    }
+}
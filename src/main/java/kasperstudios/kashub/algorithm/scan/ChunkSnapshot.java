@@ -0,0 +1,92 @@
+package kasperstudios.kashub.algorithm.scan;
+
+import net.minecraft.block.BlockState;
+import net.minecraft.world.chunk.ChunkSection;
+import net.minecraft.world.chunk.PalettedContainer;
+import net.minecraft.world.chunk.WorldChunk;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Copy of the sections of one chunk a scan needs, taken on the client thread.
+ * Only sections inside the region whose palette can hold a match are copied
+ * (a palette and a packed long array each), so the copy is cheap and the scan
+ * can run on any thread while the world keeps changing.
+ */
+final class ChunkSnapshot implements ChunkSource {
+    private final int startX;
+    private final int startZ;
+    private final long[] columns;
+    private final int[] baseYs;
+    private final List<PalettedContainer<BlockState>> sections;
+
+    private ChunkSnapshot(int startX, int startZ, long[] columns, int[] baseYs, List<PalettedContainer<BlockState>> sections) {
+        this.startX = startX;
+        this.startZ = startZ;
+        this.columns = columns;
+        this.baseYs = baseYs;
+        this.sections = sections;
+    }
+
+    /**
+     * Copy the candidate sections of the chunk. Must run on the client thread
+     * @return null if no section of the chunk can contain a match
+     */
+    static ChunkSnapshot capture(WorldChunk chunk, ScanRegion region, BlockFilter filter) {
+        int startX = chunk.getPos().getStartX();
+        int startZ = chunk.getPos().getStartZ();
+        long[] columns = ChunkSectionScanner.columnMask(startX, startZ, region);
+        if (columns == null) {
+            return null;
+        }
+
+        ChunkSection[] sectionArray = chunk.getSectionArray();
+        int bottomSection = chunk.getBottomSectionCoord();
+        boolean skipEmpty = !filter.matchesAir();
+        int[] baseYs = new int[sectionArray.length];
+        List<PalettedContainer<BlockState>> sections = new ArrayList<>();
+        for (int i = 0; i < sectionArray.length; i++) {
+            ChunkSection section = sectionArray[i];
+            int baseY = (bottomSection + i) << 4;
+            if (section == null || baseY + 15 < region.getMinY() || baseY > region.getMaxY()) {
+                continue;
+            }
+            if ((skipEmpty && section.isEmpty()) || !section.hasAny(filter.asPredicate())) {
+                continue;
+            }
+            baseYs[sections.size()] = baseY;
+            sections.add(section.getBlockStateContainer().copy());
+        }
+        return sections.isEmpty() ? null : new ChunkSnapshot(startX, startZ, columns, baseYs, sections);
+    }
+
+    @Override
+    public void scan(ScanRegion region, BlockFilter filter, ChunkSectionScanner.Hit hit) {
+        for (int i = 0; i < sections.size(); i++) {
+            PalettedContainer<BlockState> states = sections.get(i);
+            int baseY = baseYs[i];
+            int fromY = Math.max(0, region.getMinY() - baseY);
+            int toY = Math.min(15, region.getMaxY() - baseY);
+            BlockState lastState = null;
+            String lastId = null;
+            for (int y = fromY; y <= toY; y++) {
+                for (int z = 0; z < 16; z++) {
+                    for (int x = 0; x < 16; x++) {
+                        if (!ChunkSectionScanner.hasColumn(columns, x, z)) {
+                            continue;
+                        }
+                        BlockState state = states.get(x, y, z);
+                        if (state != lastState) {
+                            lastState = state;
+                            lastId = filter.match(state);
+                        }
+                        if (lastId != null) {
+                            hit.accept(startX + x, baseY + y, startZ + z, lastId);
+                        }
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,12 @@
+package kasperstudios.kashub.algorithm.scan;
+
+/**
+ * Immutable block data of one chunk that a scan can read from any thread:
+ * an index entry or a section snapshot
+ */
+interface ChunkSource {
+    /**
+     * Report the matching blocks inside the region
+     */
+    void scan(ScanRegion region, BlockFilter filter, ChunkSectionScanner.Hit hit);
+}
@@ -0,0 +1,217 @@
+package kasperstudios.kashub.algorithm.scan;
+
+import kasperstudios.kashub.algorithm.Command;
+import kasperstudios.kashub.client.ClientFacade;
+import kasperstudios.kashub.runtime.CommandExecutor;
+import net.minecraft.util.math.ChunkPos;
+import net.minecraft.world.World;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.LongPredicate;
+
+/**
+ * Block scan that runs in the background and reports as it goes. Chunk columns are
+ * visited nearest first, in batches: a batch is captured on the client thread within
+ * a small time budget, scanned on the scan pool, then merged into the results back on
+ * the client thread, where the listener sees the results so far.
+ * With a limit the scan ends as soon as no chunk left can hold a nearer match than
+ * the ones kept. Cancelling {@link #getFuture()} stops it before the next batch.
+ */
+public final class ScanJob {
+    // Client thread time spent capturing one batch
+    private static final long CAPTURE_BUDGET_NANOS = 2_000_000L;
+    private static final int INDEX_BITS = 20;
+
+    /**
+     * Called on the client thread after every batch and once more when the scan ends
+     */
+    public interface Listener {
+        void onUpdate(ScanJob job);
+    }
+
+    private final ScanRegion region;
+    private final BlockFilter filter;
+    private final int centerX, centerY, centerZ;
+    private final int limit;
+    private final LongPredicate keep;
+    private final Listener listener;
+    private final long[] chunks;           // ChunkPos longs, nearest first
+    private final long[] chunkDistancesSq; // nearest a block of the chunk can be
+    private final CompletableFuture<ScanResults> future = new CompletableFuture<>();
+
+    private World world;
+    private int nextChunk;
+    private volatile int scannedChunks;
+    private volatile boolean finished;
+    private volatile ScanResults results = new ScanResults(0);
+
+    private ScanJob(ScanRegion region, BlockFilter filter, int centerX, int centerY, int centerZ,
+                    int limit, LongPredicate keep, Listener listener) {
+        this.region = region;
+        this.filter = filter;
+        this.centerX = centerX;
+        this.centerY = centerY;
+        this.centerZ = centerZ;
+        this.limit = limit;
+        this.keep = keep;
+        this.listener = listener;
+
+        int width = Math.max(0, region.getMaxChunkX() - region.getMinChunkX() + 1);
+        int depth = Math.max(0, region.getMaxChunkZ() - region.getMinChunkZ() + 1);
+        // The chunk index has to fit below the distance in the sort keys
+        if ((long) width * depth > 1L << INDEX_BITS) {
+            throw new IllegalArgumentException("Scan region too large: " + width + "x" + depth + " chunks");
+        }
+        long dy = Math.max(0, Math.max(region.getMinY() - centerY, centerY - region.getMaxY()));
+        long[] keys = new long[width * depth];
+        long[] distances = new long[keys.length];
+        int n = 0;
+        for (int chunkX = region.getMinChunkX(); chunkX <= region.getMaxChunkX(); chunkX++) {
+            for (int chunkZ = region.getMinChunkZ(); chunkZ <= region.getMaxChunkZ(); chunkZ++) {
+                long dx = Math.max(0, Math.max((chunkX << 4) - centerX, centerX - ((chunkX << 4) + 15)));
+                long dz = Math.max(0, Math.max((chunkZ << 4) - centerZ, centerZ - ((chunkZ << 4) + 15)));
+                distances[n] = dx * dx + dy * dy + dz * dz;
+                keys[n] = distances[n] << INDEX_BITS | n;
+                n++;
+            }
+        }
+        Arrays.sort(keys);
+        this.chunks = new long[n];
+        this.chunkDistancesSq = new long[n];
+        for (int i = 0; i < n; i++) {
+            int from = (int) (keys[i] & ((1L << INDEX_BITS) - 1));
+            chunks[i] = ChunkPos.toLong(region.getMinChunkX() + from / depth, region.getMinChunkZ() + from % depth);
+            chunkDistancesSq[i] = distances[from];
+        }
+    }
+
+    /**
+     * Start a scan. May be called from any thread; the first batch is captured on the next client tick.
+     * The region should already be clipped to the loaded chunks, see {@link ScanRegion#clipToChunks}
+     * @param centerX distances and the result order are relative to the center
+     * @param limit keep only the nearest matches, 0 for all
+     * @param keep test run on the client thread on every match before it is kept, null to keep all
+     */
+    public static ScanJob start(ScanRegion region, BlockFilter filter, int centerX, int centerY, int centerZ,
+                                int limit, LongPredicate keep, Listener listener) {
+        ScanJob job = new ScanJob(region, filter, centerX, centerY, centerZ, limit, keep, listener);
+        job.post(null);
+        return job;
+    }
+
+    /**
+     * Completed with the results once the scan ends; cancel it to stop the scan
+     */
+    public CompletableFuture<ScanResults> getFuture() {
+        return future;
+    }
+
+    public void cancel() {
+        future.cancel(false);
+    }
+
+    /**
+     * True once the scan has ended or was cancelled, already during the last listener call
+     */
+    public boolean isDone() {
+        return finished || future.isDone();
+    }
+
+    /**
+     * Matches found so far, nearest first
+     */
+    public ScanResults getResults() {
+        return results;
+    }
+
+    public int getScannedChunks() {
+        return scannedChunks;
+    }
+
+    public int getTotalChunks() {
+        return chunks.length;
+    }
+
+    /**
+     * Share of the chunk columns scanned, 0 to 100
+     */
+    public int getProgress() {
+        return chunks.length == 0 ? 100 : (int) (scannedChunks * 100L / chunks.length);
+    }
+
+    private void post(ScanResults batch) {
+        CommandExecutor.getInstance().submit(Command.Lane.GAME, () -> {
+            try {
+                step(batch);
+            } catch (Exception e) {
+                future.completeExceptionally(e);
+            }
+        });
+    }
+
+    /**
+     * Client thread: take in the last batch, then capture the next one or finish
+     */
+    private void step(ScanResults batch) {
+        if (future.isDone()) {
+            return;
+        }
+        if (batch != null) {
+            results = ScanResults.merge(results, keep != null ? batch.filter(keep) : batch, limit);
+            scannedChunks = nextChunk;
+        }
+
+        World current = ClientFacade.getInstance().getWorld();
+        if (world == null) {
+            world = current;
+        }
+        // Left the world or changed dimension: what was found so far is all there is
+        if (current == null || current != world || nextChunk == chunks.length || limitReached()) {
+            scannedChunks = nextChunk;
+            finished = true;
+            listener.onUpdate(this);
+            future.complete(results);
+            return;
+        }
+        if (batch != null) {
+            listener.onUpdate(this);
+        }
+
+        BlockIndex index = BlockIndex.getInstance();
+        boolean indexed = index.canAnswer(world, filter);
+        if (indexed && nextChunk == 0) {
+            index.countIndexedQuery();
+        }
+        List<ChunkSource> sources = new ArrayList<>();
+        long start = System.nanoTime();
+        do {
+            long chunk = chunks[nextChunk++];
+            ChunkSource source = SnapshotScan.captureChunk(world, index, indexed,
+                ChunkPos.getPackedX(chunk), ChunkPos.getPackedZ(chunk), region, filter);
+            if (source != null) {
+                sources.add(source);
+            }
+        } while (nextChunk < chunks.length && System.nanoTime() - start < CAPTURE_BUDGET_NANOS);
+
+        // The visibility test runs after the batch is cut, so it must see every match of the batch
+        new SnapshotScan(region, filter, centerX, centerY, centerZ, sources).runAsync(keep != null ? 0 : limit)
+            .whenComplete((found, error) -> {
+                if (error != null) {
+                    future.completeExceptionally(error);
+                } else {
+                    post(found);
+                }
+            });
+    }
+
+    /**
+     * True once the nearest {@code limit} matches are closer than anything the remaining chunks can hold
+     */
+    private boolean limitReached() {
+        return limit > 0 && results.size() >= limit
+            && results.getDistanceSq(limit - 1) <= chunkDistancesSq[nextChunk];
+    }
+}
@@ -0,0 +1,88 @@
+package kasperstudios.kashub.algorithm.scan;
+
+/**
+ * Volume of a block scan: a vertical cylinder around a center or an axis-aligned box,
+ * both clipped to [minY, maxY]. Bounds are inclusive.
+ */
+public final class ScanRegion {
+    private final int minX, minY, minZ, maxX, maxY, maxZ;
+    private final int centerX, centerZ;
+    private final long radiusSq; // -1 for a box
+
+    private ScanRegion(int minX, int minY, int minZ, int maxX, int maxY, int maxZ,
+                       int centerX, int centerZ, long radiusSq) {
+        this.minX = minX;
+        this.minY = minY;
+        this.minZ = minZ;
+        this.maxX = maxX;
+        this.maxY = maxY;
+        this.maxZ = maxZ;
+        this.centerX = centerX;
+        this.centerZ = centerZ;
+        this.radiusSq = radiusSq;
+    }
+
+    /**
+     * Columns within the horizontal radius of the center
+     */
+    public static ScanRegion cylinder(int centerX, int centerZ, int radius, int minY, int maxY) {
+        return new ScanRegion(centerX - radius, minY, centerZ - radius, centerX + radius, maxY, centerZ + radius,
+            centerX, centerZ, (long) radius * radius);
+    }
+
+    /**
+     * Box between two corners, in any order
+     */
+    public static ScanRegion box(int x1, int y1, int z1, int x2, int y2, int z2) {
+        return new ScanRegion(Math.min(x1, x2), Math.min(y1, y2), Math.min(z1, z2),
+            Math.max(x1, x2), Math.max(y1, y2), Math.max(z1, z2), 0, 0, -1);
+    }
+
+    /**
+     * Cube of the given radius around a block, the volume of the 'scan' command
+     */
+    public static ScanRegion cube(int x, int y, int z, int radius) {
+        return box(x - radius, y - radius, z - radius, x + radius, y + radius, z + radius);
+    }
+
+    /**
+     * This region cut to the square of chunk columns within {@code chunkRadius} of a chunk,
+     * e.g. the chunks the client can have loaded around the player
+     */
+    public ScanRegion clipToChunks(int centerChunkX, int centerChunkZ, int chunkRadius) {
+        int clipMinX = (centerChunkX - chunkRadius) << 4;
+        int clipMinZ = (centerChunkZ - chunkRadius) << 4;
+        int clipMaxX = ((centerChunkX + chunkRadius) << 4) + 15;
+        int clipMaxZ = ((centerChunkZ + chunkRadius) << 4) + 15;
+        return new ScanRegion(Math.max(minX, clipMinX), minY, Math.max(minZ, clipMinZ),
+            Math.min(maxX, clipMaxX), maxY, Math.min(maxZ, clipMaxZ), centerX, centerZ, radiusSq);
+    }
+
+    public boolean containsColumn(int x, int z) {
+        if (x < minX || x > maxX || z < minZ || z > maxZ) {
+            return false;
+        }
+        if (radiusSq < 0) {
+            return true;
+        }
+        long dx = x - centerX;
+        long dz = z - centerZ;
+        return dx * dx + dz * dz <= radiusSq;
+    }
+
+    public boolean contains(int x, int y, int z) {
+        return y >= minY && y <= maxY && containsColumn(x, z);
+    }
+
+    public int getMinX() { return minX; }
+    public int getMinY() { return minY; }
+    public int getMinZ() { return minZ; }
+    public int getMaxX() { return maxX; }
+    public int getMaxY() { return maxY; }
+    public int getMaxZ() { return maxZ; }
+
+    public int getMinChunkX() { return minX >> 4; }
+    public int getMaxChunkX() { return maxX >> 4; }
+    public int getMinChunkZ() { return minZ >> 4; }
+    public int getMaxChunkZ() { return maxZ >> 4; }
+}
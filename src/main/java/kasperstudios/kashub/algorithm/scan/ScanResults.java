@@ -0,0 +1,108 @@
+package kasperstudios.kashub.algorithm.scan;
+
+import net.minecraft.util.math.BlockPos;
+
+import java.util.Arrays;
+import java.util.function.LongPredicate;
+
+/**
+ * Matches of a scan, nearest to the scan center first.
+ * Positions are packed with BlockPos.asLong; nothing is allocated per match.
+ */
+public final class ScanResults {
+    private long[] positions;
+    private String[] ids;
+    private long[] distancesSq;
+    private int size;
+
+    ScanResults(int capacity) {
+        int initial = Math.max(16, capacity);
+        this.positions = new long[initial];
+        this.ids = new String[initial];
+        this.distancesSq = new long[initial];
+    }
+
+    void add(long position, String id, long distanceSq) {
+        if (size == positions.length) {
+            int capacity = size * 2;
+            positions = Arrays.copyOf(positions, capacity);
+            ids = Arrays.copyOf(ids, capacity);
+            distancesSq = Arrays.copyOf(distancesSq, capacity);
+        }
+        positions[size] = position;
+        ids[size] = id;
+        distancesSq[size] = distanceSq;
+        size++;
+    }
+
+    /**
+     * Matches of both, still nearest first
+     * @param limit keep only the nearest matches, 0 for all
+     */
+    static ScanResults merge(ScanResults a, ScanResults b, int limit) {
+        int total = a.size + b.size;
+        int wanted = limit > 0 ? Math.min(limit, total) : total;
+        ScanResults merged = new ScanResults(wanted);
+        int i = 0;
+        int j = 0;
+        while (merged.size < wanted) {
+            if (j == b.size || (i < a.size && a.distancesSq[i] <= b.distancesSq[j])) {
+                merged.add(a.positions[i], a.ids[i], a.distancesSq[i]);
+                i++;
+            } else {
+                merged.add(b.positions[j], b.ids[j], b.distancesSq[j]);
+                j++;
+            }
+        }
+        return merged;
+    }
+
+    /**
+     * Matches whose packed position passes the test, in the same order
+     */
+    ScanResults filter(LongPredicate keep) {
+        ScanResults kept = new ScanResults(size);
+        for (int i = 0; i < size; i++) {
+            if (keep.test(positions[i])) {
+                kept.add(positions[i], ids[i], distancesSq[i]);
+            }
+        }
+        return kept;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public long getPosition(int i) {
+        return positions[i];
+    }
+
+    public int getX(int i) {
+        return BlockPos.unpackLongX(positions[i]);
+    }
+
+    public int getY(int i) {
+        return BlockPos.unpackLongY(positions[i]);
+    }
+
+    public int getZ(int i) {
+        return BlockPos.unpackLongZ(positions[i]);
+    }
+
+    public String getBlockId(int i) {
+        return ids[i];
+    }
+
+    public long getDistanceSq(int i) {
+        return distancesSq[i];
+    }
+
+    public double getDistance(int i) {
+        return Math.sqrt(distancesSq[i]);
+    }
+}
@@ -0,0 +1,232 @@
+package kasperstudios.kashub.algorithm.scan;
+
+import net.minecraft.util.math.BlockPos;
+import net.minecraft.world.World;
+import net.minecraft.world.chunk.WorldChunk;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Block scan in two steps. {@link #capture} runs on the client thread and takes an
+ * immutable source per chunk column: the {@link BlockIndex} entry when the index can
+ * answer the filter, a {@link ChunkSnapshot} of the candidate sections otherwise.
+ * {@link #run} then scans the sources in parallel, one fork-join leaf per chunk
+ * column, each producing its matches sorted by distance, and merges them nearest
+ * first with a k-way merge. The world is never read off the client thread.
+ */
+public final class SnapshotScan {
+    private static final ForkJoinPool POOL = new ForkJoinPool(
+        Math.max(1, Runtime.getRuntime().availableProcessors() - 1),
+        pool -> {
+            ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+            thread.setName("Kashub-Scan-" + thread.getPoolIndex());
+            thread.setDaemon(true);
+            return thread;
+        }, null, false);
+
+    // Sort key of a match inside a chunk: squared distance above, index below
+    private static final int INDEX_BITS = 20;
+
+    private final ScanRegion region;
+    private final BlockFilter filter;
+    private final int centerX, centerY, centerZ;
+    private final List<ChunkSource> sources;
+
+    SnapshotScan(ScanRegion region, BlockFilter filter, int centerX, int centerY, int centerZ, List<ChunkSource> sources) {
+        this.region = region;
+        this.filter = filter;
+        this.centerX = centerX;
+        this.centerY = centerY;
+        this.centerZ = centerZ;
+        this.sources = sources;
+    }
+
+    /**
+     * Take what the scan needs from the world. Must run on the client thread
+     * @param centerX distances and the result order are relative to the center
+     */
+    public static SnapshotScan capture(World world, ScanRegion region, BlockFilter filter,
+                                       int centerX, int centerY, int centerZ) {
+        BlockIndex index = BlockIndex.getInstance();
+        boolean indexed = index.canAnswer(world, filter);
+        List<ChunkSource> sources = new ArrayList<>();
+        for (int chunkX = region.getMinChunkX(); chunkX <= region.getMaxChunkX(); chunkX++) {
+            for (int chunkZ = region.getMinChunkZ(); chunkZ <= region.getMaxChunkZ(); chunkZ++) {
+                ChunkSource source = captureChunk(world, index, indexed, chunkX, chunkZ, region, filter);
+                if (source != null) {
+                    sources.add(source);
+                }
+            }
+        }
+        if (indexed) {
+            index.countIndexedQuery();
+        }
+        return new SnapshotScan(region, filter, centerX, centerY, centerZ, sources);
+    }
+
+    /**
+     * Source of one chunk column: its index entry if the index answers the filter,
+     * a snapshot otherwise. Must run on the client thread
+     * @return null if the chunk is not loaded or cannot contain a match
+     */
+    static ChunkSource captureChunk(World world, BlockIndex index, boolean indexed, int chunkX, int chunkZ,
+                                    ScanRegion region, BlockFilter filter) {
+        ChunkSource source = indexed ? index.getEntry(chunkX, chunkZ) : null;
+        if (source == null) {
+            WorldChunk chunk = world.getChunkManager().getWorldChunk(chunkX, chunkZ);
+            source = chunk != null ? ChunkSnapshot.capture(chunk, region, filter) : null;
+            if (indexed && chunk != null) {
+                index.countScannedChunk();
+            }
+        }
+        return source;
+    }
+
+    /**
+     * Number of chunk columns that will be read
+     */
+    public int getChunkCount() {
+        return sources.size();
+    }
+
+    /**
+     * Scan the captured chunks in parallel. May run on any thread; blocks until done
+     * @param limit keep only the nearest matches, 0 for all
+     */
+    public ScanResults run(int limit) {
+        ChunkHits[] hits = new ChunkHits[sources.size()];
+        if (!sources.isEmpty()) {
+            POOL.invoke(new Split(hits, 0, hits.length));
+        }
+        return merge(hits, limit);
+    }
+
+    /**
+     * {@link #run} on the scan pool, leaving the calling thread free
+     */
+    public CompletableFuture<ScanResults> runAsync(int limit) {
+        return CompletableFuture.supplyAsync(() -> run(limit), POOL);
+    }
+
+    /**
+     * K-way merge of the per-chunk lists, each already sorted nearest first
+     */
+    private static ScanResults merge(ChunkHits[] hits, int limit) {
+        int total = 0;
+        PriorityQueue<ChunkHits> queue = new PriorityQueue<>(Math.max(1, hits.length),
+            (a, b) -> Long.compare(a.headDistanceSq(), b.headDistanceSq()));
+        for (ChunkHits chunkHits : hits) {
+            if (chunkHits != null && chunkHits.size > 0) {
+                queue.add(chunkHits);
+                total += chunkHits.size;
+            }
+        }
+        int wanted = limit > 0 ? Math.min(limit, total) : total;
+        ScanResults results = new ScanResults(wanted);
+        while (results.size() < wanted) {
+            ChunkHits head = queue.poll();
+            results.add(head.positions[head.next], head.ids[head.next], head.distancesSq[head.next]);
+            if (++head.next < head.size) {
+                queue.add(head);
+            }
+        }
+        return results;
+    }
+
+    private ChunkHits scanChunk(ChunkSource source) {
+        ChunkHits hits = new ChunkHits();
+        source.scan(region, filter, (x, y, z, blockId) -> {
+            long dx = x - centerX;
+            long dy = y - centerY;
+            long dz = z - centerZ;
+            hits.add(BlockPos.asLong(x, y, z), blockId, dx * dx + dy * dy + dz * dz);
+        });
+        hits.sort();
+        return hits;
+    }
+
+    /**
+     * Splits the chunk range in halves down to one chunk column per task
+     */
+    private class Split extends RecursiveAction {
+        private final ChunkHits[] hits;
+        private final int from;
+        private final int to;
+
+        Split(ChunkHits[] hits, int from, int to) {
+            this.hits = hits;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from == 1) {
+                hits[from] = scanChunk(sources.get(from));
+                return;
+            }
+            int middle = (from + to) >>> 1;
+            invokeAll(new Split(hits, from, middle), new Split(hits, middle, to));
+        }
+    }
+
+    /**
+     * Matches of one chunk column
+     */
+    private static final class ChunkHits {
+        long[] positions = new long[16];
+        String[] ids = new String[16];
+        long[] distancesSq = new long[16];
+        int size;
+        int next; // merge cursor
+
+        void add(long position, String id, long distanceSq) {
+            if (size == positions.length) {
+                positions = Arrays.copyOf(positions, size * 2);
+                ids = Arrays.copyOf(ids, size * 2);
+                distancesSq = Arrays.copyOf(distancesSq, size * 2);
+            }
+            positions[size] = position;
+            ids[size] = id;
+            distancesSq[size] = distanceSq;
+            size++;
+        }
+
+        /**
+         * Nearest first; sorts packed (distance, index) keys instead of boxing
+         */
+        void sort() {
+            if (size < 2) {
+                return;
+            }
+            long[] keys = new long[size];
+            for (int i = 0; i < size; i++) {
+                keys[i] = distancesSq[i] << INDEX_BITS | i;
+            }
+            Arrays.sort(keys);
+            long[] sortedPositions = new long[size];
+            String[] sortedIds = new String[size];
+            long[] sortedDistances = new long[size];
+            for (int i = 0; i < size; i++) {
+                int from = (int) (keys[i] & ((1L << INDEX_BITS) - 1));
+                sortedPositions[i] = positions[from];
+                sortedIds[i] = ids[from];
+                sortedDistances[i] = distancesSq[from];
+            }
+            positions = sortedPositions;
+            ids = sortedIds;
+            distancesSq = sortedDistances;
+        }
+
+        long headDistanceSq() {
+            return distancesSq[next];
+        }
+    }
+}
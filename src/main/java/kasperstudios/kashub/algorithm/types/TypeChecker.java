@@ -199,6 +199,34 @@ public class TypeChecker {
         return valid;
     }
     
+    /**
+     * Та же проверка, что и checkCommandArgs, но без логов и без записи в общий список проблем,
+     * так что её можно звать с любого потока
+     * @return первое несоответствие или null (в том числе при mode = OFF)
+     */
+    public TypeIssue findArgumentMismatch(String commandName, String[] args, KHType[] expectedTypes, int lineNumber) {
+        if (mode == Mode.OFF || expectedTypes == null) {
+            return null;
+        }
+        for (int i = 0; i < Math.min(args.length, expectedTypes.length); i++) {
+            if (expectedTypes[i] == KHType.ANY) {
+                continue;
+            }
+            TypedValue typedValue = new TypedValue(args[i]);
+            if (!expectedTypes[i].isCompatibleWith(typedValue.getType())) {
+                return new TypeIssue(
+                    lineNumber,
+                    commandName + " arg[" + i + "]",
+                    expectedTypes[i],
+                    typedValue.getType(),
+                    "Argument type mismatch: expected " + expectedTypes[i].getName() +
+                    ", got " + typedValue.getType().getName()
+                );
+            }
+        }
+        return null;
+    }
+    
     /**
      * Возвращает список всех проблем типизации
      */
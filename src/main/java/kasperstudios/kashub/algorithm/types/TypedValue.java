@@ -1,56 +1,135 @@
 package kasperstudios.kashub.algorithm.types;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+
 /**
- * Обёртка для значения с информацией о типе
+ * Обёртка для значения с информацией о типе.
+ * Числа и логические значения хранятся без упаковки (long/double/boolean),
+ * строковое представление форматируется лениво — только когда его запросили.
+ * Строковые значения, наоборот, разбираются в число один раз и кэшируются.
  */
 public class TypedValue {
-    private final String value;
-    private final KHType type;
+    private enum Storage { LONG, DOUBLE, BOOL, TEXT, OBJECT }
+
+    private final Storage storage;
+    private final long longValue;
+    private final double doubleValue;
+    private final boolean boolValue;
+    private final Object objectValue;
     private final KHType declaredType;
-    
+
+    private int decimals = -1; // знаков после запятой при выводе, -1 - как есть
+
+    // Ленивые кэши
+    private String text;
+    private KHType type;
+    private byte numberState; // 0 - не проверено, 1 - число, 2 - не число
+    private double parsedNumber;
+
     public TypedValue(String value) {
-        this.value = value;
-        this.type = inferType(value);
-        this.declaredType = KHType.ANY;
+        this(value, KHType.ANY);
     }
-    
+
     public TypedValue(String value, KHType declaredType) {
-        this.value = value;
-        this.type = inferType(value);
+        this(Storage.TEXT, 0L, 0.0, false, null, declaredType);
+        this.text = value;
+    }
+
+    private TypedValue(Storage storage, long longValue, double doubleValue, boolean boolValue,
+                       Object objectValue, KHType declaredType) {
+        this.storage = storage;
+        this.longValue = longValue;
+        this.doubleValue = doubleValue;
+        this.boolValue = boolValue;
+        this.objectValue = objectValue;
         this.declaredType = declaredType;
     }
-    
+
+    public static TypedValue ofLong(long value) {
+        return new TypedValue(Storage.LONG, value, 0.0, false, null, KHType.ANY);
+    }
+
+    public static TypedValue ofDouble(double value) {
+        return new TypedValue(Storage.DOUBLE, 0L, value, false, null, KHType.ANY);
+    }
+
+    /**
+     * Дробное значение с фиксированным числом знаков при выводе (координаты, здоровье)
+     */
+    public static TypedValue ofDouble(double value, int decimals) {
+        TypedValue result = ofDouble(value);
+        result.decimals = decimals;
+        return result;
+    }
+
+    /**
+     * Целые значения хранятся как long, остальные как double
+     */
+    public static TypedValue ofNumber(double value) {
+        if (value == Math.rint(value) && value >= Long.MIN_VALUE && value <= Long.MAX_VALUE) {
+            return ofLong((long) value);
+        }
+        return ofDouble(value);
+    }
+
+    public static TypedValue ofBool(boolean value) {
+        return new TypedValue(Storage.BOOL, 0L, 0.0, value, null, KHType.ANY);
+    }
+
+    public static TypedValue ofString(String value) {
+        return new TypedValue(value);
+    }
+
+    /**
+     * Игровой объект (позиция, сущность, предмет...) с явным типом
+     */
+    public static TypedValue ofObject(Object value, KHType type) {
+        TypedValue result = new TypedValue(Storage.OBJECT, 0L, 0.0, false, value, KHType.ANY);
+        result.type = type;
+        return result;
+    }
+
     public String getValue() {
-        return value;
+        return asString();
     }
-    
+
     public KHType getType() {
+        if (type == null) {
+            type = switch (storage) {
+                case LONG, DOUBLE -> KHType.NUMBER;
+                case BOOL -> KHType.BOOL;
+                default -> inferType(text);
+            };
+        }
         return type;
     }
-    
+
     public KHType getDeclaredType() {
         return declaredType;
     }
-    
+
     /**
      * Автоматически определяет тип значения
      */
-    private static KHType inferType(String value) {
+    private KHType inferType(String value) {
         if (value == null || value.isEmpty() || value.equalsIgnoreCase("null")) {
             return KHType.NULL;
         }
-        
+
         // Проверяем boolean
         if (value.equalsIgnoreCase("true") || value.equalsIgnoreCase("false")) {
             return KHType.BOOL;
         }
-        
+
         // Проверяем число
-        try {
-            Double.parseDouble(value.replace(',', '.'));
+        if (isNumeric()) {
             return KHType.NUMBER;
-        } catch (NumberFormatException ignored) {}
-        
+        }
+
         // Проверяем позицию (x, y, z)
         String[] parts = value.split("[,\\s]+");
         if (parts.length == 3) {
@@ -67,11 +146,11 @@ public class TypedValue {
                 return KHType.POSITION;
             }
         }
-        
+
         // По умолчанию — строка
         return KHType.STRING;
     }
-    
+
     /**
      * Проверяет, соответствует ли значение объявленному типу
      */
@@ -79,47 +158,139 @@ public class TypedValue {
         if (declaredType == KHType.ANY) {
             return true;
         }
-        return declaredType.isCompatibleWith(type);
+        return declaredType.isCompatibleWith(getType());
     }
-    
+
     /**
-     * Конвертирует значение в число
+     * false для строкового значения null
      */
-    public double asNumber() {
+    public boolean hasValue() {
+        return storage != Storage.TEXT || text != null;
+    }
+
+    /**
+     * Можно ли получить значение как число без потерь
+     */
+    public boolean isNumeric() {
+        switch (storage) {
+            case LONG:
+            case DOUBLE:
+                return true;
+            case TEXT:
+                if (numberState == 0) {
+                    parseText();
+                }
+                return numberState == 1;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Хранится ли значение как целое число
+     */
+    public boolean isIntegral() {
+        if (storage == Storage.LONG) {
+            return true;
+        }
+        if (!isNumeric()) {
+            return false;
+        }
+        double num = asNumber();
+        return num == Math.rint(num) && !Double.isInfinite(num);
+    }
+
+    private void parseText() {
         try {
-            return Double.parseDouble(value.replace(',', '.'));
-        } catch (NumberFormatException e) {
-            return 0.0;
+            parsedNumber = Double.parseDouble(text.replace(',', '.'));
+            numberState = 1;
+        } catch (NumberFormatException | NullPointerException e) {
+            numberState = 2;
         }
     }
-    
+
+    /**
+     * Конвертирует значение в число
+     */
+    public double asNumber() {
+        return switch (storage) {
+            case LONG -> longValue;
+            case DOUBLE -> doubleValue;
+            case BOOL -> boolValue ? 1.0 : 0.0;
+            case TEXT -> isNumeric() ? parsedNumber : 0.0;
+            default -> 0.0;
+        };
+    }
+
+    /**
+     * Конвертирует значение в long
+     */
+    public long asLong() {
+        return storage == Storage.LONG ? longValue : (long) asNumber();
+    }
+
     /**
      * Конвертирует значение в int
      */
     public int asInt() {
-        return (int) asNumber();
+        return (int) asLong();
     }
-    
+
     /**
      * Конвертирует значение в boolean
      */
     public boolean asBool() {
-        return value.equalsIgnoreCase("true") || 
-               (!value.isEmpty() && !value.equals("0") && !value.equalsIgnoreCase("false"));
+        switch (storage) {
+            case LONG:
+                return longValue != 0;
+            case DOUBLE:
+                return doubleValue != 0 && !Double.isNaN(doubleValue);
+            case BOOL:
+                return boolValue;
+            case OBJECT:
+                return objectValue != null;
+            default:
+                String value = text;
+                return value != null && (value.equalsIgnoreCase("true") ||
+                       (!value.isEmpty() && !value.equals("0") && !value.equalsIgnoreCase("false")));
+        }
     }
-    
+
     /**
-     * Возвращает значение как строку
+     * Возвращает значение как строку (форматируется один раз)
      */
     public String asString() {
-        return value;
+        if (text == null) {
+            text = switch (storage) {
+                case LONG -> Long.toString(longValue);
+                case DOUBLE -> decimals >= 0
+                    ? String.format(Locale.ROOT, "%." + decimals + "f", doubleValue)
+                    : doubleValue == Math.rint(doubleValue) && !Double.isInfinite(doubleValue)
+                        ? Long.toString((long) doubleValue)
+                        : Double.toString(doubleValue);
+                case BOOL -> Boolean.toString(boolValue);
+                case OBJECT -> String.valueOf(objectValue);
+                default -> null;
+            };
+        }
+        return text;
+    }
+
+    /**
+     * Исходный объект для игровых типов, иначе null
+     */
+    public Object getObject() {
+        return objectValue;
     }
-    
+
     /**
      * Парсит позицию в массив координат
      */
     public double[] asPosition() {
-        String[] parts = value.split("[,\\s]+");
+        if (objectValue instanceof double[] position && position.length == 3) {
+            return position;
+        }
+        String[] parts = asString().split("[,\\s]+");
         if (parts.length != 3) {
             return new double[]{0, 0, 0};
         }
@@ -133,9 +304,74 @@ public class TypedValue {
             return new double[]{0, 0, 0};
         }
     }
-    
+
+    /**
+     * Записывает значение в снимок задачи. Игровые объекты сохраняются в текстовом виде
+     */
+    public void writeTo(DataOutput out) throws IOException {
+        Storage saved = storage == Storage.OBJECT ? Storage.TEXT : storage;
+        out.writeByte(saved.ordinal());
+        switch (saved) {
+            case LONG -> out.writeLong(longValue);
+            case DOUBLE -> {
+                out.writeDouble(doubleValue);
+                out.writeInt(decimals);
+            }
+            case BOOL -> out.writeBoolean(boolValue);
+            default -> writeText(out, asString());
+        }
+        out.writeUTF(declaredType != null ? declaredType.name() : "");
+    }
+
+    /**
+     * Читает значение, записанное {@link #writeTo}
+     */
+    public static TypedValue readFrom(DataInput in) throws IOException {
+        int ordinal = in.readUnsignedByte();
+        if (ordinal >= Storage.values().length) {
+            throw new IOException("Unknown value storage " + ordinal);
+        }
+        TypedValue value = switch (Storage.values()[ordinal]) {
+            case LONG -> ofLong(in.readLong());
+            case DOUBLE -> ofDouble(in.readDouble(), in.readInt());
+            case BOOL -> ofBool(in.readBoolean());
+            default -> new TypedValue(readText(in));
+        };
+        String declared = in.readUTF();
+        if (declared.isEmpty() || declared.equals(KHType.ANY.name())) {
+            return value;
+        }
+        try {
+            KHType type = KHType.valueOf(declared);
+            return value.storage == Storage.TEXT ? new TypedValue(value.text, type)
+                : new TypedValue(value.storage, value.longValue, value.doubleValue, value.boolValue, null, type);
+        } catch (IllegalArgumentException e) {
+            return value; // тип удалён в новой версии
+        }
+    }
+
+    private static void writeText(DataOutput out, String text) throws IOException {
+        if (text == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readText(DataInput in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
     @Override
     public String toString() {
-        return value;
+        return asString();
     }
 }
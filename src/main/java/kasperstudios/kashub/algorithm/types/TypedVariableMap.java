@@ -0,0 +1,98 @@
+package kasperstudios.kashub.algorithm.types;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Карта переменных, хранящая {@link TypedValue}.
+ * Снаружи выглядит как обычная Map&lt;String, String&gt;, поэтому старый код
+ * (eval-скрипты, эндпоинты API) продолжает работать, а числа форматируются
+ * в строку только при чтении.
+ */
+public class TypedVariableMap extends AbstractMap<String, String> {
+    private final Map<String, TypedValue> values = new HashMap<>();
+
+    public TypedValue getTyped(String name) {
+        return values.get(name);
+    }
+
+    public void putTyped(String name, TypedValue value) {
+        values.put(name, value);
+    }
+
+    @Override
+    public String get(Object key) {
+        TypedValue value = values.get(key);
+        return value != null ? value.asString() : null;
+    }
+
+    @Override
+    public String put(String key, String value) {
+        TypedValue previous = values.put(key, value != null ? new TypedValue(value) : null);
+        return previous != null ? previous.asString() : null;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return values.containsKey(key);
+    }
+
+    @Override
+    public String remove(Object key) {
+        TypedValue previous = values.remove(key);
+        return previous != null ? previous.asString() : null;
+    }
+
+    @Override
+    public int size() {
+        return values.size();
+    }
+
+    @Override
+    public void clear() {
+        values.clear();
+    }
+
+    @Override
+    public Set<Entry<String, String>> entrySet() {
+        return new AbstractSet<>() {
+            @Override
+            public Iterator<Entry<String, String>> iterator() {
+                Iterator<Entry<String, TypedValue>> it = values.entrySet().iterator();
+                return new Iterator<>() {
+                    @Override
+                    public boolean hasNext() {
+                        return it.hasNext();
+                    }
+
+                    @Override
+                    public Entry<String, String> next() {
+                        Entry<String, TypedValue> entry = it.next();
+                        TypedValue current = entry.getValue();
+                        return new SimpleEntry<>(entry.getKey(), current != null ? current.asString() : null) {
+                            @Override
+                            public String setValue(String value) {
+                                entry.setValue(value != null ? new TypedValue(value) : null);
+                                return super.setValue(value);
+                            }
+                        };
+                    }
+
+                    @Override
+                    public void remove() {
+                        it.remove();
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return values.size();
+            }
+        };
+    }
+}
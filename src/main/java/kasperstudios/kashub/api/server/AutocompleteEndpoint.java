@@ -7,6 +7,10 @@ import kasperstudios.kashub.algorithm.Command;
 import kasperstudios.kashub.algorithm.CommandRegistry;
 import kasperstudios.kashub.algorithm.EnvironmentVariable;
 import kasperstudios.kashub.algorithm.ScriptInterpreter;
+import kasperstudios.kashub.algorithm.ast.FrameLayout;
+import kasperstudios.kashub.algorithm.ast.ScriptCache;
+import kasperstudios.kashub.algorithm.ast.ScriptNode;
+import kasperstudios.kashub.algorithm.ast.ScriptProgram;
 
 import java.util.*;
 import java.util.stream.Collectors;
@@ -129,8 +133,21 @@ public class AutocompleteEndpoint {
             }
         }
         
-        // Add user variables from code
-        Set<String> userVars = extractVariables(code);
+        // Add user variables and functions from the parsed script
+        ScriptProgram program = ScriptCache.get(code);
+        for (ScriptNode.FunctionDef def : program.getFunctions().values()) {
+            if (def.name.toLowerCase().startsWith(lowerPrefix)) {
+                items.add(new CompletionItem(
+                    def.name,
+                    "Function",
+                    "User function",
+                    "Declared at line " + def.getLine(),
+                    def.name + "(" + String.join(", ", def.parameters) + ")"
+                ));
+            }
+        }
+        
+        Set<String> userVars = extractVariables(program);
         for (String varName : userVars) {
             if (varName.toLowerCase().startsWith(lowerPrefix)) {
                 items.add(new CompletionItem(
@@ -155,28 +172,25 @@ public class AutocompleteEndpoint {
         return items;
     }
     
-    private static Set<String> extractVariables(String code) {
+    /**
+     * Variables declared anywhere in the script, including function parameters
+     */
+    private static Set<String> extractVariables(ScriptProgram program) {
         Set<String> vars = new HashSet<>();
-        String[] lines = code.split("\\r?\\n");
-        
-        for (String line : lines) {
-            // Match let/const declarations
-            if (line.matches(".*\\b(let|const)\\s+([a-zA-Z_][a-zA-Z0-9_]*)\\s*=.*")) {
-                String[] parts = line.split("(let|const)\\s+")[1].split("\\s*=");
-                if (parts.length > 0) {
-                    vars.add(parts[0].trim());
-                }
-            }
-            // Match simple assignments
-            else if (line.matches("^\\s*([a-zA-Z_][a-zA-Z0-9_]*)\\s*=.*")) {
-                String varName = line.trim().split("\\s*=")[0].trim();
-                vars.add(varName);
-            }
+        addLayoutNames(program.getGlobalLayout(), vars);
+        for (ScriptNode.FunctionDef def : program.getFunctions().values()) {
+            addLayoutNames(def.layout, vars);
         }
-        
         return vars;
     }
     
+    private static void addLayoutNames(FrameLayout layout, Set<String> out) {
+        for (int slot = 0; slot < layout.size(); slot++) {
+            if (layout.isTemporary(slot)) continue;
+            out.add(layout.getName(slot));
+        }
+    }
+    
     private static String formatCommandHelp(Command cmd) {
         StringBuilder sb = new StringBuilder();
         sb.append("**").append(cmd.getName()).append("**\n\n");
@@ -157,6 +157,8 @@ public class KashubAPIServer {
                 TasksEndpoint.handlePause(exchange, gson);
             } else if (path.matches("/api/tasks/\\d+/resume") && "POST".equals(method)) {
                 TasksEndpoint.handleResume(exchange, gson);
+            } else if (path.matches("/api/tasks/\\d+/commands") && "POST".equals(method)) {
+                TasksEndpoint.handleQueue(exchange, gson);
             } else {
                 sendResponse(exchange, 404, "{\"error\":\"Not found\"}");
             }
@@ -3,10 +3,15 @@ package kasperstudios.kashub.api.server;
 import com.google.gson.Gson;
 import com.sun.net.httpserver.HttpExchange;
 import kasperstudios.kashub.Kashub;
+import kasperstudios.kashub.algorithm.ArgumentTemplate;
+import kasperstudios.kashub.algorithm.Command;
+import kasperstudios.kashub.algorithm.CommandRegistry;
+import kasperstudios.kashub.runtime.ScriptState;
 import kasperstudios.kashub.runtime.ScriptTask;
 import kasperstudios.kashub.runtime.ScriptTaskManager;
 
 import java.util.*;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
@@ -17,13 +22,33 @@ import java.util.stream.Collectors;
 public class TasksEndpoint {
     
     private static final Pattern TASK_ID_PATTERN = Pattern.compile("/api/tasks/(\\d+)/");
+    private static final long QUEUE_TIMEOUT_SECONDS = 5;
     
     /**
      * GET /api/tasks - List all tasks
+     * Optional filters: ?state=running|paused|stopped|error, ?tag=name (served from the manager's indexes)
      */
     public static void handleList(HttpExchange exchange, Gson gson) {
         try {
-            Collection<ScriptTask> tasks = ScriptTaskManager.getInstance().getAllTasks();
+            ScriptTaskManager manager = ScriptTaskManager.getInstance();
+            String state = queryParam(exchange, "state");
+            String tag = queryParam(exchange, "tag");
+            Collection<ScriptTask> tasks;
+            if (tag != null) {
+                tasks = manager.getTasksByTag(tag);
+                if (state != null) {
+                    tasks.removeIf(task -> !task.getState().name().equalsIgnoreCase(state));
+                }
+            } else if (state != null) {
+                ScriptState filter = parseState(state);
+                if (filter == null) {
+                    KashubAPIServer.sendResponse(exchange, 400, "{\"error\":\"Unknown state: " + state + "\"}");
+                    return;
+                }
+                tasks = manager.getTasksByState(filter);
+            } else {
+                tasks = manager.getAllTasks();
+            }
             
             List<Map<String, Object>> taskList = tasks.stream()
                 .map(TasksEndpoint::taskToMap)
@@ -126,6 +151,106 @@ public class TasksEndpoint {
         }
     }
     
+    private static ScriptState parseState(String state) {
+        for (ScriptState value : ScriptState.values()) {
+            if (value.name().equalsIgnoreCase(state)) {
+                return value;
+            }
+        }
+        return null;
+    }
+    
+    private static String queryParam(HttpExchange exchange, String name) {
+        String query = exchange.getRequestURI().getQuery();
+        if (query == null) {
+            return null;
+        }
+        for (String pair : query.split("&")) {
+            int eq = pair.indexOf('=');
+            if (eq > 0 && pair.substring(0, eq).equals(name)) {
+                String value = pair.substring(eq + 1);
+                return value.isEmpty() ? null : value;
+            }
+        }
+        return null;
+    }
+    
+    /**
+     * POST /api/tasks/{id}/commands - Queue commands into a task
+     * Body: {"commands": ["print hello", "wait 500"]}. While the task queue is full the
+     * request waits for the task to drain it; 429 if it stays full past QUEUE_TIMEOUT_SECONDS,
+     * counted for the whole request. 409 if the task is no longer running.
+     */
+    public static void handleQueue(HttpExchange exchange, Gson gson) {
+        try {
+            int taskId = extractTaskId(exchange.getRequestURI().getPath());
+            ScriptTask task = ScriptTaskManager.getInstance().getTask(taskId);
+            
+            if (task == null) {
+                KashubAPIServer.sendResponse(exchange, 404, "{\"error\":\"Task not found\"}");
+                return;
+            }
+            
+            Map<String, Object> request = gson.fromJson(KashubAPIServer.readRequestBody(exchange), Map.class);
+            Object lines = request != null ? request.get("commands") : null;
+            if (!(lines instanceof List<?> commandLines) || commandLines.isEmpty()) {
+                KashubAPIServer.sendResponse(exchange, 400, "{\"error\":\"No commands provided\"}");
+                return;
+            }
+            
+            // Resolve everything first, so a bad line queues nothing
+            List<Command> commands = new ArrayList<>();
+            List<String[]> arguments = new ArrayList<>();
+            for (Object line : commandLines) {
+                // Same splitting as a script line: quoted text stays one argument, quotes removed
+                List<ArgumentTemplate> parts = ArgumentTemplate.tokenize(String.valueOf(line).trim());
+                String name = parts.isEmpty() ? "" : parts.get(0).getSource();
+                Command command = CommandRegistry.getCommand(name.toLowerCase());
+                if (command == null) {
+                    KashubAPIServer.sendResponse(exchange, 400, gson.toJson(Map.of("error", "Unknown command: " + name)));
+                    return;
+                }
+                String[] args = new String[parts.size() - 1];
+                for (int i = 1; i < parts.size(); i++) {
+                    args[i - 1] = parts.get(i).getSource();
+                }
+                commands.add(command);
+                arguments.add(args);
+            }
+            
+            // One deadline for the whole request, so a long batch cannot hold an API thread for long
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(QUEUE_TIMEOUT_SECONDS);
+            int queued = 0;
+            for (int i = 0; i < commands.size(); i++) {
+                long left = Math.max(0, deadline - System.nanoTime());
+                if (!task.queueCommand(commands.get(i), arguments.get(i), left, TimeUnit.NANOSECONDS)) {
+                    break;
+                }
+                queued++;
+            }
+            
+            Map<String, Object> response = new HashMap<>();
+            response.put("success", queued == commands.size());
+            response.put("queued", queued);
+            response.put("task", taskToMap(task));
+            int status = 200;
+            if (queued < commands.size()) {
+                // A full queue is worth retrying, a stopped task never takes commands again
+                boolean running = task.getState() == ScriptState.RUNNING || task.getState() == ScriptState.PAUSED;
+                response.put("error", running ? "Task queue is full" : "Task is not running");
+                status = running ? 429 : 409;
+            }
+            KashubAPIServer.sendResponse(exchange, status, gson.toJson(response));
+            
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            KashubAPIServer.sendResponse(exchange, 503, "{\"error\":\"Interrupted\"}");
+        } catch (Exception e) {
+            Kashub.LOGGER.error("Error queueing commands", e);
+            KashubAPIServer.sendResponse(exchange, 500, "{\"error\":\"" + e.getMessage() + "\"}");
+        }
+    }
+    
     private static int extractTaskId(String path) {
         Matcher matcher = TASK_ID_PATTERN.matcher(path);
         if (matcher.find()) {
@@ -141,6 +266,19 @@ public class TasksEndpoint {
         map.put("state", task.getState().toString());
         map.put("uptime", task.getUptime());
         map.put("scriptType", task.getScriptType().toString());
+        map.put("threaded", task.isThreaded());
+        map.put("executedCommands", task.getExecutedCommands());
+        map.put("inlineCommands", task.getInlineCommands());
+        
+        Map<String, Object> queue = new LinkedHashMap<>();
+        queue.put("depth", task.getQueuedCommands());
+        queue.put("capacity", task.getQueueCapacity());
+        queue.put("lowWater", task.getQueueLowWater());
+        queue.put("maxDepth", task.getMaxQueueDepth());
+        queue.put("suspended", task.isQueueSuspended());
+        queue.put("producerWaits", task.getProducerWaits());
+        queue.put("rejected", task.getRejectedCommands());
+        map.put("queue", queue);
         
         String lastError = task.getLastError();
         if (lastError != null) {
@@ -4,31 +4,19 @@ import com.google.gson.Gson;
 import com.sun.net.httpserver.HttpExchange;
 import kasperstudios.kashub.Kashub;
 import kasperstudios.kashub.algorithm.CommandRegistry;
+import kasperstudios.kashub.algorithm.ast.Diagnostic;
+import kasperstudios.kashub.algorithm.ast.Optimization;
+import kasperstudios.kashub.algorithm.ast.ScriptAnalyzer;
+import kasperstudios.kashub.algorithm.ast.ScriptCache;
+import kasperstudios.kashub.algorithm.ast.ScriptProgram;
 
 import java.util.*;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 /**
  * POST /api/validate - Validates KHScript code and returns errors/warnings
  */
 public class ValidateEndpoint {
     
-    // Patterns for validation
-    private static final Pattern LET_PATTERN = Pattern.compile("^\\s*let\\s+([a-zA-Z_][a-zA-Z0-9_]*)\\s*=\\s*(.+)$");
-    private static final Pattern CONST_PATTERN = Pattern.compile("^\\s*const\\s+([a-zA-Z_][a-zA-Z0-9_]*)\\s*=\\s*(.+)$");
-    private static final Pattern IF_PATTERN = Pattern.compile("^\\s*if\\s+.+\\s*\\{\\s*$|^\\s*if\\s*\\(.+\\)\\s*\\{?\\s*$");
-    private static final Pattern WHILE_PATTERN = Pattern.compile("^\\s*while\\s+.+\\s*\\{\\s*$|^\\s*while\\s*\\(.+\\)\\s*\\{?\\s*$");
-    private static final Pattern FOR_PATTERN = Pattern.compile("^\\s*for\\s*\\(.+\\)\\s*\\{?\\s*$");
-    private static final Pattern LOOP_PATTERN = Pattern.compile("^\\s*loop(?:\\s+\\d+)?\\s*\\{?\\s*$");
-    private static final Pattern FUNCTION_PATTERN = Pattern.compile("^\\s*(?:fn|function)\\s+([a-zA-Z_][a-zA-Z0-9_]*)\\s*\\(.*\\)\\s*\\{?\\s*$");
-    private static final Pattern ELSE_PATTERN = Pattern.compile("^\\s*\\}?\\s*else\\s*\\{?\\s*$");
-    private static final Pattern ELSE_IF_PATTERN = Pattern.compile("^\\s*\\}?\\s*else\\s+if\\s+.+\\s*\\{\\s*$");
-    private static final Pattern CLOSE_BRACE = Pattern.compile("^\\s*\\}\\s*$");
-    private static final Pattern COMMENT_PATTERN = Pattern.compile("^\\s*//.*$");
-    private static final Pattern BLOCK_COMMENT_START = Pattern.compile("/\\*");
-    private static final Pattern BLOCK_COMMENT_END = Pattern.compile("\\*/");
-    
     public static void handle(HttpExchange exchange, Gson gson) {
         try {
             String body = KashubAPIServer.readRequestBody(exchange);
@@ -47,6 +35,7 @@ public class ValidateEndpoint {
             response.put("errors", errors);
             response.put("errorCount", errors.stream().filter(e -> "error".equals(e.severity)).count());
             response.put("warningCount", errors.stream().filter(e -> "warning".equals(e.severity)).count());
+            response.put("optimizations", optimizations(code));
             
             String json = gson.toJson(response);
             KashubAPIServer.sendResponse(exchange, 200, json);
@@ -58,140 +47,41 @@ public class ValidateEndpoint {
     }
     
     public static List<ValidationError> validate(String code) {
-        List<ValidationError> errors = new ArrayList<>();
-        String[] lines = code.split("\\r?\\n");
-        
-        int braceDepth = 0;
-        boolean inBlockComment = false;
-        Set<String> declaredVariables = new HashSet<>();
-        Set<String> declaredFunctions = new HashSet<>();
-        
-        for (int i = 0; i < lines.length; i++) {
-            String line = lines[i];
-            String trimmed = line.trim();
-            int lineNum = i + 1;
-            
-            // Handle block comments
-            if (inBlockComment) {
-                if (BLOCK_COMMENT_END.matcher(line).find()) {
-                    inBlockComment = false;
-                }
-                continue;
-            }
-            
-            if (BLOCK_COMMENT_START.matcher(line).find()) {
-                if (!BLOCK_COMMENT_END.matcher(line).find()) {
-                    inBlockComment = true;
-                }
-                continue;
-            }
-            
-            // Skip empty lines and comments
-            if (trimmed.isEmpty() || COMMENT_PATTERN.matcher(trimmed).matches()) {
-                continue;
-            }
-            
-            // Track braces
-            int openBraces = countChar(line, '{');
-            int closeBraces = countChar(line, '}');
-            braceDepth += openBraces - closeBraces;
-            
-            if (braceDepth < 0) {
-                errors.add(new ValidationError(lineNum, 0, "Unexpected closing brace", "error"));
-                braceDepth = 0;
-            }
-            
-            // Check for variable declarations
-            Matcher letMatcher = LET_PATTERN.matcher(trimmed);
-            Matcher constMatcher = CONST_PATTERN.matcher(trimmed);
-            
-            if (letMatcher.matches()) {
-                String varName = letMatcher.group(1);
-                if (declaredVariables.contains(varName)) {
-                    errors.add(new ValidationError(lineNum, 0, "Variable '" + varName + "' already declared", "warning"));
-                }
-                declaredVariables.add(varName);
-                continue;
-            }
-            
-            if (constMatcher.matches()) {
-                String varName = constMatcher.group(1);
-                if (declaredVariables.contains(varName)) {
-                    errors.add(new ValidationError(lineNum, 0, "Constant '" + varName + "' already declared", "error"));
-                }
-                declaredVariables.add(varName);
-                continue;
-            }
-            
-            // Check for function declarations
-            Matcher funcMatcher = FUNCTION_PATTERN.matcher(trimmed);
-            if (funcMatcher.matches()) {
-                String funcName = funcMatcher.group(1);
-                if (declaredFunctions.contains(funcName)) {
-                    errors.add(new ValidationError(lineNum, 0, "Function '" + funcName + "' already declared", "error"));
-                }
-                declaredFunctions.add(funcName);
-                continue;
-            }
-            
-            // Skip control flow statements
-            if (IF_PATTERN.matcher(trimmed).matches() ||
-                WHILE_PATTERN.matcher(trimmed).matches() ||
-                FOR_PATTERN.matcher(trimmed).matches() ||
-                LOOP_PATTERN.matcher(trimmed).matches() ||
-                ELSE_PATTERN.matcher(trimmed).matches() ||
-                ELSE_IF_PATTERN.matcher(trimmed).matches() ||
-                CLOSE_BRACE.matcher(trimmed).matches()) {
-                continue;
-            }
-            
-            // Check for variable assignment (x = value)
-            if (trimmed.matches("^[a-zA-Z_][a-zA-Z0-9_]*\\s*=\\s*.+$")) {
-                continue;
-            }
-            
-            // Check for command
-            String[] parts = trimmed.split("\\s+", 2);
-            String commandName = parts[0].toLowerCase();
-            
-            // Skip break/continue/return
-            if (commandName.equals("break") || commandName.equals("continue") || commandName.equals("return")) {
-                continue;
-            }
-            
-            // Check if command exists
-            if (!CommandRegistry.hasCommand(commandName)) {
-                // Check if it's a function call
-                if (trimmed.matches("^[a-zA-Z_][a-zA-Z0-9_]*\\s*\\(.*\\)\\s*$")) {
-                    String funcName = trimmed.split("\\(")[0].trim();
-                    if (!declaredFunctions.contains(funcName)) {
-                        errors.add(new ValidationError(lineNum, 0, "Unknown function: " + funcName, "warning"));
-                    }
-                } else {
-                    errors.add(new ValidationError(lineNum, 0, "Unknown command: " + commandName, "error"));
-                }
-            }
-        }
-        
-        // Check for unclosed braces
-        if (braceDepth > 0) {
-            errors.add(new ValidationError(lines.length, 0, "Unclosed brace(s): " + braceDepth + " remaining", "error"));
-        }
+        // Shared front end: the same parse is reused by the runtime and the editor
+        ScriptProgram program = ScriptCache.get(code);
+        // Same checks the runtime does at load: unknown commands, argument count and types
+        List<Diagnostic> diagnostics = new ArrayList<>(program.getDiagnostics());
+        diagnostics.addAll(ScriptAnalyzer.link(program, CommandRegistry::getCommand, CommandRegistry.getVersion()));
+        diagnostics.sort(Comparator.comparingInt(Diagnostic::getLine));
         
-        // Check for unclosed block comment
-        if (inBlockComment) {
-            errors.add(new ValidationError(lines.length, 0, "Unclosed block comment", "error"));
+        List<ValidationError> errors = new ArrayList<>();
+        for (Diagnostic diagnostic : diagnostics) {
+            errors.add(new ValidationError(diagnostic));
         }
-        
         return errors;
     }
     
-    private static int countChar(String str, char c) {
-        int count = 0;
-        for (char ch : str.toCharArray()) {
-            if (ch == c) count++;
+    /**
+     * Rewrites the optimizer applies before the script runs
+     */
+    public static List<OptimizationInfo> optimizations(String code) {
+        List<OptimizationInfo> result = new ArrayList<>();
+        for (Optimization optimization : ScriptCache.get(code).getOptimizations()) {
+            result.add(new OptimizationInfo(optimization));
+        }
+        return result;
+    }
+    
+    public static class OptimizationInfo {
+        public int line;
+        public String kind; // "constant_folding", "dead_branch", "loop_invariant"
+        public String message;
+        
+        public OptimizationInfo(Optimization optimization) {
+            this.line = optimization.getLine();
+            this.kind = optimization.getKind().id();
+            this.message = optimization.getMessage();
         }
-        return count;
     }
     
     public static class ValidationError {
@@ -206,5 +96,9 @@ public class ValidateEndpoint {
             this.message = message;
             this.severity = severity;
         }
+        
+        public ValidationError(Diagnostic diagnostic) {
+            this(diagnostic.getLine(), diagnostic.getColumn(), diagnostic.getMessage(), diagnostic.getSeverity().id());
+        }
     }
 }
@@ -26,9 +26,7 @@ public class VariablesEndpoint {
                 return;
             }
             
-            // Update environment variables first
-            ScriptInterpreter.getInstance().updateEnvironmentVariables();
-            
+            // Values of the last client tick; this thread does not read the world
             // Get all environment variables
             List<EnvironmentVariable> envVars = ScriptInterpreter.getInstance().getAllEnvironmentVariables();
             
@@ -0,0 +1,58 @@
+package kasperstudios.kashub.client;
+
+import net.minecraft.client.network.ClientPlayerEntity;
+import net.minecraft.text.Text;
+import net.minecraft.world.World;
+
+/**
+ * The client calls made by commands, the logger and environment variables.
+ * The game uses {@link MinecraftClientFacade}; the headless harness installs a
+ * mock with {@link #setInstance} so scripts run without a game client.
+ */
+public abstract class ClientFacade {
+    private static volatile ClientFacade instance = new MinecraftClientFacade();
+
+    public static ClientFacade getInstance() {
+        return instance;
+    }
+
+    public static void setInstance(ClientFacade facade) {
+        instance = facade;
+    }
+
+    /**
+     * Run a task on the client thread
+     */
+    public abstract void execute(Runnable task);
+
+    /**
+     * Local chat message, only this player sees it
+     */
+    public abstract void showMessage(Text message);
+
+    /**
+     * Chat message (or /command) sent to the server as the player
+     */
+    public abstract void sendChatMessage(String message);
+
+    /**
+     * @return null when not in a world
+     */
+    public abstract ClientPlayerEntity getPlayer();
+
+    /**
+     * @return null when not in a world
+     */
+    public abstract World getWorld();
+
+    /**
+     * Radius in chunks around the player that the client can have loaded
+     */
+    public int getLoadedChunkRadius() {
+        return 12;
+    }
+
+    public boolean isInWorld() {
+        return getPlayer() != null && getWorld() != null;
+    }
+}
@@ -2,23 +2,33 @@ package kasperstudios.kashub.client;
 
 import kasperstudios.kashub.Kashub;
 import kasperstudios.kashub.algorithm.CommandRegistry;
+import kasperstudios.kashub.algorithm.ScriptInterpreter;
 import kasperstudios.kashub.algorithm.commands.PathfindCommand;
 import kasperstudios.kashub.algorithm.events.EventManager;
+import kasperstudios.kashub.algorithm.scan.BlockIndex;
 import kasperstudios.kashub.api.server.KashubAPIServer;
 import kasperstudios.kashub.config.KashubConfig;
 import kasperstudios.kashub.gui.editor.ModernEditorScreen;
 import kasperstudios.kashub.network.AnimationManager;
+import kasperstudios.kashub.runtime.CommandExecutor;
+import kasperstudios.kashub.runtime.ScriptState;
+import kasperstudios.kashub.runtime.ScriptTask;
 import kasperstudios.kashub.runtime.ScriptTaskManager;
+import kasperstudios.kashub.runtime.TimerWheel;
 import kasperstudios.kashub.util.ScriptFileWatcher;
 import kasperstudios.kashub.util.ScriptLogger;
 import net.fabricmc.api.ClientModInitializer;
+import net.fabricmc.fabric.api.client.event.lifecycle.v1.ClientChunkEvents;
 import net.fabricmc.fabric.api.client.event.lifecycle.v1.ClientTickEvents;
 import net.fabricmc.fabric.api.client.keybinding.v1.KeyBindingHelper;
+import net.fabricmc.fabric.api.client.networking.v1.ClientPlayConnectionEvents;
 import net.minecraft.client.MinecraftClient;
 import net.minecraft.client.option.KeyBinding;
 import net.minecraft.client.util.InputUtil;
 import org.lwjgl.glfw.GLFW;
 
+import java.util.Set;
+
 public class KashubClient implements ClientModInitializer {
     public static KeyBinding openEditorKey;
     public static KeyBinding stopScriptsKey;
@@ -27,6 +37,7 @@ public class KashubClient implements ClientModInitializer {
     private static long lastKeyPress = 0;
     private static final long KEY_COOLDOWN = 200;
     private static boolean autorunExecuted = false;
+    private static boolean resumePending = true; // snapshots are resumed on every join
     
     @Override
     public void onInitializeClient() {
@@ -47,11 +58,38 @@ public class KashubClient implements ClientModInitializer {
             KashubAPIServer.getInstance().start();
         }
         
-        // Run autorun scripts after world is loaded (only once)
+        // Resume saved scripts on every join, run autorun scripts after world is loaded (only once)
         ClientTickEvents.START_CLIENT_TICK.register(client -> {
-            if (!autorunExecuted && client.player != null && config.autorunEnabled && !config.autorunScripts.isEmpty()) {
+            if (client.player == null) {
+                return;
+            }
+            Set<String> resumed = Set.of();
+            if (resumePending) {
+                resumePending = false;
+                if (config.resumeScripts) {
+                    resumed = ScriptTaskManager.getInstance().resumeSnapshots();
+                }
+            }
+            if (!autorunExecuted && config.autorunEnabled && !config.autorunScripts.isEmpty()) {
                 autorunExecuted = true;
-                runAutorunScripts();
+                runAutorunScripts(resumed);
+            }
+        });
+        
+        // Index ores, containers, spawners and crops for scan/scanner as chunks arrive and leave
+        ClientChunkEvents.CHUNK_LOAD.register((world, chunk) -> BlockIndex.getInstance().onChunkLoad(world, chunk));
+        ClientChunkEvents.CHUNK_UNLOAD.register((world, chunk) -> BlockIndex.getInstance().onChunkUnload(world, chunk));
+        
+        // Snapshot running scripts when leaving the world; they continue from there on the next join
+        ClientPlayConnectionEvents.DISCONNECT.register((handler, client) -> {
+            BlockIndex.getInstance().clear();
+            resumePending = true;
+            if (!config.resumeScripts) {
+                return;
+            }
+            int saved = ScriptTaskManager.getInstance().suspendAll();
+            if (saved > 0) {
+                ScriptLogger.getInstance().info("Saved snapshots of " + saved + " scripts");
             }
         });
         
@@ -79,8 +117,14 @@ public class KashubClient implements ClientModInitializer {
         
         // Register tick handler
         ClientTickEvents.END_CLIENT_TICK.register(client -> {
+            // Command timers (wait, attack, movement...) advance every tick, in game or not
+            TimerWheel.getInstance().tick();
+            
             if (client.player == null) return;
             
+            // New environment snapshot: $PLAYER_* etc. are computed lazily once per tick
+            ScriptInterpreter.getInstance().updateEnvironmentVariables();
+            
             long currentTime = System.currentTimeMillis();
             
             try {
@@ -90,6 +134,9 @@ public class KashubClient implements ClientModInitializer {
                 // Process script tasks
                 ScriptTaskManager.getInstance().tick();
                 
+                // Run commands posted to the client thread
+                CommandExecutor.getInstance().drainGameThread(config.tickBudgetMicros * 1000L);
+                
                 // Process animations
                 AnimationManager.getInstance().tick();
                 
@@ -126,8 +173,9 @@ public class KashubClient implements ClientModInitializer {
     
     /**
      * Run autorun scripts configured in config
+     * @param resumed scripts already continued from a snapshot
      */
-    private static void runAutorunScripts() {
+    private static void runAutorunScripts(Set<String> resumed) {
         KashubConfig config = KashubConfig.getInstance();
         if (!config.autorunEnabled || config.autorunScripts.isEmpty()) {
             return;
@@ -136,6 +184,9 @@ public class KashubClient implements ClientModInitializer {
         ScriptLogger.getInstance().info("Running autorun scripts: " + config.autorunScripts.size());
         
         for (String scriptName : config.autorunScripts) {
+            if (resumed.contains(scriptName) || isActive(scriptName)) {
+                continue;
+            }
             try {
                 ScriptTaskManager.getInstance().startScriptFromFile(scriptName);
                 ScriptLogger.getInstance().info("Autorun: Started " + scriptName);
@@ -145,6 +196,16 @@ public class KashubClient implements ClientModInitializer {
         }
     }
     
+    private static boolean isActive(String scriptName) {
+        for (ScriptTask task : ScriptTaskManager.getInstance().getAllTasks()) {
+            if (task.getName().equals(scriptName)
+                    && (task.getState() == ScriptState.RUNNING || task.getState() == ScriptState.PAUSED)) {
+                return true;
+            }
+        }
+        return false;
+    }
+    
     private static final java.util.Set<Integer> pressedKeys = new java.util.HashSet<>();
     
     private void checkScriptKeybinds(MinecraftClient client) {
@@ -0,0 +1,50 @@
+package kasperstudios.kashub.client;
+
+import net.minecraft.client.MinecraftClient;
+import net.minecraft.client.network.ClientPlayerEntity;
+import net.minecraft.text.Text;
+import net.minecraft.world.World;
+
+/**
+ * {@link ClientFacade} of the running game
+ */
+public class MinecraftClientFacade extends ClientFacade {
+    @Override
+    public void execute(Runnable task) {
+        MinecraftClient.getInstance().execute(task);
+    }
+
+    @Override
+    public void showMessage(Text message) {
+        ClientPlayerEntity player = MinecraftClient.getInstance().player;
+        if (player != null) {
+            player.sendMessage(message, false);
+        }
+    }
+
+    @Override
+    public void sendChatMessage(String message) {
+        ClientPlayerEntity player = MinecraftClient.getInstance().player;
+        if (player != null) {
+            player.networkHandler.sendChatMessage(message);
+        }
+    }
+
+    @Override
+    public ClientPlayerEntity getPlayer() {
+        MinecraftClient client = MinecraftClient.getInstance();
+        return client != null ? client.player : null;
+    }
+
+    @Override
+    public World getWorld() {
+        MinecraftClient client = MinecraftClient.getInstance();
+        return client != null ? client.world : null;
+    }
+
+    @Override
+    public int getLoadedChunkRadius() {
+        // Same margin the client chunk map keeps around the view distance
+        return Math.max(2, MinecraftClient.getInstance().options.getClampedViewDistance()) + 3;
+    }
+}
@@ -23,7 +23,13 @@ public class KashubConfig {
     public int editorTabSize = 4;
 
     // Настройки скриптов
-    public int maxScriptsPerTick = 10;
+    public int tickBudgetMicros = 4000; // время на все скрипты за один тик, мкс
+    public boolean resumeScripts = true; // снимок скриптов при выходе из мира, продолжение при входе
+    public boolean burstMode = true; // дешёвые синхронные команды выполняются сразу в тике, без future
+    public int maxQueuedCommands = 1000; // очередь команд задачи; когда полна, отправители ждут
+    public boolean virtualThreadScripts = false; // каждый скрипт в своём виртуальном потоке, команды блокируют поток
+    public boolean blockIndex = true; // индекс руд, сундуков, спавнеров и посевов по чанкам для scan/scanner
+    public List<String> indexedBlocks = new ArrayList<>(); // дополнительные блоки индекса: id или шаблон *_log
     public int maxCommandsPerScript = 1000;
     public int scriptTimeout = 30000; // мс
     public boolean allowCheats = false;
@@ -339,7 +345,15 @@ public class KashubConfig {
         this.editorLineNumbers = loaded.editorLineNumbers;
         this.editorAutoComplete = loaded.editorAutoComplete;
         this.editorSyntaxHighlight = loaded.editorSyntaxHighlight;
-        this.maxScriptsPerTick = loaded.maxScriptsPerTick;
+        this.tickBudgetMicros = loaded.tickBudgetMicros;
+        this.resumeScripts = loaded.resumeScripts;
+        this.burstMode = loaded.burstMode;
+        this.maxQueuedCommands = loaded.maxQueuedCommands;
+        this.virtualThreadScripts = loaded.virtualThreadScripts;
+        this.blockIndex = loaded.blockIndex;
+        if (loaded.indexedBlocks != null) {
+            this.indexedBlocks = new ArrayList<>(loaded.indexedBlocks);
+        }
         this.maxCommandsPerScript = loaded.maxCommandsPerScript;
         this.scriptTimeout = loaded.scriptTimeout;
         this.allowCheats = loaded.allowCheats;
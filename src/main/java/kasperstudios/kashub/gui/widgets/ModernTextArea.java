@@ -7,6 +7,10 @@ import net.minecraft.client.gui.DrawContext;
 
 import kasperstudios.kashub.algorithm.CommandRegistry;
 import kasperstudios.kashub.algorithm.Command;
+import kasperstudios.kashub.algorithm.ast.Diagnostic;
+import kasperstudios.kashub.algorithm.ast.ScriptAnalyzer;
+import kasperstudios.kashub.algorithm.ast.ScriptCache;
+import kasperstudios.kashub.algorithm.ast.ScriptProgram;
 
 import java.util.*;
 import java.util.regex.Matcher;
@@ -1016,118 +1020,20 @@ public class ModernTextArea {
     }
     
     /**
-     * Validates syntax and populates lineErrors map
+     * Validates syntax and populates lineErrors map.
+     * Uses the shared script front end, so unchanged text is not parsed again.
      */
     private void validateSyntax() {
         lineErrors.clear();
         
-        // First pass: collect user-defined functions (support both "function" and "fn")
-        Set<String> userFunctions = new HashSet<>();
-        for (String line : lines) {
-            String trimmed = line.trim();
-            String rest = null;
-            if (trimmed.startsWith("function ")) {
-                rest = trimmed.substring(9).trim();
-            } else if (trimmed.startsWith("fn ")) {
-                rest = trimmed.substring(3).trim();
-            }
-            if (rest != null) {
-                // Extract function name: "function name() {" or "fn name {"
-                int parenIdx = rest.indexOf('(');
-                int braceIdx = rest.indexOf('{');
-                int endIdx = parenIdx > 0 ? parenIdx : (braceIdx > 0 ? braceIdx : rest.length());
-                String funcName = rest.substring(0, endIdx).trim();
-                if (!funcName.isEmpty()) {
-                    userFunctions.add(funcName.toLowerCase());
-                }
-            }
-        }
-        
-        int braceDepth = 0;
-        
-        for (int i = 0; i < lines.size(); i++) {
-            String line = lines.get(i).trim();
-            
-            // Skip empty lines and comments
-            if (line.isEmpty() || line.startsWith("//")) {
-                continue;
-            }
-            
-            // Check brace balance
-            for (char c : line.toCharArray()) {
-                if (c == '{') braceDepth++;
-                if (c == '}') braceDepth--;
-            }
-            
-            if (braceDepth < 0) {
-                lineErrors.put(i, "Unexpected closing brace '}'");
-                braceDepth = 0;
-                continue;
-            }
-            
-            // Skip closing braces and else
-            if (line.equals("}") || line.startsWith("} else") || line.equals("else {") || line.equals("else")) {
-                continue;
-            }
-            
-            // Check for control flow statements - support both legacy (parentheses) and Rust-style (no parentheses)
-            if (line.startsWith("if ") || line.startsWith("if(") ||
-                line.startsWith("while ") || line.startsWith("while(") ||
-                line.startsWith("for ") || line.startsWith("for(")) {
-                // Both styles are valid: "if (cond) {" and "if cond {"
-                // Only check that block opens with { or condition is present
-                if (!line.contains("{") && !line.endsWith("{")) {
-                    // Allow single-line style without braces for simple cases
-                }
-                continue;
+        ScriptProgram program = ScriptCache.get(String.join("\n", lines));
+        List<Diagnostic> diagnostics = ScriptAnalyzer.analyze(program, name ->
+            KEYWORDS.contains(name) || getCommands().contains(name) || CommandRegistry.getCommand(name) != null);
+        for (Diagnostic diagnostic : diagnostics) {
+            if (diagnostic.isError()) {
+                // Diagnostics are 1-based, editor lines are 0-based
+                lineErrors.putIfAbsent(diagnostic.getLine() - 1, diagnostic.getMessage());
             }
-            
-            // Check for else if
-            if (line.startsWith("else if ") || line.startsWith("} else if ") || 
-                line.startsWith("else if(") || line.startsWith("} else if(")) {
-                continue;
-            }
-            
-            // Check for loop (infinite loop)
-            if (line.startsWith("loop")) {
-                continue;
-            }
-            
-            // Check for variable assignment - support let, const, and legacy styles
-            if (line.matches("^[a-zA-Z_][a-zA-Z0-9_]*\\s*=.*") ||
-                line.matches("^let\\s+[a-zA-Z_][a-zA-Z0-9_]*\\s*=.*") ||
-                line.matches("^const\\s+[a-zA-Z_][a-zA-Z0-9_]*\\s*=.*")) {
-                continue;
-            }
-            
-            // Check for function definition - support both "function" and "fn"
-            if (line.startsWith("function ") || line.startsWith("fn ")) {
-                continue;
-            }
-            
-            // Check command
-            String[] parts = line.split("\\s+", 2);
-            String commandName = parts[0].toLowerCase();
-            
-            // Skip if it's a keyword
-            if (KEYWORDS.contains(commandName)) {
-                continue;
-            }
-            
-            // Skip if it's a user-defined function
-            if (userFunctions.contains(commandName)) {
-                continue;
-            }
-            
-            // Check if command exists (use getCommands() for dynamic registry)
-            if (!getCommands().contains(commandName) && CommandRegistry.getCommand(commandName) == null) {
-                lineErrors.put(i, "Unknown command: " + commandName);
-            }
-        }
-        
-        // Check unclosed braces at end
-        if (braceDepth > 0) {
-            lineErrors.put(lines.size() - 1, "Unclosed brace - missing '}'");
         }
     }
     
@@ -0,0 +1,32 @@
+package kasperstudios.kashub.mixin;
+
+import kasperstudios.kashub.algorithm.scan.BlockIndex;
+import net.minecraft.block.BlockState;
+import net.minecraft.client.world.ClientWorld;
+import net.minecraft.util.math.BlockPos;
+import net.minecraft.util.math.Vec3d;
+import org.spongepowered.asm.mixin.Mixin;
+import org.spongepowered.asm.mixin.injection.At;
+import org.spongepowered.asm.mixin.injection.Inject;
+import org.spongepowered.asm.mixin.injection.callback.CallbackInfo;
+
+/**
+ * Block updates and chunk deltas from the server keep {@link BlockIndex} current,
+ * and so do predictions the server rejected when they are rolled back
+ */
+@Mixin(ClientWorld.class)
+public class ClientWorldMixin {
+    @Inject(method = "handleBlockUpdate", at = @At("TAIL"))
+    private void kashub$onBlockUpdate(BlockPos pos, BlockState state, int flags, CallbackInfo ci) {
+        ClientWorld world = (ClientWorld) (Object) this;
+        // The world may still show a predicted block; index what is actually there
+        BlockIndex.getInstance().onBlockUpdate(world, pos, world.getBlockState(pos));
+    }
+
+    @Inject(method = "processPendingUpdate", at = @At("TAIL"))
+    private void kashub$onPendingUpdate(BlockPos pos, BlockState state, Vec3d playerPos, CallbackInfo ci) {
+        ClientWorld world = (ClientWorld) (Object) this;
+        // Acknowledged action: the world is set to the server's block, undoing a wrong prediction
+        BlockIndex.getInstance().onBlockUpdate(world, pos, world.getBlockState(pos));
+    }
+}
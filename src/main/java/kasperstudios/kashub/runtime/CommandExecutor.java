@@ -0,0 +1,194 @@
+package kasperstudios.kashub.runtime;
+
+import kasperstudios.kashub.algorithm.Command;
+import kasperstudios.kashub.util.ScriptLogger;
+
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Executors behind {@link Command#executeAsync}, one per {@link Command.Lane}.
+ * GAME work is posted to a mailbox that the client thread drains at the end
+ * of every tick, so commands touching the world never run off-thread.
+ * COMPUTE work runs on a small bounded pool of daemon threads instead of the
+ * JVM-wide common pool. Both lanes keep queue depth and latency metrics.
+ */
+public class CommandExecutor {
+    // Created eagerly: submit() is called from pool threads as well
+    private static final CommandExecutor INSTANCE = new CommandExecutor();
+
+    private static final long DEFAULT_DRAIN_BUDGET_NANOS = 4_000_000L;
+
+    private final Queue<Job> mailbox = new ConcurrentLinkedQueue<>();
+    private final ExecutorService computePool;
+    private final Map<Command.Lane, LaneMetrics> metrics = new EnumMap<>(Command.Lane.class);
+    private volatile Thread gameThread;
+
+    private CommandExecutor() {
+        int threads = Math.max(2, Math.min(4, Runtime.getRuntime().availableProcessors() / 2));
+        AtomicInteger counter = new AtomicInteger();
+        this.computePool = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<>(), runnable -> {
+                Thread thread = new Thread(runnable, "Kashub-Compute-" + counter.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+        ((ThreadPoolExecutor) computePool).allowCoreThreadTimeOut(true);
+        for (Command.Lane lane : Command.Lane.values()) {
+            metrics.put(lane, new LaneMetrics());
+        }
+    }
+
+    public static CommandExecutor getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Run work on a lane
+     * @return future completed (exceptionally on failure) once the work has run
+     */
+    public CompletableFuture<Void> submit(Command.Lane lane, Runnable work) {
+        Job job = new Job(lane, work);
+        metrics.get(lane).enqueued();
+        if (lane == Command.Lane.GAME) {
+            mailbox.add(job);
+        } else {
+            computePool.execute(job);
+        }
+        return job.future;
+    }
+
+    /**
+     * Executor for background work of commands that manage their own futures
+     * (scans, path searches, HTTP requests)
+     */
+    public Executor compute() {
+        return work -> submit(Command.Lane.COMPUTE, work);
+    }
+
+    /**
+     * Run queued game work on the client thread. Called at the end of every client tick;
+     * work posted while draining runs in the same pass as long as the budget lasts
+     * @return number of jobs run
+     */
+    public int drainGameThread(long budgetNanos) {
+        gameThread = Thread.currentThread();
+        if (budgetNanos <= 0) {
+            budgetNanos = DEFAULT_DRAIN_BUDGET_NANOS;
+        }
+        long start = System.nanoTime();
+        int ran = 0;
+        Job job;
+        // At least one job per tick, so a tiny budget cannot stall the lane
+        while ((ran == 0 || System.nanoTime() - start < budgetNanos) && (job = mailbox.poll()) != null) {
+            job.run();
+            ran++;
+        }
+        return ran;
+    }
+
+    /**
+     * True on the thread that drains the GAME mailbox
+     */
+    public boolean isGameThread() {
+        return Thread.currentThread() == gameThread;
+    }
+
+    /**
+     * Queue depth and latency per lane for /api/tasks and 'scripts stats'
+     */
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        for (Map.Entry<Command.Lane, LaneMetrics> entry : metrics.entrySet()) {
+            stats.put(entry.getKey().name().toLowerCase(), entry.getValue().snapshot());
+        }
+        return stats;
+    }
+
+    private class Job implements Runnable {
+        final Command.Lane lane;
+        final Runnable work;
+        final CompletableFuture<Void> future = new CompletableFuture<>();
+        final long enqueuedAt = System.nanoTime();
+
+        Job(Command.Lane lane, Runnable work) {
+            this.lane = lane;
+            this.work = work;
+        }
+
+        @Override
+        public void run() {
+            LaneMetrics laneMetrics = metrics.get(lane);
+            long begin = System.nanoTime();
+            laneMetrics.started(begin - enqueuedAt);
+            try {
+                work.run();
+                laneMetrics.finished(System.nanoTime() - begin, false);
+                future.complete(null);
+            } catch (Throwable t) {
+                laneMetrics.finished(System.nanoTime() - begin, true);
+                ScriptLogger.getInstance().debug("Command failed on " + lane + " lane: " + t.getMessage());
+                future.completeExceptionally(t);
+            }
+        }
+    }
+
+    /**
+     * Counters of one lane; wait is the time from submit to start, run the time the work took
+     */
+    private static class LaneMetrics {
+        final AtomicInteger depth = new AtomicInteger();
+        final AtomicInteger maxDepth = new AtomicInteger();
+        final AtomicLong submitted = new AtomicLong();
+        final AtomicLong completed = new AtomicLong();
+        final AtomicLong failed = new AtomicLong();
+        final LongAdder waitNanos = new LongAdder();
+        final LongAdder runNanos = new LongAdder();
+        final AtomicLong maxWaitNanos = new AtomicLong();
+        final AtomicLong maxRunNanos = new AtomicLong();
+
+        void enqueued() {
+            submitted.incrementAndGet();
+            maxDepth.accumulateAndGet(depth.incrementAndGet(), Math::max);
+        }
+
+        void started(long waited) {
+            depth.decrementAndGet();
+            waitNanos.add(waited);
+            maxWaitNanos.accumulateAndGet(waited, Math::max);
+        }
+
+        void finished(long ran, boolean error) {
+            (error ? failed : completed).incrementAndGet();
+            runNanos.add(ran);
+            maxRunNanos.accumulateAndGet(ran, Math::max);
+        }
+
+        Map<String, Object> snapshot() {
+            long done = completed.get() + failed.get();
+            Map<String, Object> stats = new LinkedHashMap<>();
+            stats.put("depth", depth.get());
+            stats.put("maxDepth", maxDepth.get());
+            stats.put("submitted", submitted.get());
+            stats.put("completed", completed.get());
+            stats.put("failed", failed.get());
+            stats.put("avgWaitMicros", done == 0 ? 0 : waitNanos.sum() / done / 1000);
+            stats.put("maxWaitMicros", maxWaitNanos.get() / 1000);
+            stats.put("avgRunMicros", done == 0 ? 0 : runNanos.sum() / done / 1000);
+            stats.put("maxRunMicros", maxRunNanos.get() / 1000);
+            return stats;
+        }
+    }
+}
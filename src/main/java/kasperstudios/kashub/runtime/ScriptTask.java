@@ -1,16 +1,32 @@
 package kasperstudios.kashub.runtime;
 
+import kasperstudios.kashub.algorithm.ArgumentTemplate;
 import kasperstudios.kashub.algorithm.ScriptInterpreter;
 import kasperstudios.kashub.algorithm.Command;
 import kasperstudios.kashub.algorithm.CommandRegistry;
-import kasperstudios.kashub.algorithm.EnvironmentVariable;
+import kasperstudios.kashub.algorithm.CompiledExpression;
+import kasperstudios.kashub.algorithm.ExpressionParser;
+import kasperstudios.kashub.algorithm.VariableFrame;
+import kasperstudios.kashub.algorithm.ast.Diagnostic;
+import kasperstudios.kashub.algorithm.ast.ScriptAnalyzer;
+import kasperstudios.kashub.algorithm.ast.FrameLayout;
+import kasperstudios.kashub.algorithm.ast.ScriptCache;
+import kasperstudios.kashub.algorithm.ast.ScriptNode;
+import kasperstudios.kashub.algorithm.ast.ScriptProgram;
+import kasperstudios.kashub.algorithm.types.TypedValue;
 import kasperstudios.kashub.util.ScriptLogger;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.util.*;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Represents a running script as a task
@@ -23,55 +39,76 @@ public class ScriptTask {
     private final long startTime;
     private final ScriptType scriptType;
     
-    private ScriptState state;
+    private volatile ScriptState state;
+    private final Object stateLock = new Object();
+    private Listener listener; // ScriptTaskManager indexes
     private long lastTickTime;
     private String lastError;
     private int priority;
     private int currentLine;
     private int executedCommands;
     
-    // Command queue for this task
+    // Commands injected through queueCommand, run before the program continues.
+    // Bounded: once it is full, producers wait until the task drains it to the low-water mark
     private final Queue<CommandEntry> commandQueue;
+    private final AtomicInteger queueDepth = new AtomicInteger();
+    private final Object queueLock = new Object();
+    private int queueCapacity = DEFAULT_QUEUE_CAPACITY;
+    private int queueLowWater = DEFAULT_QUEUE_CAPACITY / 4;
+    private volatile boolean producersSuspended;
+    private int maxQueueDepth;
+    private long producerWaits;
+    private long rejectedCommands;
+    public static final int DEFAULT_QUEUE_CAPACITY = 1000;
     private volatile boolean isProcessingCommand;
-    private CompletableFuture<Void> currentCommandFuture;
+    // Written by the script thread in virtual-thread mode, read by stop() and snapshots
+    private volatile CompletableFuture<Void> currentCommandFuture;
+    private volatile CommandEntry inFlight; // command behind currentCommandFuture, saved in snapshots
     private final Object processLock = new Object(); // Lock for processNextCommand synchronization
     
-    // Loop control - prevent duplicate loop iterations
-    private LoopMarkerCommand pendingLoopMarker = null;
-    private static final int MAX_QUEUE_SIZE = 1000; // Prevent queue overflow
-    private static final int LOOP_REQUEUE_THRESHOLD = 5; // Re-add loop marker when queue has <= this many commands
+    // Program counter: one cursor per active block, innermost on top
+    private final Deque<Cursor> stack = new ArrayDeque<>();
+    private static final int MAX_STEPS_PER_RUN = 10000; // Instruction budget: statements and commands per run before yielding to the next tick
+    private int stepBudget;
     
-    // Script variables
-    private final Map<String, String> variables = new HashMap<>();
+    // Burst mode: cheap synchronous commands run inline in the tick, only async ones yield
+    private boolean burst = true;
+    private int inlineCommands;
     
-    // Parsing patterns - Legacy and Rust-style syntax support
-    // Legacy: x = 5, Rust-style: let x = 5 / const x = 5
-    private static final Pattern VARIABLE_PATTERN = Pattern.compile("^\\s*(?:let\\s+|const\\s+)?([a-zA-Z_][a-zA-Z0-9_]*)\\s*=\\s*(.+)$");
-    // Legacy: if (cond) {, Rust-style: if cond {
-    private static final Pattern IF_PATTERN = Pattern.compile("^\\s*if\\s+(.+?)\\s*\\{\\s*$|^\\s*if\\s*\\((.*)\\)\\s*\\{?\\s*$");
-    // Legacy: } else if (cond) {, Rust-style: } else if cond {
-    private static final Pattern ELSE_IF_PATTERN = Pattern.compile("^\\s*\\}?\\s*else\\s+if\\s+(.+?)\\s*\\{\\s*$|^\\s*\\}?\\s*else\\s+if\\s*\\((.*)\\)\\s*\\{?\\s*$");
-    private static final Pattern ELSE_PATTERN = Pattern.compile("^\\s*\\}?\\s*else\\s*\\{?\\s*$");
-    private static final Pattern FOR_PATTERN = Pattern.compile("^\\s*for\\s*\\((.*)\\)\\s*\\{?\\s*$");
-    // Legacy: while (cond) {, Rust-style: while cond {
-    private static final Pattern WHILE_PATTERN = Pattern.compile("^\\s*while\\s+(.+?)\\s*\\{\\s*$|^\\s*while\\s*\\((.*)\\)\\s*\\{?\\s*$");
-    private static final Pattern LOOP_PATTERN = Pattern.compile("^\\s*loop(?:\\s+(\\d+))?\\s*\\{?\\s*$");
-    private static final Pattern FUNCTION_PATTERN = Pattern.compile("^\\s*function\\s+([a-zA-Z_][a-zA-Z0-9_]*)\\s*\\((.*?)\\)\\s*\\{?\\s*$");
-    private static final Pattern FUNCTION_CALL_PATTERN = Pattern.compile("^\\s*([a-zA-Z_][a-zA-Z0-9_]*)\\s*\\((.*?)\\)\\s*$");
-    private static final Pattern ENV_VAR_PATTERN = Pattern.compile("\\$([A-Z_][A-Z0-9_]*)");
-    private static final Pattern USER_VAR_PATTERN = Pattern.compile("\\$([a-z_][a-z0-9_]*)");
+    // Virtual-thread mode (opt-in): the program runs on its own thread and blocks on each command
+    private boolean threaded;
+    private volatile Thread thread;
+    private volatile int generation; // bumped on stop, a thread of an older generation exits
+    private final Semaphore tickSignal = new Semaphore(0);
     
-    // Functions defined in this script
-    private final Map<String, FunctionDef> localFunctions = new HashMap<>();
+    // Script variables: top-level frame and the frame currently executing
+    private VariableFrame globalFrame;
+    private VariableFrame currentFrame;
+    
+    // Compiled program - parsed once per task, shared by restarts
+    private ScriptProgram program;
+    private final ScriptProgram precompiled; // from CompiledScriptCache, null to compile the code
+    private List<Cursor> blocks; // every block of the program, indexed for snapshots
+    
+    // Expressions and argument templates bound to this task's variables, per scope layout
+    private final Map<FrameLayout, ScopeBindings> bindings = new IdentityHashMap<>();
+    private final Map<String, ArgumentTemplate> textTemplates = new HashMap<>();
     
-    // Control flow flags
-    private boolean shouldBreak = false;
-    private boolean shouldContinue = false;
+    // Functions defined in this script
+    private final Map<String, ScriptNode.FunctionDef> localFunctions = new HashMap<>();
 
     public ScriptTask(int id, String name, String code, Set<String> tags, ScriptType scriptType) {
+        this(id, name, code, null, tags, scriptType);
+    }
+
+    /**
+     * Task for a program compiled in advance from the given code
+     */
+    public ScriptTask(int id, String name, String code, ScriptProgram precompiled, Set<String> tags, ScriptType scriptType) {
         this.id = id;
         this.name = name;
         this.code = code;
+        this.precompiled = precompiled;
         this.tags = tags != null ? new HashSet<>(tags) : new HashSet<>();
         this.scriptType = scriptType;
         this.startTime = System.currentTimeMillis();
@@ -82,11 +119,7 @@ public class ScriptTask {
         this.executedCommands = 0;
         this.commandQueue = new ConcurrentLinkedQueue<>();
         this.isProcessingCommand = false;
-        // Initialize loop control flags
-        this.shouldBreak = false;
-        this.shouldContinue = false;
-        this.pendingLoopMarker = null;
-        ScriptLogger.getInstance().debug("Task " + id + " (" + name + ") created, loop flags initialized");
+        ScriptLogger.getInstance().debug("Task " + id + " (" + name + ") created");
     }
 
     /**
@@ -100,1278 +133,1052 @@ public class ScriptTask {
         
         lastTickTime = System.currentTimeMillis();
         
-        // Check if we should re-queue loop marker (only when queue is completely empty and no command is processing)
-        if (pendingLoopMarker != null && !isProcessingCommand && commandQueue.isEmpty() && !shouldBreak) {
-            ScriptLogger.getInstance().debug("Task " + id + ": Re-queuing loop marker, queue empty (pendingLoopMarker=" + (pendingLoopMarker != null) + ", isProcessingCommand=" + isProcessingCommand + ", queueSize=" + commandQueue.size() + ", shouldBreak=" + shouldBreak + ")");
-            commandQueue.add(new CommandEntry(pendingLoopMarker, new String[0]));
-            pendingLoopMarker = null; // Clear pending marker
-            // Process the newly queued marker immediately
-            processNextCommand();
+        if (threaded) {
+            // The script thread does the work, the tick only lets it go on
+            if (thread == null) {
+                int current = generation;
+                thread = Thread.ofVirtual().name("kashub-script-" + id).start(() -> runThreaded(current));
+            } else if (tickSignal.availablePermits() == 0) {
+                tickSignal.release();
+            }
             return;
         }
         
-        // If no active command, take next from queue
-        if (!isProcessingCommand && !commandQueue.isEmpty()) {
-            ScriptLogger.getInstance().debug("Task " + id + ": tick() processing next command, queueSize=" + commandQueue.size());
+        // Continue the program unless a command is still in flight
+        if (!isProcessingCommand) {
             processNextCommand();
-        } else if (pendingLoopMarker != null) {
-            ScriptLogger.getInstance().debug("Task " + id + ": tick() waiting for queue to empty (pendingLoopMarker=" + (pendingLoopMarker != null) + ", isProcessingCommand=" + isProcessingCommand + ", queueSize=" + commandQueue.size() + ", shouldBreak=" + shouldBreak + ")");
         }
     }
 
     /**
-     * Parse and queue commands for this task
+     * Compile the script (once per task) and point the program counter at its first statement.
+     * Nothing runs here; the program is executed lazily from {@link #tick()}.
      */
     public void parseAndQueue() {
         try {
-            String[] lines = code.split("\\r?\\n");
-            
-            // Reset loop control flags before parsing
-            shouldBreak = false;
-            shouldContinue = false;
-            pendingLoopMarker = null;
-            commandQueue.clear();
+            if (program == null) {
+                ScriptProgram compiled = precompiled != null ? precompiled : ScriptCache.get(code);
+                for (Diagnostic diagnostic : compiled.getDiagnostics()) {
+                    if (diagnostic.isError()) {
+                        ScriptLogger.getInstance().warn("Script " + name + ", " + diagnostic);
+                    }
+                }
+                // Bind call sites to their commands; unknown commands and bad arguments fail here, not mid-run
+                for (Diagnostic diagnostic : ScriptAnalyzer.link(compiled, CommandRegistry::getCommand, CommandRegistry.getVersion())) {
+                    if (diagnostic.isError()) {
+                        if (state != ScriptState.ERROR) {
+                            lastError = diagnostic.toString();
+                            setState(ScriptState.ERROR);
+                        }
+                        ScriptLogger.getInstance().error("Script " + name + ", " + diagnostic);
+                    } else {
+                        ScriptLogger.getInstance().warn("Script " + name + ", " + diagnostic);
+                    }
+                }
+                if (state == ScriptState.ERROR) {
+                    return;
+                }
+                program = compiled;
+            }
+            globalFrame = new VariableFrame(program.getGlobalLayout(), null);
+            currentFrame = globalFrame;
             
-            ScriptLogger.getInstance().debug("Parsing script " + name + " with " + lines.length + " lines, loop flags reset");
+            synchronized (processLock) {
+                clearQueue();
+                stack.clear();
+                stack.push(new Cursor(program.getStatements(), globalFrame, null));
+            }
             
-            parseLines(lines, 0, lines.length);
+            // Functions are hoisted so they can be called before their declaration
+            localFunctions.clear();
+            for (ScriptNode.FunctionDef def : program.getFunctions().values()) {
+                localFunctions.put(def.name, def);
+                ScriptInterpreter.getInstance().setVariable("__func_" + def.name, "defined");
+            }
             
-            ScriptLogger.getInstance().info("Task " + id + " queued " + commandQueue.size() + " commands");
+            ScriptLogger.getInstance().debug("Compiled script " + name + ": " + program.getStatements().size() + " statements, " + localFunctions.size() + " functions");
             
         } catch (Exception e) {
             lastError = e.getMessage();
-            state = ScriptState.ERROR;
+            setState(ScriptState.ERROR);
             ScriptLogger.getInstance().error("Script " + name + " parse error: " + e.getMessage());
         }
     }
     
     /**
-     * Recursively parse code lines with block support
+     * Move the program counter to the next command call, running assignments,
+     * conditions and loop bookkeeping on the way.
+     * @return the command to run, or null if the script yields until the next tick or has ended
      */
-    private void parseLines(String[] lines, int start, int end) {
-        int i = start;
-        while (i < end && state != ScriptState.STOPPED && !shouldBreak) {
-            // Check for continue flag
-            if (shouldContinue) {
-                shouldContinue = false;
-                return; // Exit current block iteration
-            }
-            
-            String line = lines[i].trim();
-            
-            // Skip empty lines and comments
-            if (line.isEmpty() || line.startsWith("//")) {
-                i++;
-                continue;
-            }
-            
-            // Skip closing braces and end
-            if (line.equals("}") || line.equals("end")) {
-                i++;
-                continue;
-            }
-            
-            // Skip else and else if (handled in if)
-            if (ELSE_PATTERN.matcher(line).matches() || ELSE_IF_PATTERN.matcher(line).matches()) {
-                i++;
-                continue;
-            }
-            
-            currentLine = i + 1;
-            
-            // Note: break and continue are now handled as commands in the queue
-            // This allows them to work correctly in loops that execute from queue
-            
-            // Check for function definition
-            Matcher funcMatcher = FUNCTION_PATTERN.matcher(line);
-            if (funcMatcher.find()) {
-                String funcName = funcMatcher.group(1);
-                String paramsStr = funcMatcher.group(2);
-                List<String> parameters = new ArrayList<>();
-                if (!paramsStr.trim().isEmpty()) {
-                    for (String param : paramsStr.split(",")) {
-                        parameters.add(param.trim());
-                    }
-                }
-                
-                int blockEnd = findBlockEnd(lines, i + 1, end);
-                localFunctions.put(funcName, new FunctionDef(funcName, parameters, lines, i + 1, blockEnd));
-                // Also register in ScriptInterpreter for global access
-                StringBuilder funcBody = new StringBuilder();
-                for (int j = i + 1; j < blockEnd; j++) {
-                    funcBody.append(lines[j]).append("\n");
-                }
-                ScriptInterpreter.getInstance().setVariable("__func_" + funcName, "defined");
-                
-                i = blockEnd + 1;
-                continue;
+    private CommandEntry advance() {
+        while (!stack.isEmpty()) {
+            if (--stepBudget < 0) {
+                return null; // long stretch of work, continue next tick
             }
+            Cursor cursor = stack.peek();
+            currentFrame = cursor.frame;
             
-            // Check for function call
-            Matcher funcCallMatcher = FUNCTION_CALL_PATTERN.matcher(line);
-            if (funcCallMatcher.find()) {
-                String funcName = funcCallMatcher.group(1);
-                String argsStr = funcCallMatcher.group(2);
-                
-                FunctionDef func = localFunctions.get(funcName);
-                if (func != null) {
-                    // Parse arguments
-                    List<String> arguments = new ArrayList<>();
-                    if (!argsStr.trim().isEmpty()) {
-                        for (String arg : argsStr.split(",")) {
-                            arguments.add(processVariables(arg.trim()));
-                        }
-                    }
-                    
-                    // Save current variables
-                    Map<String, String> savedVars = new HashMap<>(variables);
-                    
-                    // Set function parameters
-                    for (int j = 0; j < func.parameters.size() && j < arguments.size(); j++) {
-                        String paramValue = arguments.get(j);
-                        // Remove quotes if present
-                        if (paramValue.startsWith("\"") && paramValue.endsWith("\"")) {
-                            paramValue = paramValue.substring(1, paramValue.length() - 1);
-                        }
-                        variables.put(func.parameters.get(j), paramValue);
-                        ScriptInterpreter.getInstance().setVariable(func.parameters.get(j), paramValue);
-                    }
-                    
-                    // Execute function body
-                    parseLines(func.lines, func.startLine, func.endLine);
-                    
-                    // Restore variables
-                    variables.clear();
-                    variables.putAll(savedVars);
-                    
-                    i++;
+            if (cursor.pc >= cursor.body.size()) {
+                if (!cursor.isLoop()) {
+                    stack.pop();
                     continue;
                 }
-                // If function not found, fall through to command processing
-            }
-            
-            // Check for variable assignment
-            Matcher varMatcher = VARIABLE_PATTERN.matcher(line);
-            if (varMatcher.find()) {
-                String varName = varMatcher.group(1);
-                String varValue = processVariables(varMatcher.group(2).trim());
-                // Remove quotes if present
-                if (varValue.startsWith("\"") && varValue.endsWith("\"")) {
-                    varValue = varValue.substring(1, varValue.length() - 1);
-                } else {
-                    // Try to evaluate as arithmetic expression
-                    try {
-                        double result = evaluateExpressionAsDouble(varValue);
-                        if (!Double.isNaN(result)) {
-                            // Format as integer if it's a whole number
-                            if (result == Math.floor(result) && !Double.isInfinite(result)) {
-                                varValue = String.valueOf((int) result);
-                            } else {
-                                varValue = String.valueOf(result);
-                            }
-                        }
-                    } catch (Exception e) {
-                        // Keep original value if evaluation fails
-                    }
-                }
-                variables.put(varName, varValue);
-                // Also set in ScriptInterpreter for global access
-                ScriptInterpreter.getInstance().setVariable(varName, varValue);
-                i++;
-                continue;
-            }
-            
-            // Check for if with else if and else support
-            Matcher ifMatcher = IF_PATTERN.matcher(line);
-            if (ifMatcher.find()) {
-                // Support both Rust-style (group 1) and Legacy (group 2)
-                String condition = ifMatcher.group(1) != null ? ifMatcher.group(1) : ifMatcher.group(2);
-                // Find the chain - search until we find the complete if-else chain
-                // We need to search beyond the initial if block to find else if and else blocks
-                // Extend the search range to include a few more lines to catch else blocks
-                // that might be on the next line after the closing brace
-                int searchEnd = Math.min(end, lines.length);
-                if (searchEnd < lines.length) {
-                    // Extend by a few lines to catch else blocks
-                    searchEnd = Math.min(searchEnd + 5, lines.length);
-                }
-                List<int[]> chain = findIfElseChain(lines, i + 1, searchEnd);
-                int blockEnd = chain.get(0)[0];
-                
-                // Always defer condition evaluation - check at execution time, not parse time
-                // This ensures conditions are evaluated after previous commands in the loop have executed
-                    int ifBlockEnd = blockEnd;
-                    if (chain.size() > 1) {
-                        ifBlockEnd = chain.get(1)[0];
-                    }
-                
-                // Build else if / else chain
-                List<ConditionalBlock> conditionalBlocks = new ArrayList<>();
-                conditionalBlocks.add(new ConditionalBlock(condition, i + 1, ifBlockEnd));
-                
-                    for (int ci = 1; ci < chain.size(); ci++) {
-                        int[] entry = chain.get(ci);
-                        int pos = entry[0];
-                        int type = entry[1];
-                        
-                        if (type == 0) { // else if
-                            Matcher elseIfMatcher = ELSE_IF_PATTERN.matcher(lines[pos].trim());
-                            if (elseIfMatcher.find()) {
-                            String elseIfCondition = elseIfMatcher.group(1) != null ? elseIfMatcher.group(1) : elseIfMatcher.group(2);
-                                    int elseIfEnd = blockEnd;
-                                    if (ci + 1 < chain.size()) {
-                                        elseIfEnd = chain.get(ci + 1)[0];
-                                    }
-                            conditionalBlocks.add(new ConditionalBlock(elseIfCondition, pos + 1, elseIfEnd));
-                            }
-                        } else if (type == 1) { // else
-                        conditionalBlocks.add(new ConditionalBlock(null, pos + 1, blockEnd)); // null condition = else
-                    }
-                }
-                
-                commandQueue.add(new CommandEntry(new ConditionalCommand(this, lines, conditionalBlocks), new String[0]));
-                i = blockEnd + 1;
-                continue;
-            }
-            
-            // Check for for loop
-            Matcher forMatcher = FOR_PATTERN.matcher(line);
-            if (forMatcher.find()) {
-                String forContent = forMatcher.group(1);
-                String[] forParts = forContent.split(";");
-                
-                if (forParts.length == 3) {
-                    String init = forParts[0].trim();
-                    String condition = forParts[1].trim();
-                    String increment = forParts[2].trim();
-                    
-                    int blockEnd = findBlockEnd(lines, i + 1, end);
-                    
-                    // Initialization
-                    if (!init.isEmpty()) {
-                        Matcher initMatcher = VARIABLE_PATTERN.matcher(init);
-                        if (initMatcher.find()) {
-                            String initValue = processVariables(initMatcher.group(2).trim());
-                            variables.put(initMatcher.group(1), initValue);
-                            ScriptInterpreter.getInstance().setVariable(initMatcher.group(1), initValue);
-                        }
-                    }
-                    
-                    // Loop
-                    int maxIterations = 10000; // Protection against infinite loops
-                    int iterations = 0;
-                    shouldBreak = false;
-                    while (evaluateCondition(condition) && iterations < maxIterations && !shouldBreak) {
-                        parseLines(lines, i + 1, blockEnd);
-                        
-                        if (shouldBreak) break;
-                        
-                        // Increment
-                        if (!increment.isEmpty()) {
-                            executeIncrement(increment);
-                        }
-                        iterations++;
-                    }
-                    shouldBreak = false;
-                    
-                    i = blockEnd + 1;
+                boolean repeated = cursor.iterations > 0;
+                if (!nextIteration(cursor)) {
+                    stack.pop();
                     continue;
                 }
-                i++;
-                continue;
-            }
-            
-            // Check for while loop
-            Matcher whileMatcher = WHILE_PATTERN.matcher(line);
-            if (whileMatcher.find()) {
-                // Support both Rust-style (group 1) and Legacy (group 2)
-                String condition = whileMatcher.group(1) != null ? whileMatcher.group(1) : whileMatcher.group(2);
-                int blockEnd = findBlockEnd(lines, i + 1, end);
-                
-                // Check if condition is always true (infinite loop)
-                String trimmedCondition = condition.trim().toLowerCase();
-                // Remove parentheses if present
-                while (trimmedCondition.startsWith("(") && trimmedCondition.endsWith(")")) {
-                    trimmedCondition = trimmedCondition.substring(1, trimmedCondition.length() - 1).trim();
+                if (repeated && cursor.isEndless()) {
+                    return null; // endless loops run at most one iteration per tick
                 }
-                if (trimmedCondition.equals("true")) {
-                    // Infinite while loop - use LoopMarkerCommand like loop {}
-                    ScriptLogger.getInstance().debug("Task " + id + ": Detected infinite while loop (while true), using LoopMarkerCommand");
-                    final int loopStart = i + 1;
-                    final int loopEnd = blockEnd;
-                    commandQueue.add(new CommandEntry(new LoopMarkerCommand(lines, loopStart, loopEnd), new String[0]));
-                } else {
-                    // Conditional while loop - evaluate condition at runtime
-                    // For now, use the old behavior but with runtime condition checking
-                    // TODO: Implement proper runtime condition checking for while loops
-                    ScriptLogger.getInstance().debug("Task " + id + ": Detected conditional while loop, condition: " + condition);
-                int maxIterations = 10000;
-                int iterations = 0;
-                shouldBreak = false;
-                while (evaluateCondition(condition) && iterations < maxIterations && !shouldBreak) {
-                    parseLines(lines, i + 1, blockEnd);
-                    if (shouldBreak) break;
-                    iterations++;
-                }
-                shouldBreak = false;
-                }
-                
-                i = blockEnd + 1;
                 continue;
             }
             
-            // Check for loop (with optional iteration count)
-            Matcher loopMatcher = LOOP_PATTERN.matcher(line);
-            if (loopMatcher.find()) {
-                String countStr = loopMatcher.group(1);
-                int blockEnd = findBlockEnd(lines, i + 1, end);
-                
-                if (countStr != null && !countStr.isEmpty()) {
-                    // loop N - execute N times
-                    int count = Integer.parseInt(countStr);
-                    shouldBreak = false;
-                    for (int iter = 0; iter < count && !shouldBreak && state == ScriptState.RUNNING; iter++) {
-                        parseLines(lines, i + 1, blockEnd);
-                        if (shouldBreak) break;
-                    }
-                    shouldBreak = false;
-                } else {
-                    // loop without number - infinite loop via marker
-                    final int loopStart = i + 1;
-                    final int loopEnd = blockEnd;
-                    commandQueue.add(new CommandEntry(new LoopMarkerCommand(lines, loopStart, loopEnd), new String[0]));
+            ScriptNode node = cursor.body.get(cursor.pc++);
+            currentLine = node.getLine();
+            CommandEntry entry = executeNode(node, cursor);
+            if (entry != null) {
+                return entry;
+            }
+        }
+        return null;
+    }
+    
+    /**
+     * Execute one statement at the program counter
+     * @return the resolved command for command calls, otherwise null
+     */
+    private CommandEntry executeNode(ScriptNode node, Cursor cursor) {
+        if (node instanceof ScriptNode.CommandCall commandCall) {
+            return resolveCommandCall(commandCall);
+        }
+        
+        if (node instanceof ScriptNode.Assignment assignment) {
+            executeAssignment(assignment);
+        } else if (node instanceof ScriptNode.Increment increment) {
+            executeIncrement(increment);
+        } else if (node instanceof ScriptNode.If ifNode) {
+            for (ScriptNode.Branch branch : ifNode.branches) {
+                // else block, or the first branch whose condition holds
+                if (branch.condition == null || evaluateCondition(branch.condition)) {
+                    stack.push(new Cursor(branch.body, cursor.frame, null));
+                    break;
                 }
-                
-                i = blockEnd + 1;
-                continue;
             }
-            
-            // Regular command - process variables
-            String processedLine = processVariables(line);
-            List<String> parts = parseArguments(processedLine);
-            if (parts.isEmpty()) {
-                i++;
-                continue;
+        } else if (node instanceof ScriptNode.For forNode) {
+            if (forNode.init != null) {
+                executeStatement(forNode.init);
             }
-            
-            String commandName = parts.get(0).toLowerCase();
-            String[] args = parts.subList(1, parts.size()).toArray(new String[0]);
-            
-            // Handle break and continue as special commands
-            if (commandName.equals("break")) {
-                ScriptLogger.getInstance().debug("Task " + id + ": Parsing break command at line " + currentLine);
-                commandQueue.add(new CommandEntry(new BreakCommand(), new String[0]));
-                i++;
-                continue;
+            executeInvariants(forNode.invariants);
+            stack.push(Cursor.loop(forNode, forNode.body, cursor.frame));
+        } else if (node instanceof ScriptNode.While whileNode) {
+            executeInvariants(whileNode.invariants);
+            stack.push(Cursor.loop(whileNode, whileNode.body, cursor.frame));
+        } else if (node instanceof ScriptNode.Loop loopNode) {
+            executeInvariants(loopNode.invariants);
+            stack.push(Cursor.loop(loopNode, loopNode.body, cursor.frame));
+        } else if (node instanceof ScriptNode.FunctionCall call) {
+            executeFunctionCall(call);
+        } else if (node instanceof ScriptNode.Break) {
+            unwindLoop(false);
+        } else if (node instanceof ScriptNode.Continue) {
+            unwindLoop(true);
+        } else if (node instanceof ScriptNode.Return) {
+            unwindFunction();
+        }
+        // Function definitions were registered when the program was loaded
+        return null;
+    }
+    
+    /**
+     * Start the next iteration of a loop cursor
+     * @return false if the loop is finished
+     */
+    private boolean nextIteration(Cursor loop) {
+        boolean proceed;
+        if (loop.owner instanceof ScriptNode.For forNode) {
+            if (loop.iterations > 0 && forNode.update != null) {
+                executeStatement(forNode.update);
             }
-            if (commandName.equals("continue")) {
-                ScriptLogger.getInstance().debug("Task " + id + ": Parsing continue command at line " + currentLine);
-                commandQueue.add(new CommandEntry(new ContinueCommand(), new String[0]));
-                i++;
-                continue;
+            proceed = evaluateCondition(forNode.condition);
+        } else if (loop.owner instanceof ScriptNode.While whileNode) {
+            proceed = whileNode.infinite || evaluateCondition(whileNode.condition);
+        } else {
+            ScriptNode.Loop loopNode = (ScriptNode.Loop) loop.owner;
+            proceed = loopNode.isInfinite() || loop.iterations < loopNode.count;
+        }
+        if (proceed) {
+            loop.pc = 0;
+            loop.iterations++;
+        }
+        return proceed;
+    }
+    
+    /**
+     * break / continue: drop the blocks inside the innermost loop.
+     * Outside of a loop (in this function) the statement is ignored.
+     */
+    private void unwindLoop(boolean continueLoop) {
+        Cursor target = null;
+        for (Cursor cursor : stack) {
+            if (cursor.isLoop()) {
+                target = cursor;
+                break;
             }
-            
-            Command command = CommandRegistry.getCommand(commandName);
-            if (command != null) {
-                commandQueue.add(new CommandEntry(command, args));
-                ScriptLogger.getInstance().debug("Queued command: " + commandName + " with " + args.length + " args");
-            } else {
-                ScriptLogger.getInstance().warn("Unknown command at line " + currentLine + ": " + commandName);
+            if (cursor.isFunction()) {
+                break;
             }
-            
-            i++;
+        }
+        if (target == null) {
+            return;
+        }
+        while (stack.peek() != target) {
+            stack.pop();
+        }
+        if (continueLoop) {
+            target.pc = target.body.size(); // next iteration
+        } else {
+            stack.pop();
         }
     }
     
     /**
-     * Find end of block (closing brace or end)
+     * return: leave the innermost function call
      */
-    private int findBlockEnd(String[] lines, int start, int end) {
-        int level = 1;
-        for (int i = start; i < end; i++) {
-            String line = lines[i].trim();
-            
-            // Check for block closers FIRST (before openers) to handle "} else {" correctly
-            // Special handling for "} else {" - it closes one block but opens another
-            if (line.startsWith("} else {") || (line.contains("} else") && line.contains("{"))) {
-                // "} else {" - closes previous block (decrease level) but opens new one (increase level)
-                // Net effect: level stays the same, but we need to process both
-                level--; // Close previous block
-                // Opening brace will be handled below
-            } else if (line.equals("}") || line.equals("end")) {
-                level--;
-            } else if (line.contains("}") && !line.contains("{")) {
-                level--;
-            }
-            
-            // Check for block openers AFTER closers
-            if (line.contains("{") || 
-                line.startsWith("if ") || line.startsWith("if(") ||
-                line.startsWith("for ") || line.startsWith("for(") ||
-                line.startsWith("while ") || line.startsWith("while(") ||
-                line.startsWith("loop ") || line.equals("loop") || line.equals("loop{") ||
-                line.startsWith("function ")) {
-                // Only increment if it's a new block opener without closing on same line
-                if (line.contains("{") && !line.contains("}")) {
-                    level++;
-                } else if (line.contains("{") && line.contains("}")) {
-                    // Both open and close on same line (like "} else {")
-                    level++; // Opening brace increases level
-                } else if (!line.contains("{") && !line.contains("}")) {
-                    // Block opener without braces (uses end)
-                    level++;
-                }
+    private void unwindFunction() {
+        Cursor target = null;
+        for (Cursor cursor : stack) {
+            if (cursor.isFunction()) {
+                target = cursor;
+                break;
             }
-            
-            if (level == 0) return i;
         }
-        return end - 1;
+        if (target == null) {
+            ScriptLogger.getInstance().warn("'return' outside of a function is ignored at line " + currentLine);
+            return;
+        }
+        while (stack.pop() != target) {
+            // drop blocks of the function
+        }
+    }
+    
+    /**
+     * Compute the loop invariants hoisted by the optimizer, once on loop entry.
+     * Temporaries only live in the frame, they are not mirrored to the interpreter.
+     */
+    private void executeInvariants(List<ScriptNode.Assignment> invariants) {
+        for (ScriptNode.Assignment invariant : invariants) {
+            currentFrame.set(invariant.slot, bindExpression(invariant.expression).evaluate().toTyped());
+        }
     }
     
     /**
-     * Find end of if block and return list of else if and else positions
-     * Returns: [blockEnd, elseIfPos1, elseIfPos2, ..., elsePos] (-1 if not present)
+     * Run a single simple statement (for-loop init/update clauses)
      */
-    private List<int[]> findIfElseChain(String[] lines, int start, int end) {
-        List<int[]> chain = new ArrayList<>(); // Each entry: [position, type] where type: 0=else if, 1=else
-        int level = 1;
+    private void executeStatement(ScriptNode node) {
+        if (node instanceof ScriptNode.Assignment assignment) {
+            executeAssignment(assignment);
+        } else if (node instanceof ScriptNode.Increment increment) {
+            executeIncrement(increment);
+        }
+    }
+    
+    private void executeFunctionCall(ScriptNode.FunctionCall call) {
+        ScriptNode.FunctionDef func = localFunctions.get(call.name);
+        if (func == null) {
+            ScriptLogger.getInstance().warn("Unknown function at line " + currentLine + ": " + call.name);
+            return;
+        }
         
-        for (int i = start; i < end; i++) {
-            String line = lines[i].trim();
-            
-            // Special handling for "} else {" or "} else if" - check BEFORE decreasing level
-            // This is critical because the closing brace would decrease level to 0 before we check for else
-            boolean isElseIf = false;
-            boolean isElse = false;
-            boolean isElseOnSameLine = false;
-            
-            // Check if line contains "} else" - this means we need to handle it specially
-            if (line.contains("} else")) {
-                isElseOnSameLine = true;
-                // Check for else if first
-                if (ELSE_IF_PATTERN.matcher(line).matches()) {
-                    isElseIf = true;
-                } else if (line.contains("} else") && !line.contains("if")) {
-                    // It's "} else {" or "} else {"
-                    isElse = true;
-                }
-            } else if (level == 1 || level == 0) {
-                // Normal case - check for else if or else at level 1 or 0 (after closing previous block)
-                // Also check at level 0 because we might have just closed a block
-                if (ELSE_IF_PATTERN.matcher(line).matches()) {
-                    isElseIf = true;
-                } else if (!ELSE_IF_PATTERN.matcher(line).matches()) {
-                    boolean matchesElse = line.equals("else") || line.equals("else {") || 
-                                         ELSE_PATTERN.matcher(line).matches();
-                    if (matchesElse) {
-                        isElse = true;
-                    }
-                }
-            }
-            
-            // Check for block openers (nested blocks)
-            if (line.contains("{") || 
-                (line.startsWith("if ") || line.startsWith("if(")) && !line.contains("else") ||
-                line.startsWith("for ") || line.startsWith("for(") ||
-                line.startsWith("while ") || line.startsWith("while(") ||
-                line.startsWith("loop ") || line.equals("loop") || line.equals("loop{") ||
-                line.startsWith("function ")) {
-                if (line.contains("{") && !line.contains("}")) {
-                    level++;
-                } else if (!line.contains("{") && !line.contains("}")) {
-                    level++;
-                }
-            }
-            
-            // Add else if or else to chain
-            if (isElseIf) {
-                chain.add(new int[]{i, 0}); // 0 = else if
-            } else if (isElse) {
-                chain.add(new int[]{i, 1}); // 1 = else
+        // Parse arguments
+        List<String> arguments = new ArrayList<>(call.arguments.size());
+        for (String arg : call.arguments) {
+            arguments.add(processVariables(arg));
+        }
+        
+        // Push a frame for the call; writes inside the function stay in it
+        VariableFrame frame = new VariableFrame(func.layout, globalFrame);
+        
+        // Set function parameters
+        for (int j = 0; j < func.parameters.size() && j < arguments.size(); j++) {
+            String paramValue = arguments.get(j);
+            // Remove quotes if present
+            if (paramValue.startsWith("\"") && paramValue.endsWith("\"") && paramValue.length() >= 2) {
+                paramValue = paramValue.substring(1, paramValue.length() - 1);
             }
-            
-            // Check for block closers
-            // For "} else {" we need to decrease level for the closing brace, but not for the opening brace
-            if (isElseOnSameLine) {
-                // For "} else {" - decrease level for the closing brace, but the opening brace will increase it back
-                if (line.contains("}") && !line.contains("{")) {
-                    level--; // Only closing brace
-                } else if (line.startsWith("}") && line.contains("{")) {
-                    // "} else {" - decrease for closing brace, increase for opening brace
-                    level--; // Closing brace
-                    if (line.contains("{") && !line.endsWith("}")) {
-                        level++; // Opening brace (if not balanced on same line)
+            TypedValue value = new TypedValue(paramValue);
+            frame.set(func.getParameterSlot(j), value);
+            ScriptInterpreter.getInstance().setVariable(func.parameters.get(j), value);
+        }
+        
+        // The body runs in the new frame, which is dropped with its cursor
+        stack.push(new Cursor(func.body, frame, func));
+    }
+    
+    private void executeAssignment(ScriptNode.Assignment assignment) {
+        String source = assignment.expression;
+        TypedValue value = null;
+        if (!isQuoted(source)) {
+            // Try to evaluate as arithmetic expression, numbers are stored unformatted
+            try {
+                CompiledExpression.BoundExpression expression = bindExpression(source);
+                if (expression.getExpression().isComplete()) {
+                    ExpressionParser.Value result = expression.evaluate();
+                    if (result.getType() == ExpressionParser.Value.Type.NUMBER && !Double.isNaN(result.asDouble())) {
+                        value = TypedValue.ofNumber(result.asDouble());
                     }
                 }
-            } else {
-                // Normal case
-            if (line.equals("}") || line.equals("end")) {
-                level--;
-                } else if (line.contains("}") && !line.contains("{")) {
-                level--;
-                }
+            } catch (Exception e) {
+                // Keep original value if evaluation fails
             }
-            
-            // If level reaches 0, we've closed the current block
-            // But we need to check if there's an else or else if after this
-            // So we continue searching for a few more lines to find else/else if
-            if (level == 0) {
-                // Check if there's an else or else if on the next line(s)
-                // Look ahead up to 3 lines to find else/else if
-                boolean foundElse = false;
-                for (int j = i + 1; j < Math.min(i + 4, end); j++) {
-                    String nextLine = lines[j].trim();
-                    if (ELSE_IF_PATTERN.matcher(nextLine).matches() || 
-                        (nextLine.contains("} else") && !nextLine.contains("if")) ||
-                        (nextLine.equals("else") || nextLine.equals("else {"))) {
-                        foundElse = true;
-                        break;
-                    }
-                    // If we hit a non-empty line that's not else/else if, stop looking
-                    if (!nextLine.isEmpty() && !nextLine.startsWith("//") && 
-                        !nextLine.contains("else")) {
-                        break;
-                    }
-                }
-                
-                // If we found an else/else if, continue searching
-                // Otherwise, this is the end of the if-else chain
-                if (!foundElse) {
-                chain.add(0, new int[]{i, -1}); // Insert block end at beginning
-                return chain;
-                }
-                // If we found else/else if, continue - level will be managed by the else block
+        }
+        if (value == null) {
+            String text = processVariables(source);
+            // Remove quotes if present
+            if (isQuoted(text)) {
+                text = text.substring(1, text.length() - 1);
             }
+            value = new TypedValue(text);
         }
-        chain.add(0, new int[]{end - 1, -1});
-        return chain;
+        currentFrame.set(assignment.slot, value);
+        // Also set in ScriptInterpreter for global access
+        ScriptInterpreter.getInstance().setVariable(assignment.name, value);
+    }
+    
+    private static boolean isQuoted(String text) {
+        return text.startsWith("\"") && text.endsWith("\"") && text.length() >= 2;
     }
     
     /**
-     * Legacy method for simple if-else (backwards compatibility)
+     * Execute i++ / i--
      */
-    private int[] findIfBlockEndWithElse(String[] lines, int start, int end) {
-        List<int[]> chain = findIfElseChain(lines, start, end);
-        int blockEnd = chain.get(0)[0];
-        int elsePos = -1;
-        
-        // Find first else (not else if)
-        for (int i = 1; i < chain.size(); i++) {
-            if (chain.get(i)[1] == 1) { // else
-                elsePos = chain.get(i)[0];
-                break;
-            } else if (chain.get(i)[1] == 0) { // else if - treat as else for legacy
-                elsePos = chain.get(i)[0];
-                break;
-            }
+    private void executeIncrement(ScriptNode.Increment increment) {
+        TypedValue value = currentFrame.get(increment.slot);
+        if (value != null && value.isIntegral()) {
+            TypedValue newValue = TypedValue.ofLong(value.asLong() + increment.delta);
+            currentFrame.set(increment.slot, newValue);
+            ScriptInterpreter.getInstance().setVariable(increment.name, newValue);
         }
-        
-        return new int[]{blockEnd, elsePos};
     }
     
     /**
-     * Execute increment for for loop
+     * Resolve a command call at the program counter
+     * @return the command with its arguments, or null if it cannot be resolved
      */
-    private void executeIncrement(String increment) {
-        increment = increment.trim();
-        
-        // i++ or i--
-        if (increment.endsWith("++")) {
-            String varName = increment.substring(0, increment.length() - 2).trim();
-            String value = variables.get(varName);
-            if (value != null) {
-                try {
-                    int intVal = Integer.parseInt(value);
-                    String newValue = String.valueOf(intVal + 1);
-                    variables.put(varName, newValue);
-                    ScriptInterpreter.getInstance().setVariable(varName, newValue);
-                } catch (NumberFormatException e) {
-                    // Ignore
-                }
-            }
-        } else if (increment.endsWith("--")) {
-            String varName = increment.substring(0, increment.length() - 2).trim();
-            String value = variables.get(varName);
-            if (value != null) {
-                try {
-                    int intVal = Integer.parseInt(value);
-                    String newValue = String.valueOf(intVal - 1);
-                    variables.put(varName, newValue);
-                    ScriptInterpreter.getInstance().setVariable(varName, newValue);
-                } catch (NumberFormatException e) {
-                    // Ignore
+    private CommandEntry resolveCommandCall(ScriptNode.CommandCall call) {
+        List<String> args = new ArrayList<>(call.arguments.size());
+        // Bound when the script was linked
+        Command command = call.getCommand();
+        if (command == null) {
+            String commandName = call.name;
+            if (call.isDynamic()) {
+                // Command name comes from a variable, extra words become arguments
+                bindTemplate(call.nameTemplate).renderTo(args);
+                if (args.isEmpty()) {
+                    return null;
                 }
+                commandName = args.remove(0).toLowerCase();
             }
-        } else {
-            // i = i + 1 or similar
-            Matcher varMatcher = VARIABLE_PATTERN.matcher(increment);
-            if (varMatcher.find()) {
-                String varName = varMatcher.group(1);
-                String expression = processVariables(varMatcher.group(2).trim());
-                // Simple calculation
-                try {
-                    int result = evaluateSimpleExpression(expression);
-                    String newValue = String.valueOf(result);
-                    variables.put(varName, newValue);
-                    ScriptInterpreter.getInstance().setVariable(varName, newValue);
-                } catch (Exception e) {
-                    variables.put(varName, expression);
-                    ScriptInterpreter.getInstance().setVariable(varName, expression);
-                }
+            command = CommandRegistry.getCommand(commandName);
+            if (command == null) {
+                ScriptLogger.getInstance().warn("Unknown command at line " + currentLine + ": " + commandName);
+                return null;
             }
         }
+        
+        for (ArgumentTemplate argument : call.arguments) {
+            bindTemplate(argument).renderTo(args);
+        }
+        return new CommandEntry(command, args.toArray(new String[0]), false);
     }
     
     /**
-     * Evaluate simple arithmetic expression
+     * Process variables in string
      */
-    private int evaluateSimpleExpression(String expr) {
-        expr = expr.trim();
-        
-        // Try simple number
+    private String processVariables(String text) {
+        if (text.indexOf('$') < 0) {
+            return text;
+        }
+        ArgumentTemplate template = textTemplates.get(text);
+        if (template == null) {
+            template = ArgumentTemplate.parse(text, true);
+            textTemplates.put(text, template);
+        }
+        return bindTemplate(template).render();
+    }
+    
+    /**
+     * Fill in variables in the arguments of a command injected through {@link #queueCommand}
+     * or {@link #offerCommand}. Program commands are rendered right before they run, so their
+     * arguments are final, even when a value itself contains '$'
+     */
+    private static String resolvePendingVariables(CommandEntry entry, String arg) {
+        if (!entry.injected || arg.indexOf('$') < 0) {
+            return arg;
+        }
+        ScriptInterpreter interpreter = ScriptInterpreter.getInstance();
+        return ArgumentTemplate.parse(arg, true).bind(name -> () -> interpreter.resolveTypedVariable(name)).render();
+    }
+    
+    /**
+     * Evaluate condition
+     */
+    private boolean evaluateCondition(String condition) {
         try {
-            return Integer.parseInt(expr);
-        } catch (NumberFormatException e) {
-            // Continue
+            return bindExpression(condition).evaluateCondition();
+        } catch (Exception e) {
+            ScriptLogger.getInstance().error("Error evaluating condition: " + condition + " - " + e.getMessage());
+            return false;
         }
-        
-        // Try modulo
-        if (expr.contains("%")) {
-            String[] parts = expr.split("%");
-            if (parts.length == 2) {
-                int left = Integer.parseInt(parts[0].trim());
-                int right = Integer.parseInt(parts[1].trim());
-                return left % right;
-            }
+    }
+    
+    /**
+     * Compiled expression bound to the current scope, cached by source text.
+     * The bound slots read {@link #currentFrame}, which always has the layout
+     * the expression was bound against while it is evaluated.
+     */
+    private CompiledExpression.BoundExpression bindExpression(String expression) {
+        FrameLayout layout = currentFrame.getLayout();
+        ScopeBindings scope = bindings.computeIfAbsent(layout, l -> new ScopeBindings());
+        CompiledExpression.BoundExpression bound = scope.expressions.get(expression);
+        if (bound == null) {
+            bound = ExpressionParser.compile(expression).bind(name -> bindVariable(layout, name));
+            scope.expressions.put(expression, bound);
         }
-        
-        // Try addition
-        if (expr.contains("+")) {
-            String[] parts = expr.split("\\+");
-            int sum = 0;
-            for (String part : parts) {
-                sum += Integer.parseInt(part.trim());
-            }
-            return sum;
+        return bound;
+    }
+    
+    /**
+     * Argument template bound to the current scope, same rules as {@link #bindExpression}
+     */
+    private ArgumentTemplate.Bound bindTemplate(ArgumentTemplate template) {
+        FrameLayout layout = currentFrame.getLayout();
+        ScopeBindings scope = bindings.computeIfAbsent(layout, l -> new ScopeBindings());
+        ArgumentTemplate.Bound bound = scope.templates.get(template);
+        if (bound == null) {
+            bound = template.bind(name -> bindVariable(layout, name));
+            scope.templates.put(template, bound);
         }
-        
-        // Try subtraction
-        if (expr.contains("-") && !expr.startsWith("-")) {
-            String[] parts = expr.split("-");
-            int result = Integer.parseInt(parts[0].trim());
-            for (int i = 1; i < parts.length; i++) {
-                result -= Integer.parseInt(parts[i].trim());
+        return bound;
+    }
+    
+    /**
+     * Resolve a variable to a frame slot once: current scope, then the global
+     * scope, then interpreter and environment variables
+     */
+    private CompiledExpression.VariableSlot bindVariable(FrameLayout layout, String name) {
+        ScriptInterpreter interpreter = ScriptInterpreter.getInstance();
+        int slot = layout.indexOf(name);
+        if (slot >= 0) {
+            return () -> {
+                TypedValue value = currentFrame.get(slot);
+                return value != null ? value : interpreter.resolveTypedVariable(name);
+            };
+        }
+        int globalSlot = layout.getParent() != null ? layout.getParent().indexOf(name) : -1;
+        if (globalSlot >= 0) {
+            return () -> {
+                TypedValue value = currentFrame.getParent().get(globalSlot);
+                return value != null ? value : interpreter.resolveTypedVariable(name);
+            };
+        }
+        return () -> interpreter.resolveTypedVariable(name);
+    }
+    
+    /**
+     * Add a command to the task queue, waiting while the queue is full
+     * until the task has drained it to the low-water mark
+     * @return false if the timeout passed first or the task is no longer running
+     */
+    public boolean queueCommand(Command command, String[] args, long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        synchronized (queueLock) {
+            boolean waited = false;
+            while (isAcceptingCommands() && !hasQueueRoom()) {
+                long left = deadline - System.nanoTime();
+                if (left <= 0) {
+                    rejectedCommands++;
+                    return false;
+                }
+                if (!waited) {
+                    waited = true;
+                    producerWaits++;
+                }
+                TimeUnit.NANOSECONDS.timedWait(queueLock, left);
+            }
+            if (!isAcceptingCommands()) {
+                rejectedCommands++;
+                return false;
             }
-            return result;
+            enqueue(new CommandEntry(command, args, true));
+            return true;
         }
-        
-        // Try multiplication
-        if (expr.contains("*")) {
-            String[] parts = expr.split("\\*");
-            int result = 1;
-            for (String part : parts) {
-                result *= Integer.parseInt(part.trim());
+    }
+
+    /**
+     * Add a command to the task queue without waiting
+     * @return false if the queue is full (or not yet drained to the low-water mark) or the task is no longer running
+     */
+    public boolean offerCommand(Command command, String[] args) {
+        synchronized (queueLock) {
+            if (!isAcceptingCommands() || !hasQueueRoom()) {
+                rejectedCommands++;
+                return false;
             }
-            return result;
+            enqueue(new CommandEntry(command, args, true));
+            return true;
         }
-        
-        // Try division
-        if (expr.contains("/")) {
-            String[] parts = expr.split("/");
-            if (parts.length == 2) {
-                int left = Integer.parseInt(parts[0].trim());
-                int right = Integer.parseInt(parts[1].trim());
-                return left / right;
+    }
+
+    private boolean isAcceptingCommands() {
+        return state == ScriptState.RUNNING || state == ScriptState.PAUSED;
+    }
+
+    /**
+     * Caller holds queueLock. A full queue suspends producers until it is drained to the low-water mark,
+     * so they resume in batches instead of waking on every command
+     */
+    private boolean hasQueueRoom() {
+        resumeProducersIfDrained();
+        if (!producersSuspended && queueDepth.get() >= queueCapacity) {
+            producersSuspended = true;
+        }
+        return !producersSuspended;
+    }
+
+    private void enqueue(CommandEntry entry) {
+        commandQueue.add(entry);
+        maxQueueDepth = Math.max(maxQueueDepth, queueDepth.incrementAndGet());
+    }
+
+    /**
+     * Take the next queued command and let waiting producers go once the low-water mark is reached
+     */
+    private CommandEntry pollCommand() {
+        CommandEntry entry = commandQueue.poll();
+        int depth = entry != null ? queueDepth.decrementAndGet() : queueDepth.get();
+        // Also checked on an empty queue: a producer may have suspended after the last poll read the flag
+        if (depth <= queueLowWater && producersSuspended) {
+            synchronized (queueLock) {
+                resumeProducersIfDrained();
             }
         }
-        
-        throw new NumberFormatException("Cannot evaluate: " + expr);
+        return entry;
     }
-    
+
     /**
-     * Process variables in string
+     * Lift the suspension once the queue is at the low-water mark. Under queueLock
      */
-    private String processVariables(String line) {
-        String result = line;
-        ScriptInterpreter interpreter = ScriptInterpreter.getInstance();
-        
-        // Process environment variables ($PLAYER_X etc.)
-        Matcher envMatcher = ENV_VAR_PATTERN.matcher(result);
-        StringBuffer sb = new StringBuffer();
-        while (envMatcher.find()) {
-            String varName = envMatcher.group(1);
-            EnvironmentVariable envVar = interpreter.getEnvironmentVariable(varName);
-            if (envVar != null && envVar.getValue() != null && !envVar.getValue().isEmpty()) {
-                envMatcher.appendReplacement(sb, Matcher.quoteReplacement(envVar.getValue()));
+    private void resumeProducersIfDrained() {
+        if (producersSuspended && queueDepth.get() <= queueLowWater) {
+            producersSuspended = false;
+            queueLock.notifyAll();
+        }
+    }
+
+    private void clearQueue() {
+        synchronized (processLock) {
+            synchronized (queueLock) {
+                commandQueue.clear();
+                queueDepth.set(0);
+                producersSuspended = false;
+                queueLock.notifyAll(); // waiting producers re-check the state
             }
         }
-        envMatcher.appendTail(sb);
-        result = sb.toString();
-        
-        // Process user variables from ScriptInterpreter ($varname from commands like vision, scan)
-        Map<String, String> interpreterContext = interpreter.getContext();
-        for (Map.Entry<String, String> entry : interpreterContext.entrySet()) {
-            String value = entry.getValue();
-            if (value != null) {
-                String pattern = "\\$" + Pattern.quote(entry.getKey());
-                result = result.replaceAll(pattern, Matcher.quoteReplacement(value));
+    }
+
+    /**
+     * Run the program until a command is in flight, the script yields
+     * until the next tick or the program ends
+     */
+    private void processNextCommand() {
+        synchronized (processLock) {
+            if (isProcessingCommand || state != ScriptState.RUNNING) {
+                return;
+            }
+            
+            stepBudget = MAX_STEPS_PER_RUN;
+            while (state == ScriptState.RUNNING) {
+                CommandEntry entry = pollCommand();
+                if (entry == null) {
+                    try {
+                        entry = advance();
+                    } catch (Exception e) {
+                        lastError = e.getMessage();
+                        setState(ScriptState.ERROR);
+                        stack.clear();
+                        ScriptLogger.getInstance().error("Task " + id + " error at line " + currentLine + ": " + e.getMessage());
+                        return;
+                    }
+                }
+                if (entry == null) {
+                    finishIfDone();
+                    return;
+                }
+                if (!runCommand(entry)) {
+                    return; // continues from the completion callback
+                }
             }
         }
-        
-        // Process local script variables ($varname)
-        for (Map.Entry<String, String> entry : variables.entrySet()) {
-            String value = entry.getValue();
-            if (value != null) {
-                String pattern = "\\$" + Pattern.quote(entry.getKey());
-                result = result.replaceAll(pattern, Matcher.quoteReplacement(value));
+    }
+    
+    /**
+     * Stop the task if the program has ended and nothing is queued. Checked under the
+     * queue lock, so a command queued at the same moment is not silently dropped
+     * @return true if the task finished
+     */
+    private boolean finishIfDone() {
+        synchronized (queueLock) {
+            if (!stack.isEmpty() || queueDepth.get() > 0) {
+                return false;
             }
+            ScriptLogger.getInstance().debug("Task " + id + " (" + name + "): program finished");
+            setState(ScriptState.STOPPED);
+            return true;
         }
-        
-        return result;
     }
     
     /**
-     * Evaluate condition
+     * Body of the script thread in virtual-thread mode: the same program counter,
+     * but commands are awaited by parking the thread instead of chaining callbacks.
+     * Yields (endless loop iterations, step budget) wait for the next tick.
+     * Assignments, conditions and argument rendering run on this thread, not the client
+     * thread; environment variables read here get the values of the last client tick.
      */
-    private boolean evaluateCondition(String condition) {
+    private void runThreaded(int myGeneration) {
         try {
-            String processed = processVariables(condition);
-            
-            // Also replace variables WITHOUT $ prefix (for Rust-style syntax: if x > 3)
-            for (Map.Entry<String, String> entry : variables.entrySet()) {
-                String varName = entry.getKey();
-                String value = entry.getValue();
-                if (value != null) {
-                    // Replace standalone variable names (word boundaries)
-                    processed = processed.replaceAll("\\b" + Pattern.quote(varName) + "\\b", Matcher.quoteReplacement(value));
+            stepBudget = MAX_STEPS_PER_RUN;
+            while (generation == myGeneration) {
+                if (state == ScriptState.PAUSED) {
+                    awaitTick();
+                    continue;
                 }
-            }
-            // Also check ScriptInterpreter variables
-            Map<String, String> interpreterVars = ScriptInterpreter.getInstance().getVariables();
-            for (Map.Entry<String, String> entry : interpreterVars.entrySet()) {
-                String varName = entry.getKey();
-                String value = entry.getValue();
-                if (value != null) {
-                    processed = processed.replaceAll("\\b" + Pattern.quote(varName) + "\\b", Matcher.quoteReplacement(value));
+                if (state != ScriptState.RUNNING) {
+                    break;
                 }
-            }
-            
-            // Boolean literals
-            String trimmed = processed.trim().toLowerCase();
-            if (trimmed.equals("true")) return true;
-            if (trimmed.equals("false")) return false;
-            
-            // Handle logical AND (&&)
-            if (processed.contains("&&")) {
-                String[] parts = processed.split("&&");
-                for (String part : parts) {
-                    if (!evaluateCondition(part.trim())) {
-                        return false;
+                CommandEntry entry;
+                synchronized (processLock) {
+                    entry = pollCommand();
+                    if (entry == null) {
+                        entry = advance();
                     }
-                }
-                return true;
-            }
-            
-            // Handle logical OR (||)
-            if (processed.contains("||")) {
-                String[] parts = processed.split("\\|\\|");
-                for (String part : parts) {
-                    if (evaluateCondition(part.trim())) {
-                        return true;
+                    if (entry == null && finishIfDone()) {
+                        break;
                     }
                 }
-                return false;
-            }
-            
-            // Comparison operators
-            String[] operators = {">=", "<=", "!=", "==", ">", "<"};
-            for (String op : operators) {
-                if (processed.contains(op)) {
-                    String[] parts = processed.split(Pattern.quote(op), 2);
-                    if (parts.length == 2) {
-                        String left = parts[0].trim();
-                        String right = parts[1].trim();
-                        
-                        // Remove surrounding parentheses if present
-                        // Remove leading ( and trailing ) independently
-                        while (left.startsWith("(")) {
-                            left = left.substring(1).trim();
-                        }
-                        while (left.endsWith(")")) {
-                            left = left.substring(0, left.length() - 1).trim();
-                        }
-                        while (right.startsWith("(")) {
-                            right = right.substring(1).trim();
-                        }
-                        while (right.endsWith(")")) {
-                            right = right.substring(0, right.length() - 1).trim();
-                        }
-                        
-                        // Evaluate expressions on both sides (for things like i % 8 == 0)
-                        double leftNum = evaluateExpressionAsDouble(left);
-                        double rightNum = evaluateExpressionAsDouble(right);
-                        
-                        if (!Double.isNaN(leftNum) && !Double.isNaN(rightNum)) {
-                            boolean result = switch (op) {
-                                case ">=" -> leftNum >= rightNum;
-                                case "<=" -> leftNum <= rightNum;
-                                case "!=" -> leftNum != rightNum;
-                                case "==" -> Math.abs(leftNum - rightNum) < 0.0001;
-                                case ">" -> leftNum > rightNum;
-                                case "<" -> leftNum < rightNum;
-                                default -> false;
-                            };
-                            return result;
-                        } else {
-                            return switch (op) {
-                                case "==" -> left.equalsIgnoreCase(right);
-                                case "!=" -> !left.equalsIgnoreCase(right);
-                                default -> false;
-                            };
-                        }
-                    }
+                if (entry == null) {
+                    awaitTick();
+                } else {
+                    runCommandBlocking(entry, myGeneration);
                 }
             }
-            
-            // Truthy check
-            return !trimmed.isEmpty() && !trimmed.equals("0") && !trimmed.equals("null");
-            
+        } catch (InterruptedException e) {
+            // stopped
         } catch (Exception e) {
-            ScriptLogger.getInstance().error("Error evaluating condition: " + condition + " - " + e.getMessage());
-            return false;
+            if (generation == myGeneration) {
+                lastError = e.getMessage();
+                setState(ScriptState.ERROR);
+                synchronized (processLock) {
+                    stack.clear();
+                }
+                ScriptLogger.getInstance().error("Task " + id + " error at line " + currentLine + ": " + e.getMessage());
+            }
+        } finally {
+            if (generation == myGeneration) {
+                thread = null;
+            }
         }
     }
     
+    private void awaitTick() throws InterruptedException {
+        tickSignal.acquire();
+        tickSignal.drainPermits();
+        stepBudget = MAX_STEPS_PER_RUN;
+    }
+    
     /**
-     * Evaluates an expression and returns a double, or NaN if not a number
+     * Run a command and park the script thread until it completes. The command is issued
+     * under the process lock after checking the task was not stopped or restarted since
+     * the entry was taken; stop() takes the same lock before cancelling the command
      */
-    private double evaluateExpressionAsDouble(String expr) {
-        expr = expr.trim();
-        
-        // Try simple number first
-        try {
-            return Double.parseDouble(expr.replace(',', '.'));
-        } catch (NumberFormatException e) {
-            // Continue
+    private void runCommandBlocking(CommandEntry entry, int myGeneration) throws InterruptedException {
+        String[] args = new String[entry.args.length];
+        for (int i = 0; i < entry.args.length; i++) {
+            args[i] = resolvePendingVariables(entry, entry.args[i]);
         }
-        
-        // Try modulo
-        if (expr.contains("%")) {
-            String[] parts = expr.split("%");
-            if (parts.length == 2) {
-                try {
-                    int left = Integer.parseInt(parts[0].trim());
-                    int right = Integer.parseInt(parts[1].trim());
-                    return left % right;
-                } catch (NumberFormatException e) {
-                    return Double.NaN;
+        try {
+            CompletableFuture<Void> future;
+            synchronized (processLock) {
+                // A pause only holds the next entry; this one is already taken and still runs
+                if (generation != myGeneration || (state != ScriptState.RUNNING && state != ScriptState.PAUSED)) {
+                    return;
                 }
+                executedCommands++;
+                inFlight = entry;
+                future = entry.command.executeAsync(args);
+                currentCommandFuture = future;
             }
+            future.get();
+            inFlight = null;
+        } catch (ExecutionException e) {
+            inFlight = null;
+            onCommandError(e.getCause() != null ? e.getCause() : e);
+        } catch (CancellationException e) {
+            // cancelled by stop()
+        } catch (InterruptedException e) {
+            throw e;
+        } catch (Exception e) {
+            inFlight = null;
+            lastError = e.getMessage();
+            ScriptLogger.getInstance().error("Task " + id + " execution error: " + e.getMessage());
         }
+    }
+    
+    /**
+     * Start a command
+     * @return true if it has already completed and the program can go on right away
+     */
+    private boolean runCommand(CommandEntry entry) {
+        executedCommands++;
         
-        // Try addition
-        if (expr.contains("+") && !expr.startsWith("+")) {
-            try {
-                String[] parts = expr.split("\\+");
-                double sum = 0;
-                for (String part : parts) {
-                    sum += Double.parseDouble(part.trim().replace(',', '.'));
-                }
-                return sum;
-            } catch (NumberFormatException e) {
-                return Double.NaN;
-            }
+        // Process variables at execution time (not parse time)
+        String[] args = new String[entry.args.length];
+        for (int i = 0; i < entry.args.length; i++) {
+            args[i] = resolvePendingVariables(entry, entry.args[i]);
         }
         
-        // Try subtraction
-        if (expr.contains("-") && !expr.startsWith("-")) {
+        if (burst && entry.command.isInline() && entry.command.getLane() == Command.Lane.GAME
+                && CommandExecutor.getInstance().isGameThread()) {
+            // Already on the client thread: no future, no trip through the mailbox
+            inlineCommands++;
             try {
-                String[] parts = expr.split("-");
-                double result = Double.parseDouble(parts[0].trim().replace(',', '.'));
-                for (int i = 1; i < parts.length; i++) {
-                    result -= Double.parseDouble(parts[i].trim().replace(',', '.'));
-                }
-                return result;
-            } catch (NumberFormatException e) {
-                return Double.NaN;
+                entry.command.execute(args);
+            } catch (Exception e) {
+                onCommandError(e);
             }
+            return true;
         }
         
-        // Try multiplication
-        if (expr.contains("*")) {
-            try {
-                String[] parts = expr.split("\\*");
-                double result = 1;
-                for (String part : parts) {
-                    result *= Double.parseDouble(part.trim().replace(',', '.'));
-                }
-                return result;
-            } catch (NumberFormatException e) {
-                return Double.NaN;
-            }
+        isProcessingCommand = true;
+        inFlight = entry;
+        try {
+            currentCommandFuture = entry.command.executeAsync(args);
+        } catch (Exception e) {
+            lastError = e.getMessage();
+            isProcessingCommand = false;
+            inFlight = null;
+            ScriptLogger.getInstance().error("Task " + id + " execution error: " + e.getMessage());
+            // Don't stop script on exception, just log it and continue
+            return true;
         }
         
-        // Try division
-        if (expr.contains("/")) {
-            String[] parts = expr.split("/");
-            if (parts.length == 2) {
-                try {
-                    double left = Double.parseDouble(parts[0].trim().replace(',', '.'));
-                    double right = Double.parseDouble(parts[1].trim().replace(',', '.'));
-                    return left / right;
-                } catch (NumberFormatException e) {
-                    return Double.NaN;
-                }
-            }
+        if (currentCommandFuture.isDone()) {
+            // Completed synchronously, no need to chain through a callback
+            currentCommandFuture.exceptionally(this::onCommandError);
+            isProcessingCommand = false;
+            inFlight = null;
+            return true;
         }
-        
-        return Double.NaN;
+        currentCommandFuture
+            .exceptionally(this::onCommandError)
+            .thenRun(() -> {
+                synchronized (processLock) {
+                    isProcessingCommand = false;
+                    inFlight = null;
+                }
+                if (state == ScriptState.RUNNING) {
+                    processNextCommand();
+                }
+            });
+        return false;
+    }
+    
+    private Void onCommandError(Throwable throwable) {
+        lastError = throwable.getMessage();
+        ScriptLogger.getInstance().error("Task " + id + " command error: " + throwable.getMessage());
+        // Don't stop script on command error, just log it
+        return null;
     }
     
     /**
-     * Parses a line into command and arguments, respecting quotes
+     * Write the execution state for {@link TaskSnapshots}: counters, global variables,
+     * the cursor stack with loop iterations and function frames, and the commands
+     * still to run. A command in flight is saved at the head of the queue and runs
+     * again from the start after a restore.
      */
-    private List<String> parseArguments(String line) {
-        List<String> args = new ArrayList<>();
-        StringBuilder currentArg = new StringBuilder();
-        boolean inQuotes = false;
+    void writeSnapshot(DataOutput out) throws IOException {
+        synchronized (processLock) {
+            if (program == null) {
+                throw new IOException("script is not compiled");
+            }
+            out.writeInt(currentLine);
+            out.writeInt(executedCommands);
+            out.writeInt(priority);
+            writeFrame(out, globalFrame);
 
-        for (char c : line.toCharArray()) {
-            if (c == '"') {
-                inQuotes = !inQuotes;
-                continue;
+            Map<Object, Integer> blockIds = new IdentityHashMap<>();
+            List<Cursor> allBlocks = blocks();
+            for (int i = 0; i < allBlocks.size(); i++) {
+                blockIds.putIfAbsent(blockKey(allBlocks.get(i)), i);
             }
-            if (c == ' ' && !inQuotes) {
-                if (currentArg.length() > 0) {
-                    args.add(currentArg.toString());
-                    currentArg.setLength(0);
+            List<Cursor> cursors = new ArrayList<>(stack);
+            Collections.reverse(cursors); // outermost first
+            out.writeInt(cursors.size());
+            for (Cursor cursor : cursors) {
+                Integer block = blockIds.get(blockKey(cursor));
+                if (block == null) {
+                    throw new IOException("cursor outside of the program");
+                }
+                out.writeInt(block);
+                out.writeInt(cursor.pc);
+                out.writeLong(cursor.iterations);
+                if (cursor.isFunction()) {
+                    writeFrame(out, cursor.frame);
+                }
+            }
+
+            List<CommandEntry> pending = new ArrayList<>();
+            if (inFlight != null) {
+                pending.add(inFlight);
+            }
+            pending.addAll(commandQueue);
+            out.writeInt(pending.size());
+            for (CommandEntry entry : pending) {
+                TaskSnapshots.writeString(out, entry.command.getName());
+                out.writeInt(entry.args.length);
+                for (String arg : entry.args) {
+                    TaskSnapshots.writeString(out, arg);
                 }
-            } else {
-                currentArg.append(c);
             }
         }
-        if (currentArg.length() > 0) {
-            args.add(currentArg.toString());
-        }
-        return args;
     }
 
     /**
-     * Add command to task queue
+     * Replace the state set up by {@link #parseAndQueue()} with a snapshot written by
+     * {@link #writeSnapshot}. Nothing changes unless the whole snapshot could be read.
      */
-    public void queueCommand(Command command, String[] args) {
-        commandQueue.add(new CommandEntry(command, args));
-    }
-
-    private void processNextCommand() {
-        // Synchronize to prevent concurrent execution
+    void restoreSnapshot(DataInput in) throws IOException {
         synchronized (processLock) {
-            // Prevent concurrent execution - if already processing, return
-            if (isProcessingCommand) {
-                return;
+            if (program == null) {
+                throw new IOException("script is not compiled");
             }
-            
-            if (state != ScriptState.RUNNING) {
-                return;
-            }
-            
-            // Don't stop if queue is empty but we have a pending loop marker
-            if (commandQueue.isEmpty()) {
-                if (pendingLoopMarker == null) {
-                    ScriptLogger.getInstance().debug("Task " + id + " (" + name + "): Queue empty, no pending loop marker, stopping. State was: " + state);
-                state = ScriptState.STOPPED;
-                } else {
-                    ScriptLogger.getInstance().debug("Task " + id + " (" + name + "): Queue empty but pending loop marker exists (startLine=" + pendingLoopMarker.startLine + ", endLine=" + pendingLoopMarker.endLine + "), will re-queue on next tick");
-                    // Queue is empty but we have pending loop marker - tick() will re-queue it
-            }
-            return;
-        }
+            int line = in.readInt();
+            int executed = in.readInt();
+            int savedPriority = in.readInt();
+            VariableFrame global = new VariableFrame(program.getGlobalLayout(), null);
+            readFrame(in, global);
 
-        // Update environment variables before each command
-        ScriptInterpreter.getInstance().updateEnvironmentVariables();
-
-        isProcessingCommand = true;
-        CommandEntry entry = commandQueue.poll();
-        executedCommands++;
-
-        // Handle loop marker specially
-        if (entry.command instanceof LoopMarkerCommand) {
-            LoopMarkerCommand loopCmd = (LoopMarkerCommand) entry.command;
-                
-                // Check queue size to prevent overflow
-                if (commandQueue.size() > MAX_QUEUE_SIZE) {
-                    ScriptLogger.getInstance().warn("Task " + id + ": Command queue overflow, stopping loop");
-                    state = ScriptState.ERROR;
-                    lastError = "Command queue overflow (>" + MAX_QUEUE_SIZE + " commands)";
-                    isProcessingCommand = false;
-                    return;
+            List<Cursor> allBlocks = blocks();
+            int depth = in.readInt();
+            List<Cursor> cursors = new ArrayList<>(Math.max(0, Math.min(depth, 256)));
+            VariableFrame frame = global;
+            for (int i = 0; i < depth; i++) {
+                int block = in.readInt();
+                if (block < 0 || block >= allBlocks.size()) {
+                    throw new IOException("unknown block " + block);
                 }
-                
-                // Reset break/continue flags before re-parsing loop
-                boolean hadBreak = shouldBreak;
-                boolean hadContinue = shouldContinue;
-                shouldBreak = false;
-                shouldContinue = false;
-                
-                if (hadBreak || hadContinue) {
-                    ScriptLogger.getInstance().debug("Task " + id + ": Resetting loop flags (hadBreak=" + hadBreak + ", hadContinue=" + hadContinue + ")");
+                Cursor template = allBlocks.get(block);
+                int pc = in.readInt();
+                long iterations = in.readLong();
+                if (pc < 0 || pc > template.body.size()) {
+                    throw new IOException("program counter out of range");
                 }
-                
-                // Store loop marker for later re-queuing (don't add immediately)
-                pendingLoopMarker = loopCmd;
-                ScriptLogger.getInstance().debug("Task " + id + ": Stored pending loop marker (startLine=" + loopCmd.startLine + ", endLine=" + loopCmd.endLine + ")");
-            
-            // Re-parse the loop body and add commands to queue
-            int queueSizeBefore = commandQueue.size();
-            parseLines(loopCmd.lines, loopCmd.startLine, loopCmd.endLine);
-            int queueSizeAfter = commandQueue.size();
-            ScriptLogger.getInstance().debug("Task " + id + ": Loop iteration parsed, queued " + (queueSizeAfter - queueSizeBefore) + " commands, shouldBreak=" + shouldBreak + ", shouldContinue=" + shouldContinue + ", pendingLoopMarker=" + (pendingLoopMarker != null));
-            
-                // If break was triggered, clear pending loop marker
-                if (shouldBreak) {
-                    ScriptLogger.getInstance().debug("Task " + id + ": Break triggered in loop, clearing pending loop marker");
-                    pendingLoopMarker = null;
-                    shouldBreak = false;
+                if (template.isFunction()) {
+                    // Blocks above a function call run in its frame
+                    frame = new VariableFrame(((ScriptNode.FunctionDef) template.owner).layout, global);
+                    readFrame(in, frame);
                 }
-            
-                // Don't re-add marker immediately - it will be added when queue is nearly empty
-            isProcessingCommand = false;
-            processNextCommand();
-            return;
-        }
-        
-        // Handle break command
-        if (entry.command instanceof BreakCommand) {
-            ScriptLogger.getInstance().debug("Task " + id + ": Break command executed");
-            shouldBreak = true;
-            pendingLoopMarker = null; // Clear pending loop marker
-            isProcessingCommand = false;
-            // Continue processing next command (which will skip loop)
-            processNextCommand();
-            return;
-        }
-        
-        // Handle continue command
-        if (entry.command instanceof ContinueCommand) {
-            ScriptLogger.getInstance().debug("Task " + id + ": Continue command executed, clearing queue (pendingLoopMarker=" + (pendingLoopMarker != null) + ")");
-            shouldContinue = true;
-            // Clear queue until next loop iteration
-            commandQueue.clear();
-            // Note: pendingLoopMarker is NOT cleared here - it will be re-added by tick() if loop is still active
-            isProcessingCommand = false;
-            // Don't process next command immediately - let tick() handle loop re-queuing
-            return;
+                Cursor cursor = new Cursor(template.body, frame, template.owner);
+                cursor.pc = pc;
+                cursor.iterations = iterations;
+                cursors.add(cursor);
+            }
+
+            int pendingCount = in.readInt();
+            List<CommandEntry> pending = new ArrayList<>();
+            for (int i = 0; i < pendingCount; i++) {
+                String commandName = TaskSnapshots.readString(in);
+                String[] args = new String[in.readInt()];
+                for (int j = 0; j < args.length; j++) {
+                    args[j] = TaskSnapshots.readString(in);
+                }
+                Command command = CommandRegistry.getCommand(commandName);
+                if (command != null) {
+                    // Queued entries are not told apart in snapshots; resolve them as injected
+                    pending.add(new CommandEntry(command, args, true));
+                } else {
+                    ScriptLogger.getInstance().warn("Task " + id + ": command " + commandName + " from snapshot no longer exists");
+                }
+            }
+
+            currentLine = line;
+            executedCommands = executed;
+            priority = savedPriority;
+            globalFrame = global;
+            currentFrame = global;
+            stack.clear();
+            for (Cursor cursor : cursors) {
+                stack.push(cursor);
+            }
+            clearQueue();
+            for (CommandEntry entry : pending) {
+                enqueue(entry);
+            }
         }
-        
-        // Handle conditional command synchronously
-        if (entry.command instanceof ConditionalCommand) {
-            // Update environment variables BEFORE evaluating conditions
-            // This ensures conditions use current values (e.g., current health)
-            ScriptInterpreter.getInstance().updateEnvironmentVariables();
-            
-            ConditionalCommand condCmd = (ConditionalCommand) entry.command;
-            // Execute synchronously to ensure commands are added to queue before continuing
-            condCmd.execute(new String[0]);
-            isProcessingCommand = false;
-            // Continue processing next command (which should be from the conditional block)
-            processNextCommand();
-            return;
+
+        // Script variables are mirrored to the interpreter like on assignment
+        FrameLayout layout = globalFrame.getLayout();
+        for (int slot = 0; slot < layout.size(); slot++) {
+            TypedValue value = globalFrame.getLocal(slot);
+            if (value != null && !layout.isTemporary(slot)) {
+                ScriptInterpreter.getInstance().setVariable(layout.getName(slot), value);
+            }
         }
+    }
 
-        // Process variables at execution time (not parse time)
-        String[] processedArgs = new String[entry.args.length];
-        for (int i = 0; i < entry.args.length; i++) {
-            processedArgs[i] = processVariables(entry.args[i]);
+    private static void writeFrame(DataOutput out, VariableFrame frame) throws IOException {
+        out.writeInt(frame.getLayout().size());
+        for (int slot = 0; slot < frame.getLayout().size(); slot++) {
+            TypedValue value = frame.getLocal(slot);
+            out.writeBoolean(value != null);
+            if (value != null) {
+                value.writeTo(out);
+            }
         }
-            
-            // Release lock before async execution
-            final CommandEntry finalEntry = entry;
-            final String[] finalArgs = processedArgs;
+    }
 
-        try {
-                currentCommandFuture = finalEntry.command.executeAsync(finalArgs);
-            currentCommandFuture
-                .exceptionally(throwable -> {
-                    lastError = throwable.getMessage();
-                    ScriptLogger.getInstance().error("Task " + id + " command error: " + throwable.getMessage());
-                        // Don't stop script on command error, just log it
-                    return null;
-                })
-                .thenRun(() -> {
-                        synchronized (processLock) {
-                    isProcessingCommand = false;
-                        }
-                        
-                    if (state == ScriptState.RUNNING) {
-                        processNextCommand();
-                        } else if (state == ScriptState.STOPPED || state == ScriptState.ERROR) {
-                            synchronized (processLock) {
-                                // Script stopped, clear queue and pending loop marker
-                                commandQueue.clear();
-                                pendingLoopMarker = null;
-                            }
-                    }
-                });
-        } catch (Exception e) {
-                synchronized (processLock) {
-            lastError = e.getMessage();
-            isProcessingCommand = false;
-            ScriptLogger.getInstance().error("Task " + id + " execution error: " + e.getMessage());
-                    // Don't stop script on exception, just log it and continue
-                    if (state == ScriptState.RUNNING) {
-                        processNextCommand();
-                    }
-                }
+    private static void readFrame(DataInput in, VariableFrame frame) throws IOException {
+        int size = in.readInt();
+        if (size != frame.getLayout().size()) {
+            throw new IOException("variable layout changed");
+        }
+        for (int slot = 0; slot < size; slot++) {
+            if (in.readBoolean()) {
+                frame.set(slot, TypedValue.readFrom(in));
             }
         }
     }
-    
+
     /**
-     * Internal marker command for loop blocks
+     * Every block a cursor can point into, in a fixed order for the same source:
+     * the program, nested blocks depth-first, then function bodies
      */
-    private static class LoopMarkerCommand implements Command {
-        final String[] lines;
-        final int startLine;
-        final int endLine;
-        
-        LoopMarkerCommand(String[] lines, int startLine, int endLine) {
-            this.lines = lines;
-            this.startLine = startLine;
-            this.endLine = endLine;
+    private List<Cursor> blocks() {
+        if (blocks == null) {
+            List<Cursor> list = new ArrayList<>();
+            collectBlocks(program.getStatements(), null, list);
+            for (ScriptNode.FunctionDef def : program.getFunctions().values()) {
+                collectBlocks(def.body, def, list);
+            }
+            blocks = list;
         }
-        
-        @Override
-        public String getName() { return "__loop_marker__"; }
-        
-        @Override
-        public String getDescription() { return "Internal loop marker"; }
-        
-        @Override
-        public String getParameters() { return ""; }
-        
-        @Override
-        public void execute(String[] args) { }
+        return blocks;
     }
 
-    /**
-     * Internal command for break statement
-     */
-    private class BreakCommand implements Command {
-        @Override
-        public String getName() { return "__break__"; }
-        
-        @Override
-        public String getDescription() { return "Internal break command"; }
-        
-        @Override
-        public String getParameters() { return ""; }
-        
-        @Override
-        public void execute(String[] args) {
-            shouldBreak = true;
+    private static void collectBlocks(List<ScriptNode> body, ScriptNode owner, List<Cursor> out) {
+        out.add(new Cursor(body, null, owner));
+        for (ScriptNode node : body) {
+            if (node instanceof ScriptNode.If ifNode) {
+                for (ScriptNode.Branch branch : ifNode.branches) {
+                    collectBlocks(branch.body, null, out);
+                }
+            } else if (node instanceof ScriptNode.For forNode) {
+                collectBlocks(forNode.body, forNode, out);
+            } else if (node instanceof ScriptNode.While whileNode) {
+                collectBlocks(whileNode.body, whileNode, out);
+            } else if (node instanceof ScriptNode.Loop loopNode) {
+                collectBlocks(loopNode.body, loopNode, out);
+            }
+            // Function bodies come from the program's function table
         }
     }
-    
+
     /**
-     * Internal command for continue statement
+     * Loops and functions are identified by their node, if blocks by their body
+     * (empty bodies may share one list, but then any of them will do)
      */
-    private class ContinueCommand implements Command {
-        @Override
-        public String getName() { return "__continue__"; }
-        
-        @Override
-        public String getDescription() { return "Internal continue command"; }
-        
-        @Override
-        public String getParameters() { return ""; }
-        
-        @Override
-        public void execute(String[] args) {
-            shouldContinue = true;
-        }
+    private static Object blockKey(Cursor cursor) {
+        return cursor.owner != null ? cursor.owner : cursor.body;
     }
 
     /**
-     * Internal command for conditional blocks (if/else if/else)
-     * Evaluates conditions at execution time, not parse time
+     * Program counter into one block of statements.
+     * A loop keeps a single cursor for its whole run and rewinds it on every
+     * iteration, so memory does not grow with the iteration count.
      */
-    private static class ConditionalCommand implements Command {
-        final ScriptTask task;
-        final String[] lines;
-        final List<ConditionalBlock> blocks;
+    private static class Cursor {
+        final List<ScriptNode> body;
+        final VariableFrame frame; // scope the block runs in
+        final ScriptNode owner;    // loop or function node, null for the program and if blocks
+        int pc;
+        long iterations;
         
-        ConditionalCommand(ScriptTask task, String[] lines, List<ConditionalBlock> blocks) {
-            this.task = task;
-            this.lines = lines;
-            this.blocks = blocks;
+        Cursor(List<ScriptNode> body, VariableFrame frame, ScriptNode owner) {
+            this.body = body;
+            this.frame = frame;
+            this.owner = owner;
         }
         
-        @Override
-        public String getName() { return "__conditional__"; }
-        
-        @Override
-        public String getDescription() { return "Internal conditional command"; }
+        /**
+         * Loop cursor positioned at the end of the body, so the first
+         * iteration starts with the loop condition
+         */
+        static Cursor loop(ScriptNode owner, List<ScriptNode> body, VariableFrame frame) {
+            Cursor cursor = new Cursor(body, frame, owner);
+            cursor.pc = body.size();
+            return cursor;
+        }
         
-        @Override
-        public String getParameters() { return ""; }
+        boolean isLoop() {
+            return owner instanceof ScriptNode.For || owner instanceof ScriptNode.While || owner instanceof ScriptNode.Loop;
+        }
         
-        @Override
-        public void execute(String[] args) {
-            for (ConditionalBlock block : blocks) {
-                if (block.condition == null) {
-                    // else block - always execute
-                    task.parseLines(lines, block.startLine, block.endLine);
-                    break;
-                } else {
-                    // if or else if - evaluate condition
-                    boolean conditionResult = task.evaluateCondition(block.condition);
-                    if (conditionResult) {
-                        task.parseLines(lines, block.startLine, block.endLine);
-                        break;
-                    }
-                }
-            }
+        boolean isFunction() {
+            return owner instanceof ScriptNode.FunctionDef;
         }
-    }
-    
-    /**
-     * Represents a conditional block (if, else if, or else)
-     */
-    private static class ConditionalBlock {
-        final String condition; // null for else blocks
-        final int startLine;
-        final int endLine;
         
-        ConditionalBlock(String condition, int startLine, int endLine) {
-            this.condition = condition;
-            this.startLine = startLine;
-            this.endLine = endLine;
+        /**
+         * loop {} and while true, which only end through break
+         */
+        boolean isEndless() {
+            return (owner instanceof ScriptNode.While whileNode && whileNode.infinite)
+                || (owner instanceof ScriptNode.Loop loopNode && loopNode.isInfinite());
         }
     }
-
+    
     // State management
     public void pause() {
         if (state == ScriptState.RUNNING) {
-            state = ScriptState.PAUSED;
+            setState(ScriptState.PAUSED);
             ScriptLogger.getInstance().info("Task " + id + " (" + name + ") paused");
         }
     }
 
     public void resume() {
         if (state == ScriptState.PAUSED) {
-            state = ScriptState.RUNNING;
+            setState(ScriptState.RUNNING);
             ScriptLogger.getInstance().info("Task " + id + " (" + name + ") resumed");
         }
     }
 
     public void stop() {
-        state = ScriptState.STOPPED;
-        commandQueue.clear();
-        pendingLoopMarker = null; // Clear pending loop marker
-        shouldBreak = false; // Reset break flag
-        shouldContinue = false; // Reset continue flag
+        setState(ScriptState.STOPPED);
+        generation++;
+        Thread scriptThread = thread;
+        thread = null;
+        if (scriptThread != null) {
+            scriptThread.interrupt();
+        }
+        synchronized (processLock) {
+            clearQueue(); // also wakes producers waiting for room
+            stack.clear(); // Drop the program counter
+            inFlight = null;
+        }
         localFunctions.clear(); // Clear local functions to prevent memory leaks
-        variables.clear(); // Clear local variables
+        if (globalFrame != null) {
+            globalFrame.clear(); // Clear local variables
+            currentFrame = globalFrame;
+        }
         if (currentCommandFuture != null && !currentCommandFuture.isDone()) {
             currentCommandFuture.cancel(true);
         }
@@ -1380,18 +1187,13 @@ public class ScriptTask {
 
     public void restart() {
         stop();
-        commandQueue.clear();
         currentLine = 0;
         executedCommands = 0;
         lastError = null;
-        state = ScriptState.RUNNING;
-        // Reset all loop control flags
-        shouldBreak = false;
-        shouldContinue = false;
-        pendingLoopMarker = null;
+        setState(ScriptState.RUNNING);
         isProcessingCommand = false;
         parseAndQueue();
-        ScriptLogger.getInstance().info("Task " + id + " (" + name + ") restarted, loop state reset");
+        ScriptLogger.getInstance().info("Task " + id + " (" + name + ") restarted");
     }
 
     // Getters
@@ -1406,7 +1208,23 @@ public class ScriptTask {
     public int getPriority() { return priority; }
     public int getCurrentLine() { return currentLine; }
     public int getExecutedCommands() { return executedCommands; }
-    public int getQueuedCommands() { return commandQueue.size(); }
+    public int getQueuedCommands() { return queueDepth.get(); }
+    public int getQueueCapacity() { return queueCapacity; }
+    public int getQueueLowWater() { return queueLowWater; }
+    public int getMaxQueueDepth() { return maxQueueDepth; }
+    public boolean isQueueSuspended() { return producersSuspended; }
+    public long getProducerWaits() { return producerWaits; }
+    public long getRejectedCommands() { return rejectedCommands; }
+    
+    /**
+     * Bound of the command queue; producers resume once it is drained to a quarter of it
+     */
+    public void setQueueCapacity(int capacity) {
+        synchronized (queueLock) {
+            queueCapacity = Math.max(1, capacity);
+            queueLowWater = queueCapacity / 4;
+        }
+    }
     public ScriptType getScriptType() { return scriptType; }
     
     public long getUptime() {
@@ -1426,39 +1244,107 @@ public class ScriptTask {
     }
 
     public void setPriority(int priority) { this.priority = priority; }
-    public void addTag(String tag) { tags.add(tag); }
-    public void removeTag(String tag) { tags.remove(tag); }
+    public boolean isThreaded() { return threaded; }
+    
+    /**
+     * Run this task on its own virtual thread; set before the first tick
+     */
+    public void setThreaded(boolean threaded) { this.threaded = threaded; }
+    
+    public boolean isBurst() { return burst; }
+    
+    /**
+     * Run inline commands directly in the tick; off, every command goes through executeAsync
+     */
+    public void setBurst(boolean burst) { this.burst = burst; }
+    
+    /**
+     * Commands run inline by burst mode, part of {@link #getExecutedCommands()}
+     */
+    public int getInlineCommands() { return inlineCommands; }
+    
+    public void addTag(String tag) {
+        synchronized (stateLock) {
+            if (tags.add(tag) && listener != null) {
+                listener.tagAdded(this, tag);
+            }
+        }
+    }
+    
+    public void removeTag(String tag) {
+        synchronized (stateLock) {
+            if (tags.remove(tag) && listener != null) {
+                listener.tagRemoved(this, tag);
+            }
+        }
+    }
+    
+    /**
+     * Change state and tell the listener; notifications of one task never interleave
+     */
+    private void setState(ScriptState newState) {
+        synchronized (stateLock) {
+            ScriptState oldState = state;
+            if (oldState == newState) {
+                return;
+            }
+            state = newState;
+            if (listener != null) {
+                listener.stateChanged(this, oldState, newState);
+            }
+        }
+        if (!isAcceptingCommands()) {
+            synchronized (queueLock) {
+                queueLock.notifyAll(); // producers waiting for room give up
+            }
+        }
+    }
+    
+    /**
+     * Attach a listener (null to detach); it is told the current state and tags right away
+     */
+    void setListener(Listener listener) {
+        synchronized (stateLock) {
+            this.listener = listener;
+            if (listener != null) {
+                listener.stateChanged(this, null, state);
+                for (String tag : tags) {
+                    listener.tagAdded(this, tag);
+                }
+            }
+        }
+    }
+    
+    /**
+     * Receives state and tag changes, used by {@link ScriptTaskManager} to keep its indexes current
+     */
+    interface Listener {
+        void stateChanged(ScriptTask task, ScriptState from, ScriptState to); // from is null when attached
+        void tagAdded(ScriptTask task, String tag);
+        void tagRemoved(ScriptTask task, String tag);
+    }
     public boolean hasTag(String tag) { return tags.contains(tag); }
 
+    /**
+     * Expressions and templates bound against one scope layout
+     */
+    private static class ScopeBindings {
+        final Map<String, CompiledExpression.BoundExpression> expressions = new HashMap<>();
+        final Map<ArgumentTemplate, ArgumentTemplate.Bound> templates = new IdentityHashMap<>();
+    }
+
     /**
      * Internal class for storing command and arguments
      */
     private static class CommandEntry {
         final Command command;
         final String[] args;
+        final boolean injected; // queued from outside the program, variables are filled in when it runs
 
-        CommandEntry(Command command, String[] args) {
+        CommandEntry(Command command, String[] args, boolean injected) {
             this.command = command;
             this.args = args;
-        }
-    }
-    
-    /**
-     * Internal class for storing function definition
-     */
-    private static class FunctionDef {
-        final String name;
-        final List<String> parameters;
-        final String[] lines;
-        final int startLine;
-        final int endLine;
-        
-        FunctionDef(String name, List<String> parameters, String[] lines, int startLine, int endLine) {
-            this.name = name;
-            this.parameters = parameters;
-            this.lines = lines;
-            this.startLine = startLine;
-            this.endLine = endLine;
+            this.injected = injected;
         }
     }
 }
@@ -1,7 +1,9 @@
 package kasperstudios.kashub.runtime;
 
 import kasperstudios.kashub.algorithm.ScriptInterpreter;
+import kasperstudios.kashub.algorithm.ast.ScriptProgram;
 import kasperstudios.kashub.config.KashubConfig;
+import kasperstudios.kashub.util.CompiledScriptCache;
 import kasperstudios.kashub.util.ScriptFileWatcher;
 import kasperstudios.kashub.util.ScriptLogger;
 import kasperstudios.kashub.util.ScriptManager;
@@ -9,7 +11,6 @@ import kasperstudios.kashub.util.ScriptManager;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicInteger;
-import java.util.stream.Collectors;
 
 /**
  * Менеджер запущенных скриптов (Runtime Manager)
@@ -20,9 +21,46 @@ public class ScriptTaskManager {
     
     private final Map<Integer, ScriptTask> tasks = new ConcurrentHashMap<>();
     private final AtomicInteger nextId = new AtomicInteger(1);
-    private boolean enabled = true;
+    
+    // Индексы по состоянию и тегам, обновляются при каждом изменении задачи (см. ScriptTask.Listener)
+    private final Map<ScriptState, Set<ScriptTask>> byState = new EnumMap<>(ScriptState.class);
+    private final Map<ScriptState, AtomicInteger> stateCounts = new EnumMap<>(ScriptState.class);
+    private final Map<String, Set<ScriptTask>> byTag = new ConcurrentHashMap<>();
+    private final ScriptTask.Listener indexer = new ScriptTask.Listener() {
+        @Override
+        public void stateChanged(ScriptTask task, ScriptState from, ScriptState to) {
+            if (from != null && byState.get(from).remove(task)) {
+                stateCounts.get(from).decrementAndGet();
+            }
+            if (byState.get(to).add(task)) {
+                stateCounts.get(to).incrementAndGet();
+            }
+        }
+
+        @Override
+        public void tagAdded(ScriptTask task, String tag) {
+            byTag.computeIfAbsent(tag, t -> ConcurrentHashMap.newKeySet()).add(task);
+        }
 
-    private ScriptTaskManager() {}
+        @Override
+        public void tagRemoved(ScriptTask task, String tag) {
+            byTag.computeIfPresent(tag, (t, set) -> {
+                set.remove(task);
+                return set.isEmpty() ? null : set;
+            });
+        }
+    };
+    private boolean enabled = true;
+    private final TickScheduler scheduler = new TickScheduler();
+    private static final int DEFAULT_TICK_BUDGET_MICROS = 4000;
+    public static final String THREADED_TAG = "threaded";
+
+    private ScriptTaskManager() {
+        for (ScriptState state : ScriptState.values()) {
+            byState.put(state, ConcurrentHashMap.newKeySet());
+            stateCounts.put(state, new AtomicInteger());
+        }
+    }
 
     public static ScriptTaskManager getInstance() {
         if (instance == null) {
@@ -49,14 +87,23 @@ public class ScriptTaskManager {
      * Запускает новый скрипт с полными параметрами
      */
     public ScriptTask startScript(String name, String code, Set<String> tags, ScriptType scriptType) {
+        return start(name, code, null, tags, scriptType);
+    }
+
+    private ScriptTask start(String name, String code, ScriptProgram program, Set<String> tags, ScriptType scriptType) {
         if (!enabled) {
             ScriptLogger.getInstance().warn("Script execution is disabled");
             return null;
         }
 
         int id = nextId.getAndIncrement();
-        ScriptTask task = new ScriptTask(id, name, code, tags, scriptType);
+        ScriptTask task = new ScriptTask(id, name, code, program, tags, scriptType);
+        // Поток на скрипт: для всех скриптов через конфиг или для отдельных по тегу "threaded"
+        task.setThreaded(KashubConfig.getInstance().virtualThreadScripts || task.hasTag(THREADED_TAG));
+        task.setBurst(KashubConfig.getInstance().burstMode);
+        task.setQueueCapacity(KashubConfig.getInstance().maxQueuedCommands);
         tasks.put(id, task);
+        index(task);
         
         ScriptLogger.getInstance().info("Started task " + id + ": " + name);
         
@@ -65,7 +112,7 @@ public class ScriptTaskManager {
             ScriptFileWatcher.getInstance().registerScript(name, id);
         }
         
-        // Parse and queue commands to the TASK's own queue (not global interpreter)
+        // Compile the script into the task; it runs from its own program counter (not global interpreter)
         try {
             task.parseAndQueue();
         } catch (Exception e) {
@@ -77,12 +124,18 @@ public class ScriptTaskManager {
     }
 
     /**
-     * Запускает скрипт из файла
+     * Запускает скрипт из файла.
+     * Скомпилированный скрипт берётся из {@link CompiledScriptCache}: повторный запуск
+     * (клавиша, autorun) обходится без чтения файла и разбора
      */
     public ScriptTask startScriptFromFile(String name) {
         try {
-            String code = ScriptManager.loadScript(name);
-            return startScript(name, code, null, ScriptType.USER);
+            CompiledScriptCache.CompiledScript script = CompiledScriptCache.get(name);
+            if (script == null) {
+                ScriptLogger.getInstance().error("Script not found: " + name);
+                return null;
+            }
+            return start(name, script.getCode(), script.getProgram(), null, ScriptType.USER);
         } catch (Exception e) {
             ScriptLogger.getInstance().error("Failed to load script " + name + ": " + e.getMessage());
             return null;
@@ -99,42 +152,89 @@ public class ScriptTaskManager {
     }
 
     /**
-     * Вызывается каждый тик клиента
+     * Продолжает скрипт из снимка (config/kashub/snapshots), если он есть и файл скрипта
+     * не менялся с момента сохранения; иначе запускает скрипт с начала
+     */
+    public ScriptTask resumeScript(String name) {
+        boolean hasSnapshot = TaskSnapshots.exists(name);
+        ScriptTask task = startScriptFromFile(name);
+        if (hasSnapshot && task != null && task.getState() == ScriptState.RUNNING) {
+            long start = System.nanoTime();
+            if (TaskSnapshots.restore(task)) {
+                ScriptLogger.getInstance().info("Resumed task " + task.getId() + ": " + name + " at line " +
+                    task.getCurrentLine() + " (" + (System.nanoTime() - start) / 1000 + " µs)");
+            }
+        } else if (hasSnapshot) {
+            TaskSnapshots.delete(name);
+        }
+        return task;
+    }
+
+    /**
+     * Сохраняет снимки работающих пользовательских скриптов и останавливает их (выход из мира).
+     * Скрипты без файла и системные скрипты не трогаются
+     * @return число сохранённых задач
+     */
+    public int suspendAll() {
+        int saved = 0;
+        for (ScriptTask task : getTasksByState(ScriptState.RUNNING)) {
+            if (task.getScriptType() != ScriptType.USER || !ScriptManager.scriptExists(task.getName())) {
+                continue;
+            }
+            if (TaskSnapshots.save(task)) {
+                saved++;
+                stop(task.getId());
+            }
+        }
+        return saved;
+    }
+
+    /**
+     * Продолжает все скрипты, для которых есть снимок (вход в мир)
+     * @return имена продолженных скриптов
+     */
+    public Set<String> resumeSnapshots() {
+        Set<String> resumed = new LinkedHashSet<>();
+        for (String name : TaskSnapshots.list()) {
+            if (!ScriptManager.scriptExists(name)) {
+                TaskSnapshots.delete(name); // скрипт удалён
+                continue;
+            }
+            if (resumeScript(name) != null) {
+                resumed.add(name);
+            }
+        }
+        return resumed;
+    }
+
+    /**
+     * Вызывается каждый тик клиента.
+     * Время на скрипты ограничено tickBudgetMicros, очередь и доли задач ведёт {@link TickScheduler}
      */
     public void tick() {
         if (!enabled) return;
 
         KashubConfig config = KashubConfig.getInstance();
-        int processed = 0;
-        int runningCount = 0;
-
-        for (ScriptTask task : tasks.values()) {
-            if (processed >= config.maxScriptsPerTick) break;
-            
-            if (task.getState() == ScriptState.RUNNING) {
-                runningCount++;
-                try {
-                    task.tick();
-                    processed++;
-                } catch (Exception e) {
-                    ScriptLogger.getInstance().error("Task " + task.getId() + " tick error: " + e.getMessage());
-                }
-            }
-            
-            // Удаляем завершённые задачи старше 5 минут
-            if (task.getState() == ScriptState.STOPPED && 
-                System.currentTimeMillis() - task.getLastTickTime() > 300000) {
+        List<ScriptTask> running = new ArrayList<>(byState.get(ScriptState.RUNNING));
+        
+        // Удаляем завершённые задачи старше 5 минут
+        for (ScriptTask task : byState.get(ScriptState.STOPPED)) {
+            if (System.currentTimeMillis() - task.getLastTickTime() > 300000) {
                 // Unregister from file watcher
                 if (KashubConfig.getInstance().hotReload && task.getScriptType() == ScriptType.USER) {
                     ScriptFileWatcher.getInstance().unregisterScript(task.getName());
                 }
-                tasks.remove(task.getId());
+                remove(task);
             }
         }
         
+        long budgetMicros = config.tickBudgetMicros > 0 ? config.tickBudgetMicros : DEFAULT_TICK_BUDGET_MICROS;
+        int processed = scheduler.tick(running, budgetMicros * 1000);
+        
         // Log periodically to track script execution
-        if (runningCount > 0 && System.currentTimeMillis() % 1000 < 50) { // Log roughly once per second
-            ScriptLogger.getInstance().debug("ScriptTaskManager: " + runningCount + " running tasks, processed " + processed + " this tick");
+        if (!running.isEmpty() && System.currentTimeMillis() % 1000 < 50) { // Log roughly once per second
+            ScriptLogger.getInstance().debug("ScriptTaskManager: " + running.size() + " running tasks, processed " + processed
+                + " this tick in " + scheduler.getLastTickNanos() / 1000 + " us");
         }
     }
 
@@ -167,7 +267,7 @@ public class ScriptTaskManager {
 
     // Массовые операции
     public void stopAll() {
-        for (ScriptTask task : tasks.values()) {
+        for (ScriptTask task : new ArrayList<>(tasks.values())) {
             task.stop();
         }
         ScriptInterpreter.getInstance().stopProcessing();
@@ -175,35 +275,29 @@ public class ScriptTaskManager {
     }
 
     public void pauseAll() {
-        for (ScriptTask task : tasks.values()) {
-            if (task.getState() == ScriptState.RUNNING) {
-                task.pause();
-            }
+        for (ScriptTask task : getTasksByState(ScriptState.RUNNING)) {
+            task.pause();
         }
         ScriptLogger.getInstance().info("All tasks paused");
     }
 
     public void resumeAll() {
-        for (ScriptTask task : tasks.values()) {
-            if (task.getState() == ScriptState.PAUSED) {
-                task.resume();
-            }
+        for (ScriptTask task : getTasksByState(ScriptState.PAUSED)) {
+            task.resume();
         }
         ScriptLogger.getInstance().info("All tasks resumed");
     }
 
     public void stopByTag(String tag) {
-        for (ScriptTask task : tasks.values()) {
-            if (task.hasTag(tag)) {
-                task.stop();
-            }
+        for (ScriptTask task : getTasksByTag(tag)) {
+            task.stop();
         }
         ScriptLogger.getInstance().info("Stopped all tasks with tag: " + tag);
     }
 
     public void pauseByTag(String tag) {
-        for (ScriptTask task : tasks.values()) {
-            if (task.hasTag(tag) && task.getState() == ScriptState.RUNNING) {
+        for (ScriptTask task : getTasksByTag(tag)) {
+            if (task.getState() == ScriptState.RUNNING) {
                 task.pause();
             }
         }
@@ -219,21 +313,23 @@ public class ScriptTaskManager {
     }
 
     public List<ScriptTask> getRunningTasks() {
-        return tasks.values().stream()
-            .filter(t -> t.getState() == ScriptState.RUNNING)
-            .collect(Collectors.toList());
+        return getTasksByState(ScriptState.RUNNING);
     }
 
     public List<ScriptTask> getTasksByTag(String tag) {
-        return tasks.values().stream()
-            .filter(t -> t.hasTag(tag))
-            .collect(Collectors.toList());
+        Set<ScriptTask> tagged = byTag.get(tag);
+        return tagged != null ? new ArrayList<>(tagged) : new ArrayList<>();
     }
 
     public List<ScriptTask> getTasksByState(ScriptState state) {
-        return tasks.values().stream()
-            .filter(t -> t.getState() == state)
-            .collect(Collectors.toList());
+        return new ArrayList<>(byState.get(state));
+    }
+
+    /**
+     * Число задач в состоянии, O(1)
+     */
+    public int getCount(ScriptState state) {
+        return stateCounts.get(state).get();
     }
 
     public Collection<ScriptTask> getAllTasks() {
@@ -241,9 +337,7 @@ public class ScriptTaskManager {
     }
 
     public int getActiveCount() {
-        return (int) tasks.values().stream()
-            .filter(t -> t.getState() == ScriptState.RUNNING || t.getState() == ScriptState.PAUSED)
-            .count();
+        return getCount(ScriptState.RUNNING) + getCount(ScriptState.PAUSED);
     }
 
     public int getTotalCount() {
@@ -264,21 +358,56 @@ public class ScriptTaskManager {
 
     public void clear() {
         stopAll();
-        tasks.clear();
+        for (ScriptTask task : new ArrayList<>(tasks.values())) {
+            remove(task);
+        }
         nextId.set(1);
     }
 
+    /**
+     * Добавляет задачу в индексы и подписывается на её изменения
+     */
+    private void index(ScriptTask task) {
+        // The task announces its current state and tags under its own lock
+        task.setListener(indexer);
+    }
+
+    private void remove(ScriptTask task) {
+        task.setListener(null);
+        if (tasks.remove(task.getId()) == null) {
+            return;
+        }
+        for (ScriptState state : ScriptState.values()) {
+            if (byState.get(state).remove(task)) {
+                stateCounts.get(state).decrementAndGet();
+            }
+        }
+        for (String tag : task.getTags()) {
+            indexer.tagRemoved(task, tag);
+        }
+        scheduler.forget(task.getId());
+    }
+
     /**
      * Получает статистику по задачам
      */
     public Map<String, Object> getStats() {
         Map<String, Object> stats = new HashMap<>();
         stats.put("total", tasks.size());
-        stats.put("running", getTasksByState(ScriptState.RUNNING).size());
-        stats.put("paused", getTasksByState(ScriptState.PAUSED).size());
-        stats.put("stopped", getTasksByState(ScriptState.STOPPED).size());
-        stats.put("error", getTasksByState(ScriptState.ERROR).size());
+        stats.put("running", getCount(ScriptState.RUNNING));
+        stats.put("paused", getCount(ScriptState.PAUSED));
+        stats.put("stopped", getCount(ScriptState.STOPPED));
+        stats.put("error", getCount(ScriptState.ERROR));
         stats.put("enabled", enabled);
+        stats.put("tickMicros", scheduler.getLastTickNanos() / 1000);
+        stats.put("tickServed", scheduler.getLastServed());
+        stats.put("tickSkipped", scheduler.getLastSkipped());
+        stats.put("overruns", scheduler.getOverruns());
+        stats.put("lanes", CommandExecutor.getInstance().getStats());
+        stats.put("timers", TimerWheel.getInstance().getPending());
+        stats.put("compiledScripts", CompiledScriptCache.getCacheSize());
+        stats.put("compiledScriptHits", CompiledScriptCache.getHits());
+        stats.put("compiledScriptMisses", CompiledScriptCache.getMisses());
         return stats;
     }
 }
@@ -0,0 +1,176 @@
+package kasperstudios.kashub.runtime;
+
+import kasperstudios.kashub.util.ScriptLogger;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * Binary snapshots of script tasks in config/kashub/snapshots, one file per script name.
+ * A snapshot is only restored into a task compiled from the same source: the header
+ * carries a checksum of the code, and a snapshot of an edited script is discarded.
+ * Snapshots are one-shot, the file is deleted once it has been read.
+ */
+class TaskSnapshots {
+    private static final Path SNAPSHOTS_DIR = Paths.get("config", "kashub", "snapshots");
+    private static final String EXTENSION = ".khs";
+    private static final int MAGIC = 0x4B48534E; // "KHSN"
+    private static final int VERSION = 1;
+
+    private TaskSnapshots() {}
+
+    /**
+     * Write a snapshot of the task, replacing an older one of the same script
+     */
+    static boolean save(ScriptTask task) {
+        Path file = fileOf(task.getName());
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        try {
+            Files.createDirectories(SNAPSHOTS_DIR);
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+                out.writeInt(MAGIC);
+                out.writeShort(VERSION);
+                out.writeLong(checksum(task.getCode()));
+                task.writeSnapshot(out);
+            }
+            // Never leave a half-written snapshot behind
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            return true;
+        } catch (IOException e) {
+            ScriptLogger.getInstance().error("Failed to save snapshot of " + task.getName() + ": " + e.getMessage());
+            try {
+                Files.deleteIfExists(temp);
+            } catch (IOException ignored) {
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Restore the snapshot of the task's script into the freshly compiled task
+     * @return false if there is none, the script changed or the file is unreadable
+     */
+    static boolean restore(ScriptTask task) {
+        Path file = fileOf(task.getName());
+        if (!Files.exists(file)) {
+            return false;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            if (in.readInt() != MAGIC || in.readUnsignedShort() != VERSION) {
+                ScriptLogger.getInstance().warn("Snapshot of " + task.getName() + " has an unknown format, ignored");
+                return false;
+            }
+            if (in.readLong() != checksum(task.getCode())) {
+                ScriptLogger.getInstance().info("Script " + task.getName() + " changed since its snapshot, starting over");
+                return false;
+            }
+            task.restoreSnapshot(in);
+            return true;
+        } catch (IOException e) {
+            ScriptLogger.getInstance().warn("Failed to restore snapshot of " + task.getName() + ": " + e.getMessage());
+            return false;
+        } finally {
+            delete(task.getName());
+        }
+    }
+
+    static boolean exists(String scriptName) {
+        return Files.exists(fileOf(scriptName));
+    }
+
+    static void delete(String scriptName) {
+        try {
+            Files.deleteIfExists(fileOf(scriptName));
+        } catch (IOException e) {
+            ScriptLogger.getInstance().warn("Failed to delete snapshot of " + scriptName + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Script names that have a snapshot
+     */
+    static List<String> list() {
+        List<String> names = new ArrayList<>();
+        if (!Files.isDirectory(SNAPSHOTS_DIR)) {
+            return names;
+        }
+        try (Stream<Path> files = Files.list(SNAPSHOTS_DIR)) {
+            files.map(path -> path.getFileName().toString())
+                .filter(fileName -> fileName.endsWith(EXTENSION))
+                .forEach(fileName -> names.add(decodeName(fileName.substring(0, fileName.length() - EXTENSION.length()))));
+        } catch (IOException e) {
+            ScriptLogger.getInstance().warn("Failed to list snapshots: " + e.getMessage());
+        }
+        return names;
+    }
+
+    static void writeString(DataOutput out, String text) throws IOException {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    static String readString(DataInput in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            throw new IOException("Corrupt string length " + length);
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static long checksum(String code) {
+        CRC32 crc = new CRC32();
+        crc.update(code.getBytes(StandardCharsets.UTF_8));
+        // Length in the high bits makes accidental matches even less likely
+        return ((long) code.length() << 32) | crc.getValue();
+    }
+
+    private static Path fileOf(String scriptName) {
+        return SNAPSHOTS_DIR.resolve(encodeName(scriptName) + EXTENSION);
+    }
+
+    /**
+     * Script names may contain subdirectories; keep them in one flat directory
+     */
+    private static String encodeName(String scriptName) {
+        StringBuilder sb = new StringBuilder(scriptName.length());
+        for (char c : scriptName.toCharArray()) {
+            if (Character.isLetterOrDigit(c) || c == '-' || c == '_' || c == '.') {
+                sb.append(c);
+            } else {
+                sb.append('%').append(String.format("%04x", (int) c));
+            }
+        }
+        return sb.toString();
+    }
+
+    private static String decodeName(String fileName) {
+        StringBuilder sb = new StringBuilder(fileName.length());
+        for (int i = 0; i < fileName.length(); i++) {
+            char c = fileName.charAt(i);
+            if (c == '%' && i + 4 < fileName.length()) {
+                sb.append((char) Integer.parseInt(fileName.substring(i + 1, i + 5), 16));
+                i += 4;
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,130 @@
+package kasperstudios.kashub.runtime;
+
+import kasperstudios.kashub.util.ScriptLogger;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Deficit round-robin scheduler for running tasks.
+ * Every tick has a time budget; each task earns a slice of it in proportion
+ * to its priority weight and spends the time its tick actually took.
+ * A task that overruns goes into deficit and sits out the next ticks until
+ * its share has paid the debt back, so one heavy script cannot starve the rest.
+ * The round starts after the last task served, so with a tight budget
+ * every task still gets its turn.
+ * Only the time inside {@link ScriptTask#tick()} is charged. A program that
+ * continues from a command's completion callback, and the commands drained
+ * on the client thread by {@code CommandExecutor.drainGameThread} (which has
+ * its own budget of the same size), run outside the round and count against
+ * no task's share.
+ */
+class TickScheduler {
+    private static final long MIN_QUANTUM_NANOS = 50_000;   // smallest slice worth a turn
+    private static final int MAX_WEIGHT = 16;
+
+    private final Map<Integer, Slot> slots = new HashMap<>();
+    private int lastServedId = -1;
+
+    // Statistics of the last tick
+    private long lastTickNanos;
+    private int lastServed;
+    private int lastSkipped;
+    private long overruns;
+
+    /**
+     * Tick the running tasks within the budget
+     * @param running tasks in RUNNING state, any order
+     * @return number of tasks ticked
+     */
+    int tick(List<ScriptTask> running, long budgetNanos) {
+        lastServed = 0;
+        lastSkipped = 0;
+        if (running.isEmpty()) {
+            lastTickNanos = 0;
+            return 0;
+        }
+
+        // Stable ring by id, rotated to start right after the last task served
+        List<ScriptTask> ring = new ArrayList<>(running);
+        ring.sort(Comparator.comparingInt(ScriptTask::getId));
+        int start = 0;
+        while (start < ring.size() && ring.get(start).getId() <= lastServedId) {
+            start++;
+        }
+
+        int totalWeight = 0;
+        for (ScriptTask task : ring) {
+            totalWeight += weight(task);
+        }
+        long quantum = Math.max(MIN_QUANTUM_NANOS, budgetNanos / totalWeight);
+
+        long tickStart = System.nanoTime();
+        for (int i = 0; i < ring.size(); i++) {
+            ScriptTask task = ring.get((start + i) % ring.size());
+            Slot slot = slots.computeIfAbsent(task.getId(), id -> new Slot());
+            long share = quantum * weight(task);
+            // Credit is capped at one share, debt at one tick budget
+            slot.deficit = Math.min(share, slot.deficit + share);
+
+            boolean outOfBudget = System.nanoTime() - tickStart >= budgetNanos && lastServed > 0;
+            if (slot.deficit <= 0 || outOfBudget) {
+                lastSkipped++;
+                continue;
+            }
+
+            long begin = System.nanoTime();
+            try {
+                task.tick();
+            } catch (Exception e) {
+                ScriptLogger.getInstance().error("Task " + task.getId() + " tick error: " + e.getMessage());
+            }
+            long spent = System.nanoTime() - begin;
+            slot.deficit = Math.max(-budgetNanos, slot.deficit - spent);
+            if (spent > share) {
+                overruns++;
+            }
+            lastServedId = task.getId();
+            lastServed++;
+        }
+        lastTickNanos = System.nanoTime() - tickStart;
+        return lastServed;
+    }
+
+    /**
+     * Relative share of a task: priority 0 (default) is 1, every step above adds one
+     */
+    static int weight(ScriptTask task) {
+        return Math.max(1, Math.min(MAX_WEIGHT, task.getPriority() + 1));
+    }
+
+    /**
+     * Drop the bookkeeping of a task that was removed
+     */
+    void forget(int taskId) {
+        slots.remove(taskId);
+    }
+
+    long getLastTickNanos() {
+        return lastTickNanos;
+    }
+
+    int getLastServed() {
+        return lastServed;
+    }
+
+    int getLastSkipped() {
+        return lastSkipped;
+    }
+
+    long getOverruns() {
+        return overruns;
+    }
+
+    private static class Slot {
+        long deficit; // nanoseconds the task may still spend, negative after an overrun
+    }
+}
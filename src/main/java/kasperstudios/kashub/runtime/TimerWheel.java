@@ -0,0 +1,187 @@
+package kasperstudios.kashub.runtime;
+
+import kasperstudios.kashub.util.ScriptLogger;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hierarchical timer wheel advanced once per client tick (END_CLIENT_TICK).
+ * Replaces the per-command ScheduledExecutorServices: delays are rounded up
+ * to whole ticks and callbacks run on the client thread in the tick they are due.
+ *
+ * Four levels of 64 slots; level L holds timeouts due within 64^(L+1) ticks and
+ * is cascaded into the level below whenever that one wraps around. Scheduling
+ * and cancelling are O(1) list operations on one slot.
+ */
+public class TimerWheel {
+    private static final TimerWheel INSTANCE = new TimerWheel();
+
+    public static final long TICK_MILLIS = 50;
+
+    private static final int SLOT_BITS = 6;
+    private static final int SLOTS = 1 << SLOT_BITS;
+    private static final int SLOT_MASK = SLOTS - 1;
+    private static final int LEVELS = 4;
+    private static final long MAX_DELAY_TICKS = (1L << (SLOT_BITS * LEVELS)) - 1; // ~9.7 days
+
+    private final Timeout[][] wheel = new Timeout[LEVELS][SLOTS];
+    private final Object lock = new Object();
+    private long currentTick;
+    private int pending;
+
+    private TimerWheel() {}
+
+    public static TimerWheel getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Run a task after a delay, rounded up to whole ticks.
+     * A delay of 0 runs it at the end of the current tick.
+     */
+    public Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+        long millis = Math.max(0, unit.toMillis(delay));
+        return scheduleTicks(task, (millis + TICK_MILLIS - 1) / TICK_MILLIS);
+    }
+
+    /**
+     * Run a task after the given number of ticks (0 = end of the current tick)
+     */
+    public Timeout scheduleTicks(Runnable task, long ticks) {
+        synchronized (lock) {
+            // Due at the earliest in the next advance, so a callback re-scheduling itself cannot spin
+            Timeout timeout = new Timeout(task, currentTick + 1 + Math.min(Math.max(0, ticks - 1), MAX_DELAY_TICKS));
+            insert(timeout);
+            pending++;
+            return timeout;
+        }
+    }
+
+    /**
+     * Advance one tick and run everything that became due. Called from the client tick.
+     * @return number of callbacks run
+     */
+    public int tick() {
+        List<Timeout> due = new ArrayList<>();
+        synchronized (lock) {
+            currentTick++;
+            // Move timeouts of higher levels down when the level below wraps around
+            for (int level = 1; level < LEVELS; level++) {
+                if ((currentTick & ((1L << (SLOT_BITS * level)) - 1)) != 0) {
+                    break;
+                }
+                int slot = (int) ((currentTick >>> (SLOT_BITS * level)) & SLOT_MASK);
+                Timeout timeout = wheel[level][slot];
+                wheel[level][slot] = null;
+                while (timeout != null) {
+                    Timeout next = timeout.next;
+                    timeout.prev = timeout.next = null;
+                    insert(timeout);
+                    timeout = next;
+                }
+            }
+
+            int slot = (int) (currentTick & SLOT_MASK);
+            Timeout timeout = wheel[0][slot];
+            wheel[0][slot] = null;
+            while (timeout != null) {
+                Timeout next = timeout.next;
+                timeout.prev = timeout.next = null;
+                timeout.level = -1;
+                pending--;
+                due.add(timeout);
+                timeout = next;
+            }
+        }
+
+        for (Timeout timeout : due) {
+            try {
+                timeout.task.run();
+            } catch (Exception e) {
+                ScriptLogger.getInstance().error("Timer callback failed: " + e.getMessage());
+            }
+        }
+        return due.size();
+    }
+
+    /**
+     * Timeouts not yet run or cancelled
+     */
+    public int getPending() {
+        synchronized (lock) {
+            return pending;
+        }
+    }
+
+    public long getCurrentTick() {
+        synchronized (lock) {
+            return currentTick;
+        }
+    }
+
+    private void insert(Timeout timeout) {
+        long delta = timeout.deadline - currentTick;
+        int level = 0;
+        while (level < LEVELS - 1 && delta >= 1L << (SLOT_BITS * (level + 1))) {
+            level++;
+        }
+        int slot = (int) ((timeout.deadline >>> (SLOT_BITS * level)) & SLOT_MASK);
+        timeout.level = level;
+        timeout.slot = slot;
+        timeout.next = wheel[level][slot];
+        if (timeout.next != null) {
+            timeout.next.prev = timeout;
+        }
+        wheel[level][slot] = timeout;
+    }
+
+    private boolean unlink(Timeout timeout) {
+        synchronized (lock) {
+            if (timeout.level < 0) {
+                return false; // already run or cancelled
+            }
+            if (timeout.prev != null) {
+                timeout.prev.next = timeout.next;
+            } else {
+                wheel[timeout.level][timeout.slot] = timeout.next;
+            }
+            if (timeout.next != null) {
+                timeout.next.prev = timeout.prev;
+            }
+            timeout.prev = timeout.next = null;
+            timeout.level = -1;
+            pending--;
+            return true;
+        }
+    }
+
+    /**
+     * Handle of a scheduled task
+     */
+    public class Timeout {
+        private final Runnable task;
+        private final long deadline; // absolute tick
+        private Timeout prev;
+        private Timeout next;
+        private int level;           // -1 once run or cancelled
+        private int slot;
+
+        private Timeout(Runnable task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        /**
+         * @return true if the task was still pending and will not run
+         */
+        public boolean cancel() {
+            return unlink(this);
+        }
+
+        public long getDeadlineTick() {
+            return deadline;
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package kasperstudios.kashub.util;
+
+import kasperstudios.kashub.algorithm.ast.ScriptCache;
+import kasperstudios.kashub.algorithm.ast.ScriptProgram;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Compiled script files by name (LRU), so starting a script from a keybind,
+ * autorun or 'run' needs neither disk I/O nor parsing after its first launch.
+ * {@link ScriptFileWatcher} and {@link ScriptManager} mark an entry stale when
+ * the file changes; the next launch reads the file again and keeps the compiled
+ * program if the content hash shows the text is the same.
+ */
+public final class CompiledScriptCache {
+    private static final int CACHE_SIZE = 32;
+
+    private static final Map<String, CompiledScript> CACHE = Collections.synchronizedMap(
+        new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CompiledScript> eldest) {
+                return size() > CACHE_SIZE;
+            }
+        });
+
+    private static final AtomicLong hits = new AtomicLong();
+    private static final AtomicLong misses = new AtomicLong();
+
+    private CompiledScriptCache() {}
+
+    /**
+     * Get the compiled script, loading the file on first use or after it changed
+     * @return null if there is no such script
+     */
+    public static CompiledScript get(String name) {
+        String key = normalize(name);
+        CompiledScript cached = CACHE.get(key);
+        if (cached != null && !cached.stale) {
+            hits.incrementAndGet();
+            return cached;
+        }
+        misses.incrementAndGet();
+
+        String code = ScriptManager.loadScript(key);
+        if (code == null) {
+            CACHE.remove(key);
+            return null;
+        }
+        CompiledScript script;
+        if (cached != null && cached.hash == code.hashCode() && cached.code.equals(code)) {
+            // Touched but not changed: keep the compiled program
+            script = new CompiledScript(key, cached.code, cached.program);
+        } else {
+            script = new CompiledScript(key, code, ScriptCache.get(code));
+        }
+        CACHE.put(key, script);
+        return script;
+    }
+
+    /**
+     * The script file changed or was deleted; the next {@link #get} reads it again
+     */
+    public static void invalidate(String name) {
+        CompiledScript cached = CACHE.get(normalize(name));
+        if (cached != null) {
+            cached.stale = true;
+        }
+    }
+
+    public static void invalidateAll() {
+        synchronized (CACHE) {
+            for (CompiledScript script : CACHE.values()) {
+                script.stale = true;
+            }
+        }
+    }
+
+    public static int getCacheSize() {
+        return CACHE.size();
+    }
+
+    public static long getHits() {
+        return hits.get();
+    }
+
+    public static long getMisses() {
+        return misses.get();
+    }
+
+    private static String normalize(String name) {
+        String key = name.replace("\\", "/");
+        return key.endsWith(".kh") ? key.substring(0, key.length() - 3) : key;
+    }
+
+    /**
+     * Source and compiled program of one script file
+     */
+    public static final class CompiledScript {
+        private final String name;
+        private final String code;
+        private final int hash;
+        private final ScriptProgram program;
+        private volatile boolean stale;
+
+        private CompiledScript(String name, String code, ScriptProgram program) {
+            this.name = name;
+            this.code = code;
+            this.hash = code.hashCode();
+            this.program = program;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public String getCode() {
+            return code;
+        }
+
+        public int getHash() {
+            return hash;
+        }
+
+        public ScriptProgram getProgram() {
+            return program;
+        }
+    }
+}
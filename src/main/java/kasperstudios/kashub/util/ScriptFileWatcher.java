@@ -11,6 +11,7 @@ import java.nio.file.*;
 import java.nio.file.attribute.FileTime;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
 
 /**
  * Watches for file changes and automatically reloads scripts if hot-reload is enabled
@@ -50,10 +51,7 @@ public class ScriptFileWatcher {
             
             // Start watch service
             watchService = FileSystems.getDefault().newWatchService();
-            scriptsDir.register(watchService, 
-                StandardWatchEventKinds.ENTRY_MODIFY,
-                StandardWatchEventKinds.ENTRY_CREATE,
-                StandardWatchEventKinds.ENTRY_DELETE);
+            registerTree(scriptsDir);
             
             running = true;
             watchThread = new Thread(this::watchLoop, "ScriptFileWatcher");
@@ -229,23 +227,37 @@ public class ScriptFileWatcher {
                     continue;
                 }
                 
+                Path dir = (Path) key.watchable();
                 for (WatchEvent<?> event : key.pollEvents()) {
                     WatchEvent.Kind<?> kind = event.kind();
                     
                     if (kind == StandardWatchEventKinds.OVERFLOW) {
+                        // Events were lost, no telling which scripts changed
+                        CompiledScriptCache.invalidateAll();
                         continue;
                     }
                     
                     @SuppressWarnings("unchecked")
                     WatchEvent<Path> ev = (WatchEvent<Path>) event;
-                    Path filename = ev.context();
+                    Path path = dir.resolve(ev.context());
+                    
+                    // New folder: watch the scripts inside it too
+                    if (kind == StandardWatchEventKinds.ENTRY_CREATE && Files.isDirectory(path)) {
+                        registerTree(path);
+                        continue;
+                    }
                     
                     // Only process .kh files
-                    if (!filename.toString().endsWith(".kh")) {
+                    if (!path.toString().endsWith(".kh")) {
                         continue;
                     }
                     
-                    String scriptName = filename.toString().replace(".kh", "");
+                    String scriptName = scriptsDir.relativize(path).toString()
+                        .replace(".kh", "")
+                        .replace("\\", "/");
+                    
+                    // The compiled copy is out of date whatever happened to the file
+                    CompiledScriptCache.invalidate(scriptName);
                     
                     if (kind == StandardWatchEventKinds.ENTRY_MODIFY || 
                         kind == StandardWatchEventKinds.ENTRY_CREATE) {
@@ -271,6 +283,22 @@ public class ScriptFileWatcher {
         }
     }
     
+    /**
+     * Watch a folder and all folders below it (scripts can live in subfolders)
+     */
+    private void registerTree(Path root) throws IOException {
+        List<Path> dirs;
+        try (Stream<Path> walk = Files.walk(root)) {
+            dirs = walk.filter(Files::isDirectory).toList();
+        }
+        for (Path dir : dirs) {
+            dir.register(watchService,
+                StandardWatchEventKinds.ENTRY_MODIFY,
+                StandardWatchEventKinds.ENTRY_CREATE,
+                StandardWatchEventKinds.ENTRY_DELETE);
+        }
+    }
+    
     /**
      * Initialize timestamps for all existing script files
      */
@@ -1,7 +1,7 @@
 package kasperstudios.kashub.util;
 
+import kasperstudios.kashub.client.ClientFacade;
 import kasperstudios.kashub.config.KashubConfig;
-import net.minecraft.client.MinecraftClient;
 import net.minecraft.text.Text;
 import net.minecraft.util.Formatting;
 
@@ -131,13 +131,13 @@ public class ScriptLogger {
     }
 
     private void sendToChat(LogEntry entry) {
-        MinecraftClient client = MinecraftClient.getInstance();
-        if (client.player != null) {
+        ClientFacade client = ClientFacade.getInstance();
+        if (client.getPlayer() != null) {
             String prefix = "[KH] ";
             String text = prefix + entry.message;
             
             Text chatMessage = Text.literal(text).formatted(entry.level.color);
-            client.player.sendMessage(chatMessage, false);
+            client.showMessage(chatMessage);
         }
     }
 
@@ -39,6 +39,7 @@ public class ScriptManager {
             Path scriptFile = SCRIPTS_DIR.resolve(filename);
             Files.createDirectories(scriptFile.getParent());
             Files.writeString(scriptFile, content, StandardCharsets.UTF_8);
+            CompiledScriptCache.invalidate(name);
             return true;
         } catch (IOException e) {
             Kashub.LOGGER.error("Failed to save script: " + name, e);
@@ -126,6 +127,7 @@ public class ScriptManager {
             }
             String filename = name.endsWith(".kh") ? name : name + ".kh";
             Path scriptFile = SCRIPTS_DIR.resolve(filename);
+            CompiledScriptCache.invalidate(name);
             return Files.deleteIfExists(scriptFile);
         } catch (IOException e) {
             Kashub.LOGGER.error("Failed to delete script: " + name, e);